@@ -0,0 +1,111 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360;
+
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.epfl.mmspg.testbed360.image.ImagesSession;
+import ch.epfl.mmspg.testbed360.image.SessionSummary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks on the device that the render loop of {@link VRViewRenderer} allocates nothing once the
+ * first scene is displayed, see {@link VRViewRenderer#setAllocationCounting(boolean)}. Needs a
+ * session folder on the device, otherwise the test is skipped.
+ */
+@RunWith(AndroidJUnit4.class)
+public class VRViewRendererAllocationTest {
+    /**
+     * Frames counted after the warmup, about 10 seconds at 60 fps
+     */
+    private final static int STEADY_FRAMES = 600;
+    private final static long TIMEOUT_MS = 60000;
+
+    @Rule
+    public final ActivityTestRule<VRViewActivity> activityRule = new ActivityTestRule<>(VRViewActivity.class, false, false);
+
+    @After
+    public void tearDown() {
+        VRViewRenderer.setAllocationCounting(false);
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() throws InterruptedException {
+        int sessionId = findSession();
+        assumeTrue("No session on the device", sessionId >= 0);
+
+        Intent intent = new Intent(InstrumentationRegistry.getTargetContext(), VRViewActivity.class);
+        intent.putExtra(VRViewActivity.SESSION_ID_TAG, sessionId);
+        intent.putExtra(VRViewActivity.COUNT_ALLOCATIONS_TAG, true);
+        VRViewActivity activity = activityRule.launchActivity(intent);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        VRViewRenderer renderer = activity.getRenderer();
+        while (renderer.getCountedFrames() < VRViewRenderer.ALLOCATION_WARMUP_FRAMES + STEADY_FRAMES) {
+            assertTrue("Not enough frames rendered in " + TIMEOUT_MS + "ms", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+        assertEquals("Objects allocated by the render loop after the warmup", 0, renderer.getSteadyAllocations());
+    }
+
+    /**
+     * Lists the sessions on the device, as {@link VRViewActivity} only opens a listed one
+     *
+     * @return the id of a session, or -1 if there is none
+     */
+    private static int findSession() throws InterruptedException {
+        final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicInteger sessionId = new AtomicInteger(-1);
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ImagesSession.getLoadingTask(instrumentation.getTargetContext()).start(new ImagesSession.LoadTask.Listener() {
+                    @Override
+                    public void onSessionLoaded(@NonNull SessionSummary session) {
+                        sessionId.compareAndSet(-1, session.getId());
+                    }
+
+                    @Override
+                    public void onLoadFinished(int loadedCount, int failedCount) {
+                        finished.countDown();
+                    }
+                });
+            }
+        });
+        assertTrue("Sessions not listed in " + TIMEOUT_MS + "ms", finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return sessionId.get();
+    }
+}
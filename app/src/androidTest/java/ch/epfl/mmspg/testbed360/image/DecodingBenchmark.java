@@ -0,0 +1,146 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares on the device the {@link CubicMapDecoder.Strategy}s on a synthetic cube map, and measures
+ * the throughput of the equirectangular to cube map conversion on the {@link CubicMapDecoder#POOL}.
+ * The timings are logged, as they depend on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DecodingBenchmark {
+    private final static String TAG = "DecodingBenchmark";
+
+    private final static int FACE_SIZE = 1024;
+    private final static int RUNS = 5;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        CubeMapLayout layout = CubeMapLayout.CUBEMAP_32;
+        int width = layout.getColumns() * FACE_SIZE;
+        int height = layout.getRows() * FACE_SIZE;
+        Bitmap image = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                //gradients with some texture, so that the JPEG is not trivial to decode
+                row[x] = 0xFF000000 | ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | ((x * y) & 0xFF);
+            }
+            image.setPixels(row, 0, width, 0, y, width, 1);
+        }
+        file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "benchmark_cubemap32.jpg");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            assertTrue(image.compress(Bitmap.CompressFormat.JPEG, 90, out));
+        } finally {
+            image.recycle();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void compareDecodingStrategies() throws IOException {
+        CubicMapDecoder.Source source = CubicMapDecoder.Source.fromFile(file);
+        StringBuilder table = new StringBuilder("strategy\tmean/min ms");
+        for (CubicMapDecoder.Strategy strategy : CubicMapDecoder.Strategy.values()) {
+            if (strategy == CubicMapDecoder.Strategy.ADAPTIVE) {
+                continue;
+            }
+            long total = 0;
+            long min = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                Bitmap[] faces = new Bitmap[CubeMapLayout.FACE_COUNT];
+                long start = System.nanoTime();
+                CubicMapDecoder.decode(source, CubeMapLayout.CUBEMAP_32, faces, strategy);
+                long duration = (System.nanoTime() - start) / 1000000;
+                total += duration;
+                min = Math.min(min, duration);
+                for (Bitmap face : faces) {
+                    assertNotNull(strategy + " missed a face", face);
+                    assertEquals(FACE_SIZE, face.getWidth());
+                    assertEquals(FACE_SIZE, face.getHeight());
+                }
+                ImageUtils.releaseBitmaps(faces);
+            }
+            table.append('\n').append(strategy).append('\t')
+                    .append(String.format(Locale.US, "%d/%d", total / RUNS, min));
+        }
+        Log.i(TAG, "Cube map decoding of " + 3 * FACE_SIZE + "x" + 2 * FACE_SIZE + " :\n" + table);
+    }
+
+    @Test
+    public void measureEquirectConversion() throws InterruptedException {
+        int width = 4096;
+        int height = 2048;
+        short[] source = new short[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                source[y * width + x] = (short) (((x * 31 / width) << 11) | ((y * 63 / height) << 5) | ((x ^ y) & 0x1F));
+            }
+        }
+        int faceSize = EquirectToCubemap.faceSizeFor(width);
+        double megapixels = EquirectToCubemap.FACE_COUNT * (double) faceSize * faceSize / 1e6;
+        StringBuilder table = new StringBuilder("filter\tMpx/s on " + CubicMapDecoder.WORKER_COUNT + " workers");
+        //a single face buffer, as in ImageUtils.equirectToCubicMap()
+        short[] face = new short[faceSize * faceSize];
+        for (EquirectToCubemap.Filter filter : EquirectToCubemap.Filter.values()) {
+            //a first conversion to warm the JIT up
+            convert(source, width, height, face, faceSize, filter);
+            long start = System.nanoTime();
+            for (int run = 0; run < RUNS; run++) {
+                convert(source, width, height, face, faceSize, filter);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            table.append('\n').append(filter).append('\t')
+                    .append(String.format(Locale.US, "%.1f", megapixels * RUNS / seconds));
+        }
+        Log.i(TAG, "Equirectangular " + width + "x" + height + " to cube map :\n" + table);
+    }
+
+    private static void convert(short[] source, int width, int height, short[] face, int faceSize,
+                                EquirectToCubemap.Filter filter) throws InterruptedException {
+        for (int f = 0; f < EquirectToCubemap.FACE_COUNT; f++) {
+            EquirectToCubemap.convertFace(source, width, height, face, faceSize, f, filter,
+                    CubicMapDecoder.POOL, CubicMapDecoder.WORKER_COUNT);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.ui;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.MotionEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.rajawali3d.renderer.Renderer;
+
+import java.util.Locale;
+
+import ch.epfl.mmspg.testbed360.VRScene;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Compares on the device the two ways a scene switch gets its grade {@link VRMenu} : building a new
+ * one with its buttons and their textures, or rebinding the one released by the previous scene, see
+ * {@link VRMenuFactory#releaseGradeMenu(VRScene, VRMenu)}. The timings are logged, as they depend on
+ * the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GradeMenuBenchmark {
+    private final static String TAG = "GradeMenuBenchmark";
+
+    private final static int RUNS = 20;
+
+    private Renderer renderer;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        //created on the main thread, as the activity does
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                renderer = new BenchmarkRenderer(context);
+            }
+        });
+        VRMenuFactory.clearGradeMenus();
+    }
+
+    @After
+    public void tearDown() {
+        VRMenuFactory.clearGradeMenus();
+    }
+
+    @Test
+    public void compareTrainingMenus() {
+        compare(VRScene.MODE_TRAINING);
+    }
+
+    @Test
+    public void compareEvaluationMenus() {
+        compare(VRScene.MODE_EVALUATION);
+    }
+
+    /**
+     * Times {@link #RUNS} menus built with an empty pool, then {@link #RUNS} menus rebound from the pool,
+     * on this thread as the scenes are prepared in background
+     *
+     * @param mode {@link VRScene#MODE_TRAINING} or {@link VRScene#MODE_EVALUATION}
+     */
+    private void compare(int mode) {
+        //the scene without image only serves as the binding of the menus, it keeps its own menu
+        VRScene scene = new VRScene(renderer, null, mode);
+
+        long builtNs = 0;
+        VRMenu previous = null;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            VRMenu menu = obtain(mode, scene);
+            builtNs += System.nanoTime() - start;
+            assertNotSame(previous, menu);
+            //not given back, so that the next one is built too
+            menu.recycle();
+            previous = menu;
+        }
+
+        VRMenu pooled = obtain(mode, scene);
+        VRMenuFactory.releaseGradeMenu(scene, pooled);
+        long reboundNs = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            VRMenu menu = obtain(mode, scene);
+            reboundNs += System.nanoTime() - start;
+            assertSame(pooled, menu);
+            VRMenuFactory.releaseGradeMenu(scene, menu);
+        }
+        scene.recycle();
+
+        Log.i(TAG, String.format(Locale.US, "%s grade menu : built in %.2fms, rebound in %.3fms (mean of %d)",
+                mode == VRScene.MODE_TRAINING ? "Training" : "Evaluation",
+                builtNs / 1e6 / RUNS, reboundNs / 1e6 / RUNS, RUNS));
+    }
+
+    @NonNull
+    private VRMenu obtain(int mode, @NonNull VRScene scene) {
+        return mode == VRScene.MODE_TRAINING
+                ? VRMenuFactory.obtainTrainingGradeMenu(renderer, scene)
+                : VRMenuFactory.obtainEvaluationGradeMenu(renderer, scene);
+    }
+
+    /**
+     * A {@link Renderer} that is never attached to a surface, so that the scenes only get built
+     */
+    private static final class BenchmarkRenderer extends Renderer {
+        BenchmarkRenderer(Context context) {
+            super(context);
+        }
+
+        @Override
+        public void initScene() {
+            //nothing is rendered
+        }
+
+        @Override
+        public void onOffsetsChanged(float xOffset, float yOffset, float xOffsetStep, float yOffsetStep,
+                                     int xPixelOffset, int yPixelOffset) {
+        }
+
+        @Override
+        public void onTouchEvent(MotionEvent event) {
+        }
+    }
+}
@@ -40,12 +40,14 @@ import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import java.util.concurrent.ExecutionException;
+import java.util.ArrayList;
 
 import br.tiagohm.markdownview.MarkdownView;
 import br.tiagohm.markdownview.css.InternalStyleSheet;
 import br.tiagohm.markdownview.css.styles.Github;
 import ch.epfl.mmspg.testbed360.image.ImagesSession;
+import ch.epfl.mmspg.testbed360.image.SessionSummary;
+import ch.epfl.mmspg.testbed360.image.SessionWatcher;
 
 /**
  * This is the very first activity displayed, which prompts choices of {@link ImagesSession} to launch
@@ -271,6 +273,34 @@ public class StartActivity extends AppCompatActivity {
         private LinearLayout noSessionLayout;
         private ListView sessionsListView;
         private LinearLayout sessionsListLayout;
+        private ImagesSession.LoadTask loadTask;
+        private ImagesSession.Adapter adapter;
+
+        /**
+         * Applies to the list the changes of the session folders while the fragment is displayed
+         */
+        private final SessionWatcher sessionWatcher = new SessionWatcher(new SessionWatcher.Listener() {
+            @Override
+            public void onSessionUpdated(@NonNull SessionSummary session) {
+                if (adapter != null) {
+                    adapter.addSorted(session);
+                    noSessionLayout.setVisibility(View.GONE);
+                    sessionsListLayout.setVisibility(View.VISIBLE);
+                }
+            }
+
+            @Override
+            public void onSessionRemoved(int sessionId) {
+                if (adapter != null) {
+                    adapter.remove(sessionId);
+                    if (adapter.getCount() == 0 && loadTask == null) {
+                        sessionsListLayout.setVisibility(View.GONE);
+                        noSessionText.setText(R.string.noSessionExplanation);
+                        noSessionLayout.setVisibility(View.VISIBLE);
+                    }
+                }
+            }
+        });
 
         @Override
         public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -301,32 +331,58 @@ public class StartActivity extends AppCompatActivity {
             }
         }
 
+        @Override
+        public void onPause() {
+            super.onPause();
+            cancelSeeking();
+            sessionWatcher.stopWatching();
+        }
+
         /**
-         * Starts the task to load sessions in a background thread and changes the UI accordingly.
-         * see {@link ch.epfl.mmspg.testbed360.image.ImagesSession.LoadTask#doInBackground(Activity...)}
+         * Starts the task to load sessions in background and changes the UI accordingly. Sessions are
+         * added to the list as soon as they are loaded, a previous seek still running is cancelled.
+         * The session folders are then watched, see {@link SessionWatcher}.
+         * see {@link ImagesSession.LoadTask#start(ImagesSession.LoadTask.Listener)}
          */
         private void seekSessions() {
+            cancelSeeking();
+            sessionWatcher.stopWatching();
             swipeRefreshLayout.setRefreshing(true);
             noSessionLayout.setVisibility(View.GONE);
             sessionsListLayout.setVisibility(View.GONE);
-            sessionsListView.setAdapter(null);
-
-            ImagesSession.LoadTask task = ImagesSession.getLoadingTask(getContext());
-            task.execute(getActivity());
-            try {
-                sessionsListView.setAdapter(new ImagesSession.Adapter(getContext(), R.layout.session_list_item, task.get()));
-                if (sessionsListView.getAdapter() != null && sessionsListView.getAdapter().getCount() == 0) {
-                    noSessionText.setText(R.string.noSessionExplanation);
-                    noSessionLayout.setVisibility(View.VISIBLE);
-                } else {
+
+            adapter = new ImagesSession.Adapter(getContext(),
+                    R.layout.session_list_item, new ArrayList<SessionSummary>());
+            sessionsListView.setAdapter(adapter);
+
+            loadTask = ImagesSession.getLoadingTask(getContext());
+            sessionWatcher.startWatching();
+            loadTask.start(new ImagesSession.LoadTask.Listener() {
+                @Override
+                public void onSessionLoaded(@NonNull SessionSummary session) {
+                    adapter.addSorted(session);
+                    sessionWatcher.watch(session);
                     sessionsListLayout.setVisibility(View.VISIBLE);
                 }
-            } catch (InterruptedException | ExecutionException e) {
-                noSessionLayout.setVisibility(View.VISIBLE);
-                noSessionText.setText(R.string.error_loading_images);
-                e.printStackTrace();
+
+                @Override
+                public void onLoadFinished(int loadedCount, int failedCount) {
+                    loadTask = null;
+                    if (adapter.getCount() == 0) {
+                        noSessionText.setText(failedCount > 0 ? R.string.error_loading_images : R.string.noSessionExplanation);
+                        noSessionLayout.setVisibility(View.VISIBLE);
+                    }
+                    swipeRefreshLayout.setRefreshing(false);
+                }
+            });
+        }
+
+        private void cancelSeeking() {
+            if (loadTask != null) {
+                loadTask.cancel();
+                loadTask = null;
+                swipeRefreshLayout.setRefreshing(false);
             }
-            swipeRefreshLayout.setRefreshing(false);
         }
     }
 
@@ -24,7 +24,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import com.google.vrtoolkit.cardboard.Eye;
+import com.google.vrtoolkit.cardboard.HeadTransform;
 
 import org.rajawali3d.materials.Material;
 import org.rajawali3d.materials.textures.ATexture;
@@ -39,6 +39,8 @@ import org.rajawali3d.scene.Scene;
 import java.io.IOException;
 
 import ch.epfl.mmspg.testbed360.image.ImageGrade;
+import ch.epfl.mmspg.testbed360.image.ImageUtils;
+import ch.epfl.mmspg.testbed360.image.ImagesSession;
 import ch.epfl.mmspg.testbed360.image.VRImage;
 import ch.epfl.mmspg.testbed360.image.VRImageType;
 import ch.epfl.mmspg.testbed360.tracking.TrackingTask;
@@ -53,15 +55,16 @@ import ch.epfl.mmspg.testbed360.ui.VRUI;
  * A {@link VRScene} has two default modes, which will determine the behaviour of the {@link #menu} :
  * - {@link #MODE_TRAINING} when the given {@link VRImage} already has an {@link ImageGrade} associated
  * to it. The {@link #menu} will show the grade of the {@link VRImage}. (
- * see {@link VRMenuFactory#buildTrainingGradeMenu(Renderer, VRImage)}
+ * see {@link VRMenuFactory#obtainTrainingGradeMenu(Renderer, VRScene)}
  * - {@link #MODE_EVALUATION} where the user is required to set an {@link ImageGrade} in order to pass
  * to the next {@link VRScene}.
  * <p>
  * Also, depending on the given {@link VRImage}, an equirectangular projection (onto a {@link Sphere})
  * or a cubic projection (onto {@link Scene#mSkybox}) is used to display the image.
  * <p>
- * When we switch to an other {@link VRScene}, the previous {@link VRScene} should be recycled using
- * {@link #recycle()}, to ensure a reasonable RAM usage.
+ * The next {@link VRScene} is created in background while this one is displayed, see
+ * {@link VRViewRenderer#switchSceneAsync(java.util.concurrent.Callable)}. Once it is displayed, this
+ * one is recycled using {@link #recycle()} by the {@link VRViewRenderer}, to ensure a reasonable RAM usage.
  *
  * @author Louis-Maxence Garret <louis-maxence.garret@epfl.ch>
  * @date 30/10/2017
@@ -72,19 +75,19 @@ public class VRScene extends Scene implements VRUI {
 
     /**
      * The two different mode with which a {@link VRScene} can work.
-     * see {@link VRMenuFactory#buildTrainingGradeMenu(Renderer, VRImage)}
-     * see {@link VRMenuFactory#buildEvaluationGradeMenu(Renderer, VRScene)}
+     * see {@link VRMenuFactory#obtainTrainingGradeMenu(Renderer, VRScene)}
+     * see {@link VRMenuFactory#obtainEvaluationGradeMenu(Renderer, VRScene)}
      */
     public final static int MODE_TRAINING = 0;
     public final static int MODE_EVALUATION = 1;
 
     /**
-     * Static shared {@link Texture} and {@link Material} for the {@link Sphere}. As we display a
-     * {@link VRScene} at a time, we can thus reuse the same {@link Texture} to bind to the {@link Sphere}
-     * and avoid an increased RAM usage.
+     * {@link Texture} and {@link Material} of the {@link Sphere}. They are not shared between scenes,
+     * as the next scene is prepared while this one is still displayed (see
+     * {@link VRViewRenderer#switchSceneAsync(java.util.concurrent.Callable)}), but the {@link Bitmap}s are pooled.
      */
-    private static Texture sphereTexture;
-    private static Material sphereMaterial;
+    private Texture sphereTexture;
+    private Material sphereMaterial;
 
     /**
      * The {@link VRImage} that is to be displayed in this scene.
@@ -96,6 +99,17 @@ public class VRScene extends Scene implements VRUI {
      */
     private Sphere sphere;
 
+    /**
+     * The {@link Bitmap}s of the {@link #vrImage} bound to the textures of this scene, given back to
+     * the {@link ch.epfl.mmspg.testbed360.image.BitmapPool} when the scene is recycled.
+     */
+    private Bitmap[] bitmaps;
+
+    /**
+     * Whether the {@link #vrImage} is displayed with the skybox rather than the {@link #sphere}
+     */
+    private boolean usesSkybox = false;
+
     /**
      * The default {@link VRMenu} of this scene, should contain all elements of the UI.
      */
@@ -111,6 +125,7 @@ public class VRScene extends Scene implements VRUI {
     private double[] newDotPos = new double[4];
     private double[] initDotPos = {0, -0.3, -3, 1.0f};
     private Matrix4 headViewMatrix = new Matrix4();
+    private double[] headViewMatrixInv = new double[16];
 
 
     private boolean isRecycled = false;
@@ -140,51 +155,46 @@ public class VRScene extends Scene implements VRUI {
         this.mode = mode;
 
         if (image != null) {
-            switch (image.getVrImageType()) {
-                case CUBIC:
-                    initCube(renderer.getContext());
-                    break;
-                case EQUIRECTANGULAR:
-                    initSphere(renderer.getContext());
-                    break;
-                default:
-                    break;
+            try {
+                bitmaps = loadBitmaps(renderer.getContext());
+            } catch (IOException e) {
+                e.printStackTrace();
+                //TODO display a vr message saying there was an issue loading image
+            }
+            //equirectangular images may have been converted to cube maps, see ImageUtils#isEquirectAsCubicMap()
+            usesSkybox = image.getVrImageType() == VRImageType.CUBIC
+                    || (bitmaps != null && bitmaps.length == 6);
+            if (usesSkybox) {
+                initCube();
+            } else if (image.getVrImageType() == VRImageType.EQUIRECTANGULAR) {
+                initSphere();
             }
             Log.i(TAG, "Loaded with image " + vrImage);
         }
         initMenu(renderer);
         initSelectionDot();
 
-        if (mode == MODE_EVALUATION) {
-            trackingTask = new TrackingTask(this, renderer.getContext());
-            trackingTask.startTracking();
+        if (mode == MODE_EVALUATION && renderer instanceof VRViewRenderer) {
+            //started once displayed, see onShown()
+            trackingTask = new TrackingTask(this, (VRViewRenderer) renderer);
         }
 
     }
 
     /**
-     * Inits the {@link Sphere} used for equirectangular projection. Basically creates it, checks
-     * the {@link #sphereTexture} and {@link #sphereMaterial} and update them with the {@link VRImage}'s
+     * Inits the {@link Sphere} used for equirectangular projection. Basically creates it, creates
+     * the {@link #sphereTexture} and {@link #sphereMaterial} with the {@link VRImage}'s
      * {@link Bitmap}, then bind it to the newly created sphere.
-     *
-     * @param context {@link Context} to load the {@link Bitmap}s from
      */
-    void initSphere(@NonNull Context context) {
-        if (sphereMaterial == null) {
-            sphereMaterial = new Material();
-            sphereMaterial.setColor(0);
-        }
+    void initSphere() {
+        sphereMaterial = new Material();
+        sphereMaterial.setColor(0);
 
         try {
-            Bitmap[] bitmaps = vrImage.getBitmap(context);
             if (bitmaps == null || bitmaps.length < 1 || bitmaps[0] == null) {
                 throw new IOException("Error : no equirectangular bitmap for picture " + vrImage);
             }
-            if (sphereTexture == null) {
-                sphereTexture = new Texture("photo", bitmaps[0]);
-            } else {
-                sphereTexture.setBitmap(bitmaps[0]);
-            }
+            sphereTexture = new Texture("photo", bitmaps[0]);
             sphereMaterial.addTexture(sphereTexture);
         } catch (IOException | ATexture.TextureException e) {
             e.printStackTrace();
@@ -199,16 +209,13 @@ public class VRScene extends Scene implements VRUI {
     }
 
     /**
-     * Inits the {@link VRScene#mSkybox} used for cubic projection. Basically gets the {@link VRImage}'s
-     * {@link Bitmap}s, then bind them to the scene's skybox.
-     *
-     * @param context {@link Context} to load the {@link Bitmap}s from
+     * Inits the {@link VRScene#mSkybox} used for cubic projection. Basically binds the {@link VRImage}'s
+     * {@link Bitmap}s to the scene's skybox.
      */
-    private void initCube(@NonNull Context context) {
+    private void initCube() {
         try {
-            Bitmap[] bitmaps = vrImage.getBitmap(context);
             if (bitmaps == null || bitmaps.length < 6) {
-                throw new IOException("Error : no equirectangular bitmap for picture " + vrImage);
+                throw new IOException("Error : no cube map bitmaps for picture " + vrImage);
             }
             setSkybox(bitmaps);
         } catch (IOException e) {
@@ -217,6 +224,23 @@ public class VRScene extends Scene implements VRUI {
         }
     }
 
+    /**
+     * Gets the {@link Bitmap}s of the {@link #vrImage}, through the current {@link ImagesSession} so
+     * that an already prefetched {@link Bitmap} is used if possible (see {@link ImagesSession#loadBitmaps(VRImage, Context)}.
+     *
+     * @param context {@link Context} to load the {@link Bitmap}s from
+     * @return the {@link Bitmap}s of the {@link #vrImage}, see {@link VRImage#getBitmap(Context)}
+     * @throws IOException if the {@link #vrImage} could not be decoded
+     */
+    @Nullable
+    private Bitmap[] loadBitmaps(@NonNull Context context) throws IOException {
+        ImagesSession session = VRViewActivity.getCurrentSession();
+        if (session == null || vrImage instanceof VRImage.Default) {
+            return vrImage.getBitmap(context);
+        }
+        return session.loadBitmaps(vrImage, context);
+    }
+
     /**
      * Initializes a dot at the screen's center, so that the user can better determine at which UI
      * element he/she's looking at.
@@ -236,19 +260,20 @@ public class VRScene extends Scene implements VRUI {
     }
 
     /**
-     * Inits the scene's {@link VRMenu}, depending on whether the set {@link #mode}
+     * Inits the scene's {@link VRMenu}, depending on whether the set {@link #mode}. Grade menus are
+     * reused from the previous scenes, see {@link #recycle()}
      *
      * @param renderer the {@link Renderer} used to draw the {@link VRMenu}
      */
     protected void initMenu(@NonNull Renderer renderer) {
         switch (mode) {
             case MODE_TRAINING:
-                menu = VRMenuFactory.buildTrainingGradeMenu(renderer, vrImage);
+                menu = VRMenuFactory.obtainTrainingGradeMenu(renderer, this);
                 menu.setVisible(false);
                 addChild(menu);
                 break;
             case MODE_EVALUATION:
-                menu = VRMenuFactory.buildEvaluationGradeMenu(renderer, this);
+                menu = VRMenuFactory.obtainEvaluationGradeMenu(renderer, this);
                 menu.setVisible(false);
                 addChild(menu);
                 break;
@@ -262,9 +287,8 @@ public class VRScene extends Scene implements VRUI {
      */
     private void centerSelectionDot(@NonNull VRViewRenderer renderer) {
         headViewMatrix.setAll(renderer.getMHeadViewMatrix());
-        headViewMatrix = headViewMatrix.inverse();
-        double[] headViewMatrixInv = new double[16];
-        headViewMatrix.toArray(headViewMatrixInv);
+        //inverted in place
+        headViewMatrix.inverse().toArray(headViewMatrixInv);
 
         Matrix.multiplyMV(newDotPos, 0, headViewMatrixInv, 0, initDotPos, 0);
         selectionDot.setPosition(newDotPos[0], newDotPos[1], newDotPos[2]);
@@ -291,16 +315,16 @@ public class VRScene extends Scene implements VRUI {
     }
 
     /**
-     * Called for every {@link VRViewRenderer#onDrawEye(Eye)}. Executes drawing actions for the {@link #menu}
-     * and centers the {@link #selectionDot}.
+     * Called once per frame by {@link VRViewRenderer#onNewFrame(HeadTransform)}. Updates the {@link #menu}
+     * and the button looked at, and centers the {@link #selectionDot}.
      *
      * @param vrViewRenderer the {@link VRViewRenderer} drawing.
      */
     @Override
-    public void onDrawing(@NonNull VRViewRenderer vrViewRenderer) {
+    public void onNewFrame(@NonNull VRViewRenderer vrViewRenderer) {
         if (!isRecycled) {
             if (menu != null && menu.isVisible()) {
-                menu.onDrawing(vrViewRenderer);
+                menu.onNewFrame(vrViewRenderer);
             }
             if (selectionDot != null) {
                 centerSelectionDot(vrViewRenderer);
@@ -314,26 +338,36 @@ public class VRScene extends Scene implements VRUI {
     @Override
     public void recycle() {
         isRecycled = true;
-        menu.recycle();
+        //the grade menu is kept with its textures for the next scenes, as it is the same for all images
+        if (!VRMenuFactory.releaseGradeMenu(this, menu)) {
+            menu.recycle();
+        }
 
-        if (vrImage == null || vrImage.getVrImageType().equals(VRImageType.CUBIC)) {
+        //the default image keeps its own Bitmap, others are given back to the pool for the next scenes
+        boolean pooled = !(vrImage instanceof VRImage.Default);
+        if (vrImage == null || usesSkybox) {
             if (mSkyboxTexture != null) {
-                mSkyboxTexture.shouldRecycle(true);
+                mSkyboxTexture.shouldRecycle(!pooled);
                 TextureManager.getInstance().removeTexture(mSkyboxTexture);
                 mSkyboxTexture = null;
             }
         } else if (vrImage.getVrImageType().equals(VRImageType.EQUIRECTANGULAR)) {
             if (sphereTexture != null) {
-                sphereTexture.shouldRecycle(true);
+                sphereTexture.shouldRecycle(!pooled);
                 sphereMaterial.removeTexture(sphereTexture);
                 TextureManager.getInstance().removeTexture(sphereTexture);
                 sphere = null;
             }
         }
+        if (pooled) {
+            ImageUtils.releaseBitmaps(bitmaps);
+        }
+        bitmaps = null;
         menu = null;
         newDotPos = null;
         initDotPos = null;
         headViewMatrix = null;
+        headViewMatrixInv = null;
         destroyScene();
         System.gc();
     }
@@ -370,6 +404,17 @@ public class VRScene extends Scene implements VRUI {
 
     }
 
+    /**
+     * Called on the GL thread by the {@link VRViewRenderer} when this scene is displayed for the first
+     * time, as it may have been created in background while the previous scene was still displayed.
+     * Starts the {@link #trackingTask}, if any.
+     */
+    public void onShown() {
+        if (trackingTask != null && !isRecycled) {
+            trackingTask.startTracking();
+        }
+    }
+
     public int getMode() {
         return mode;
     }
@@ -20,16 +20,21 @@ package ch.epfl.mmspg.testbed360;
 import android.content.pm.ActivityInfo;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.Toast;
 
 import org.rajawali3d.vr.VRActivity;
 
 import java.util.EmptyStackException;
 
+import ch.epfl.mmspg.testbed360.image.ImageUtils;
 import ch.epfl.mmspg.testbed360.image.ImagesSession;
 import ch.epfl.mmspg.testbed360.image.VRImage;
 import ch.epfl.mmspg.testbed360.tracking.TrackingTask;
+import ch.epfl.mmspg.testbed360.ui.VRMenuFactory;
 
 /**
  * Custom implementation of Rajawali's {@link VRActivity}. Provides necessary methods to control the
@@ -43,6 +48,12 @@ import ch.epfl.mmspg.testbed360.tracking.TrackingTask;
 public class VRViewActivity extends VRActivity {
     private final static String TAG = "VRViewActivity";
     public final static String SESSION_ID_TAG = "sessionId";
+    /**
+     * Boolean extra to count the allocations of the render loop, see
+     * {@link VRViewRenderer#setAllocationCounting(boolean)}, e.g.
+     * <pre>adb shell am start -n ch.epfl.mmspg.testbed360/.VRViewActivity --ei sessionId 1 --ez countAllocations true</pre>
+     */
+    public final static String COUNT_ALLOCATIONS_TAG = "countAllocations";
 
     private VRViewRenderer mRenderer;
     private static ImagesSession SESSION;
@@ -60,18 +71,35 @@ public class VRViewActivity extends VRActivity {
 
         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
 
-        int sessionId = getIntent().getIntExtra(SESSION_ID_TAG,-1);
+        final int sessionId = getIntent().getIntExtra(SESSION_ID_TAG,-1);
         if(sessionId == -1){
             throw new IllegalStateException("No SESSION passed to "+TAG);
         }
-        SESSION = ImagesSession.getFromId(sessionId);
-
-        if(SESSION == null){
-            throw new IllegalStateException("Session with id "+sessionId+" does not exist");
-        }
+        SESSION = null;
+        ImageUtils.initBitmapPool(this);
 
+        //the renderer must be set before onResume, it shows the welcome scene while the session is opened
+        VRViewRenderer.setAllocationCounting(getIntent().getBooleanExtra(COUNT_ALLOCATIONS_TAG, false));
         mRenderer = new VRViewRenderer(this);
         setRenderer(mRenderer);
+
+        //listing the stimuli and counting the tracks takes too long for the main thread
+        ImagesSession.openAsync(sessionId, this, new ImagesSession.OpenListener() {
+            @Override
+            public void onSessionOpened(@Nullable ImagesSession session) {
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                if (session == null) {
+                    Log.e(TAG, "Session with id " + sessionId + " could not be opened");
+                    Toast.makeText(VRViewActivity.this, R.string.error_opening_session, Toast.LENGTH_LONG).show();
+                    finish();
+                    return;
+                }
+                SESSION = session;
+                SESSION.startPrefetching(VRViewActivity.this);
+            }
+        });
     }
 
     @Override
@@ -102,7 +130,14 @@ public class VRViewActivity extends VRActivity {
 
     @Override
     public void onDestroy() {
-        TrackingTask.closeSessionTrackCSVWriter();
+        mRenderer.quitScenePreparation();
+        TrackingTask.closeSessionJournal();
+        if (SESSION != null) {
+            SESSION.stopPrefetching();
+        }
+        Log.i(TAG, "Bitmap pool : " + ImageUtils.getBitmapPool().getStatistics());
+        ImageUtils.getBitmapPool().clear();
+        VRMenuFactory.clearGradeMenus();
         super.onDestroy();
     }
 
@@ -124,6 +159,18 @@ public class VRViewActivity extends VRActivity {
         return SESSION.nextEvaluation();
     }
 
+    /**
+     * @return the {@link VRViewRenderer} of this activity
+     */
+    @NonNull
+    public VRViewRenderer getRenderer() {
+        return mRenderer;
+    }
+
+    /**
+     * @return the opened {@link ImagesSession}, or null while it is being opened
+     */
+    @Nullable
     public static ImagesSession getCurrentSession(){
         return SESSION;
     }
@@ -18,17 +18,32 @@
 package ch.epfl.mmspg.testbed360;
 
 import android.content.Context;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.view.MotionEvent;
 
 import com.google.vrtoolkit.cardboard.Eye;
+import com.google.vrtoolkit.cardboard.HeadTransform;
 
 import org.rajawali3d.Object3D;
 import org.rajawali3d.math.Matrix4;
+import org.rajawali3d.math.Quaternion;
 import org.rajawali3d.math.vector.Vector3;
+import org.rajawali3d.scene.Scene;
 import org.rajawali3d.vr.renderer.VRRenderer;
 
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.epfl.mmspg.testbed360.tracking.PoseRingBuffer;
+import ch.epfl.mmspg.testbed360.tracking.PoseSnapshot;
+
 /**
  * Custom implementation of Rajawali's {@link VRRenderer}. Some custom methods are necessary to have
  * our {@link VRScene} logic working as intended, but also to fix some issues that are not yet addressed
@@ -47,8 +62,65 @@ public class VRViewRenderer extends VRRenderer {
     private Vector3 mForwardVec = new Vector3(0);
     private Vector3 mHeadTranslation = new Vector3(0);
 
+    /**
+     * Where the head pose is published once per frame, see {@link #setPoseSink(PoseRingBuffer)}.
+     * The matrix, quaternion and array are kept as fields so that publishing does not allocate.
+     */
+    private volatile PoseRingBuffer poseSink;
+    private final PoseSnapshot headPose = new PoseSnapshot();
+    private final Matrix4 mPoseMatrix = new Matrix4();
+    private final Quaternion mPoseOrientation = new Quaternion();
+    private final float[] mPoseTranslation = new float[3];
+    private long frameCount = 0;
+
+    /**
+     * The scene is updated once per frame, see {@link #onNewFrame(HeadTransform)}. Its mean CPU time per
+     * frame is logged every {@link #UPDATE_LOG_FRAMES} frames.
+     */
+    private final static int UPDATE_LOG_FRAMES = 600;
+    private long updateTimeNs = 0;
+    private int updateFrames = 0;
+
+    /**
+     * Whether the objects allocated by our part of the render loop on the GL thread are counted, see
+     * {@link #setAllocationCounting(boolean)}. Frames are only checked after
+     * {@link #ALLOCATION_WARMUP_FRAMES}, once the scene and its UI are loaded.
+     */
+    private static volatile boolean countAllocations = false;
+    final static int ALLOCATION_WARMUP_FRAMES = 120;
+    private int frameAllocations = 0;
+    private volatile int allocationFrames = 0;
+    private int allocatingFrames = 0;
+    private long windowAllocations = 0;
+    /**
+     * The objects allocated after the warmup since the counting started, read by the tests
+     */
+    private volatile long steadyAllocations = 0;
+
+    /**
+     * Thread creating the next scene while the current one is displayed, see
+     * {@link #switchSceneAsync(Callable)}
+     */
+    private final HandlerThread sceneThread;
+    private final Handler sceneHandler;
+
+    /**
+     * Whether a scene is being prepared or waits to be displayed, during which other switches are ignored
+     */
+    private final AtomicBoolean switching = new AtomicBoolean(false);
+    private volatile long switchRequestNs;
+    private volatile long switchPreparedNs;
+
+    /**
+     * The scene displayed at the last frame, only used on the GL thread
+     */
+    private Scene shownScene;
+
     public VRViewRenderer(Context context) {
         super(context);
+        sceneThread = new HandlerThread("ScenePreparation", Process.THREAD_PRIORITY_BACKGROUND);
+        sceneThread.start();
+        sceneHandler = new Handler(sceneThread.getLooper());
     }
 
     /**
@@ -64,14 +136,187 @@ public class VRViewRenderer extends VRRenderer {
     }
 
     /**
-     * Overrides the {@link VRRenderer#onDrawEye(Eye)} to allow updating our VR UI (represented by
-     * {@link ch.epfl.mmspg.testbed360.ui.VRMenu} and {@link ch.epfl.mmspg.testbed360.ui.VRButton} inside
-     * our {@link VRScene}s; but this also addresses an issue with the gyroscopic controls being inverted.
+     * Called once per frame on the GL thread, before both eyes are drawn. Publishes the head pose to
+     * the {@link #headPose} and to the {@link #poseSink} if any, with the same orientation as the one
+     * given to the camera in {@link #onDrawEye(Eye)}, as both eyes only differ by a translation.
+     * Then updates the current {@link VRScene} once for both eyes, see {@link VRScene#onNewFrame(VRViewRenderer)} :
+     * the button looked at and the menu position are computed from the head, so that they cannot
+     * differ between eyes.
+     *
+     * @param headTransform the head pose of the frame
+     */
+    @Override
+    public void onNewFrame(HeadTransform headTransform) {
+        super.onNewFrame(headTransform);
+        if (getCurrentScene() != shownScene) {
+            onSceneShown(getCurrentScene());
+        }
+        checkAllocations();
+        int allocations = countAllocations ? Debug.getThreadAllocCount() : 0;
+        long frame = frameCount++;
+        long time = System.nanoTime();
+        mPoseMatrix.setAll(mHeadViewMatrix);
+        //inverted in place, and the array overload does not copy the matrix
+        mPoseOrientation.fromMatrix(mPoseMatrix.inverse().getDoubleValues());
+        headTransform.getTranslation(mPoseTranslation, 0);
+        headPose.publish(time, frame,
+                mPoseOrientation.x, mPoseOrientation.y, mPoseOrientation.z, mPoseOrientation.w,
+                mPoseTranslation[0], mPoseTranslation[1], mPoseTranslation[2]);
+        PoseRingBuffer sink = poseSink;
+        if (sink != null) {
+            sink.offer(time, frame,
+                    mPoseOrientation.x, mPoseOrientation.y, mPoseOrientation.z, mPoseOrientation.w,
+                    mPoseTranslation[0], mPoseTranslation[1], mPoseTranslation[2]);
+        }
+
+        VRScene scene = getCurrentVRScene();
+        long updateNs = -1;
+        if (scene != null) {
+            long start = System.nanoTime();
+            //the orientation of both eyes, without their translation, see onDrawEye
+            getCurrentCamera().setOrientation(mPoseOrientation);
+            getCurrentCamera().setPosition(mCameraPosition);
+            scene.onNewFrame(this);
+            updateNs = System.nanoTime() - start;
+        }
+        if (countAllocations) {
+            frameAllocations += Debug.getThreadAllocCount() - allocations;
+        }
+        if (updateNs >= 0) {
+            logUpdateTime(updateNs);
+        }
+    }
+
+    /**
+     * Prepares the next scene on the {@link #sceneThread}, then switches to it. The current scene is
+     * displayed until the next one is ready : decoding its image, laying out and drawing its menu
+     * and starting its tracking do not freeze the headset, only the upload of its textures is done
+     * on the GL thread. The current scene is recycled once the next one is displayed, see
+     * {@link #onSceneShown(Scene)}. Can be called from any thread.
+     *
+     * @param nextScene creates the next scene, called on the {@link #sceneThread}
+     * @return false if a switch is already in progress, in which case this one is ignored
+     */
+    public boolean switchSceneAsync(@NonNull final Callable<? extends Scene> nextScene) {
+        if (!switching.compareAndSet(false, true)) {
+            Log.w(TAG, "Scene switch ignored, the next scene is still being prepared");
+            return false;
+        }
+        switchRequestNs = System.nanoTime();
+        sceneHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Scene scene = nextScene.call();
+                    switchPreparedNs = System.nanoTime();
+                    switchScene(scene);
+                } catch (Exception e) {
+                    Log.e(TAG, "Cannot prepare the next scene", e);
+                    switching.set(false);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return true if a scene is being prepared by {@link #switchSceneAsync(Callable)}, in which case
+     * the current scene should ignore the user's actions
+     */
+    public boolean isSwitchingScene() {
+        return switching.get();
+    }
+
+    /**
+     * Called on the GL thread at the first frame after Rajawali switched to another scene, which has
+     * been drawn once. Recycles the previous scene, notifies the new one and logs the latency of the
+     * switch.
+     *
+     * @param scene the scene now displayed
+     */
+    private void onSceneShown(@Nullable Scene scene) {
+        Scene previous = shownScene;
+        shownScene = scene;
+        if (previous instanceof VRScene && !((VRScene) previous).isRecycled()) {
+            ((VRScene) previous).recycle();
+        }
+        if (scene instanceof VRScene) {
+            ((VRScene) scene).onShown();
+        }
+        if (switching.get()) {
+            long now = System.nanoTime();
+            Log.i(TAG, String.format(Locale.US, "Scene switch : prepared in %.1fms in background, displayed %.1fms after the request",
+                    (switchPreparedNs - switchRequestNs) / 1e6, (now - switchRequestNs) / 1e6));
+            switching.set(false);
+        }
+    }
+
+    /**
+     * Stops the {@link #sceneThread}, when the activity is destroyed
+     */
+    public void quitScenePreparation() {
+        sceneThread.quit();
+    }
+
+    /**
+     * Logs the mean CPU time of {@link VRScene#onNewFrame(VRViewRenderer)} every
+     * {@link #UPDATE_LOG_FRAMES} frames
+     *
+     * @param elapsedNs the time of the last update
+     */
+    private void logUpdateTime(long elapsedNs) {
+        updateTimeNs += elapsedNs;
+        if (++updateFrames < UPDATE_LOG_FRAMES) {
+            return;
+        }
+        double meanUs = updateTimeNs / 1e3 / updateFrames;
+        Log.d(TAG, String.format(Locale.US, "Scene update %.1fus per frame", meanUs));
+        updateTimeNs = 0;
+        updateFrames = 0;
+    }
+
+    /**
+     * @return the head pose of the last frame, which can be read from any thread without reading
+     * the camera while it is moved for each eye
+     */
+    @NonNull
+    public PoseSnapshot getHeadPose() {
+        return headPose;
+    }
+
+    /**
+     * Sets the {@link PoseRingBuffer} the head pose is published to at each frame, the GL thread
+     * being its only producer. Can be called from any thread.
+     *
+     * @param sink the {@link PoseRingBuffer} to publish to, or null to stop publishing
+     */
+    public synchronized void setPoseSink(@Nullable PoseRingBuffer sink) {
+        poseSink = sink;
+    }
+
+    /**
+     * Stops publishing to the given {@link PoseRingBuffer}, unless another one replaced it since
+     *
+     * @param sink the {@link PoseRingBuffer} that was given to {@link #setPoseSink(PoseRingBuffer)}
+     */
+    public synchronized void clearPoseSink(@NonNull PoseRingBuffer sink) {
+        if (poseSink == sink) {
+            poseSink = null;
+        }
+    }
+
+    /**
+     * Overrides the {@link VRRenderer#onDrawEye(Eye)} to only set up the camera of the eye then draw.
+     * Our VR UI (represented by {@link ch.epfl.mmspg.testbed360.ui.VRMenu} and
+     * {@link ch.epfl.mmspg.testbed360.ui.VRButton} inside our {@link VRScene}s) is updated once per
+     * frame in {@link #onNewFrame(HeadTransform)}. This also addresses an issue with the gyroscopic
+     * controls being inverted.
      *
      * @param eye the eye currently drawn
      */
     @Override
     public void onDrawEye(Eye eye) {
+        int allocations = countAllocations ? Debug.getThreadAllocCount() : 0;
         getCurrentCamera().updatePerspective(
                 eye.getFov().getLeft(),
                 eye.getFov().getRight(),
@@ -79,16 +324,17 @@ public class VRViewRenderer extends VRRenderer {
                 eye.getFov().getTop()
         );
         mCurrentEyeMatrix.setAll(eye.getEyeView());
-        mCurrentEyeOrientation.fromMatrix(mCurrentEyeMatrix.inverse());
+        double[] eyeMatrix = mCurrentEyeMatrix.inverse().getDoubleValues();
+        mCurrentEyeOrientation.fromMatrix(eyeMatrix);
 
         //the call to .inverse() here fixes the inverted orientation of the view
         //see suggestion I made at https://github.com/Rajawali/Rajawali/issues/1935
         getCurrentCamera().setOrientation(mCurrentEyeOrientation);
         getCurrentCamera().setPosition(mCameraPosition);
-        getCurrentCamera().getPosition().add(mCurrentEyeMatrix.getTranslation());
-
-        if (getCurrentVRScene() != null) {
-            getCurrentVRScene().onDrawing(this);
+        //the translation of the matrix, which getTranslation() would return as a new Vector3
+        getCurrentCamera().getPosition().add(eyeMatrix[12], eyeMatrix[13], eyeMatrix[14]);
+        if (countAllocations) {
+            frameAllocations += Debug.getThreadAllocCount() - allocations;
         }
 
         super.onRenderFrame(null);
@@ -101,22 +347,105 @@ public class VRViewRenderer extends VRRenderer {
      */
     @Override
     public boolean isLookingAtObject(Object3D target, float maxAngle) {
-        mHeadViewQuaternion.fromMatrix(mHeadViewMatrix);
+        double[] headView = mHeadViewMatrix.getDoubleValues();
+        mHeadViewQuaternion.fromMatrix(headView);
 
         //here we override this method to remove this inversion as we already inverse the
         //camera orientation in onDrawEye
         //mHeadViewQuaternion.inverse();
 
-        mForwardVec.setAll(0, 0.1, 1);
-        mForwardVec.rotateBy(mHeadViewQuaternion);
+        rotate(mForwardVec.setAll(0, 0.1, 1), mHeadViewQuaternion);
 
-        mHeadTranslation.setAll(mHeadViewMatrix.getTranslation());
+        mHeadTranslation.setAll(headView[12], headView[13], headView[14]);
         mHeadTranslation.subtract(target.getPosition());
         mHeadTranslation.normalize();
 
         return mHeadTranslation.angle(mForwardVec) < maxAngle;
     }
 
+    /**
+     * Same as {@link Vector3#rotateBy(Quaternion)}, which allocates intermediate vectors :
+     * v + 2w(q x v) + 2q x (q x v)
+     *
+     * @param v the vector to rotate in place
+     * @param q the rotation
+     */
+    private static void rotate(@NonNull Vector3 v, @NonNull Quaternion q) {
+        double tx = 2 * (q.y * v.z - q.z * v.y);
+        double ty = 2 * (q.z * v.x - q.x * v.z);
+        double tz = 2 * (q.x * v.y - q.y * v.x);
+        v.setAll(v.x + q.w * tx + q.y * tz - q.z * ty,
+                v.y + q.w * ty + q.z * tx - q.x * tz,
+                v.z + q.w * tz + q.x * ty - q.y * tx);
+    }
+
+    /**
+     * Counts the objects allocated on the GL thread by {@link #onNewFrame(HeadTransform)}, the
+     * {@link VRScene} update and the camera setup of {@link #onDrawEye(Eye)}, which should allocate
+     * nothing once the scene is loaded : allocations would trigger garbage collections and drop
+     * frames. Rajawali's own rendering is not counted. The frames that allocated are logged as an
+     * error every {@link #UPDATE_LOG_FRAMES} frames, and their total is given by
+     * {@link #getSteadyAllocations()}, checked by the instrumented tests. For debugging only, as
+     * counting slows the app.
+     *
+     * @param enabled true to start counting, false to stop
+     */
+    public static void setAllocationCounting(boolean enabled) {
+        if (enabled) {
+            Debug.startAllocCounting();
+        } else {
+            Debug.stopAllocCounting();
+        }
+        countAllocations = enabled;
+    }
+
+    /**
+     * Accounts the allocations of the previous frame, see {@link #setAllocationCounting(boolean)}
+     */
+    private void checkAllocations() {
+        if (!countAllocations) {
+            allocationFrames = 0;
+            frameAllocations = 0;
+            steadyAllocations = 0;
+            return;
+        }
+        if (allocationFrames >= ALLOCATION_WARMUP_FRAMES && frameAllocations > 0) {
+            allocatingFrames++;
+            windowAllocations += frameAllocations;
+            steadyAllocations += frameAllocations;
+        }
+        allocationFrames++;
+        frameAllocations = 0;
+        if (allocationFrames > ALLOCATION_WARMUP_FRAMES
+                && (allocationFrames - ALLOCATION_WARMUP_FRAMES) % UPDATE_LOG_FRAMES == 0) {
+            if (allocatingFrames > 0) {
+                Log.e(TAG, windowAllocations + " objects allocated by " + allocatingFrames + " of the last "
+                        + UPDATE_LOG_FRAMES + " frames, the render loop should not allocate");
+            } else {
+                Log.d(TAG, "No allocation in the last " + UPDATE_LOG_FRAMES + " frames");
+            }
+            allocatingFrames = 0;
+            windowAllocations = 0;
+        }
+    }
+
+    /**
+     * @return the amount of frames accounted since {@link #setAllocationCounting(boolean)} was
+     * enabled, including the {@link #ALLOCATION_WARMUP_FRAMES}
+     */
+    public int getCountedFrames() {
+        return allocationFrames;
+    }
+
+    /**
+     * @return the amount of objects allocated by the render loop after the
+     * {@link #ALLOCATION_WARMUP_FRAMES}, since {@link #setAllocationCounting(boolean)} was enabled.
+     * Should stay 0.
+     */
+    public long getSteadyAllocations() {
+        return steadyAllocations;
+    }
+
     protected Matrix4 getMHeadViewMatrix() {
         return mHeadViewMatrix;
     }
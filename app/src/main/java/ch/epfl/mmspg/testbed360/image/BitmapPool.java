@@ -0,0 +1,306 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A pool of mutable {@link Bitmap}s that can be reused as {@link android.graphics.BitmapFactory.Options#inBitmap}
+ * when decoding {@link VRImage}s, keyed by width, height and {@link Bitmap.Config}.
+ * <p>
+ * Reusing a {@link Bitmap} only works if it is compatible with the decoded one : before API 19, it
+ * must have the exact same size and config; from API 19, it must have the same config and an allocation
+ * at least as big as needed, in which case it is reconfigured (see {@link Bitmap#reconfigure(int, int, Bitmap.Config)})
+ * before being returned.
+ * <p>
+ * The pool holds at most {@link #maxBytes} bytes of {@link Bitmap}s; when it is full the least recently
+ * released {@link Bitmap}s are recycled first.
+ */
+
+public class BitmapPool {
+    private final static String TAG = "BitmapPool";
+
+    /**
+     * {@link Bitmap}s available, grouped by {@link Key}
+     */
+    private final HashMap<Key, ArrayDeque<Bitmap>> available = new HashMap<>();
+
+    /**
+     * All {@link Bitmap}s available, from the least to the most recently released, mapped to their
+     * {@link Key} and size in bytes when they were released.
+     */
+    private final LinkedHashMap<Bitmap, Entry> lru = new LinkedHashMap<>();
+
+    private long maxBytes;
+    private long bytesHeld = 0;
+
+    private int hitCount = 0;
+    private int missCount = 0;
+    private int evictionCount = 0;
+
+    /**
+     * @param maxBytes the maximum amount of bytes of {@link Bitmap}s this pool holds
+     */
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Changes the byte budget of the pool, evicting {@link Bitmap}s if needed
+     *
+     * @param maxBytes the maximum amount of bytes of {@link Bitmap}s this pool holds
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimTo(maxBytes);
+    }
+
+    /**
+     * Takes out of the pool a {@link Bitmap} that can be used to decode an image of the given size and
+     * {@link Bitmap.Config}.
+     *
+     * @return a mutable {@link Bitmap} of the requested size, or null if there is none compatible in
+     * the pool
+     */
+    @Nullable
+    public synchronized Bitmap get(int width, int height, @NonNull Bitmap.Config config) {
+        dropRecycled();
+        ArrayDeque<Bitmap> exact = available.get(new Key(width, height, config));
+        if (exact != null && !exact.isEmpty()) {
+            Bitmap bitmap = exact.pollLast();
+            remove(bitmap);
+            hitCount++;
+            return bitmap;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            //we pick the smallest bitmap big enough, so that we do not waste big ones
+            long required = (long) width * height * bytesPerPixel(config);
+            Bitmap best = null;
+            Entry bestEntry = null;
+            for (Map.Entry<Bitmap, Entry> candidate : lru.entrySet()) {
+                Entry entry = candidate.getValue();
+                if (entry.key.config == config && entry.bytes >= required
+                        && (bestEntry == null || entry.bytes < bestEntry.bytes)) {
+                    best = candidate.getKey();
+                    bestEntry = entry;
+                }
+            }
+            if (best != null) {
+                available.get(bestEntry.key).remove(best);
+                remove(best);
+                best.reconfigure(width, height, config);
+                hitCount++;
+                return best;
+            }
+        }
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Same as {@link #get(int, int, Bitmap.Config)}, but allocates a new {@link Bitmap} if there is
+     * none compatible in the pool.
+     */
+    @NonNull
+    public Bitmap getOrCreate(int width, int height, @NonNull Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Gives back a {@link Bitmap} to the pool so that it can be reused. The {@link Bitmap} must not be
+     * used anymore by the caller.
+     *
+     * @param bitmap the {@link Bitmap} to release. Ignored if null, recycled or immutable.
+     */
+    public synchronized void put(@Nullable Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || lru.containsKey(bitmap)) {
+            return;
+        }
+        int bytes = bitmap.getAllocationByteCount();
+        if (bytes > maxBytes) {
+            bitmap.recycle();
+            evictionCount++;
+            return;
+        }
+
+        Key key = Key.of(bitmap);
+        ArrayDeque<Bitmap> bitmaps = available.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            available.put(key, bitmaps);
+        }
+        bitmaps.addLast(bitmap);
+        lru.put(bitmap, new Entry(key, bytes));
+        bytesHeld += bytes;
+        trimTo(maxBytes);
+    }
+
+    /**
+     * Recycles all {@link Bitmap}s of the pool
+     */
+    public synchronized void clear() {
+        trimTo(0);
+    }
+
+    /**
+     * Evicts the least recently released {@link Bitmap}s until at most {@param bytes} are held.
+     */
+    private void trimTo(long bytes) {
+        Iterator<Map.Entry<Bitmap, Entry>> iterator = lru.entrySet().iterator();
+        while (bytesHeld > bytes && iterator.hasNext()) {
+            Map.Entry<Bitmap, Entry> evicted = iterator.next();
+            bytesHeld -= evicted.getValue().bytes;
+            iterator.remove();
+            available.get(evicted.getValue().key).remove(evicted.getKey());
+            evicted.getKey().recycle();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Forgets the {@link Bitmap}s that were recycled by someone else after having been released
+     * (e.g. by a texture being reset), as they can not be reused anymore.
+     */
+    private void dropRecycled() {
+        Iterator<Map.Entry<Bitmap, Entry>> iterator = lru.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Bitmap, Entry> released = iterator.next();
+            if (released.getKey().isRecycled()) {
+                bytesHeld -= released.getValue().bytes;
+                iterator.remove();
+                available.get(released.getValue().key).remove(released.getKey());
+            }
+        }
+    }
+
+    private void remove(@NonNull Bitmap bitmap) {
+        Entry entry = lru.remove(bitmap);
+        if (entry != null) {
+            bytesHeld -= entry.bytes;
+        }
+    }
+
+    private static int bytesPerPixel(@NonNull Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * @return the ratio of {@link #get(int, int, Bitmap.Config)} calls that returned a {@link Bitmap}
+     */
+    public synchronized float getHitRate() {
+        int total = hitCount + missCount;
+        return total == 0 ? 0f : hitCount / (float) total;
+    }
+
+    public synchronized long getBytesHeld() {
+        return bytesHeld;
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return a human readable summary of the counters of this {@link BitmapPool}
+     */
+    @NonNull
+    public synchronized String getStatistics() {
+        return "hits=" + hitCount +
+                ", misses=" + missCount +
+                ", hitRate=" + Math.round(getHitRate() * 100) + "%" +
+                ", held=" + bytesHeld / 1024 + "/" + maxBytes / 1024 + "kB" +
+                ", evictions=" + evictionCount;
+    }
+
+    @Override
+    public String toString() {
+        return TAG + "(" + getStatistics() + ")";
+    }
+
+    /**
+     * What we know about a {@link Bitmap} released in the pool
+     */
+    private final static class Entry {
+        private final Key key;
+        private final int bytes;
+
+        private Entry(@NonNull Key key, int bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Identifies {@link Bitmap}s that are interchangeable
+     */
+    private final static class Key {
+        private final int width;
+        private final int height;
+        private final Bitmap.Config config;
+
+        private Key(int width, int height, @Nullable Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        @NonNull
+        static Key of(@NonNull Bitmap bitmap) {
+            return new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return width == key.width && height == key.height && config == key.config;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * width + height) + (config == null ? 0 : config.hashCode());
+        }
+    }
+}
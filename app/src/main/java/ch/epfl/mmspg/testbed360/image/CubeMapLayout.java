@@ -0,0 +1,192 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import android.support.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+
+/**
+ * Describes how the six faces of a cube map are arranged in an image : the image is cut into a grid
+ * of {@link #columns} x {@link #rows} cells, and each face of the skybox (in the order left, right,
+ * top, bottom, back, front) is taken from one cell and rotated clockwise by a multiple of 90°.
+ * <p>
+ * Layouts are selected by the projection token of the {@link VRImage}'s file name (e.g. "cubemap32"),
+ * see {@link #fromToken(String)}. Adding a layout only requires adding a line to {@link #LAYOUTS}.
+ */
+
+public final class CubeMapLayout {
+    public final static int FACE_COUNT = 6;
+
+    /**
+     * Layouts by projection token
+     */
+    private final static LinkedHashMap<String, CubeMapLayout> LAYOUTS = new LinkedHashMap<>();
+
+    /**
+     * The historical 3x2 layout of the testbed :
+     * <pre>
+     * front  right back
+     * bottom left  top
+     * </pre>
+     */
+    public final static CubeMapLayout CUBEMAP_32 = register(new CubeMapLayout("cubemap32", 3, 2, new int[][]{
+            {1, 1, -90},
+            {1, 0, 0},
+            {2, 1, 180},
+            {0, 1, 0},
+            {2, 0, 0},
+            {0, 0, 0}
+    }));
+
+    /**
+     * A 3x2 layout with the faces in skybox order, row by row, without rotation
+     */
+    public final static CubeMapLayout CUBEMAP_32_GL = register(new CubeMapLayout("cubemap32gl", 3, 2, new int[][]{
+            {0, 0, 0},
+            {1, 0, 0},
+            {2, 0, 0},
+            {0, 1, 0},
+            {1, 1, 0},
+            {2, 1, 0}
+    }));
+
+    /**
+     * A horizontal strip of the faces in skybox order
+     */
+    public final static CubeMapLayout CUBEMAP_61 = register(new CubeMapLayout("cubemap61", 6, 1, new int[][]{
+            {0, 0, 0},
+            {1, 0, 0},
+            {2, 0, 0},
+            {3, 0, 0},
+            {4, 0, 0},
+            {5, 0, 0}
+    }));
+
+    /**
+     * A vertical strip of the faces in skybox order
+     */
+    public final static CubeMapLayout CUBEMAP_16 = register(new CubeMapLayout("cubemap16", 1, 6, new int[][]{
+            {0, 0, 0},
+            {0, 1, 0},
+            {0, 2, 0},
+            {0, 3, 0},
+            {0, 4, 0},
+            {0, 5, 0}
+    }));
+
+    public final static CubeMapLayout DEFAULT = CUBEMAP_32;
+
+    private final String token;
+    private final int columns;
+    private final int rows;
+
+    /**
+     * For each face of the skybox : {column, row, clockwise rotation in degrees}
+     */
+    private final int[][] faces;
+
+    private CubeMapLayout(@NonNull String token, int columns, int rows, @NonNull int[][] faces) {
+        if (faces.length != FACE_COUNT) {
+            throw new IllegalArgumentException(token + " : a cube map has " + FACE_COUNT + " faces, got " + faces.length);
+        }
+        boolean[] used = new boolean[columns * rows];
+        for (int[] face : faces) {
+            if (face[0] < 0 || face[0] >= columns || face[1] < 0 || face[1] >= rows
+                    || used[face[1] * columns + face[0]] || face[2] % 90 != 0) {
+                throw new IllegalArgumentException(token + " : invalid face " + face[0] + "," + face[1] + "," + face[2]);
+            }
+            used[face[1] * columns + face[0]] = true;
+        }
+        this.token = token;
+        this.columns = columns;
+        this.rows = rows;
+        this.faces = faces;
+    }
+
+    @NonNull
+    private static CubeMapLayout register(@NonNull CubeMapLayout layout) {
+        LAYOUTS.put(layout.token, layout);
+        return layout;
+    }
+
+    /**
+     * @param token a projection token, as found in a {@link VRImage}'s file name
+     * @return the {@link CubeMapLayout} corresponding to the token
+     * @throws NoSuchElementException if no layout has this token
+     */
+    @NonNull
+    public static CubeMapLayout fromToken(@NonNull String token) throws NoSuchElementException {
+        CubeMapLayout layout = LAYOUTS.get(token);
+        if (layout == null) {
+            throw new NoSuchElementException("Given token does not match any CubeMapLayout : " + token);
+        }
+        return layout;
+    }
+
+    /**
+     * @return the tokens of all known layouts, see {@link VRImageType#CUBIC}
+     */
+    @NonNull
+    static String[] tokens() {
+        return LAYOUTS.keySet().toArray(new String[LAYOUTS.size()]);
+    }
+
+    @NonNull
+    public String getToken() {
+        return token;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @param face index of the face in the skybox order
+     * @return the column of the cell containing the face
+     */
+    public int getColumn(int face) {
+        return faces[face][0];
+    }
+
+    /**
+     * @param face index of the face in the skybox order
+     * @return the row of the cell containing the face
+     */
+    public int getRow(int face) {
+        return faces[face][1];
+    }
+
+    /**
+     * @param face index of the face in the skybox order
+     * @return the clockwise rotation to apply to the cell to get the face, in degrees
+     */
+    public int getRotation(int face) {
+        return faces[face][2];
+    }
+
+    @Override
+    public String toString() {
+        return token + "(" + columns + "x" + rows + ")";
+    }
+}
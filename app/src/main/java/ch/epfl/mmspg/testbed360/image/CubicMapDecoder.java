@@ -0,0 +1,415 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes the six faces of a cube map image (see {@link VRImageType#CUBIC}), arranged as described by
+ * a {@link CubeMapLayout}, with one of the {@link Strategy}s available. Used by {@link ImageUtils#loadCubicMap(InputStream)} and its variants.
+ * <p>
+ * As a {@link BitmapRegionDecoder} serializes its decodings internally, the parallel strategy uses one
+ * {@link BitmapRegionDecoder} per worker of the bounded {@link #POOL}. The {@link Strategy#ADAPTIVE}
+ * strategy measures the decoding time of every other strategy for each image size and then sticks to
+ * the fastest one.
+ */
+
+public final class CubicMapDecoder {
+    private final static String TAG = "CubicMapDecoder";
+
+    /**
+     * The different ways of decoding the faces of a cube map
+     */
+    public enum Strategy {
+        /**
+         * Decodes the faces one after the other with a single {@link BitmapRegionDecoder}
+         */
+        SEQUENTIAL,
+        /**
+         * Decodes the faces in parallel on {@link #POOL}, with a {@link BitmapRegionDecoder} per worker
+         */
+        PARALLEL_REGIONS,
+        /**
+         * Decodes the whole image at once, then copies each face in its own {@link Bitmap}
+         */
+        FULL_DECODE,
+        /**
+         * Uses the fastest of the previous strategies, measured per image size
+         */
+        ADAPTIVE
+    }
+
+    private final static Strategy[] MEASURED_STRATEGIES = {
+            Strategy.SEQUENTIAL,
+            Strategy.PARALLEL_REGIONS,
+            Strategy.FULL_DECODE
+    };
+
+    final static int WORKER_COUNT = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    /**
+     * Bounded pool on which the faces are decoded with {@link Strategy#PARALLEL_REGIONS}
+     */
+    final static ExecutorService POOL = Executors.newFixedThreadPool(WORKER_COUNT, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    //same priority as the prefetcher and the scene preparation, below the GL thread
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Mean decoding time in ms of each of the {@link #MEASURED_STRATEGIES}, per {@link CubeMapLayout}
+     * and size bucket (see {@link #sizeBucket(int, int)}), used by {@link Strategy#ADAPTIVE}. A negative
+     * value means the strategy was not measured yet for this layout and size.
+     */
+    private final static HashMap<String, long[]> TIMINGS = new HashMap<>();
+
+    private static volatile Strategy strategy = Strategy.ADAPTIVE;
+
+    private CubicMapDecoder() {
+        //do nothing, this class only provides static methods
+    }
+
+    /**
+     * @param newStrategy the {@link Strategy} to use for all next decodings
+     */
+    public static void setStrategy(@NonNull Strategy newStrategy) {
+        strategy = newStrategy;
+    }
+
+    @NonNull
+    public static Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Decodes the faces of the cube map read from {@param source} into {@param faces}, using the
+     * current {@link #strategy}.
+     *
+     * @param source the {@link Source} of the cube map image
+     * @param layout how the faces are arranged in the image
+     * @param faces  an array of length 6 holding {@link Bitmap}s to reuse (or null values), in which
+     *               the decoded faces are stored
+     * @return the given {@param faces} array
+     * @throws IOException if the image format is not supported or can not be decoded
+     */
+    @NonNull
+    static Bitmap[] decode(@NonNull Source source, @NonNull CubeMapLayout layout,
+                           @NonNull Bitmap[] faces) throws IOException {
+        return decode(source, layout, faces, strategy);
+    }
+
+    /**
+     * Same as {@link #decode(Source, CubeMapLayout, Bitmap[])} with the given {@link Strategy}, used
+     * by the instrumented decoding benchmark to compare them
+     */
+    @NonNull
+    static Bitmap[] decode(@NonNull Source source, @NonNull CubeMapLayout layout,
+                           @NonNull Bitmap[] faces, @NonNull Strategy strategy) throws IOException {
+        switch (strategy) {
+            case SEQUENTIAL:
+                return decodeSequentially(source, layout, faces);
+            case PARALLEL_REGIONS:
+                return decodeInParallel(source, layout, faces);
+            case FULL_DECODE:
+                return decodeFully(source, layout, faces);
+            default:
+                return decodeAdaptively(source, layout, faces);
+        }
+    }
+
+    @NonNull
+    private static Bitmap[] decodeSequentially(@NonNull Source source, @NonNull CubeMapLayout layout,
+                                               @NonNull Bitmap[] faces) throws IOException {
+        BitmapRegionDecoder decoder = source.newRegionDecoder();
+        try {
+            for (int i = 0; i < CubeMapLayout.FACE_COUNT; i++) {
+                faces[i] = decodeFace(decoder, layout, faces[i], i);
+            }
+        } finally {
+            decoder.recycle();
+        }
+        return faces;
+    }
+
+    @NonNull
+    private static Bitmap[] decodeInParallel(@NonNull final Source source, @NonNull final CubeMapLayout layout,
+                                             @NonNull final Bitmap[] faces) throws IOException {
+        List<Future<Void>> futures = new ArrayList<>(WORKER_COUNT);
+        for (int w = 0; w < WORKER_COUNT; w++) {
+            final int worker = w;
+            futures.add(POOL.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    BitmapRegionDecoder decoder = source.newRegionDecoder();
+                    try {
+                        for (int i = worker; i < CubeMapLayout.FACE_COUNT; i += WORKER_COUNT) {
+                            faces[i] = decodeFace(decoder, layout, faces[i], i);
+                        }
+                    } finally {
+                        decoder.recycle();
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding cube faces", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error while decoding cube faces", e.getCause());
+        }
+        return faces;
+    }
+
+    @NonNull
+    private static Bitmap[] decodeFully(@NonNull Source source, @NonNull CubeMapLayout layout,
+                                        @NonNull Bitmap[] faces) throws IOException {
+        BitmapPool pool = ImageUtils.getBitmapPool();
+        int[] size = source.getSize();
+        BitmapFactory.Options opt = new BitmapFactory.Options();
+        opt.inPreferredConfig = Bitmap.Config.RGB_565;
+        opt.inMutable = true;
+        opt.inBitmap = pool.get(size[0], size[1], Bitmap.Config.RGB_565);
+        Bitmap full;
+        try {
+            full = source.decode(opt);
+        } catch (IllegalArgumentException e) {
+            //the reused Bitmap was not compatible, we decode into a new one
+            Log.w(TAG, "decodeFully: could not reuse " + opt.inBitmap, e);
+            pool.put(opt.inBitmap);
+            opt.inBitmap = null;
+            full = source.decode(opt);
+        }
+        if (full == null) {
+            pool.put(opt.inBitmap);
+            throw new IOException("Could not decode cube map " + source);
+        }
+        int faceWidth = full.getWidth() / layout.getColumns();
+        int faceHeight = full.getHeight() / layout.getRows();
+        for (int i = 0; i < CubeMapLayout.FACE_COUNT; i++) {
+            Bitmap face = faces[i];
+            if (face == null || face.isRecycled() || !face.isMutable()
+                    || face.getWidth() != faceWidth || face.getHeight() != faceHeight
+                    || face.getConfig() != full.getConfig()) {
+                pool.put(face);
+                face = pool.getOrCreate(faceWidth, faceHeight, full.getConfig());
+            }
+            ImageUtils.copyRegion(full, layout.getColumn(i) * faceWidth, layout.getRow(i) * faceHeight, face);
+            faces[i] = ImageUtils.rotateInPlace(face, layout.getRotation(i));
+        }
+        //the full image is only needed during the copy, next decodings can reuse it
+        pool.put(full);
+        return faces;
+    }
+
+    @NonNull
+    private static Bitmap[] decodeAdaptively(@NonNull Source source, @NonNull CubeMapLayout layout,
+                                             @NonNull Bitmap[] faces) throws IOException {
+        int[] size = source.getSize();
+        String bucket = layout.getToken() + '/' + sizeBucket(size[0], size[1]);
+
+        Strategy chosen = null;
+        long[] timings;
+        synchronized (TIMINGS) {
+            timings = TIMINGS.get(bucket);
+            if (timings == null) {
+                timings = new long[]{-1, -1, -1};
+                TIMINGS.put(bucket, timings);
+            }
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < MEASURED_STRATEGIES.length; i++) {
+                if (timings[i] < 0) {
+                    //not measured yet, we try it
+                    chosen = MEASURED_STRATEGIES[i];
+                    break;
+                }
+                if (timings[i] < best) {
+                    best = timings[i];
+                    chosen = MEASURED_STRATEGIES[i];
+                }
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        decode(source, layout, faces, chosen);
+        long duration = System.currentTimeMillis() - start;
+
+        synchronized (TIMINGS) {
+            int index = chosen.ordinal();
+            timings[index] = timings[index] < 0 ? duration : (timings[index] * 3 + duration) / 4;
+        }
+        Log.d(TAG, "Decoded " + size[0] + "x" + size[1] + " with " + chosen + " in " + duration + "ms");
+        return faces;
+    }
+
+    /**
+     * Decodes the face at index {@param face} of the {@param layout} and rotates it if needed.
+     */
+    @Nullable
+    private static Bitmap decodeFace(@NonNull BitmapRegionDecoder decoder, @NonNull CubeMapLayout layout,
+                                     @Nullable Bitmap reusable, int face) {
+        float hPadding = 1f / layout.getColumns();
+        float vPadding = 1f / layout.getRows();
+        int column = layout.getColumn(face);
+        int row = layout.getRow(face);
+        Bitmap bitmap = ImageUtils.loadBitmapRegion(
+                decoder,
+                reusable,
+                hPadding * column,
+                vPadding * row,
+                hPadding * (column + 1),
+                vPadding * (row + 1)
+        );
+        return ImageUtils.rotateInPlace(bitmap, layout.getRotation(face));
+    }
+
+    /**
+     * Groups image sizes by megapixels, so that {@link Strategy#ADAPTIVE} measurements done on an
+     * image apply to images of similar size.
+     */
+    private static int sizeBucket(int width, int height) {
+        return Math.round(width * (float) height / 1000000f);
+    }
+
+    /**
+     * Where a cube map image is read from. Every call to {@link #newRegionDecoder()} returns a new
+     * {@link BitmapRegionDecoder}, so that workers do not share one.
+     */
+    static abstract class Source {
+
+        @NonNull
+        abstract BitmapRegionDecoder newRegionDecoder() throws IOException;
+
+        @Nullable
+        abstract Bitmap decode(@NonNull BitmapFactory.Options opt);
+
+        /**
+         * @return {width, height} of the image, read without decoding it
+         */
+        @NonNull
+        int[] getSize() {
+            BitmapFactory.Options opt = new BitmapFactory.Options();
+            opt.inJustDecodeBounds = true;
+            decode(opt);
+            return new int[]{opt.outWidth, opt.outHeight};
+        }
+
+        @NonNull
+        static Source fromFile(@NonNull final File file) {
+            return new Source() {
+                @NonNull
+                @Override
+                BitmapRegionDecoder newRegionDecoder() throws IOException {
+                    return BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+                }
+
+                @Nullable
+                @Override
+                Bitmap decode(@NonNull BitmapFactory.Options opt) {
+                    return BitmapFactory.decodeFile(file.getAbsolutePath(), opt);
+                }
+
+                @Override
+                public String toString() {
+                    return file.getAbsolutePath();
+                }
+            };
+        }
+
+        /**
+         * Reads the whole {@param stream} in memory, so that multiple decoders can be opened on it.
+         * The stream is closed when done.
+         */
+        @NonNull
+        static Source fromStream(@NonNull InputStream stream) throws IOException {
+            final byte[] data;
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(32, stream.available()));
+                byte[] buffer = new byte[16 * 1024];
+                int read;
+                while ((read = stream.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                data = out.toByteArray();
+            } finally {
+                stream.close();
+            }
+            return new Source() {
+                @NonNull
+                @Override
+                BitmapRegionDecoder newRegionDecoder() throws IOException {
+                    return BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+                }
+
+                @Nullable
+                @Override
+                Bitmap decode(@NonNull BitmapFactory.Options opt) {
+                    return BitmapFactory.decodeByteArray(data, 0, data.length, opt);
+                }
+
+                @Override
+                public String toString() {
+                    return "stream of " + data.length + " bytes";
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,285 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Resamples an equirectangular image into the six faces of a cube map, so that {@link VRImageType#EQUIRECTANGULAR}
+ * images can be displayed through the skybox like {@link VRImageType#CUBIC} ones.
+ * <p>
+ * Pixels are {@link android.graphics.Bitmap.Config#RGB_565} values stored in a short[], row by row.
+ * Faces follow the OpenGL cube map conventions, in the order expected by the skybox :
+ * +X, -X, +Y, -Y, +Z, -Z (i.e. left, right, top, bottom, back, front as in {@link CubeMapLayout}).
+ * The center of the equirectangular image is mapped to the -Z face, which is the one in front of the
+ * camera.
+ * <p>
+ * This class only depends on the JDK, so that the EquirectToCubemapBenchmark of the tools module
+ * measures it on a desktop JVM.
+ */
+
+public final class EquirectToCubemap {
+    public final static int FACE_COUNT = 6;
+
+    /**
+     * How a face pixel is computed from the equirectangular pixels around its projection
+     */
+    public enum Filter {
+        /**
+         * Takes the closest pixel
+         */
+        NEAREST,
+        /**
+         * Interpolates linearly the four closest pixels
+         */
+        BILINEAR
+    }
+
+    /**
+     * For each face, the direction of its center, then the directions in which its u (left to
+     * right) and v (top to bottom) coordinates grow.
+     */
+    private final static double[][] BASES = {
+            {1, 0, 0, 0, 0, -1, 0, -1, 0},
+            {-1, 0, 0, 0, 0, 1, 0, -1, 0},
+            {0, 1, 0, 1, 0, 0, 0, 0, 1},
+            {0, -1, 0, 1, 0, 0, 0, 0, -1},
+            {0, 0, 1, 1, 0, 0, 0, -1, 0},
+            {0, 0, -1, -1, 0, 0, 0, -1, 0}
+    };
+
+    private EquirectToCubemap() {
+        //do nothing, this class only provides static methods
+    }
+
+    /**
+     * An equirectangular image spans 360° horizontally and a face 90°, so a face of a quarter of the
+     * width keeps the pixel density of the equator at the center of the faces.
+     *
+     * @param equirectWidth width of the equirectangular image
+     * @return the size of the faces
+     */
+    public static int faceSizeFor(int equirectWidth) {
+        return Math.max(1, equirectWidth / 4);
+    }
+
+    /**
+     * Computes the rows [{@code rowStart}, {@code rowEnd}[ of a face. This is the reference kernel,
+     * called by {@link #convert(short[], int, int, int, Filter, ExecutorService, int)} on bands of rows.
+     * <p>
+     * The longitude and latitude of a pixel are computed once and shared by all the taps of the
+     * filter. On the side faces, the horizontal direction only depends on the column, so the
+     * longitude is computed once per column and only the latitude per pixel. On the top and bottom
+     * faces, mirroring a column around the center negates the longitude and keeps the latitude, so
+     * both are computed for half of each row.
+     *
+     * @param source       the equirectangular pixels
+     * @param sourceWidth  width of the equirectangular image
+     * @param sourceHeight height of the equirectangular image
+     * @param face         the face pixels, of size {@code faceSize}²
+     * @param faceSize     width and height of a face
+     * @param faceIndex    which face to compute, see {@link #BASES}
+     * @param filter       how pixels are sampled
+     * @param rowStart     first row to compute
+     * @param rowEnd       row after the last one to compute
+     */
+    public static void convertRows(short[] source, int sourceWidth, int sourceHeight,
+                                   short[] face, int faceSize, int faceIndex, Filter filter,
+                                   int rowStart, int rowEnd) {
+        double[] basis = BASES[faceIndex];
+        double step = 2.0 / faceSize;
+        double lonScale = sourceWidth / (2 * Math.PI);
+        double latScale = sourceHeight / Math.PI;
+
+        if (basis[1] == 0) {
+            //side face : u is horizontal and v vertical
+            double[] columnX = new double[faceSize];
+            double[] columnScale = new double[faceSize];
+            for (int x = 0; x < faceSize; x++) {
+                double u = (x + 0.5) * step - 1;
+                double dx = basis[0] + u * basis[3];
+                double dz = basis[2] + u * basis[5];
+                columnX[x] = (Math.atan2(dx, -dz) + Math.PI) * lonScale - 0.5;
+                columnScale[x] = 1 / Math.sqrt(dx * dx + dz * dz);
+            }
+            for (int y = rowStart; y < rowEnd; y++) {
+                double dy = ((y + 0.5) * step - 1) * basis[7];
+                int row = y * faceSize;
+                for (int x = 0; x < faceSize; x++) {
+                    double sy = (Math.PI / 2 - Math.atan(dy * columnScale[x])) * latScale - 0.5;
+                    face[row + x] = sample(source, sourceWidth, sourceHeight, filter, columnX[x], sy);
+                }
+            }
+            return;
+        }
+
+        //top or bottom face : u only moves along x, v along z
+        int half = (faceSize + 1) / 2;
+        for (int y = rowStart; y < rowEnd; y++) {
+            double v = (y + 0.5) * step - 1;
+            double dy = basis[1];
+            double dz = v * basis[8];
+            int row = y * faceSize;
+            for (int x = 0; x < half; x++) {
+                double dx = ((x + 0.5) * step - 1) * basis[3];
+                double lon = Math.atan2(dx, -dz);
+                double lat = Math.atan2(dy, Math.sqrt(dx * dx + dz * dz));
+                //coordinates in the source, pixel centers being at .5
+                double sy = (Math.PI / 2 - lat) * latScale - 0.5;
+                face[row + x] = sample(source, sourceWidth, sourceHeight, filter, (Math.PI + lon) * lonScale - 0.5, sy);
+                face[row + faceSize - 1 - x] = sample(source, sourceWidth, sourceHeight, filter,
+                        (Math.PI - lon) * lonScale - 0.5, sy);
+            }
+        }
+    }
+
+    private static short sample(short[] source, int width, int height, Filter filter, double sx, double sy) {
+        return filter == Filter.NEAREST ?
+                sampleNearest(source, width, height, sx, sy) :
+                sampleBilinear(source, width, height, sx, sy);
+    }
+
+    private static short sampleNearest(short[] source, int width, int height, double sx, double sy) {
+        int x = wrap((int) Math.floor(sx + 0.5), width);
+        int y = clamp((int) Math.floor(sy + 0.5), height);
+        return source[y * width + x];
+    }
+
+    private static short sampleBilinear(short[] source, int width, int height, double sx, double sy) {
+        int x0 = (int) Math.floor(sx);
+        int y0 = (int) Math.floor(sy);
+        //weights in 1/256th
+        int fx = (int) ((sx - x0) * 256);
+        int fy = (int) ((sy - y0) * 256);
+        int x1 = wrap(x0 + 1, width);
+        x0 = wrap(x0, width);
+        int y1 = clamp(y0 + 1, height);
+        y0 = clamp(y0, height);
+
+        int p00 = source[y0 * width + x0] & 0xFFFF;
+        int p10 = source[y0 * width + x1] & 0xFFFF;
+        int p01 = source[y1 * width + x0] & 0xFFFF;
+        int p11 = source[y1 * width + x1] & 0xFFFF;
+        int w00 = (256 - fx) * (256 - fy);
+        int w10 = fx * (256 - fy);
+        int w01 = (256 - fx) * fy;
+        int w11 = fx * fy;
+
+        int r = (((p00 >> 11) * w00 + (p10 >> 11) * w10 + (p01 >> 11) * w01 + (p11 >> 11) * w11) + 32768) >> 16;
+        int g = ((((p00 >> 5) & 0x3F) * w00 + ((p10 >> 5) & 0x3F) * w10
+                + ((p01 >> 5) & 0x3F) * w01 + ((p11 >> 5) & 0x3F) * w11) + 32768) >> 16;
+        int b = (((p00 & 0x1F) * w00 + (p10 & 0x1F) * w10 + (p01 & 0x1F) * w01 + (p11 & 0x1F) * w11) + 32768) >> 16;
+        return (short) ((r << 11) | (g << 5) | b);
+    }
+
+    private static int wrap(int x, int size) {
+        x %= size;
+        return x < 0 ? x + size : x;
+    }
+
+    private static int clamp(int y, int size) {
+        return y < 0 ? 0 : (y >= size ? size - 1 : y);
+    }
+
+    /**
+     * Computes the six faces of the cube map, splitting each face into {@code parallelism} bands of
+     * rows computed on {@code executor}.
+     *
+     * @param source       the equirectangular pixels
+     * @param sourceWidth  width of the equirectangular image
+     * @param sourceHeight height of the equirectangular image
+     * @param faceSize     width and height of the faces, see {@link #faceSizeFor(int)}
+     * @param filter       how pixels are sampled
+     * @param executor     where bands are computed, or null to compute everything on the calling thread
+     * @param parallelism  in how many bands each face is split
+     * @return the {@link #FACE_COUNT} faces, each of {@code faceSize}² pixels
+     * @throws InterruptedException if interrupted while waiting for the bands
+     */
+    public static short[][] convert(short[] source, int sourceWidth, int sourceHeight, int faceSize,
+                                    Filter filter, ExecutorService executor, int parallelism) throws InterruptedException {
+        short[][] faces = new short[FACE_COUNT][faceSize * faceSize];
+        for (int f = 0; f < FACE_COUNT; f++) {
+            convertFace(source, sourceWidth, sourceHeight, faces[f], faceSize, f, filter, executor, parallelism);
+        }
+        return faces;
+    }
+
+    /**
+     * Computes one face of the cube map, split into {@code parallelism} bands of rows computed on
+     * {@code executor}. Unlike {@link #convert(short[], int, int, int, Filter, ExecutorService, int)},
+     * the caller provides the face, so that a single buffer can be reused for every face and image.
+     *
+     * @param source       the equirectangular pixels, of at least {@code sourceWidth * sourceHeight}
+     * @param sourceWidth  width of the equirectangular image
+     * @param sourceHeight height of the equirectangular image
+     * @param face         where the face pixels are written, of at least {@code faceSize}² pixels
+     * @param faceSize     width and height of the face, see {@link #faceSizeFor(int)}
+     * @param faceIndex    which face to compute, see {@link #BASES}
+     * @param filter       how pixels are sampled
+     * @param executor     where bands are computed, or null to compute everything on the calling thread
+     * @param parallelism  in how many bands the face is split
+     * @throws InterruptedException if interrupted while waiting for the bands
+     */
+    public static void convertFace(final short[] source, final int sourceWidth, final int sourceHeight,
+                                   final short[] face, final int faceSize, final int faceIndex,
+                                   final Filter filter, ExecutorService executor, int parallelism) throws InterruptedException {
+        if (source.length < sourceWidth * sourceHeight) {
+            throw new IllegalArgumentException("Source has " + source.length + " pixels, expected "
+                    + sourceWidth + "x" + sourceHeight);
+        }
+        if (face.length < faceSize * faceSize) {
+            throw new IllegalArgumentException("Face has " + face.length + " pixels, expected "
+                    + faceSize + "x" + faceSize);
+        }
+        if (executor == null || parallelism <= 1) {
+            convertRows(source, sourceWidth, sourceHeight, face, faceSize, faceIndex, filter, 0, faceSize);
+            return;
+        }
+
+        int bands = Math.min(parallelism, faceSize);
+        List<Future<Void>> futures = new ArrayList<>(bands);
+        for (int band = 0; band < bands; band++) {
+            final int rowStart = band * faceSize / bands;
+            final int rowEnd = (band + 1) * faceSize / bands;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    convertRows(source, sourceWidth, sourceHeight, face, faceSize, faceIndex, filter, rowStart, rowEnd);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error while converting to a cube map", e.getCause());
+        }
+    }
+}
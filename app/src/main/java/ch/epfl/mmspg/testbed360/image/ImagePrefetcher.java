@@ -0,0 +1,300 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes in background the {@link Bitmap}s of the next {@link VRImage}s of an {@link ImagesSession},
+ * so that switching to the next {@link ch.epfl.mmspg.testbed360.VRScene} only consists in binding
+ * already decoded {@link Bitmap}s to a texture instead of decoding them on the render thread.
+ * <p>
+ * The amount of {@link VRImage}s decoded in advance, its {@link #depth}, is chosen from the memory
+ * class of the device (see {@link #computeDepth(Context)}).
+ * It also keeps track of how often a {@link VRImage} was ready when needed ({@link #hitCount}), how
+ * often we still had to wait for its decoding ({@link #waitCount}, {@link #waitNanos}) and how often
+ * it was not prefetched at all ({@link #missCount}).
+ */
+
+public class ImagePrefetcher {
+    private final static String TAG = "ImagePrefetcher";
+
+    /**
+     * Bounds of {@link #depth}, see {@link #computeDepth(Context)}
+     */
+    private final static int MIN_DEPTH = 1;
+    private final static int MAX_DEPTH = 3;
+
+    /**
+     * Memory classes (in MB, see {@link ActivityManager#getMemoryClass()}) from which we can afford to
+     * keep one more decoded {@link VRImage} in memory.
+     */
+    private final static int[] DEPTH_MEMORY_CLASSES = {256, 384};
+
+    private final Context context;
+    private final int depth;
+    private final ExecutorService executor;
+
+    /**
+     * {@link PrefetchTask}s of the {@link VRImage}s being prefetched, in the order they will be displayed
+     */
+    private final LinkedHashMap<VRImage, PrefetchTask> pending = new LinkedHashMap<>();
+
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger waitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * Creates an {@link ImagePrefetcher} with a {@link #depth} fitting the device's memory.
+     *
+     * @param context {@link Context} used to read the memory class and decode {@link Bitmap}s
+     */
+    public ImagePrefetcher(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+        this.depth = computeDepth(context);
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Log.d(TAG, "Prefetching " + depth + " image(s) in advance");
+    }
+
+    /**
+     * Chooses how many {@link VRImage}s can be decoded in advance, given the memory class of the
+     * device. A decoded 6K cube map takes about 48MB in {@link Bitmap.Config#RGB_565}, so we keep
+     * only one in advance on most devices.
+     *
+     * @param context {@link Context} used to get the {@link ActivityManager}
+     * @return the prefetching depth, between {@link #MIN_DEPTH} and {@link #MAX_DEPTH}
+     */
+    static int computeDepth(@NonNull Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager == null || activityManager.isLowRamDevice()) {
+            return MIN_DEPTH;
+        }
+        int memoryClass = activityManager.getMemoryClass();
+        int depth = MIN_DEPTH;
+        for (int threshold : DEPTH_MEMORY_CLASSES) {
+            if (memoryClass >= threshold) {
+                depth++;
+            }
+        }
+        return Math.min(depth, MAX_DEPTH);
+    }
+
+    /**
+     * @return how many {@link VRImage}s are decoded in advance
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Updates the {@link VRImage}s being prefetched: only the first {@link #depth} {@link VRImage}s
+     * of {@param upcoming} are kept or scheduled for decoding, all other pending decodings are cancelled.
+     *
+     * @param upcoming the next {@link VRImage}s to be displayed, in display order
+     */
+    public synchronized void prefetch(@NonNull List<VRImage> upcoming) {
+        List<VRImage> wanted = upcoming.subList(0, Math.min(depth, upcoming.size()));
+
+        Iterator<Map.Entry<VRImage, PrefetchTask>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<VRImage, PrefetchTask> entry = iterator.next();
+            if (!wanted.contains(entry.getKey())) {
+                entry.getValue().cancel();
+                iterator.remove();
+            }
+        }
+
+        for (VRImage image : wanted) {
+            if (!pending.containsKey(image)) {
+                PrefetchTask task = new PrefetchTask(image);
+                task.future = executor.submit(task);
+                pending.put(image, task);
+            }
+        }
+    }
+
+    /**
+     * Gets the {@link Bitmap}s of the given {@link VRImage}, waiting for its prefetching to finish if
+     * needed. If it was not prefetched, it is decoded directly (see {@link VRImage#getBitmap(Context)}).
+     *
+     * @param image the {@link VRImage} about to be displayed
+     * @return the {@link Bitmap}s of the {@link VRImage}, see {@link VRImage#getBitmap(Context)}
+     * @throws IOException if the {@link VRImage} could not be decoded
+     */
+    public Bitmap[] take(@NonNull VRImage image) throws IOException {
+        PrefetchTask task;
+        synchronized (this) {
+            task = pending.remove(image);
+        }
+        if (task == null) {
+            missCount.incrementAndGet();
+            Log.d(TAG, "Miss for " + image);
+            return image.getBitmap(context);
+        }
+
+        boolean ready = task.future.isDone();
+        long start = System.nanoTime();
+        try {
+            Bitmap[] bitmaps = task.future.get();
+            if (ready) {
+                hitCount.incrementAndGet();
+            } else {
+                long waited = System.nanoTime() - start;
+                waitCount.incrementAndGet();
+                waitNanos.addAndGet(waited);
+                Log.d(TAG, "Waited " + waited / 1000000 + "ms for " + image);
+            }
+            return bitmaps;
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Error while prefetching " + image + ", decoding it again", e);
+            missCount.incrementAndGet();
+            return image.getBitmap(context);
+        }
+    }
+
+    /**
+     * Cancels all pending decodings and stops the background thread. The {@link ImagePrefetcher}
+     * should not be used afterwards.
+     */
+    public synchronized void shutdown() {
+        for (PrefetchTask task : pending.values()) {
+            task.cancel();
+        }
+        pending.clear();
+        executor.shutdownNow();
+        Log.i(TAG, getStatistics());
+    }
+
+    /**
+     * @return the amount of {@link VRImage}s that were already decoded when needed
+     */
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the amount of {@link VRImage}s for which we had to wait for the end of their prefetching
+     */
+    public int getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * @return the amount of {@link VRImage}s that were not prefetched and had to be decoded directly
+     */
+    public int getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the total time spent waiting for prefetching to finish, in milliseconds
+     */
+    public long getTotalWaitMillis() {
+        return waitNanos.get() / 1000000;
+    }
+
+    /**
+     * @return a human readable summary of the counters of this {@link ImagePrefetcher}
+     */
+    @NonNull
+    public String getStatistics() {
+        int waits = getWaitCount();
+        return "hits=" + getHitCount() +
+                ", waits=" + waits +
+                ", misses=" + getMissCount() +
+                ", totalWait=" + getTotalWaitMillis() + "ms" +
+                ", meanWait=" + (waits == 0 ? 0 : getTotalWaitMillis() / waits) + "ms";
+    }
+
+    /**
+     * Decodes a {@link VRImage} in background. When cancelled, the {@link Bitmap}s it decoded (or is
+     * decoding) are given back to the {@link BitmapPool} instead of being left to the garbage collector.
+     */
+    private final class PrefetchTask implements Callable<Bitmap[]> {
+        private final VRImage image;
+        private Future<Bitmap[]> future;
+
+        //both guarded by the enclosing ImagePrefetcher
+        private boolean cancelled = false;
+        private Bitmap[] result;
+
+        private PrefetchTask(@NonNull VRImage image) {
+            this.image = image;
+        }
+
+        @Override
+        public Bitmap[] call() throws Exception {
+            long start = System.currentTimeMillis();
+            Bitmap[] bitmaps = image.getBitmap(context);
+            synchronized (ImagePrefetcher.this) {
+                if (cancelled) {
+                    ImageUtils.releaseBitmaps(bitmaps);
+                    return null;
+                }
+                result = bitmaps;
+            }
+            Log.d(TAG, "Prefetched " + image + " in " + (System.currentTimeMillis() - start) + "ms");
+            return bitmaps;
+        }
+
+        /**
+         * Must be called while holding the lock of the enclosing {@link ImagePrefetcher}
+         */
+        private void cancel() {
+            cancelled = true;
+            future.cancel(false);
+            if (result != null) {
+                ImageUtils.releaseBitmaps(result);
+                result = null;
+            }
+        }
+    }
+}
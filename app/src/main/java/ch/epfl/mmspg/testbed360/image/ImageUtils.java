@@ -17,6 +17,7 @@
 
 package ch.epfl.mmspg.testbed360.image;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -28,21 +29,21 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import org.apache.commons.math3.util.ArithmeticUtils;
 import org.rajawali3d.math.MathUtil;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 
 import static ch.epfl.mmspg.testbed360.VRScene.MODE_EVALUATION;
 import static ch.epfl.mmspg.testbed360.VRScene.MODE_TRAINING;
@@ -58,14 +59,89 @@ import static ch.epfl.mmspg.testbed360.VRScene.MODE_TRAINING;
 public final class ImageUtils {
     private final static String TAG = "ImageUtils";
 
-    private static Bitmap[] cubeBitmaps = new Bitmap[6];
-    private static Bitmap[] sphereBitmap = new Bitmap[1];
+    /**
+     * Default byte budget of {@link #BITMAP_POOL}, until {@link #initBitmapPool(Context)} is called
+     */
+    private final static long DEFAULT_POOL_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Part of the memory class of the app (see {@link ActivityManager#getMemoryClass()}) that the
+     * {@link #BITMAP_POOL} can hold.
+     */
+    private final static float POOL_MEMORY_RATIO = 0.25f;
+
+    /**
+     * {@link Bitmap}s released by {@link ch.epfl.mmspg.testbed360.VRScene}s and decoders, reused
+     * when decoding the next {@link VRImage}s.
+     */
+    private final static BitmapPool BITMAP_POOL = new BitmapPool(DEFAULT_POOL_BYTES);
+
+    private static volatile boolean equirectAsCubicMap = false;
+    private static volatile EquirectToCubemap.Filter equirectFilter = EquirectToCubemap.Filter.BILINEAR;
+
+    /**
+     * Pixel rows reused by {@link #rotateInPlace(Bitmap, int)} and {@link #copyRegion(Bitmap, int, int, Bitmap)},
+     * so that they do not allocate anything once they have been called a few times.
+     */
+    private final static ArrayDeque<int[]> ROW_BUFFERS = new ArrayDeque<>();
+    private final static int MAX_ROW_BUFFERS = 8;
+
+    /**
+     * Pixels of the equirectangular image and of one cube map face, reused by
+     * {@link #equirectToCubicMap(Bitmap)} for every image as long as they are large enough. Each
+     * conversion already uses all the workers of {@link CubicMapDecoder}, so conversions are
+     * serialized on {@link #EQUIRECT_LOCK} rather than each holding its own buffers.
+     */
+    private final static Object EQUIRECT_LOCK = new Object();
+    private static short[] equirectPixels;
+    private static short[] facePixels;
+
+    /**
+     * @return the {@link BitmapPool} shared by all decodings of {@link VRImage}s
+     */
+    @NonNull
+    public static BitmapPool getBitmapPool() {
+        return BITMAP_POOL;
+    }
+
+    /**
+     * Sizes the {@link #BITMAP_POOL} according to the memory class of the device
+     *
+     * @param context {@link Context} used to get the {@link ActivityManager}
+     */
+    public static void initBitmapPool(@NonNull Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager == null) {
+            return;
+        }
+        int memoryClass = activityManager.isLowRamDevice() ?
+                activityManager.getMemoryClass() / 2 :
+                activityManager.getMemoryClass();
+        long maxBytes = (long) (memoryClass * 1024L * 1024L * POOL_MEMORY_RATIO);
+        BITMAP_POOL.setMaxBytes(maxBytes);
+        Log.d(TAG, "Bitmap pool can hold " + maxBytes / 1024 / 1024 + "MB");
+    }
+
+    /**
+     * Gives back the given {@link Bitmap}s to the {@link #BITMAP_POOL}. They must not be used afterwards.
+     *
+     * @param bitmaps the {@link Bitmap}s to release, may contain null values
+     */
+    public static void releaseBitmaps(@Nullable Bitmap[] bitmaps) {
+        if (bitmaps == null) {
+            return;
+        }
+        for (int i = 0; i < bitmaps.length; i++) {
+            BITMAP_POOL.put(bitmaps[i]);
+            bitmaps[i] = null;
+        }
+    }
 
     /**
      * Loads a region of a {@link Bitmap}
      *
      * @param decoder        the {@link BitmapRegionDecoder} to be used
-     * @param reusableBitmap a {@link Bitmap} we want to reuse
+     * @param reusableBitmap a {@link Bitmap} we want to reuse, or null to take one from the {@link #BITMAP_POOL}
      * @param regionLeft     the ratio on the {@link Bitmap} corresponding to the left side of the region
      * @param regionTop      the ratio on the {@link Bitmap} corresponding to the top side of the region
      * @param regionRight    the ratio on the {@link Bitmap} corresponding to the right side of the region
@@ -74,15 +150,11 @@ public final class ImageUtils {
      * decoded.
      */
     @Nullable
-    private static Bitmap loadBitmapRegion(
+    static Bitmap loadBitmapRegion(
             @NonNull BitmapRegionDecoder decoder,
             @Nullable Bitmap reusableBitmap,
             float regionLeft, float regionTop,
             float regionRight, float regionBottom) {
-        BitmapFactory.Options opt = new BitmapFactory.Options();
-        opt.inPreferredConfig = Bitmap.Config.RGB_565;
-        opt.inBitmap = reusableBitmap;
-        opt.inMutable = true;
         int h = decoder.getHeight();
         int w = decoder.getWidth();
         Log.d(TAG, "loadBitmapRegion: image is " + w + "x" + h);
@@ -91,7 +163,27 @@ public final class ImageUtils {
                 Math.round(regionLeft * w), Math.round(regionTop * h),
                 Math.round(regionRight * w), Math.round(regionBottom * h));
         Log.d(TAG, "loadBitmapRegion: decoding region : " + region);
-        return decoder.decodeRegion(region, opt);
+
+        if (reusableBitmap == null || reusableBitmap.getWidth() != region.width()
+                || reusableBitmap.getHeight() != region.height()) {
+            //a BitmapRegionDecoder does not resize the reused Bitmap, hence it must have the region's size
+            BITMAP_POOL.put(reusableBitmap);
+            reusableBitmap = BITMAP_POOL.get(region.width(), region.height(), Bitmap.Config.RGB_565);
+        }
+
+        BitmapFactory.Options opt = new BitmapFactory.Options();
+        opt.inPreferredConfig = Bitmap.Config.RGB_565;
+        opt.inBitmap = reusableBitmap;
+        opt.inMutable = true;
+        try {
+            return decoder.decodeRegion(region, opt);
+        } catch (IllegalArgumentException e) {
+            //the reused Bitmap was not compatible, we decode into a new one
+            Log.w(TAG, "loadBitmapRegion: could not reuse " + reusableBitmap, e);
+            BITMAP_POOL.put(reusableBitmap);
+            opt.inBitmap = null;
+            return decoder.decodeRegion(region, opt);
+        }
     }
 
     /**
@@ -118,12 +210,31 @@ public final class ImageUtils {
      */
     @NonNull
     public static Bitmap[] loadCubicMap(@NonNull VRImage image) throws IOException {
-        return loadCubicMap(new FileInputStream(image.getFile()));
+        return loadCubicMap(image, new Bitmap[6]);
+    }
+
+    /**
+     * Same as {@link #loadCubicMap(VRImage)}, but reuses the {@link Bitmap}s of the given
+     * {@param cubeBitmaps} array. Missing {@link Bitmap}s are taken from the {@link #BITMAP_POOL}.
+     *
+     * @param image       the image containing the {@link VRImage#file} to read from
+     * @param cubeBitmaps an array of length 6 holding {@link Bitmap}s to reuse (or null values), in
+     *                    which the decoded faces are stored
+     * @return the given {@param cubeBitmaps} array, filled with the faces of the cube
+     * @throws IOException if the image format is not supported or can not be decoded.
+     */
+    @NonNull
+    public static Bitmap[] loadCubicMap(@NonNull VRImage image, @NonNull Bitmap[] cubeBitmaps) throws IOException {
+        checkCubeBitmaps(cubeBitmaps);
+        CubeMapLayout layout = image.getCubeMapLayout();
+        return CubicMapDecoder.decode(CubicMapDecoder.Source.fromFile(image.getFile()),
+                layout == null ? CubeMapLayout.DEFAULT : layout, cubeBitmaps);
     }
 
     /**
      * Helper methods to load a cube map image into an array of {@link Bitmap}s. The order of faces
-     * is : left, right, top, bottom, back, front
+     * is : left, right, top, bottom, back, front. The faces are decoded with the strategy set in
+     * {@link CubicMapDecoder#setStrategy(CubicMapDecoder.Strategy)}.
      *
      * @param stream the stream to read the image from. This methods closes it when done.
      * @return a {@link Bitmap} array of length 6, containing each faces of the cube, or containing null
@@ -132,73 +243,29 @@ public final class ImageUtils {
      */
     @NonNull
     public static Bitmap[] loadCubicMap(@NonNull InputStream stream) throws IOException {
-        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(stream, false);
-        float hPadding = 1f / 3f;
-        float vPadding = 1f / 2f;
-
-        //left
-        cubeBitmaps[0] = rotateBitmap(
-                loadBitmapRegion(
-                        decoder,
-                        cubeBitmaps[0],
-                        hPadding,
-                        vPadding,
-                        hPadding * 2,
-                        vPadding * 2
-                ), -90
-        );
-        //right
-        cubeBitmaps[1] = loadBitmapRegion(
-                decoder,
-                cubeBitmaps[1],
-                hPadding,
-                0f,
-                hPadding * 2,
-                vPadding
-        );
-        //top
-        cubeBitmaps[2] = rotateBitmap(
-                loadBitmapRegion(
-                        decoder,
-                        cubeBitmaps[2],
-                        hPadding * 2,
-                        vPadding,
-                        hPadding * 3,
-                        vPadding * 2
-                ), 180
-        );
-        //bottom
-        cubeBitmaps[3] = loadBitmapRegion(
-                decoder,
-                cubeBitmaps[3],
-                0f,
-                vPadding,
-                hPadding,
-                vPadding * 2
-        );
-        //back
-        cubeBitmaps[4] = loadBitmapRegion(
-                decoder,
-                cubeBitmaps[4],
-                hPadding * 2,
-                0f,
-                hPadding * 3,
-                vPadding);
-        //front
-        cubeBitmaps[5] = loadBitmapRegion(
-                decoder,
-                cubeBitmaps[5],
-                0f,
-                0f,
-                hPadding,
-                vPadding
-        );
-
-        stream.close();
-        decoder.recycle();
-
-        return cubeBitmaps;
+        return loadCubicMap(stream, new Bitmap[6]);
+    }
 
+    /**
+     * Same as {@link #loadCubicMap(InputStream)}, but reuses the {@link Bitmap}s of the given
+     * {@param cubeBitmaps} array. Missing {@link Bitmap}s are taken from the {@link #BITMAP_POOL}.
+     *
+     * @param stream      the stream to read the image from. This methods closes it when done.
+     * @param cubeBitmaps an array of length 6 holding {@link Bitmap}s to reuse (or null values), in
+     *                    which the decoded faces are stored
+     * @return the given {@param cubeBitmaps} array, filled with the faces of the cube
+     * @throws IOException if the image format is not supported or can not be decoded.
+     */
+    @NonNull
+    public static Bitmap[] loadCubicMap(@NonNull InputStream stream, @NonNull Bitmap[] cubeBitmaps) throws IOException {
+        checkCubeBitmaps(cubeBitmaps);
+        return CubicMapDecoder.decode(CubicMapDecoder.Source.fromStream(stream), CubeMapLayout.DEFAULT, cubeBitmaps);
+    }
+
+    private static void checkCubeBitmaps(@NonNull Bitmap[] cubeBitmaps) {
+        if (cubeBitmaps.length < 6) {
+            throw new IllegalArgumentException("A cube map needs 6 bitmaps, got " + cubeBitmaps.length);
+        }
     }
 
     /**
@@ -209,6 +276,7 @@ public final class ImageUtils {
      * @return the bitmap rotated with angle given
      */
     @Nullable
+    @Deprecated //allocates a new Bitmap for every rotation, use rotateInPlace instead
     public static Bitmap rotateBitmap(@Nullable Bitmap bitmap, float angle) {
         if (bitmap == null) {
             return null;
@@ -219,6 +287,154 @@ public final class ImageUtils {
         return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
     }
 
+    /**
+     * Rotates the pixels of the given {@link Bitmap} without allocating a new one, contrary to
+     * {@link #rotateBitmap(Bitmap, float)}. A rotation of ±90° is done by transposing the
+     * {@link Bitmap} and then flipping it, one row/column at a time through pooled buffers (see
+     * {@link #ROW_BUFFERS}). Hence a rotation of ±90° is only possible on a square {@link Bitmap};
+     * other cases fall back to {@link #rotateBitmap(Bitmap, float)}.
+     *
+     * @param bitmap  a mutable {@link Bitmap} to rotate
+     * @param degrees the clockwise angle of rotation, a multiple of 90
+     * @return the given {@param bitmap}, rotated; or a rotated copy if it was not possible to rotate
+     * it in place
+     */
+    @Nullable
+    public static Bitmap rotateInPlace(@Nullable Bitmap bitmap, int degrees) {
+        if (bitmap == null) {
+            return null;
+        }
+        degrees = ((degrees % 360) + 360) % 360;
+        if (degrees == 0) {
+            return bitmap;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (!bitmap.isMutable() || degrees % 90 != 0 || (degrees != 180 && width != height)) {
+            Log.w(TAG, "Cannot rotate in place a " + width + "x" + height + " bitmap by " + degrees);
+            return rotateBitmap(bitmap, degrees);
+        }
+
+        int[] first = acquireRow(Math.max(width, height));
+        int[] second = acquireRow(Math.max(width, height));
+        try {
+            if (degrees == 180) {
+                swapRows(bitmap, first, second, true);
+            } else {
+                transpose(bitmap, first, second);
+                if (degrees == 90) {
+                    //transposing then mirroring horizontally gives a clockwise rotation
+                    for (int y = 0; y < height; y++) {
+                        bitmap.getPixels(first, 0, width, 0, y, width, 1);
+                        reverse(first, width);
+                        bitmap.setPixels(first, 0, width, 0, y, width, 1);
+                    }
+                } else {
+                    //transposing then mirroring vertically gives a counter clockwise rotation
+                    swapRows(bitmap, first, second, false);
+                }
+            }
+        } finally {
+            releaseRow(first);
+            releaseRow(second);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Copies a region of {@param source}, starting at ({@param left}, {@param top}), into the whole
+     * {@param destination}, one row at a time so that no intermediate {@link Bitmap} is allocated.
+     *
+     * @param source      the {@link Bitmap} to copy pixels from
+     * @param left        the x coordinate of the region in {@param source}
+     * @param top         the y coordinate of the region in {@param source}
+     * @param destination a mutable {@link Bitmap} whose size is the one of the region to copy
+     */
+    static void copyRegion(@NonNull Bitmap source, int left, int top, @NonNull Bitmap destination) {
+        int width = destination.getWidth();
+        int[] row = acquireRow(width);
+        try {
+            for (int y = 0; y < destination.getHeight(); y++) {
+                source.getPixels(row, 0, width, left, top + y, width, 1);
+                destination.setPixels(row, 0, width, 0, y, width, 1);
+            }
+        } finally {
+            releaseRow(row);
+        }
+    }
+
+    /**
+     * Transposes a square {@link Bitmap} in place : for each index i, swaps the end of the i-th row
+     * with the end of the i-th column.
+     */
+    private static void transpose(@NonNull Bitmap bitmap, @NonNull int[] row, @NonNull int[] column) {
+        int size = bitmap.getWidth();
+        for (int i = 0; i < size; i++) {
+            int length = size - i;
+            bitmap.getPixels(row, 0, length, i, i, length, 1);
+            bitmap.getPixels(column, 0, 1, i, i, 1, length);
+            bitmap.setPixels(column, 0, length, i, i, length, 1);
+            bitmap.setPixels(row, 0, 1, i, i, 1, length);
+        }
+    }
+
+    /**
+     * Mirrors a {@link Bitmap} vertically by swapping its rows, and also mirrors it horizontally if
+     * {@param reverse} is true (which is a rotation of 180°).
+     */
+    private static void swapRows(@NonNull Bitmap bitmap, @NonNull int[] top, @NonNull int[] bottom, boolean reverse) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        for (int y = 0; y < (height + 1) / 2; y++) {
+            int mirroredY = height - 1 - y;
+            bitmap.getPixels(top, 0, width, 0, y, width, 1);
+            bitmap.getPixels(bottom, 0, width, 0, mirroredY, width, 1);
+            if (reverse) {
+                reverse(top, width);
+                reverse(bottom, width);
+            }
+            bitmap.setPixels(bottom, 0, width, 0, y, width, 1);
+            if (mirroredY != y) {
+                bitmap.setPixels(top, 0, width, 0, mirroredY, width, 1);
+            }
+        }
+    }
+
+    private static void reverse(@NonNull int[] pixels, int length) {
+        for (int i = 0, j = length - 1; i < j; i++, j--) {
+            int tmp = pixels[i];
+            pixels[i] = pixels[j];
+            pixels[j] = tmp;
+        }
+    }
+
+    /**
+     * @param length the minimum length of the buffer
+     * @return a buffer from {@link #ROW_BUFFERS} if one is long enough, or a new one
+     */
+    @NonNull
+    private static int[] acquireRow(int length) {
+        synchronized (ROW_BUFFERS) {
+            int count = ROW_BUFFERS.size();
+            for (int i = 0; i < count; i++) {
+                int[] buffer = ROW_BUFFERS.pollFirst();
+                if (buffer.length >= length) {
+                    return buffer;
+                }
+                ROW_BUFFERS.addLast(buffer);
+            }
+        }
+        return new int[length];
+    }
+
+    private static void releaseRow(@NonNull int[] buffer) {
+        synchronized (ROW_BUFFERS) {
+            if (ROW_BUFFERS.size() < MAX_ROW_BUFFERS) {
+                ROW_BUFFERS.addFirst(buffer);
+            }
+        }
+    }
+
     /**
      * Reads from external storage all {@link VRImage}s associated to the given mode. Also inits the
      * dir if it does not exists, along with an "init" file that is here only to make Android media
@@ -228,22 +444,24 @@ public final class ImageUtils {
      * @param mode    the mode wanted, corresponds to {@link ch.epfl.mmspg.testbed360.VRScene#MODE_EVALUATION}
      *                or {@link ch.epfl.mmspg.testbed360.VRScene#MODE_TRAINING}
      * @return a {@link List} containing all {@link VRImage}s for the given {@param mode}
-     * @throws IllegalStateException if the directory does not contain any image, or if there was a
-     *                               permission while trying to read an image (see {@link VRImage#VRImage(File)}
+     * @throws IllegalStateException if there was a permission while trying to read an image
+     *                               (see {@link VRImage#VRImage(File)}
      */
     @NonNull
     public static List<VRImage> loadVRImages(@NonNull Context context, @NonNull File sessionDir, int mode) throws IllegalStateException {
-        File imgDir;
-        switch (mode) {
-            case MODE_TRAINING:
-                imgDir = new File(sessionDir, "stimuli" + File.separator + ImagesSession.TRAINING_DIR);
-                break;
-            case MODE_EVALUATION:
-                imgDir = new File(sessionDir, "stimuli" + File.separator + ImagesSession.EVALUATION_DIR);
-                break;
-            default:
-                throw new IllegalArgumentException("Unknown mode to load images: " + mode);
-        }
+        return loadVRImages(context, sessionDir, mode, null);
+    }
+
+    /**
+     * Same as {@link #loadVRImages(Context, File, int)}, but only lists and parses the dir if it
+     * changed since it was indexed in the given {@link SessionIndex}.
+     *
+     * @param index the {@link SessionIndex} to look up and update, or null to always scan the dir
+     */
+    @NonNull
+    public static List<VRImage> loadVRImages(@NonNull Context context, @NonNull File sessionDir, int mode,
+                                             @Nullable SessionIndex index) throws IllegalStateException {
+        File imgDir = getStimuliDir(sessionDir, mode);
         imgDir.mkdirs();
 
         File init = new File(imgDir, "init"); //Getting a file within the dir.
@@ -258,12 +476,52 @@ public final class ImageUtils {
         //a rescan of files. See more about this issue here https://issuetracker.google.com/issues/37071807
         MediaScannerConnection.scanFile(context, new String[]{init.getAbsolutePath()}, null, null);
 
-        File[] imgFiles = imgDir.listFiles();
-        if (imgFiles.length == 0) {
-            throw new IllegalStateException("Dir does not contain images : " + imgDir);
+        return readVRImages(imgDir, index);
+    }
+
+    /**
+     * @param sessionDir the folder of an {@link ImagesSession}
+     * @param mode       {@link ch.epfl.mmspg.testbed360.VRScene#MODE_EVALUATION} or
+     *                   {@link ch.epfl.mmspg.testbed360.VRScene#MODE_TRAINING}
+     * @return the folder containing the stimuli of the session for the given {@param mode}
+     */
+    @NonNull
+    static File getStimuliDir(@NonNull File sessionDir, int mode) {
+        switch (mode) {
+            case MODE_TRAINING:
+                return new File(sessionDir, "stimuli" + File.separator + ImagesSession.TRAINING_DIR);
+            case MODE_EVALUATION:
+                return new File(sessionDir, "stimuli" + File.separator + ImagesSession.EVALUATION_DIR);
+            default:
+                throw new IllegalArgumentException("Unknown mode to load images: " + mode);
         }
+    }
 
+    /**
+     * Lists the {@link VRImage}s of a stimuli folder without writing anything to the disk, unlike
+     * {@link #loadVRImages(Context, File, int, SessionIndex)}. The {@link StimulusHeader}s of the new
+     * or changed files are read in parallel (see {@link StimulusValidator#readHeaders(List, java.util.Map)}),
+     * and the folder is only indexed if all of them could be read, as a file still being copied will
+     * be complete later without its folder changing again.
+     *
+     * @param imgDir the stimuli folder, which may not exist
+     * @param index  the {@link SessionIndex} to look up and update, or null to always scan the dir
+     * @return the {@link VRImage}s found in {@param imgDir}, possibly none
+     */
+    @NonNull
+    static List<VRImage> readVRImages(@NonNull File imgDir, @Nullable SessionIndex index) {
+        if (index != null) {
+            List<VRImage> indexed = index.getImages(imgDir);
+            if (indexed != null) {
+                return indexed;
+            }
+        }
+        long modified = imgDir.lastModified();
+        File[] imgFiles = imgDir.listFiles();
         ArrayList<VRImage> vrImages = new ArrayList<>();
+        if (imgFiles == null) {
+            return vrImages;
+        }
 
         for (File imgFile : imgFiles) {
             try {
@@ -273,6 +531,10 @@ public final class ImageUtils {
                 Log.d(TAG, "File name " + imgFile.getName() + " does not match");
             }
         }
+        boolean complete = StimulusValidator.readHeaders(vrImages, index != null ? index.getHeaders(imgDir) : null);
+        if (index != null && complete) {
+            index.putImages(imgDir, modified, vrImages);
+        }
         return vrImages;
     }
 
@@ -305,231 +567,156 @@ public final class ImageUtils {
     }
 
     /**
-     * Constructs a new {@link List} with elements from {@param toShuffle} shuffled with the best effort
-     * to ensure that there is no two consecutive {@link VRImage}s with the same slug (see {@link VRImage#getSlug()}.
-     * This method is a best effort implementation; there exists cases where the shuffle contract can
-     * not be respected at all (simply all {@link VRImage}s from {@param toShuffle} have the same slug)
-     * or way too much time costly to be interesting. So it might perform a trade-off so that the computation
-     * does not infinite loop (in impossible cases) or does not take too much time.
-     * An ideal case is to have for any slug no more than 2x {@link VRImage}s associated than other slugs
-     * (see {@link #initShuffledSlugsList(List, HashMap, String, ArrayList)} to understand why x2). This
-     * case is also an edge limit for the logic of this app : having too much images of the same slug
-     * might alter the tester's opinion on quality of those images.
+     * Constructs a new {@link List} with elements from {@param toShuffle} shuffled so that there is no
+     * two consecutive {@link VRImage}s with the same slug (see {@link VRImage#getSlug()}), whenever it is
+     * possible : it is not if a slug has more than half of the {@link VRImage}s (rounded up), in which
+     * case the {@link VRImage}s of this slug are spread as much as possible.
+     * Having too much images of the same slug might anyway alter the tester's opinion on quality of
+     * those images. See {@link SlugShuffler} for the algorithm, which runs in O(n log(slugs)).
      *
      * @param toShuffle a {@link List} containing all {@link VRImage} loaded for this session and that
      *                  should be shuffled as expressed in the previous paragraph
-     * @return a shuffled {@link List} of {@link VRImage}s, with a best effort to follow the
-     * aforementioned shuffle contract.
+     * @param seed      the seed of the shuffle, the same seed giving the same order for the same
+     *                  {@link VRImage}s in the same order
+     * @return a shuffled {@link List} of {@link VRImage}s, following the aforementioned shuffle contract.
      */
     @NonNull
-    public static List<VRImage> distinctShuffle(@NonNull List<VRImage> toShuffle) {
+    public static List<VRImage> distinctShuffle(@NonNull List<VRImage> toShuffle, long seed) {
         long start = System.currentTimeMillis();
 
-        /*First we build a HashMap mapping all existing slugs (see {@link VRImage#getSlug()} for details)
-        in this list to shuffle to HashSet<VRImage> regrouping all images that have the same slug.
-         */
-        HashMap<String, HashSet<VRImage>> groupedVRImages = new HashMap<>();
-
-        for (VRImage img : toShuffle) {
-            if (!groupedVRImages.containsKey(img.getSlug())) {
-                groupedVRImages.put(img.getSlug(), new HashSet<VRImage>());
-            }
-            groupedVRImages.get(img.getSlug()).add(img);
-        }
-
-        for (String slug : groupedVRImages.keySet()) {
-            Log.d(TAG, "slug " + slug + " has " + groupedVRImages.get(slug).size() + " VRImages");
-        }
-
-        //the result ArrayList
-        ArrayList<VRImage> shuffled = new ArrayList<>();
-
-        /* Now for the shuffling part :
-        For the sake of simplicity, we will organize our shuffling per "rounds". Basically in a
-        round we do #nb_slugs iterations and pick a remaining slug (i.e. not already chosen for this
-        round). Then we just pick a VRImage that has not been selected yet.
-        We keep track of the previous chosen slug, so that between two rounds we do not pick the same
-        slug for the previous round's last slug and the current round's first slug.
-        In case we have more VRImages mapped to a slug than others, we could infinite loop. The trade off
-        here is to accept to pick an image at the end if there is always the same slug remaining.
-        This case may happen when a slug has more VRImages associated to it than other slugs.
-         */
-        ArrayList<String> possibleSlugs = new ArrayList<>();
-
-        int shuffleCount = initShuffledSlugsList(possibleSlugs, groupedVRImages, null, shuffled);
-
-        String selectedSlug = null;
-        while (shuffled.size() < toShuffle.size()) {
-            if (possibleSlugs.size() > 0) {
-                String prevSlug = selectedSlug;
-                selectedSlug = possibleSlugs.get(0);
-                if (prevSlug == null || !prevSlug.equals(selectedSlug)) {
-                    /*here we remove at the index instead of removing the slug because we might have
-                    twice the same slug in possibleSlugs
-                     */
-                    possibleSlugs.remove(0);
-                    boolean noImg = true;
-                    for (VRImage img : groupedVRImages.get(selectedSlug)) {
-                        if (!shuffled.contains(img)) {
-                            noImg = false;
-                            Log.d(TAG, "\t\tChosen: " + img);
-                            shuffled.add(img);
-                            break;
-                        }
-                    }
-                    /*if we arrive here, then it means that there is no picture not already added
-                    that has this slug. Hence we remove it fully, to avoid useless iterations after
-                     */
-                    if (noImg) {
-                        possibleSlugs.remove(selectedSlug);
-                        selectedSlug = prevSlug; //as we didn't really select a slug
-                    }
-                } else {
-                    /*here we are in the case were the remaining slugs are only of the same type
-                    so we pick it anyway next time, breaking the contract but not infinite looping
-                    which is a fair trade off. This case is rare when there is a nearly equal amount
-                    of VRImages for each slug
-                     */
-                    selectedSlug = null;
-                }
-            } else {
-                //we'll pick a slug next time
-                shuffleCount += initShuffledSlugsList(possibleSlugs, groupedVRImages, selectedSlug, shuffled);
+        //First we give an index to each slug, and find the slug index of each VRImage
+        HashMap<String, Integer> slugIndices = new HashMap<>();
+        int[] groups = new int[toShuffle.size()];
+        for (int i = 0; i < groups.length; i++) {
+            String slug = toShuffle.get(i).getSlug();
+            Integer index = slugIndices.get(slug);
+            if (index == null) {
+                index = slugIndices.size();
+                slugIndices.put(slug, index);
             }
+            groups[i] = index;
+        }
 
+        int[] order = SlugShuffler.order(groups, slugIndices.size(), new Random(seed));
+        ArrayList<VRImage> shuffled = new ArrayList<>(order.length);
+        for (int i : order) {
+            shuffled.add(toShuffle.get(i));
         }
 
-        Log.d(TAG, shuffleCount + " shuffles, done in " + (System.currentTimeMillis() - start) + "ms");
+        Log.d(TAG, "Shuffled " + order.length + " VRImages of " + slugIndices.size() + " slugs with seed "
+                + seed + " in " + (System.currentTimeMillis() - start) + "ms, "
+                + SlugShuffler.countRepeats(order, groups) + " consecutive slugs");
         return shuffled;
     }
 
     /**
-     * Private helper method associated to {@link #distinctShuffle(List)}. This method is to be used
-     * for any new round, in order to re-init the possible slugs list and shuffle it so that we can
-     * pop the first element every time and be sure that our shuffle contract is followed.
-     * It modifies the given {@param toShuffle} list to first add it all possible slugs.
-     * A slug is considered "possible" if it exists (i.e. is a key in {@param groupedVRImages} and if
-     * there remains some images associated to this slug that has not yet been added to the {@params addedImgs}
-     * list.
-     * Then we re-add slugs that would have more remaining non-added images associated to it than other
-     * slugs, so that we can reach an equal number of {@link VRImage} remaining to add per slug.
-     * We check if we have only one slug (possibly duplicated) in the generated possible list; and
-     * return if it's the case. This case can arise only if there is more than twice VRImages count
-     * associated to a slug than any other slug, which wouldn't make sense to have in this app; but
-     * better catch this case anyway !
-     * Finally we shuffle this list until we reach a state were there is no consecutive slug and the
-     * first slug is not the same as {@param previousLastingSlug}. This part will never infinite loop
-     * as there is at max twice the same slug.
-     * And we have our possible slugs to pick from for the next round.
+     * Loads the Equirectangular image of the given {@link VRImage}, into a {@link Bitmap} of the
+     * {@link #BITMAP_POOL} if there is a compatible one.
      *
-     * @param toShuffle           the {@link List} in which will be added slugs
-     * @param groupedVRImages     the {@link HashMap<String,HashSet<VRImage>>} mapping all slugs to a
-     *                            {@link HashSet<VRImage>} of {@link VRImage}s that have the same slug
-     * @param previousLastingSlug the last slug of the possible slugs of the previous round, or null
-     *                            if we are at round 0. see {@link #distinctShuffle(List)}
-     * @param addedImgs           a {@link List} containing all {@link VRImage}s already selected and ordered
-     *                            with respect to the contract. see {@link #distinctShuffle(List)}
-     * @return the amount of slug shuffles
+     * @param image the {@link VRImage} to load the {@link Bitmap} from
+     * @return a {@link Bitmap} array containing only the equirectangular {@link Bitmap}
      */
-    private static int initShuffledSlugsList(@NonNull List<String> toShuffle,
-                                             @NonNull HashMap<String, HashSet<VRImage>> groupedVRImages,
-                                             @Nullable String previousLastingSlug,
-                                             @NonNull ArrayList<VRImage> addedImgs) {
-        int lowestCount = Integer.MAX_VALUE;
-        String[] slugArray = new String[groupedVRImages.keySet().size()];
-        int[] alreadyAddedPerSlug = new int[slugArray.length];
-        int[] totalImgPerSlug = new int[slugArray.length];
-
-        int index = 0;
-        for (String slug : groupedVRImages.keySet()) {
-            int count = 0;
-            for (VRImage img : groupedVRImages.get(slug)) {
-                if (!addedImgs.contains(img)) {
-                    count++;
-                }
-                totalImgPerSlug[index]++;
-            }
-            slugArray[index] = slug;
-            alreadyAddedPerSlug[index] = count;
-            if (lowestCount > count) {
-                lowestCount = count;
-            }
-            index++;
-        }
-
-        toShuffle.clear();
-        toShuffle.addAll(groupedVRImages.keySet());
-
-        for (int i = 0; i < alreadyAddedPerSlug.length; i++) {
-            if (totalImgPerSlug[i] - alreadyAddedPerSlug[i] > 0) {
-                //this means there remains some images from this slug that has not been added yet!
-                toShuffle.add(slugArray[i]);
-            }
-            if (alreadyAddedPerSlug[i] > lowestCount) {
-                /*if there is more images mapped to this slug than for other slugs, we add this slug
-                twice si that we can decrement the number of remaining non added images faster for this
-                 slug and reach a stability in number of remaining non added images between all slugs
-                 */
-                toShuffle.add(slugArray[i]);
-            }
+    @NonNull
+    public static Bitmap[] loadSphereBitmap(@Nullable VRImage image) {
+        if (image == null) {
+            return new Bitmap[6];
         }
+        String path = image.getFile().getAbsolutePath();
+        BitmapFactory.Options opt = new BitmapFactory.Options();
+        opt.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, opt);
 
-        /*We check the case were all possible slugs are just the same. In this case we're out of luck
-        and we have not other choice than to return consecutive slugs. This case may arise only if
-        a given slug has more than twice the amount of VRImage associated to it than any other slugs.
-        This case should not arise in any case as it wouldn't make much sense to "flood" the tester
-        of images with so much of one image !
-         */
-        boolean allSimilar = true;
-        String p = null;
-        for (String s : toShuffle) {
-            allSimilar = allSimilar && (p == null || p.equals(s));
-            p = s;
-        }
-        if (allSimilar) {
-            return 0;
+        opt.inJustDecodeBounds = false;
+        opt.inPreferredConfig = Bitmap.Config.RGB_565;
+        opt.inBitmap = BITMAP_POOL.get(opt.outWidth, opt.outHeight, Bitmap.Config.RGB_565);
+        opt.inMutable = true;
+        try {
+            return new Bitmap[]{BitmapFactory.decodeFile(path, opt)};
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "loadSphereBitmap: could not reuse " + opt.inBitmap, e);
+            BITMAP_POOL.put(opt.inBitmap);
+            opt.inBitmap = null;
+            return new Bitmap[]{BitmapFactory.decodeFile(path, opt)};
         }
+    }
 
-        /* Now we shuffle our possible slugs. We iterate until we reach a state were there is no
-        consecutive slug and the  first slug is not the same as {@param previousLastingSlug}.
-        This will never infinite loop as there is at max twice the same slug. */
-        boolean distinct = false;
-        int shuffleCount = 0;
-        //here we check that we do not loop too much. We stop after n! attempts as it is as much as
-        //there exists combinations, hence we have a high probability of being in an impossible situation
-        while (!distinct && shuffleCount < ArithmeticUtils.factorial(toShuffle.size())) {
-            shuffleCount++;
-            Collections.shuffle(toShuffle);
-            String prev = previousLastingSlug; //the last slug from previous round, given in args here
-            distinct = true;
-            for (String s : toShuffle) {
-                if (prev != null && prev.equals(s)) {
-                    distinct = false;
-                    break;
-                }
-                prev = s;
+    /**
+     * Chooses whether {@link VRImageType#EQUIRECTANGULAR} images are displayed through the skybox,
+     * after being converted to a cube map (see {@link #equirectToCubicMap(Bitmap)}), instead of
+     * being mapped on a {@link org.rajawali3d.primitives.Sphere}.
+     *
+     * @param enabled true to convert equirectangular images to cube maps
+     * @param filter  the {@link EquirectToCubemap.Filter} used when converting
+     */
+    public static void setEquirectAsCubicMap(boolean enabled, @NonNull EquirectToCubemap.Filter filter) {
+        equirectFilter = filter;
+        equirectAsCubicMap = enabled;
+        if (!enabled) {
+            synchronized (EQUIRECT_LOCK) {
+                equirectPixels = null;
+                facePixels = null;
             }
         }
-        Log.d(TAG, "\tNew Round ! (" + shuffleCount + " slug shuffles)");
-        return shuffleCount;
+    }
+
+    public static boolean isEquirectAsCubicMap() {
+        return equirectAsCubicMap;
     }
 
     /**
-     * Loads the Equirectangular image of the given {@link VRImage}.
+     * Converts an equirectangular {@link Bitmap} into the 6 faces of a cube map, in the order of
+     * {@link #loadCubicMap(VRImage)}. The conversion is spread on the workers of {@link CubicMapDecoder}
+     * and the faces keep the pixel density of the equator (see {@link EquirectToCubemap#faceSizeFor(int)}).
+     * The pixels are converted in {@link #equirectPixels} and {@link #facePixels}, then each face is
+     * copied to a {@link Bitmap} of the {@link #BITMAP_POOL}, so that nothing is allocated once a
+     * first image of this size has been converted.
      *
-     * @param image the {@link VRImage} to load the {@link Bitmap} from
-     * @return a {@link Bitmap} array containing only the equirectangular {@link Bitmap}
+     * @param equirect an equirectangular {@link Bitmap}, given back to the {@link #BITMAP_POOL}
+     * @return a {@link Bitmap} array of length 6 containing the faces of the cube
+     * @throws IOException if interrupted while converting
      */
     @NonNull
-    public static Bitmap[] loadSphereBitmap(@Nullable VRImage image) {
-        if (image == null) {
-            return new Bitmap[6];
+    static Bitmap[] equirectToCubicMap(@NonNull Bitmap equirect) throws IOException {
+        long start = System.currentTimeMillis();
+        int width = equirect.getWidth();
+        int height = equirect.getHeight();
+        int faceSize = EquirectToCubemap.faceSizeFor(width);
+        Bitmap source = equirect;
+        if (source.getConfig() != Bitmap.Config.RGB_565) {
+            source = equirect.copy(Bitmap.Config.RGB_565, false);
+            BITMAP_POOL.put(equirect);
         }
-        BitmapFactory.Options opt = new BitmapFactory.Options();
-        opt.inPreferredConfig = Bitmap.Config.RGB_565;
-        opt.inBitmap = sphereBitmap[0];
-        opt.inMutable = true;
-        return new Bitmap[]{BitmapFactory.decodeFile(image.getFile().getAbsolutePath(), opt)};
+
+        Bitmap[] bitmaps = new Bitmap[EquirectToCubemap.FACE_COUNT];
+        synchronized (EQUIRECT_LOCK) {
+            if (equirectPixels == null || equirectPixels.length < width * height) {
+                //dropped first, so that both arrays are never held at once
+                equirectPixels = null;
+                equirectPixels = new short[width * height];
+            }
+            if (facePixels == null || facePixels.length < faceSize * faceSize) {
+                facePixels = null;
+                facePixels = new short[faceSize * faceSize];
+            }
+            source.copyPixelsToBuffer(ShortBuffer.wrap(equirectPixels, 0, width * height));
+            BITMAP_POOL.put(source);
+
+            try {
+                for (int i = 0; i < bitmaps.length; i++) {
+                    EquirectToCubemap.convertFace(equirectPixels, width, height, facePixels, faceSize, i,
+                            equirectFilter, CubicMapDecoder.POOL, CubicMapDecoder.WORKER_COUNT);
+                    bitmaps[i] = BITMAP_POOL.getOrCreate(faceSize, faceSize, Bitmap.Config.RGB_565);
+                    bitmaps[i].copyPixelsFromBuffer(ShortBuffer.wrap(facePixels, 0, faceSize * faceSize));
+                }
+            } catch (InterruptedException e) {
+                releaseBitmaps(bitmaps);
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while converting to a cube map", e);
+            }
+        }
+        Log.d(TAG, "Converted " + width + "x" + height + " to a cube map of " + faceSize
+                + " px faces in " + (System.currentTimeMillis() - start) + "ms (" + equirectFilter + ")");
+        return bitmaps;
     }
 
     /**
@@ -17,12 +17,15 @@
 
 package ch.epfl.mmspg.testbed360.image;
 
-import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.os.AsyncTask;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
 import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -32,17 +35,27 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.EmptyStackException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 import java.util.Stack;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import ch.epfl.mmspg.testbed360.R;
 import ch.epfl.mmspg.testbed360.VRScene;
 import ch.epfl.mmspg.testbed360.VRViewActivity;
+import ch.epfl.mmspg.testbed360.tracking.TrackContainer;
 import ch.epfl.mmspg.testbed360.tracking.TrackingTask;
 
 /**
@@ -51,7 +64,8 @@ import ch.epfl.mmspg.testbed360.tracking.TrackingTask;
  * A session of {@link VRImage} is simply built by having a folder with an {@link int} value as name,
  * containing folders {@link #EVALUATION_DIR} and {@link #TRAINING_DIR}.
  * <p>
- * {@link ImagesSession} should only be loaded using {@link LoadTask}.
+ * The available sessions are listed as {@link SessionSummary}s by {@link LoadTask}, an {@link ImagesSession}
+ * and its {@link VRImage}s are only loaded when it is opened, see {@link #open(int, Context)}.
  *
  * @author Louis-Maxence Garret <louis-maxence.garret@epfl.ch>
  * @date 24/11/2017
@@ -65,9 +79,14 @@ public class ImagesSession {
     final static String TRAINING_DIR = "training";
 
     /**
-     * Map that allows us to fetch back a session given its id
+     * Name of the grade files, one per tracking done on the session
      */
-    private final static SparseArray<ImagesSession> SESSIONS_MAP = new SparseArray<>();
+    private final static Pattern TRACK_NAME_PATTERN = Pattern.compile("\\d+g");
+
+    /**
+     * Map that allows us to fetch back the summary of a session given its id
+     */
+    private final static SparseArray<SessionSummary> SESSIONS_MAP = new SparseArray<>();
 
     /**
      * Default data folder of the app, corresponds to Android/data/ch.epfl.mmsp.tesbed360/files. This
@@ -75,37 +94,114 @@ public class ImagesSession {
      */
     private static File DATA_DIR;
 
+    /**
+     * Index of the session folders, so that {@link LoadTask} only scans the ones that changed
+     */
+    private static SessionIndex INDEX;
+
     private int id;
     private Stack<VRImage> evaluationImages = new Stack<>();
     private Stack<VRImage> trainingImages = new Stack<>();
     private File sessionDir;
     private int sessionTrackCount;
 
+    /**
+     * Seed of the evaluation order, logged with the grades so that the order can be reproduced, see
+     * {@link ImageUtils#distinctShuffle(List, long)}
+     */
+    private final long shuffleSeed = new Random().nextLong();
+
+    /**
+     * The participant number whose precomputed order is used, or -1 if the evaluation
+     * {@link VRImage}s were shuffled, see {@link #loadPlaylistOrder(List, int)}
+     */
+    private int playlistParticipant = -1;
+
+    /**
+     * Decodes the next {@link VRImage}s in background while the session is running, see
+     * {@link #startPrefetching(Context)}
+     */
+    private ImagePrefetcher prefetcher;
+
     /**
      * Inits an {@link ImagesSession} instance with the given folder and id.
      *
-     * @param id         the id of the session, usually parsed from its folder name
-     * @param sessionDir folder containing the session images
-     * @param context    {@link Context} used to load files
+     * @param summary the {@link SessionSummary} of the session to load
+     * @param context {@link Context} used to load files
      */
-    private ImagesSession(int id, File sessionDir, Context context) {
-        this.sessionDir = sessionDir;
+    private ImagesSession(@NonNull SessionSummary summary, @NonNull Context context) {
+        this.sessionDir = summary.getSessionDir();
         //We init the training images here
-        this.id = id;
-        List<VRImage> vrImgs = ImageUtils.sortTrainingPictures(ImageUtils.loadVRImages(context, sessionDir, VRScene.MODE_TRAINING));
+        this.id = summary.getId();
+        List<VRImage> vrImgs = ImageUtils.sortTrainingPictures(ImageUtils.loadVRImages(context, sessionDir, VRScene.MODE_TRAINING, INDEX));
         Collections.reverse(vrImgs); // we reverse here as it will be inverted in the stack after
         trainingImages.addAll(vrImgs);
 
-        //And we init the evaluation pictures
-        vrImgs = ImageUtils.distinctShuffle(ImageUtils.loadVRImages(context, sessionDir, VRScene.MODE_EVALUATION));
+        if (!sessionDir.exists()) {
+            throw new IllegalStateException("Session dir does not exist : " + sessionDir);
+        }
+        sessionTrackCount = countTracks(sessionDir, INDEX);
+
+        //And we init the evaluation pictures, in the precomputed order of this participant if any
+        vrImgs = ImageUtils.loadVRImages(context, sessionDir, VRScene.MODE_EVALUATION, INDEX);
+        List<VRImage> ordered = loadPlaylistOrder(vrImgs, sessionTrackCount);
+        if (ordered != null) {
+            playlistParticipant = sessionTrackCount;
+            vrImgs = ordered;
+        } else {
+            vrImgs = ImageUtils.distinctShuffle(vrImgs, shuffleSeed);
+        }
         Collections.reverse(vrImgs); // we reverse here as it will be inverted in the stack after
-       evaluationImages.addAll(vrImgs);
+        evaluationImages.addAll(vrImgs);
 
         vrImgs.clear();
+    }
 
-        sessionTrackCount = computeSessionTrackCount();
-
-        SESSIONS_MAP.put(id, this);
+    /**
+     * Orders the evaluation {@link VRImage}s as precomputed for the given participant by the
+     * {@link PlaylistGenerator}, if the session has a {@link PlaylistGenerator#FILE_NAME} file.
+     *
+     * @param images      the evaluation {@link VRImage}s of the session
+     * @param participant the participant number, i.e. the amount of runs already done on this session
+     * @return the ordered {@link VRImage}s, or null if there is no precomputed order for this
+     * participant or if it does not match the stimuli of the session
+     */
+    @Nullable
+    private List<VRImage> loadPlaylistOrder(@NonNull List<VRImage> images, int participant) {
+        File playlistFile = new File(sessionDir, PlaylistGenerator.FILE_NAME);
+        if (!playlistFile.exists()) {
+            return null;
+        }
+        String[] names;
+        try {
+            names = PlaylistGenerator.readOrder(playlistFile, participant);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + playlistFile, e);
+            return null;
+        }
+        if (names == null) {
+            Log.w(TAG, "No precomputed order for participant " + participant + ", shuffling instead");
+            return null;
+        }
+        HashMap<String, VRImage> byName = new HashMap<>();
+        for (VRImage image : images) {
+            byName.put(image.getFile().getName(), image);
+        }
+        List<VRImage> ordered = new ArrayList<>(names.length);
+        for (String name : names) {
+            VRImage image = byName.remove(name);
+            if (image == null) {
+                Log.w(TAG, "Precomputed order lists a missing stimulus " + name + ", shuffling instead");
+                return null;
+            }
+            ordered.add(image);
+        }
+        if (!byName.isEmpty()) {
+            Log.w(TAG, "Precomputed order misses " + byName.size() + " stimuli, shuffling instead");
+            return null;
+        }
+        Log.i(TAG, "Using the precomputed order of participant " + participant);
+        return ordered;
     }
 
     /**
@@ -126,6 +222,80 @@ public class ImagesSession {
         return evaluationImages.pop();
     }
 
+    /**
+     * Starts decoding in background the next {@link VRImage}s of this session, so that they are
+     * ready when {@link #loadBitmaps(VRImage, Context)} is called.
+     *
+     * @param context {@link Context} used to decode the {@link VRImage}s
+     */
+    public void startPrefetching(@NonNull Context context) {
+        if (prefetcher == null) {
+            prefetcher = new ImagePrefetcher(context);
+        }
+        prefetcher.prefetch(getUpcomingImages(prefetcher.getDepth()));
+    }
+
+    /**
+     * Stops the prefetching started by {@link #startPrefetching(Context)} and logs its statistics.
+     */
+    public void stopPrefetching() {
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+            prefetcher = null;
+        }
+    }
+
+    /**
+     * Gets the {@link Bitmap}s of a {@link VRImage} of this session, from the {@link #prefetcher} if
+     * it is running, and schedules the prefetching of the following {@link VRImage}s.
+     *
+     * @param image   the {@link VRImage} about to be displayed
+     * @param context {@link Context} used to decode the {@link VRImage}
+     * @return the {@link Bitmap}s of the {@link VRImage}, see {@link VRImage#getBitmap(Context)}
+     * @throws IOException if the {@link VRImage} could not be decoded
+     */
+    @Nullable
+    public Bitmap[] loadBitmaps(@NonNull VRImage image, @NonNull Context context) throws IOException {
+        ImagePrefetcher prefetcher = this.prefetcher;
+        if (prefetcher == null) {
+            return image.getBitmap(context);
+        }
+        Bitmap[] bitmaps = prefetcher.take(image);
+        prefetcher.prefetch(getUpcomingImages(prefetcher.getDepth()));
+        return bitmaps;
+    }
+
+    /**
+     * @return the {@link ImagePrefetcher} of this session, or null if it is not running
+     */
+    @Nullable
+    public ImagePrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Lists the next {@link VRImage}s that are going to be displayed, in order : remaining training
+     * {@link VRImage}s first, then the evaluation ones.
+     *
+     * @param count the maximum amount of {@link VRImage}s to return
+     * @return a {@link List} of at most {@param count} {@link VRImage}s
+     */
+    @NonNull
+    private List<VRImage> getUpcomingImages(int count) {
+        List<VRImage> upcoming = new ArrayList<>(count);
+        synchronized (trainingImages) {
+            for (int i = trainingImages.size() - 1; i >= 0 && upcoming.size() < count; i--) {
+                upcoming.add(trainingImages.get(i));
+            }
+        }
+        synchronized (evaluationImages) {
+            for (int i = evaluationImages.size() - 1; i >= 0 && upcoming.size() < count; i--) {
+                upcoming.add(evaluationImages.get(i));
+            }
+        }
+        return upcoming;
+    }
+
     /**
      * First attempts to init {@link #DATA_DIR} if it is empty, and then returns a {@link LoadTask}
      * that is used to detect {@link ImagesSession} ready to be used !
@@ -143,6 +313,7 @@ public class ImagesSession {
             if (!DATA_DIR.exists() && !DATA_DIR.mkdirs()) {
                 throw new IllegalStateException("Could not create data dir folder : " + DATA_DIR);
             }
+            INDEX = new SessionIndex(new File(DATA_DIR, SessionIndex.FILE_NAME));
         }
         return new LoadTask();
     }
@@ -156,35 +327,177 @@ public class ImagesSession {
 
     /**
      * @param sessionId the id of the session we're interested in
-     * @return the {@link ImagesSession} with {@link #id} {@param sessionId}, stored in the {@link #SESSIONS_MAP}.
+     * @return the {@link SessionSummary} with id {@param sessionId}, stored in the {@link #SESSIONS_MAP}.
      * Returns null if there is no session associated to this id.
      */
     @Nullable
-    public static ImagesSession getFromId(int sessionId) {
+    public static SessionSummary getSummary(int sessionId) {
         return SESSIONS_MAP.get(sessionId);
     }
 
+    /**
+     * Fully loads a session listed by {@link LoadTask} : its {@link VRImage}s are parsed, the training
+     * ones sorted and the evaluation ones shuffled. This is also where the stimuli folders are created
+     * and made visible over USB MTP, see {@link ImageUtils#loadVRImages(Context, File, int, SessionIndex)}.
+     * As this blocks on the disk, the activities use {@link #openAsync(int, Context, OpenListener)},
+     * which runs it on the {@link LoadTask#SCAN_POOL}.
+     *
+     * @param sessionId the id of the session to open
+     * @param context   {@link Context} used to load files
+     * @return the loaded {@link ImagesSession}, or null if there is no session associated to this id.
+     */
+    @Nullable
+    public static ImagesSession open(int sessionId, @NonNull Context context) {
+        SessionSummary summary = SESSIONS_MAP.get(sessionId);
+        if (summary == null) {
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        ImagesSession session = new ImagesSession(summary, context);
+        Log.d(TAG, "Opened session " + sessionId + " in " + (System.currentTimeMillis() - start) + "ms");
+        return session;
+    }
+
+    /**
+     * Receives the session opened by {@link #openAsync(int, Context, OpenListener)}, on the main thread.
+     */
+    public interface OpenListener {
+        /**
+         * @param session the loaded {@link ImagesSession}, or null if there is no session associated
+         *                to the requested id or if it could not be loaded
+         */
+        void onSessionOpened(@Nullable ImagesSession session);
+    }
+
+    /**
+     * Same as {@link #open(int, Context)}, but the session is loaded on the {@link LoadTask#SCAN_POOL}
+     * and given to {@code listener} on the main thread. Must be called from the main thread, as the
+     * summary is looked up in the {@link #SESSIONS_MAP} before loading. A session folder that cannot
+     * be loaded is logged and given as null.
+     *
+     * @param sessionId the id of the session to open
+     * @param context   {@link Context} used to load files
+     * @param listener  the {@link OpenListener} to notify
+     */
+    public static void openAsync(final int sessionId, @NonNull Context context, @NonNull final OpenListener listener) {
+        final SessionSummary summary = SESSIONS_MAP.get(sessionId);
+        if (summary == null) {
+            LoadTask.MAIN_HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onSessionOpened(null);
+                }
+            });
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        LoadTask.SCAN_POOL.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                ImagesSession session = null;
+                try {
+                    session = new ImagesSession(summary, appContext);
+                    Log.d(TAG, "Opened session " + sessionId + " in background in " + (System.currentTimeMillis() - start) + "ms");
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Could not open session " + sessionId, e);
+                }
+                final ImagesSession opened = session;
+                LoadTask.MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onSessionOpened(opened);
+                    }
+                });
+            }
+        });
+    }
+
     public File getSessionDir() {
         return sessionDir;
     }
 
-    private int computeSessionTrackCount() {
-        if (sessionDir == null || !sessionDir.exists()) {
-            throw new IllegalStateException("Session dir does not exist : " + sessionDir);
+    /**
+     * @param sessionDir the folder of a session
+     * @param index      the {@link SessionIndex} to look up and update, or null to scan the folder
+     * @return the count of already done tracking in {@param sessionDir}, read from the header of its
+     * {@link TrackContainer} if any, otherwise by counting the grade files
+     */
+    static int countTracks(@NonNull File sessionDir, @Nullable SessionIndex index) {
+        File trackDir = new File(sessionDir, TrackingTask.TRACKING_DIR);
+        int count = TrackContainer.readRunCount(new File(trackDir, TrackContainer.FILE_NAME));
+        if (count >= 0) {
+            return count;
         }
-        File[] trackFiles = new File(sessionDir, TrackingTask.TRACKING_DIR).listFiles();
-        if (trackFiles == null || trackFiles.length == 0) {
-            return 0;
+        count = index != null ? index.getTrackCount(trackDir) : -1;
+        if (count >= 0) {
+            return count;
         }
-        int count = 0;
-        for (File f : trackFiles) {
-            if (f.getName().matches("\\d+g")) {
-                count++;
+        long modified = trackDir.lastModified();
+        File[] trackFiles = trackDir.listFiles();
+        count = 0;
+        if (trackFiles != null) {
+            for (File f : trackFiles) {
+                if (isTrackName(f.getName())) {
+                    count++;
+                }
             }
         }
+        if (index != null && trackFiles != null) {
+            index.putTrackCount(trackDir, modified, count);
+        }
         return count;
     }
 
+    /**
+     * @return the id of the session in the given folder, or -1 if its name is not an int
+     */
+    static int parseId(@NonNull File dir) {
+        try {
+            return Integer.parseInt(dir.getName());
+        } catch (NumberFormatException e) {
+            //this folder is not named as wanted !
+            return -1;
+        }
+    }
+
+    /**
+     * @param name a file name
+     * @return true if {@param name} is the name of a grade file written by {@link TrackingTask}
+     */
+    public static boolean isTrackName(@NonNull String name) {
+        return TRACK_NAME_PATTERN.matcher(name).matches();
+    }
+
+    /**
+     * @return the data folder, see {@link #getLoadingTask(Context)}
+     */
+    static File getDataDir() {
+        return DATA_DIR;
+    }
+
+    /**
+     * @return the index of the session folders, see {@link #getLoadingTask(Context)}
+     */
+    static SessionIndex getIndex() {
+        return INDEX;
+    }
+
+    /**
+     * Stores or replaces a {@link SessionSummary} in the {@link #SESSIONS_MAP}. Must be called from
+     * the main thread.
+     */
+    static void putSummary(@NonNull SessionSummary summary) {
+        SESSIONS_MAP.put(summary.getId(), summary);
+    }
+
+    /**
+     * Removes a {@link SessionSummary} from the {@link #SESSIONS_MAP}. Must be called from the main thread.
+     */
+    static void removeSummary(int sessionId) {
+        SESSIONS_MAP.remove(sessionId);
+    }
+
     /**
      * @return Gets the count of already done tracking on this {@link ImagesSession}
      */
@@ -193,58 +506,205 @@ public class ImagesSession {
     }
 
     /**
-     * This class is to be used to seek existing {@link ImagesSession} on the device, all in a
-     * background task.
+     * @return the participant number whose precomputed order is used, or -1 if the evaluation
+     * {@link VRImage}s were shuffled with {@link #getShuffleSeed()}
      */
-    public static class LoadTask extends AsyncTask<Activity, Void, List<ImagesSession>> {
+    public int getPlaylistParticipant() {
+        return playlistParticipant;
+    }
 
-        @Override
-        protected List<ImagesSession> doInBackground(@NonNull Activity... activities) {
-            if (activities[0] == null) {
-                throw new IllegalArgumentException("Context was null");
+    /**
+     * @return the seed the evaluation {@link VRImage}s were shuffled with
+     */
+    public long getShuffleSeed() {
+        return shuffleSeed;
+    }
+
+    /**
+     * This class is to be used to seek existing {@link ImagesSession} on the device, all in background.
+     * Each session folder is read by its own worker of {@link #SCAN_POOL}, and every {@link SessionSummary}
+     * is handed to the {@link Listener} on the main thread as soon as it is ready, so that the list is
+     * filled progressively instead of waiting for the slowest folder.
+     */
+    public static class LoadTask {
+        private final static int WORKER_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        final static ExecutorService SCAN_POOL = Executors.newFixedThreadPool(WORKER_COUNT, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, TAG + "-scan-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
             }
+        });
+
+        private final static Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+        /**
+         * Receives the result of a {@link LoadTask}, always on the main thread.
+         */
+        public interface Listener {
+            /**
+             * Called once per session found, in no particular order
+             */
+            void onSessionLoaded(@NonNull SessionSummary session);
+
+            /**
+             * Called once all session folders were parsed
+             *
+             * @param loadedCount the amount of sessions loaded
+             * @param failedCount the amount of session folders that could not be loaded
+             */
+            void onLoadFinished(int loadedCount, int failedCount);
+        }
+
+        /**
+         * The grade journals are only repaired by the first {@link LoadTask} of the process, before
+         * any of them is opened, see {@link TrackingTask#recoverJournals(File)}
+         */
+        private final static AtomicBoolean JOURNALS_RECOVERED = new AtomicBoolean(false);
+
+        private final List<Future<?>> futures = new ArrayList<>();
+        private volatile boolean cancelled = false;
+
+        private LoadTask() {
+            //use getLoadingTask(Context)
+        }
+
+        /**
+         * Starts seeking the sessions. Must be called from the main thread, once. Nothing is written
+         * to the session folders, see {@link SessionSummary#read(int, File, SessionIndex)}, except the
+         * first time to repair the grade journals left by a crash.
+         *
+         * @param listener the {@link Listener} to notify on the main thread
+         */
+        public void start(@NonNull final Listener listener) {
+            final long start = System.currentTimeMillis();
+            final boolean recoverJournals = !JOURNALS_RECOVERED.getAndSet(true);
             SESSIONS_MAP.clear();
-            File[] files = DATA_DIR.listFiles();
-            List<ImagesSession> sessions = new ArrayList<>();
-            if (files == null || files.length == 0) {
-                return sessions;
-            }
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    INDEX.beginScan();
+                    File[] files = DATA_DIR.listFiles();
+                    final List<File> sessionDirs = new ArrayList<>();
+                    if (files != null) {
+                        for (File f : files) {
+                            if (f.isDirectory() && parseId(f) >= 0) {
+                                sessionDirs.add(f);
+                            }
+                        }
+                    }
+                    if (sessionDirs.isEmpty()) {
+                        finish(listener, start, 0, 0);
+                        return;
+                    }
 
-            for (File f : files) {
-                if (f.isDirectory()) {
-                    try {
-                        int id = Integer.parseInt(f.getName());
-                        sessions.add(new ImagesSession(id, f, activities[0]));
-                    } catch (NumberFormatException ignored) {
-                        //this folder is not named as wanted !
+                    final AtomicInteger remaining = new AtomicInteger(sessionDirs.size());
+                    final AtomicInteger loaded = new AtomicInteger();
+                    final AtomicInteger failed = new AtomicInteger();
+                    for (final File dir : sessionDirs) {
+                        submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    if (cancelled) {
+                                        return;
+                                    }
+                                    if (recoverJournals) {
+                                        TrackingTask.recoverJournals(dir);
+                                    }
+                                    final SessionSummary session = SessionSummary.read(parseId(dir), dir, INDEX);
+                                    if (loaded.getAndIncrement() == 0) {
+                                        Log.d(TAG, "First session ready in " + (System.currentTimeMillis() - start) + "ms");
+                                    }
+                                    MAIN_HANDLER.post(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            if (!cancelled) {
+                                                putSummary(session);
+                                                listener.onSessionLoaded(session);
+                                            }
+                                        }
+                                    });
+                                } catch (RuntimeException e) {
+                                    Log.e(TAG, "Could not load session " + dir, e);
+                                    failed.incrementAndGet();
+                                } finally {
+                                    if (remaining.decrementAndGet() == 0) {
+                                        finish(listener, start, loaded.get(), failed.get());
+                                    }
+                                }
+                            }
+                        });
                     }
                 }
+            });
+        }
+
+        /**
+         * Stops seeking the sessions : folders not parsed yet are skipped, and the {@link Listener}
+         * is not called anymore. Must be called from the main thread.
+         */
+        public void cancel() {
+            cancelled = true;
+            synchronized (futures) {
+                for (Future<?> future : futures) {
+                    future.cancel(false);
+                }
+                futures.clear();
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void submit(@NonNull Runnable runnable) {
+            synchronized (futures) {
+                if (!cancelled) {
+                    futures.add(SCAN_POOL.submit(runnable));
+                }
+            }
+        }
+
+        private void finish(@NonNull final Listener listener, long start, final int loadedCount, final int failedCount) {
+            if (cancelled) {
+                return;
             }
-            Collections.sort(sessions, new Comparator<ImagesSession>() {
+            INDEX.endScan();
+            Log.i(TAG, "Scanned " + loadedCount + " sessions in " + (System.currentTimeMillis() - start)
+                    + "ms (" + (INDEX.getHitCount() == 0 ? "cold" : "warm") + ", " + INDEX.getHitCount()
+                    + " indexed dirs, " + INDEX.getMissCount() + " rescanned)");
+            MAIN_HANDLER.post(new Runnable() {
                 @Override
-                public int compare(ImagesSession o1, ImagesSession o2) {
-                    if(o1 == null && o2!=null){
-                        return 1;
-                    }else if(o1 != null && o2==null){
-                        return -1;
-                    }else if (o1 == null){
-                        return 0;
+                public void run() {
+                    if (!cancelled) {
+                        listener.onLoadFinished(loadedCount, failedCount);
                     }
-                    return Integer.compare(o1.getId(),o2.getId());
                 }
             });
-            return sessions;
         }
+
     }
 
     /**
-     * Class used to represent an {@link ImagesSession} in the {@link ch.epfl.mmspg.testbed360.StartActivity}.
+     * Class used to represent the {@link SessionSummary} of an {@link ImagesSession} in the {@link ch.epfl.mmspg.testbed360.StartActivity}.
      */
-    public static class Adapter extends ArrayAdapter<ImagesSession> {
-        private final List<ImagesSession> sessions;
+    public static class Adapter extends ArrayAdapter<SessionSummary> {
+        private final static Comparator<SessionSummary> ID_COMPARATOR = new Comparator<SessionSummary>() {
+            @Override
+            public int compare(SessionSummary o1, SessionSummary o2) {
+                return Integer.compare(o1.getId(), o2.getId());
+            }
+        };
+
+        private final List<SessionSummary> sessions;
         private final LayoutInflater layoutInflater;
 
-        public Adapter(@NonNull Context context, int resource, @NonNull List<ImagesSession> objects) {
+        public Adapter(@NonNull Context context, int resource, @NonNull List<SessionSummary> objects) {
             super(context, resource, objects);
             sessions = objects;
             layoutInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
@@ -260,22 +720,34 @@ public class ImagesSession {
                 viewHolder = new ViewHolder();
                 viewHolder.titleView = (TextView) convertView.findViewById(R.id.session_item_title);
                 viewHolder.descriptionView = (TextView) convertView.findViewById(R.id.session_item_description);
+                viewHolder.warningView = (TextView) convertView.findViewById(R.id.session_item_warning);
                 viewHolder.layout = (LinearLayout) convertView.findViewById(R.id.session_item_layout);
                 convertView.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) convertView.getTag();
             }
 
-            final ImagesSession session = getItem(position);
+            final SessionSummary session = getItem(position);
             if (session != null) {
                 viewHolder.titleView.setText(
                         getContext().getString(R.string.session_number,session.getId())
                 );
                 viewHolder.descriptionView.setText(getContext().getResources().getQuantityString(
                         R.plurals.sessions_count,
-                        session.getSessionTrackCount(),//as quantity
-                        session.getSessionTrackCount()//as %1$d placeholder for the string
+                        session.getTrackCount(),//as quantity
+                        session.getTrackCount()//as %1$d placeholder for the string
                 ));
+                if (session.getInvalidCount() > 0) {
+                    viewHolder.warningView.setText(getContext().getResources().getQuantityString(
+                            R.plurals.invalid_stimuli_count,
+                            session.getInvalidCount(),
+                            session.getInvalidCount(),
+                            describeProblems(session.getProblems())
+                    ));
+                    viewHolder.warningView.setVisibility(View.VISIBLE);
+                } else {
+                    viewHolder.warningView.setVisibility(View.GONE);
+                }
                 viewHolder.layout.setOnClickListener(new View.OnClickListener() {
                     @Override
                     public void onClick(View v) {
@@ -289,13 +761,66 @@ public class ImagesSession {
             return convertView;
         }
 
+        /**
+         * @param problems PROBLEM_ flags of {@link StimulusValidator}
+         * @return the problems, as a comma separated list
+         */
+        @NonNull
+        private String describeProblems(int problems) {
+            List<String> descriptions = new ArrayList<>();
+            if ((problems & StimulusValidator.PROBLEM_UNREADABLE) != 0) {
+                descriptions.add(getContext().getString(R.string.problem_unreadable));
+            }
+            if ((problems & StimulusValidator.PROBLEM_SIZE_MISMATCH) != 0) {
+                descriptions.add(getContext().getString(R.string.problem_size_mismatch));
+            }
+            if ((problems & StimulusValidator.PROBLEM_ASPECT_RATIO) != 0) {
+                descriptions.add(getContext().getString(R.string.problem_aspect_ratio));
+            }
+            if ((problems & StimulusValidator.PROBLEM_TOO_LARGE) != 0) {
+                descriptions.add(getContext().getString(R.string.problem_too_large));
+            }
+            return TextUtils.join(", ", descriptions);
+        }
+
+        /**
+         * Inserts the given {@link SessionSummary} keeping the list sorted by id, replacing the one
+         * with the same id if any.
+         *
+         * @param session the {@link SessionSummary} to display
+         */
+        public void addSorted(@NonNull SessionSummary session) {
+            int index = Collections.binarySearch(sessions, session, ID_COMPARATOR);
+            if (index >= 0) {
+                sessions.set(index, session);
+            } else {
+                sessions.add(-index - 1, session);
+            }
+            notifyDataSetChanged();
+        }
+
+        /**
+         * Removes the {@link SessionSummary} with the given id, if any
+         *
+         * @param sessionId the id of the session not to display anymore
+         */
+        public void remove(int sessionId) {
+            for (int i = 0; i < sessions.size(); i++) {
+                if (sessions.get(i).getId() == sessionId) {
+                    sessions.remove(i);
+                    notifyDataSetChanged();
+                    return;
+                }
+            }
+        }
+
         @Override
         public int getCount() {
             return sessions.size();
         }
 
         @Override
-        public ImagesSession getItem(int position) {
+        public SessionSummary getItem(int position) {
             return sessions.get(position);
         }
 
@@ -305,6 +830,7 @@ public class ImagesSession {
         static class ViewHolder {
             private TextView titleView;
             private TextView descriptionView;
+            private TextView warningView;
             private LinearLayout layout;
         }
     }
@@ -0,0 +1,296 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Precomputes the evaluation order of every participant of a session, so that the position of the
+ * stimuli is counterbalanced instead of drawn at random for each run.
+ * <p>
+ * A base order is drawn such that no two consecutive stimuli have the same slug, including the last
+ * and the first one, and that consecutive stimuli of a slug differ in codec/quality whenever possible.
+ * Participant p gets the base order rotated by p, reversed every other base : over n consecutive
+ * participants (n being the amount of stimuli), each stimulus is shown exactly once at each position,
+ * as in the rows of a Latin square, and rotations never bring two equal slugs together. A new base
+ * order is drawn every n participants. Bases are drawn in parallel, each from its own seed, so the
+ * result only depends on the seed.
+ * <p>
+ * Orders are stored in {@link #FILE_NAME} in the session folder, see {@link #readOrder(File, int)}.
+ * This class only depends on the JDK, the file is generated on a desktop by the PlaylistGeneratorTool
+ * of the tools module.
+ */
+
+public final class PlaylistGenerator {
+    public final static String FILE_NAME = "playlists.bin";
+
+    private final static int MAGIC = 0x54333650; //"T36P"
+    private final static int VERSION = 1;
+
+    private PlaylistGenerator() {
+        //do nothing, this class only provides static methods
+    }
+
+    /**
+     * Draws a base order, see {@link PlaylistGenerator}
+     *
+     * @param slugs      for each stimulus, the index of its slug
+     * @param slugCount  the amount of slugs
+     * @param groups     for each stimulus, the index of its codec/quality group
+     * @param random     source of randomness
+     * @return the indices of the stimuli, in their base order
+     */
+    static int[] base(int[] slugs, int slugCount, int[] groups, Random random) {
+        int n = slugs.length;
+        //the slug of each position, then the stimulus of each position
+        int[] order = SlugShuffler.order(slugs, slugCount, random);
+        int[] slugOrder = new int[n];
+        for (int i = 0; i < n; i++) {
+            slugOrder[i] = slugs[order[i]];
+        }
+
+        //stimuli sorted by slug and group, shuffled within each (slug, group) run
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = ((long) slugs[i] << 42) | ((long) groups[i] << 21) | i;
+        }
+        Arrays.sort(keys);
+        int[] stimuli = new int[n];
+        for (int i = 0; i < n; i++) {
+            stimuli[i] = (int) (keys[i] & 0x1FFFFF);
+        }
+        List<int[]> runs = new ArrayList<>(); //{next, end}, sorted by slug
+        for (int i = 0; i < n; ) {
+            int j = i;
+            while (j < n && keys[j] >>> 21 == keys[i] >>> 21) {
+                j++;
+            }
+            for (int k = j - 1; k > i; k--) {
+                int r = i + random.nextInt(k - i + 1);
+                int tmp = stimuli[k];
+                stimuli[k] = stimuli[r];
+                stimuli[r] = tmp;
+            }
+            runs.add(new int[]{i, j});
+            i = j;
+        }
+        //runs of slug s are runs[firstRun[s]] to runs[firstRun[s + 1] - 1]
+        int[] firstRun = new int[slugCount + 1];
+        for (int[] run : runs) {
+            firstRun[slugs[stimuli[run[0]]] + 1]++;
+        }
+        for (int slug = 0; slug < slugCount; slug++) {
+            firstRun[slug + 1] += firstRun[slug];
+        }
+
+        //each position takes the stimulus of its slug from the largest group differing from the previous one
+        int previousGroup = -1;
+        for (int i = 0; i < n; i++) {
+            int best = -1;
+            boolean bestDiffers = false;
+            for (int r = firstRun[slugOrder[i]]; r < firstRun[slugOrder[i] + 1]; r++) {
+                int[] run = runs.get(r);
+                int remaining = run[1] - run[0];
+                if (remaining == 0) {
+                    continue;
+                }
+                boolean differs = groups[stimuli[run[0]]] != previousGroup;
+                if (best < 0 || (differs && !bestDiffers)
+                        || (differs == bestDiffers && remaining > runs.get(best)[1] - runs.get(best)[0])) {
+                    best = r;
+                    bestDiffers = differs;
+                }
+            }
+            order[i] = stimuli[runs.get(best)[0]++];
+            previousGroup = groups[order[i]];
+        }
+
+        //the order is rotated : its last and first stimuli must not have the same slug either
+        if (n > 2 && slugs[order[0]] == slugs[order[n - 1]]) {
+            int slug = slugs[order[0]];
+            for (int j = 1; j < n - 1; j++) {
+                if (slugs[order[j - 1]] != slug && slugs[order[j]] != slug) {
+                    int last = order[n - 1];
+                    System.arraycopy(order, j, order, j + 1, n - 1 - j);
+                    order[j] = last;
+                    break;
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * @param bases       base orders, see {@link #base(int[], int, int[], Random)}
+     * @param participant the participant number, from 0
+     * @return the order of the given participant
+     */
+    static int[] participantOrder(int[][] bases, int participant) {
+        int n = bases[0].length;
+        int b = (participant / n) % bases.length;
+        int rotation = participant % n;
+        int[] base = bases[b];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            int position = (i + rotation) % n;
+            order[i] = base[b % 2 == 0 ? position : n - 1 - position];
+        }
+        return order;
+    }
+
+    /**
+     * Draws the bases needed for the given amount of participants, in parallel
+     *
+     * @return the base orders, base b being drawn from seed + b
+     */
+    static int[][] bases(final int[] slugs, final int slugCount, final int[] groups, int participants,
+                         final long seed, ExecutorService executor) throws InterruptedException {
+        int n = slugs.length;
+        int baseCount = Math.max(1, (participants + n - 1) / n);
+        List<Future<int[]>> futures = new ArrayList<>(baseCount);
+        for (int b = 0; b < baseCount; b++) {
+            final long baseSeed = seed + b;
+            futures.add(executor.submit(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    return base(slugs, slugCount, groups, new Random(baseSeed));
+                }
+            }));
+        }
+        int[][] bases = new int[baseCount][];
+        try {
+            for (int b = 0; b < baseCount; b++) {
+                bases[b] = futures.get(b).get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        return bases;
+    }
+
+    /**
+     * Generates and writes the orders of the given stimuli
+     *
+     * @param names        file names of the stimuli, see {@link StimulusNames}
+     * @param participants the amount of participants
+     * @param seed         the seed of the orders
+     * @param target       the file to write, see {@link #FILE_NAME}
+     * @param executor     executor drawing the bases
+     */
+    static void generate(String[] names, int participants, long seed, File target,
+                         ExecutorService executor) throws IOException, InterruptedException {
+        int n = names.length;
+        if (n == 0) {
+            throw new IllegalArgumentException("No stimuli to order");
+        }
+        int[] slugs = new int[n];
+        int[] groups = new int[n];
+        HashMap<String, Integer> slugIndices = new HashMap<>();
+        HashMap<String, Integer> groupIndices = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            slugs[i] = indexOf(slugIndices, StimulusNames.slugOf(names[i]));
+            groups[i] = indexOf(groupIndices, StimulusNames.qualityGroupOf(names[i]));
+        }
+        int[][] bases = bases(slugs, slugIndices.size(), groups, participants, seed, executor);
+
+        File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(seed);
+            out.writeInt(participants);
+            out.writeInt(n);
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+            for (int p = 0; p < participants; p++) {
+                for (int stimulus : participantOrder(bases, p)) {
+                    out.writeInt(stimulus);
+                }
+            }
+        }
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + target);
+        }
+    }
+
+    private static int indexOf(HashMap<String, Integer> indices, String key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Not a stimulus name");
+        }
+        Integer index = indices.get(key);
+        if (index == null) {
+            index = indices.size();
+            indices.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Reads the order of one participant, without reading the others
+     *
+     * @param file        a file written by {@link #generate(String[], int, long, File, ExecutorService)}
+     * @param participant the participant number, from 0
+     * @return the file names of the stimuli in the order of {@param participant}, or null if the file
+     * does not have as many participants
+     * @throws IOException if the file could not be read or is not a playlist file
+     */
+    public static String[] readOrder(File file, int participant) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a playlist file : " + file);
+            }
+            in.readLong(); //seed
+            int participants = in.readInt();
+            int n = in.readInt();
+            if (participant < 0 || participant >= participants) {
+                return null;
+            }
+            String[] names = new String[n];
+            for (int i = 0; i < n; i++) {
+                names[i] = in.readUTF();
+            }
+            in.seek(in.getFilePointer() + 4L * n * participant);
+            byte[] bytes = new byte[4 * n];
+            in.readFully(bytes);
+            IntBuffer indices = ByteBuffer.wrap(bytes).asIntBuffer();
+            String[] order = new String[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = names[indices.get(i)];
+            }
+            return order;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Persistent index of what {@link ImagesSession.LoadTask} finds in the session folders : the parsed
+ * {@link VRImage} metadata of each stimuli folder, along with the {@link StimulusHeader} of each file,
+ * and the amount of tracks of each tracking folder.
+ * An entry is only used while the last modification time of its folder did not change, as adding,
+ * removing or renaming a file in a folder updates it. Hence a rescan only lists and parses the
+ * folders that changed since the last one.
+ * <p>
+ * The index is stored in {@link #FILE_NAME} in the data folder, which does not have an int name and
+ * is thus never taken for a session.
+ */
+
+public final class SessionIndex {
+    private final static String TAG = "SessionIndex";
+
+    final static String FILE_NAME = ".session_index";
+
+    private final static int MAGIC = 0x54333649; //"T36I"
+    private final static int VERSION = 2;
+
+    /**
+     * Some file systems (e.g. FAT on SD cards) store modification times with a 2 seconds resolution :
+     * a folder modified in the same interval as our scan could keep the same time afterwards. Such
+     * folders are not indexed, they will be scanned again next time.
+     */
+    private final static long MODIFIED_RESOLUTION_MS = 2000;
+
+    private final static int NO_TRACK_COUNT = -1;
+
+    private final File file;
+
+    /**
+     * Entries by absolute path of their folder
+     */
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Paths looked up since {@link #beginScan()}, the other ones are removed by {@link #endScan()}
+     */
+    private final HashSet<String> visited = new HashSet<>();
+
+    private boolean loaded = false;
+    private boolean dirty = false;
+    private int hitCount = 0;
+    private int missCount = 0;
+
+    /**
+     * @param file where the index is stored, see {@link #FILE_NAME}
+     */
+    public SessionIndex(@NonNull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the index from {@link #file} the first time it is called, and resets the statistics.
+     * An unreadable or outdated index is simply ignored, all folders will then be scanned.
+     */
+    public synchronized void beginScan() {
+        hitCount = 0;
+        missCount = 0;
+        visited.clear();
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.d(TAG, "Ignoring index with unknown format : " + file);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                entries.put(path, Entry.read(in));
+            }
+            Log.d(TAG, "Loaded " + count + " entries from " + file);
+        } catch (IOException | IllegalArgumentException | NoSuchElementException e) {
+            Log.e(TAG, "Could not read index " + file, e);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Removes the entries of the folders that were not looked up since {@link #beginScan()}, i.e.
+     * that do not exist anymore, and saves the index if it changed.
+     */
+    public synchronized void endScan() {
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (!visited.contains(it.next())) {
+                it.remove();
+                dirty = true;
+            }
+        }
+        if (dirty) {
+            save();
+        }
+    }
+
+    /**
+     * Writes the index in a temporary file, then renames it so that a reader never sees it partially
+     * written.
+     */
+    private void save() {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (HashMap.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write index " + tmp, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Could not rename " + tmp + " to " + file);
+            tmp.delete();
+            return;
+        }
+        dirty = false;
+    }
+
+    /**
+     * @param imgDir a stimuli folder
+     * @return new {@link VRImage}s built from the indexed metadata of {@param imgDir}, or null if it was
+     * not indexed or was modified since
+     */
+    @Nullable
+    public synchronized List<VRImage> getImages(@NonNull File imgDir) {
+        Entry entry = lookup(imgDir);
+        if (entry == null || entry.images == null) {
+            return null;
+        }
+        List<VRImage> images = new ArrayList<>(entry.images.length);
+        for (Record record : entry.images) {
+            images.add(record.toVRImage(imgDir));
+        }
+        return images;
+    }
+
+    /**
+     * Unlike {@link #getImages(File)}, returns the indexed headers even if the folder was modified
+     * since : each of them can still be reused if its own file did not change, see
+     * {@link StimulusHeader#isUpToDate(File)}.
+     *
+     * @param imgDir a stimuli folder
+     * @return the indexed {@link StimulusHeader}s of {@param imgDir} by file name, or null if it was
+     * never indexed
+     */
+    @Nullable
+    public synchronized Map<String, StimulusHeader> getHeaders(@NonNull File imgDir) {
+        Entry entry = entries.get(imgDir.getAbsolutePath());
+        if (entry == null || entry.images == null) {
+            return null;
+        }
+        HashMap<String, StimulusHeader> headers = new HashMap<>();
+        for (Record record : entry.images) {
+            if (record.header != null) {
+                headers.put(record.name, record.header);
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Indexes the {@link VRImage}s found in a stimuli folder.
+     *
+     * @param imgDir   the stimuli folder
+     * @param modified the last modification time of {@param imgDir}, read before listing it
+     * @param images   the {@link VRImage}s parsed from {@param imgDir}
+     */
+    public synchronized void putImages(@NonNull File imgDir, long modified, @NonNull List<VRImage> images) {
+        Record[] records = new Record[images.size()];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = new Record(images.get(i));
+        }
+        put(imgDir, new Entry(modified, records, NO_TRACK_COUNT));
+    }
+
+    /**
+     * @param trackDir a tracking folder
+     * @return the indexed amount of tracks of {@param trackDir}, or -1 if it was not indexed or was
+     * modified since
+     */
+    public synchronized int getTrackCount(@NonNull File trackDir) {
+        Entry entry = lookup(trackDir);
+        return entry == null ? NO_TRACK_COUNT : entry.trackCount;
+    }
+
+    /**
+     * Indexes the amount of tracks of a tracking folder.
+     *
+     * @param trackDir the tracking folder
+     * @param modified the last modification time of {@param trackDir}, read before listing it
+     * @param count    the amount of tracks found in {@param trackDir}
+     */
+    public synchronized void putTrackCount(@NonNull File trackDir, long modified, int count) {
+        put(trackDir, new Entry(modified, null, count));
+    }
+
+    @Nullable
+    private Entry lookup(@NonNull File dir) {
+        String path = dir.getAbsolutePath();
+        visited.add(path);
+        Entry entry = entries.get(path);
+        if (entry != null && entry.modified == dir.lastModified()) {
+            hitCount++;
+            return entry;
+        }
+        missCount++;
+        return null;
+    }
+
+    private void put(@NonNull File dir, @NonNull Entry entry) {
+        String path = dir.getAbsolutePath();
+        visited.add(path);
+        if (entry.modified == 0 || System.currentTimeMillis() - entry.modified < MODIFIED_RESOLUTION_MS) {
+            //too recent to be trusted, see MODIFIED_RESOLUTION_MS
+            if (entries.remove(path) != null) {
+                dirty = true;
+            }
+            return;
+        }
+        entries.put(path, entry);
+        dirty = true;
+    }
+
+    /**
+     * @return the amount of folders found up to date in the index since {@link #beginScan()}
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the amount of folders that had to be scanned since {@link #beginScan()}
+     */
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Indexed content of a folder : either the {@link Record}s of a stimuli folder, or the track
+     * count of a tracking folder.
+     */
+    private static class Entry {
+        private final long modified;
+        private final Record[] images;
+        private final int trackCount;
+
+        Entry(long modified, @Nullable Record[] images, int trackCount) {
+            this.modified = modified;
+            this.images = images;
+            this.trackCount = trackCount;
+        }
+
+        void write(@NonNull DataOutputStream out) throws IOException {
+            out.writeLong(modified);
+            out.writeInt(trackCount);
+            out.writeInt(images == null ? -1 : images.length);
+            if (images != null) {
+                for (Record record : images) {
+                    record.write(out);
+                }
+            }
+        }
+
+        @NonNull
+        static Entry read(@NonNull DataInputStream in) throws IOException {
+            long modified = in.readLong();
+            int trackCount = in.readInt();
+            int imageCount = in.readInt();
+            Record[] images = null;
+            if (imageCount >= 0) {
+                images = new Record[imageCount];
+                for (int i = 0; i < imageCount; i++) {
+                    images[i] = Record.read(in);
+                }
+            }
+            return new Entry(modified, images, trackCount);
+        }
+    }
+
+    /**
+     * Metadata of a {@link VRImage} as parsed from its file name, and its {@link StimulusHeader} if read
+     */
+    private static class Record {
+        private final String name;
+        private final String author;
+        private final String title;
+        private final String projection;
+        private final int width;
+        private final int height;
+        private final String codec;
+        private final int grade;
+        private final int quality;
+        private final StimulusHeader header;
+
+        Record(@NonNull VRImage image) {
+            this(image.getFile().getName(), image.getAuthor(), image.getTitle(), image.getProjection(),
+                    image.getWidth(), image.getHeight(), image.getCodec(), image.getGrade().toInt(),
+                    image.getQuality(), image.getHeader());
+        }
+
+        private Record(String name, String author, String title, String projection,
+                       int width, int height, String codec, int grade, int quality, StimulusHeader header) {
+            this.name = name;
+            this.author = author;
+            this.title = title;
+            this.projection = projection;
+            this.width = width;
+            this.height = height;
+            this.codec = codec;
+            this.grade = grade;
+            this.quality = quality;
+            this.header = header;
+        }
+
+        @NonNull
+        VRImage toVRImage(@NonNull File imgDir) {
+            VRImage image = new VRImage(new File(imgDir, name), author, title, projection, width, height,
+                    codec, ImageGrade.fromGrade(grade), quality);
+            image.setHeader(header);
+            return image;
+        }
+
+        void write(@NonNull DataOutputStream out) throws IOException {
+            out.writeUTF(name);
+            out.writeUTF(author);
+            out.writeUTF(title);
+            out.writeUTF(projection);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeBoolean(codec != null);
+            if (codec != null) {
+                out.writeUTF(codec);
+            }
+            out.writeInt(grade);
+            out.writeInt(quality);
+            out.writeBoolean(header != null);
+            if (header != null) {
+                out.writeInt(header.getWidth());
+                out.writeInt(header.getHeight());
+                out.writeLong(header.getLength());
+                out.writeLong(header.getModified());
+            }
+        }
+
+        @NonNull
+        static Record read(@NonNull DataInputStream in) throws IOException {
+            String name = in.readUTF();
+            String author = in.readUTF();
+            String title = in.readUTF();
+            String projection = in.readUTF();
+            int width = in.readInt();
+            int height = in.readInt();
+            String codec = in.readBoolean() ? in.readUTF() : null;
+            int grade = in.readInt();
+            int quality = in.readInt();
+            StimulusHeader header = in.readBoolean()
+                    ? new StimulusHeader(in.readInt(), in.readInt(), in.readLong(), in.readLong())
+                    : null;
+            //fails early on an index written with other projections than the current ones
+            VRImageType.fromName(projection);
+            ImageGrade.fromGrade(grade);
+            return new Record(name, author, title, projection, width, height, codec, grade, quality, header);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.epfl.mmspg.testbed360.VRScene;
+
+/**
+ * What the list of sessions needs to know about an {@link ImagesSession} : its id and how many
+ * stimuli and tracks it has. It is built by {@link ImagesSession.LoadTask} without writing anything
+ * to the disk, the {@link VRImage}s themselves are only loaded, sorted and shuffled when the session is
+ * opened, see {@link ImagesSession#open(int, android.content.Context)}. It also tells how many stimuli
+ * would not display correctly, as checked by {@link StimulusValidator}.
+ */
+
+public class SessionSummary {
+    private final static String TAG = "SessionSummary";
+
+    private final int id;
+    private final File sessionDir;
+    private final int trainingCount;
+    private final int evaluationCount;
+    private final int trackCount;
+    private final int invalidCount;
+    private final int problems;
+
+    private SessionSummary(int id, @NonNull File sessionDir, int trainingCount, int evaluationCount, int trackCount,
+                           int invalidCount, int problems) {
+        this.id = id;
+        this.sessionDir = sessionDir;
+        this.trainingCount = trainingCount;
+        this.evaluationCount = evaluationCount;
+        this.trackCount = trackCount;
+        this.invalidCount = invalidCount;
+        this.problems = problems;
+    }
+
+    /**
+     * Reads the summary of a session folder. Nothing is written, not even the missing stimuli folders.
+     *
+     * @param id         the id of the session, parsed from its folder name
+     * @param sessionDir the folder of the session
+     * @param index      the {@link SessionIndex} to look up and update, or null to scan all folders
+     * @return the {@link SessionSummary} of the session
+     */
+    @NonNull
+    static SessionSummary read(int id, @NonNull File sessionDir, @Nullable SessionIndex index) {
+        List<VRImage> training = ImageUtils.readVRImages(ImageUtils.getStimuliDir(sessionDir, VRScene.MODE_TRAINING), index);
+        List<VRImage> evaluation = ImageUtils.readVRImages(ImageUtils.getStimuliDir(sessionDir, VRScene.MODE_EVALUATION), index);
+        List<VRImage> all = new ArrayList<>(training);
+        all.addAll(evaluation);
+        int invalidCount = 0;
+        int problems = 0;
+        for (VRImage image : all) {
+            int imageProblems = StimulusValidator.check(image);
+            if (imageProblems != 0) {
+                Log.w(TAG, "Session " + id + " : " + image.getFile().getName() + " is " + image.getHeader()
+                        + ", problems " + Integer.toBinaryString(imageProblems));
+                invalidCount++;
+                problems |= imageProblems;
+            }
+        }
+        return new SessionSummary(id, sessionDir, training.size(), evaluation.size(),
+                ImagesSession.countTracks(sessionDir, index), invalidCount, problems);
+    }
+
+    /**
+     * @return a copy of this summary with the given amounts added to its counts, see {@link SessionWatcher}.
+     * The new stimuli are checked once the session is read again.
+     */
+    @NonNull
+    SessionSummary withDeltas(int trainingDelta, int evaluationDelta, int trackDelta) {
+        return new SessionSummary(id, sessionDir,
+                Math.max(0, trainingCount + trainingDelta),
+                Math.max(0, evaluationCount + evaluationDelta),
+                Math.max(0, trackCount + trackDelta),
+                invalidCount, problems);
+    }
+
+    /**
+     * @return the id of the session, its folder name
+     */
+    public int getId() {
+        return id;
+    }
+
+    @NonNull
+    public File getSessionDir() {
+        return sessionDir;
+    }
+
+    /**
+     * @return the amount of training {@link VRImage}s of the session
+     */
+    public int getTrainingCount() {
+        return trainingCount;
+    }
+
+    /**
+     * @return the amount of evaluation {@link VRImage}s of the session
+     */
+    public int getEvaluationCount() {
+        return evaluationCount;
+    }
+
+    /**
+     * @return the count of already done tracking on the session
+     */
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+    /**
+     * @return the amount of stimuli which would not display correctly, see {@link StimulusValidator#check(VRImage)}
+     */
+    public int getInvalidCount() {
+        return invalidCount;
+    }
+
+    /**
+     * @return the PROBLEM_ flags of {@link StimulusValidator} found among the stimuli of the session
+     */
+    public int getProblems() {
+        return problems;
+    }
+
+    @Override
+    public String toString() {
+        return "id=" + id +
+                ", training=" + trainingCount +
+                ", evaluation=" + evaluationCount +
+                ", tracks=" + trackCount +
+                ", invalid=" + invalidCount;
+    }
+}
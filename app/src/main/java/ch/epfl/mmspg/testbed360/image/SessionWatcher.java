@@ -0,0 +1,370 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import ch.epfl.mmspg.testbed360.VRScene;
+import ch.epfl.mmspg.testbed360.tracking.TrackingTask;
+
+/**
+ * Keeps the listed {@link SessionSummary}s up to date while files are copied to the device (e.g. over
+ * USB MTP), using a {@link FileObserver} on the data folder and on the stimuli and tracking folders
+ * of each session. Events are coalesced during {@link #DEBOUNCE_MS} and applied on the main thread :
+ * a stimulus or grade file added or removed only updates the counts of its session, only sessions
+ * created, whose folders were created or removed, or whose stimuli were completely written are read
+ * again, the latter so that the new stimuli are checked by {@link StimulusValidator}.
+ */
+
+public class SessionWatcher {
+    private final static String TAG = "SessionWatcher";
+
+    private final static long DEBOUNCE_MS = 500;
+
+    private final static int NAME_EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
+    private final static int SELF_EVENTS = FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private final static int KIND_DATA = 0;
+    private final static int KIND_SESSION = 1;
+    private final static int KIND_TRAINING = 2;
+    private final static int KIND_EVALUATION = 3;
+    private final static int KIND_TRACKING = 4;
+
+    /**
+     * Receives the changes of the sessions, always on the main thread
+     */
+    public interface Listener {
+        /**
+         * Called when a session was added or its counts changed
+         */
+        void onSessionUpdated(@NonNull SessionSummary session);
+
+        /**
+         * Called when the folder of a session was removed
+         */
+        void onSessionRemoved(int sessionId);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Listener listener;
+
+    /**
+     * Observers by watched folder path. {@link FileObserver}s stop once garbage collected, hence
+     * they must be kept here.
+     */
+    private final HashMap<String, DirObserver> observers = new HashMap<>();
+
+    /**
+     * Changes received since the last {@link #flush}, guarded by {@link #observers}
+     */
+    private final SparseArray<int[]> pendingDeltas = new SparseArray<>();
+    private final HashSet<Integer> pendingReads = new HashSet<>();
+    private final HashSet<Integer> pendingRemovals = new HashSet<>();
+    private boolean flushScheduled = false;
+
+    private volatile boolean watching = false;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param listener the {@link Listener} to notify on the main thread
+     */
+    public SessionWatcher(@NonNull Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts watching the data folder for new or removed sessions. The sessions already listed must
+     * be given to {@link #watch(SessionSummary)}. Must be called from the main thread, after
+     * {@link ImagesSession#getLoadingTask(android.content.Context)}.
+     */
+    public void startWatching() {
+        File dataDir = ImagesSession.getDataDir();
+        if (dataDir == null) {
+            throw new IllegalStateException("Data dir is not initialized");
+        }
+        watching = true;
+        synchronized (observers) {
+            observe(dataDir, KIND_DATA, -1);
+        }
+    }
+
+    /**
+     * Starts watching the folders of a listed session.
+     *
+     * @param session a {@link SessionSummary} already known by the {@link Listener}
+     */
+    public void watch(@NonNull SessionSummary session) {
+        if (!watching) {
+            return;
+        }
+        File sessionDir = session.getSessionDir();
+        int id = session.getId();
+        synchronized (observers) {
+            observe(sessionDir, KIND_SESSION, id);
+            observe(ImageUtils.getStimuliDir(sessionDir, VRScene.MODE_TRAINING).getParentFile(), KIND_SESSION, id);
+            observe(ImageUtils.getStimuliDir(sessionDir, VRScene.MODE_TRAINING), KIND_TRAINING, id);
+            observe(ImageUtils.getStimuliDir(sessionDir, VRScene.MODE_EVALUATION), KIND_EVALUATION, id);
+            observe(new File(sessionDir, TrackingTask.TRACKING_DIR), KIND_TRACKING, id);
+        }
+    }
+
+    /**
+     * Stops watching all folders and drops the pending changes. Must be called from the main thread.
+     */
+    public void stopWatching() {
+        watching = false;
+        handler.removeCallbacks(flush);
+        synchronized (observers) {
+            for (DirObserver observer : observers.values()) {
+                observer.stopWatching();
+            }
+            observers.clear();
+            pendingDeltas.clear();
+            pendingReads.clear();
+            pendingRemovals.clear();
+            flushScheduled = false;
+        }
+    }
+
+    /**
+     * Watches a folder, unless it is already watched or does not exist yet : in that case its parent
+     * is watched and the session will be read again when it appears.
+     */
+    private void observe(@NonNull File dir, int kind, int sessionId) {
+        String path = dir.getAbsolutePath();
+        if (observers.containsKey(path) || !dir.isDirectory()) {
+            return;
+        }
+        DirObserver observer = new DirObserver(path, kind, sessionId);
+        observers.put(path, observer);
+        observer.startWatching();
+    }
+
+    private void unobserveSession(int sessionId) {
+        synchronized (observers) {
+            Iterator<DirObserver> it = observers.values().iterator();
+            while (it.hasNext()) {
+                DirObserver observer = it.next();
+                if (observer.kind != KIND_DATA && observer.sessionId == sessionId) {
+                    observer.stopWatching();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called on the observer thread, records a change and schedules a {@link #flush} if needed
+     */
+    private void onEvent(@NonNull DirObserver observer, int event, @Nullable String name) {
+        if (!watching) {
+            return;
+        }
+        synchronized (observers) {
+            boolean written = (event & FileObserver.CLOSE_WRITE) != 0;
+            boolean added = (event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0;
+            boolean removed = (event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0;
+            if ((event & SELF_EVENTS) != 0) {
+                //the folder is not watched anymore, let watch() observe it again if it comes back
+                observers.remove(observer.path);
+                observer.stopWatching();
+                if (observer.kind == KIND_DATA) {
+                    Log.e(TAG, "Data dir was removed");
+                } else {
+                    //the folder itself moved, its files cannot be counted from events anymore
+                    pendingReads.add(observer.sessionId);
+                }
+            } else if (name == null || (!added && !removed && !written)) {
+                return;
+            } else if (written) {
+                if (!VRImage.isStimulusName(name)) {
+                    return;
+                }
+                //only stimuli folders are observed for writes, check the written stimulus
+                pendingReads.add(observer.sessionId);
+            } else {
+                switch (observer.kind) {
+                    case KIND_DATA:
+                        int id = ImagesSession.parseId(new File(name));
+                        if (id < 0) {
+                            return;
+                        }
+                        if (added) {
+                            pendingRemovals.remove(id);
+                            pendingReads.add(id);
+                        } else {
+                            pendingReads.remove(id);
+                            pendingDeltas.remove(id);
+                            pendingRemovals.add(id);
+                        }
+                        break;
+                    case KIND_SESSION:
+                        //a stimuli or tracking folder was added or removed
+                        pendingReads.add(observer.sessionId);
+                        break;
+                    case KIND_TRAINING:
+                    case KIND_EVALUATION:
+                        if (!VRImage.isStimulusName(name)) {
+                            return;
+                        }
+                        addDelta(observer.sessionId, observer.kind == KIND_TRAINING ? 0 : 1, added ? 1 : -1);
+                        break;
+                    case KIND_TRACKING:
+                        if (!ImagesSession.isTrackName(name)) {
+                            return;
+                        }
+                        addDelta(observer.sessionId, 2, added ? 1 : -1);
+                        break;
+                }
+            }
+            if (!flushScheduled) {
+                flushScheduled = true;
+                handler.postDelayed(flush, DEBOUNCE_MS);
+            }
+        }
+    }
+
+    private void addDelta(int sessionId, int count, int delta) {
+        int[] deltas = pendingDeltas.get(sessionId);
+        if (deltas == null) {
+            deltas = new int[3];
+            pendingDeltas.put(sessionId, deltas);
+        }
+        deltas[count] += delta;
+    }
+
+    /**
+     * Applies the changes received since the last call, on the main thread
+     */
+    private void flush() {
+        final List<Integer> removals;
+        final List<Integer> reads;
+        final SparseArray<int[]> deltas = new SparseArray<>();
+        synchronized (observers) {
+            flushScheduled = false;
+            if (!watching) {
+                return;
+            }
+            removals = new ArrayList<>(pendingRemovals);
+            reads = new ArrayList<>(pendingReads);
+            for (int i = 0; i < pendingDeltas.size(); i++) {
+                deltas.put(pendingDeltas.keyAt(i), pendingDeltas.valueAt(i));
+            }
+            pendingRemovals.clear();
+            pendingReads.clear();
+            pendingDeltas.clear();
+        }
+
+        for (int id : removals) {
+            unobserveSession(id);
+            ImagesSession.removeSummary(id);
+            listener.onSessionRemoved(id);
+        }
+        for (int i = 0; i < deltas.size(); i++) {
+            int id = deltas.keyAt(i);
+            SessionSummary summary = ImagesSession.getSummary(id);
+            if (summary == null || reads.contains(id)) {
+                if (!reads.contains(id)) {
+                    reads.add(id);
+                }
+                continue;
+            }
+            int[] delta = deltas.valueAt(i);
+            summary = summary.withDeltas(delta[0], delta[1], delta[2]);
+            ImagesSession.putSummary(summary);
+            listener.onSessionUpdated(summary);
+        }
+        if (reads.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "Reading sessions " + reads);
+
+        final File dataDir = ImagesSession.getDataDir();
+        final SessionIndex index = ImagesSession.getIndex();
+        ImagesSession.LoadTask.SCAN_POOL.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int id : reads) {
+                    File sessionDir = new File(dataDir, Integer.toString(id));
+                    if (!sessionDir.isDirectory()) {
+                        continue;
+                    }
+                    final SessionSummary summary;
+                    try {
+                        summary = SessionSummary.read(id, sessionDir, index);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Could not read session " + sessionDir, e);
+                        continue;
+                    }
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (watching) {
+                                ImagesSession.putSummary(summary);
+                                watch(summary);
+                                listener.onSessionUpdated(summary);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * {@link FileObserver} of one folder, forwarding its events to {@link #onEvent}
+     */
+    private class DirObserver extends FileObserver {
+        private final String path;
+        private final int kind;
+        private final int sessionId;
+
+        DirObserver(@NonNull String path, int kind, int sessionId) {
+            super(path, NAME_EVENTS | SELF_EVENTS
+                    | (kind == KIND_TRAINING || kind == KIND_EVALUATION ? FileObserver.CLOSE_WRITE : 0));
+            this.path = path;
+            this.kind = kind;
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public void onEvent(int event, @Nullable String path) {
+            SessionWatcher.this.onEvent(this, event, path);
+        }
+    }
+}
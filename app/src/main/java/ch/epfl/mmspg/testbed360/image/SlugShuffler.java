@@ -0,0 +1,202 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import java.util.Random;
+
+/**
+ * Random ordering of items belonging to groups (e.g. {@link VRImage}s with the same slug, see
+ * {@link ImageUtils#distinctShuffle(java.util.List, long)}) such that no two consecutive items belong to
+ * the same group, whenever it is possible, i.e. when no group has more than half of the items
+ * (rounded up).
+ * <p>
+ * Items are drawn one by one : the next group is drawn with a probability proportional to its amount
+ * of remaining items, excluding the previous group, unless a group holds more than half of the
+ * remaining items and must be drawn now for the rest to stay feasible. A segment tree over the
+ * remaining counts gives both the weighted draw and the largest group in O(log(groups)), hence the
+ * whole ordering is O(n log(groups)). Given the same {@link Random} seed, the order is the same.
+ * <p>
+ * This class only depends on the JDK, so that {@link PlaylistGenerator} orders stimuli on a desktop
+ * exactly like the app.
+ */
+
+final class SlugShuffler {
+    private SlugShuffler() {
+        //do nothing, this class only provides static methods
+    }
+
+    /**
+     * Orders items so that no two consecutive ones belong to the same group, when it is possible. When
+     * it is not, consecutive items of the largest group are as few as possible.
+     *
+     * @param groups     for each item, the index of its group, in [0, groupCount)
+     * @param groupCount the amount of groups
+     * @param random     source of randomness
+     * @return the indices of the items, in their new order
+     */
+    static int[] order(int[] groups, int groupCount, Random random) {
+        int n = groups.length;
+        int[] counts = new int[groupCount];
+        for (int group : groups) {
+            counts[group]++;
+        }
+
+        //items grouped by group (counting sort), then shuffled within their group
+        int[] next = new int[groupCount];
+        int[] end = new int[groupCount];
+        for (int g = 0, offset = 0; g < groupCount; g++) {
+            next[g] = offset;
+            offset += counts[g];
+            end[g] = offset;
+        }
+        int[] items = new int[n];
+        int[] fill = next.clone();
+        for (int i = 0; i < n; i++) {
+            items[fill[groups[i]]++] = i;
+        }
+        for (int g = 0; g < groupCount; g++) {
+            for (int i = end[g] - 1; i > next[g]; i--) {
+                int j = next[g] + random.nextInt(i - next[g] + 1);
+                int tmp = items[i];
+                items[i] = items[j];
+                items[j] = tmp;
+            }
+        }
+
+        CountTree tree = new CountTree(counts);
+        int[] order = new int[n];
+        int previous = -1;
+        for (int remaining = n; remaining > 0; remaining--) {
+            int largest = tree.largest();
+            int group;
+            if (largest != previous && 2 * tree.count(largest) > remaining) {
+                //the largest group must be drawn now, otherwise it would end up with consecutive items
+                group = largest;
+            } else {
+                group = tree.draw(random, previous);
+            }
+            order[n - remaining] = items[next[group]++];
+            tree.decrement(group);
+            previous = group;
+        }
+        return order;
+    }
+
+    /**
+     * @param order  indices of items, see {@link #order(int[], int, Random)}
+     * @param groups for each item, the index of its group
+     * @return the amount of consecutive items of {@param order} belonging to the same group
+     */
+    static int countRepeats(int[] order, int[] groups) {
+        int repeats = 0;
+        for (int i = 1; i < order.length; i++) {
+            if (groups[order[i]] == groups[order[i - 1]]) {
+                repeats++;
+            }
+        }
+        return repeats;
+    }
+
+    /**
+     * Complete binary tree over the remaining counts of the groups, each node holding the sum and the
+     * maximum of its leaves.
+     */
+    private static class CountTree {
+        private final int leaves;
+        private final int[] sum;
+        private final int[] max;
+
+        CountTree(int[] counts) {
+            int size = 1;
+            while (size < counts.length) {
+                size <<= 1;
+            }
+            leaves = size;
+            sum = new int[2 * size];
+            max = new int[2 * size];
+            for (int g = 0; g < counts.length; g++) {
+                sum[size + g] = counts[g];
+                max[size + g] = counts[g];
+            }
+            for (int node = size - 1; node > 0; node--) {
+                pull(node);
+            }
+        }
+
+        int count(int group) {
+            return sum[leaves + group];
+        }
+
+        void decrement(int group) {
+            set(group, count(group) - 1);
+        }
+
+        private void set(int group, int count) {
+            int node = leaves + group;
+            sum[node] = count;
+            max[node] = count;
+            for (node >>= 1; node > 0; node >>= 1) {
+                pull(node);
+            }
+        }
+
+        private void pull(int node) {
+            sum[node] = sum[2 * node] + sum[2 * node + 1];
+            max[node] = Math.max(max[2 * node], max[2 * node + 1]);
+        }
+
+        /**
+         * @return the group with the most remaining items
+         */
+        int largest() {
+            int node = 1;
+            while (node < leaves) {
+                node = max[2 * node] == max[node] ? 2 * node : 2 * node + 1;
+            }
+            return node - leaves;
+        }
+
+        /**
+         * Draws a group with a probability proportional to its count, excluding {@param excluded}
+         * unless it is the only group remaining
+         */
+        int draw(Random random, int excluded) {
+            int excludedCount = excluded >= 0 ? count(excluded) : 0;
+            if (excludedCount == sum[1]) {
+                return excluded;
+            }
+            if (excludedCount > 0) {
+                set(excluded, 0);
+            }
+            int target = random.nextInt(sum[1]);
+            int node = 1;
+            while (node < leaves) {
+                if (target < sum[2 * node]) {
+                    node = 2 * node;
+                } else {
+                    target -= sum[2 * node];
+                    node = 2 * node + 1;
+                }
+            }
+            if (excludedCount > 0) {
+                set(excluded, excludedCount);
+            }
+            return node - leaves;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * The real pixel size of a stimulus file, read from its PNG IHDR chunk or JPEG SOF segment only :
+ * a few bytes are read, nothing is decoded. It also keeps the length and last modification time the
+ * file had when it was read, so that an indexed header can be reused as long as the file did not
+ * change, see {@link #isUpToDate(File)}.
+ * <p>
+ * This class only depends on the JDK, so that the StimulusHeaderTool of the tools module checks
+ * stimuli on a desktop before they are copied to the device.
+ */
+
+public final class StimulusHeader {
+    /**
+     * Size of a file which is neither a PNG nor a JPEG, or is truncated before its size
+     */
+    public final static int UNREADABLE = -1;
+
+    private final static long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    private final static int PNG_IHDR = ('I' << 24) | ('H' << 16) | ('D' << 8) | 'R';
+
+    private final static int JPEG_MARKER = 0xFF;
+    private final static int JPEG_SOI = 0xD8;
+    private final static int JPEG_EOI = 0xD9;
+    private final static int JPEG_SOS = 0xDA;
+
+    /**
+     * Enough for the PNG header and the first JPEG segments, the bigger ones (e.g. EXIF thumbnails)
+     * are skipped without being read
+     */
+    private final static int BUFFER_SIZE = 512;
+
+    private final int width;
+    private final int height;
+    private final long length;
+    private final long modified;
+
+    StimulusHeader(int width, int height, long length, long modified) {
+        this.width = width;
+        this.height = height;
+        this.length = length;
+        this.modified = modified;
+    }
+
+    /**
+     * Reads the size of a PNG or JPEG file. The length and modification time are read before the
+     * content, so that a file still being written is read again by the next scan.
+     *
+     * @param file the stimulus file
+     * @return its {@link StimulusHeader}, with an {@link #UNREADABLE} size if the file could not be
+     * read or is neither a PNG nor a JPEG
+     */
+    static StimulusHeader read(File file) {
+        long length = file.length();
+        long modified = file.lastModified();
+        int[] size = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            size = readSize(in);
+        } catch (IOException e) {
+            //missing, truncated or unreadable, size stays unknown
+        }
+        return size == null
+                ? new StimulusHeader(UNREADABLE, UNREADABLE, length, modified)
+                : new StimulusHeader(size[0], size[1], length, modified);
+    }
+
+    /**
+     * @param in the stream at the beginning of the file
+     * @return {width, height}, or null if the stream is neither a PNG nor a JPEG
+     * @throws IOException if the stream ends before the size
+     */
+    static int[] readSize(DataInputStream in) throws IOException {
+        int first = in.readUnsignedByte();
+        if (first == 0x89) {
+            return readPngSize(first, in);
+        } else if (first == JPEG_MARKER) {
+            return readJpegSize(in);
+        }
+        return null;
+    }
+
+    /**
+     * The IHDR chunk is always the first one, right after the 8 bytes signature
+     */
+    private static int[] readPngSize(int first, DataInputStream in) throws IOException {
+        long signature = ((long) first << 56) | (((long) in.readUnsignedByte()) << 48)
+                | (((long) in.readUnsignedShort()) << 32) | (in.readInt() & 0xFFFFFFFFL);
+        if (signature != PNG_SIGNATURE) {
+            return null;
+        }
+        in.readInt(); //chunk length
+        if (in.readInt() != PNG_IHDR) {
+            return null;
+        }
+        return new int[]{in.readInt(), in.readInt()};
+    }
+
+    /**
+     * Walks the segments until the first SOF (start of frame) one, skipping the content of the others
+     */
+    private static int[] readJpegSize(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != JPEG_SOI) {
+            return null;
+        }
+        while (true) {
+            int marker = in.readUnsignedByte();
+            if (marker != JPEG_MARKER) {
+                return null;
+            }
+            while (marker == JPEG_MARKER) {
+                //markers may be preceded by any amount of fill bytes
+                marker = in.readUnsignedByte();
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                //TEM and RSTn have no content
+                continue;
+            }
+            if (marker == JPEG_EOI || marker == JPEG_SOS) {
+                //no frame before the image data
+                return null;
+            }
+            int length = in.readUnsignedShort();
+            if (length < 2) {
+                return null;
+            }
+            if (isStartOfFrame(marker)) {
+                in.readUnsignedByte(); //sample precision
+                int height = in.readUnsignedShort();
+                int width = in.readUnsignedShort();
+                return new int[]{width, height};
+            }
+            skipFully(in, length - 2);
+        }
+    }
+
+    /**
+     * @return true for SOF0 to SOF15, except DHT (0xC4), JPG (0xC8) and DAC (0xCC) which share the range
+     */
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * @return true if the size could be read, see {@link #UNREADABLE}
+     */
+    public boolean isReadable() {
+        return width != UNREADABLE;
+    }
+
+    /**
+     * @param file the file this header was read from
+     * @return true if {@param file} has the same length and last modification time as when it was read
+     */
+    boolean isUpToDate(File file) {
+        return file.length() == length && file.lastModified() == modified;
+    }
+
+    /**
+     * @return the real width of the picture, or {@link #UNREADABLE}
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the real height of the picture, or {@link #UNREADABLE}
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    long getModified() {
+        return modified;
+    }
+
+    @Override
+    public String toString() {
+        return isReadable() ? width + "x" + height : "unreadable";
+    }
+}
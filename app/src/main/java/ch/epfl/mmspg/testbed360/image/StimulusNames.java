@@ -0,0 +1,136 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+/**
+ * Locates the fields of a stimulus file name "author_title_projection_WxH_[codec_]quality.ext", see
+ * {@link VRImage}. This class only depends on the JDK so that desktop tools (e.g.
+ * {@link PlaylistGenerator}) group stimuli exactly like the app does.
+ */
+
+final class StimulusNames {
+    private StimulusNames() {
+        //do nothing, this class only provides static methods
+    }
+
+    /**
+     * @param name a file name
+     * @return true if {@param name} is the name of a stimulus
+     */
+    static boolean matches(String name) {
+        int stemEnd = stemEnd(name);
+        return stemEnd >= 0 && dimensionsStart(name, stemEnd) >= 0;
+    }
+
+    /**
+     * @param name the name of a stimulus
+     * @return the slug of the stimulus, as {@link VRImage#getSlug()}, or null if {@param name} is not
+     * the name of a stimulus
+     */
+    static String slugOf(String name) {
+        int stemEnd = stemEnd(name);
+        int dimStart = stemEnd < 0 ? -1 : dimensionsStart(name, stemEnd);
+        if (dimStart < 0) {
+            return null;
+        }
+        int titleEnd = name.lastIndexOf('_', dimStart - 1);
+        int authorEnd = name.lastIndexOf('_', titleEnd - 1);
+        return name.substring(0, authorEnd) + ":" + name.substring(authorEnd + 1, titleEnd);
+    }
+
+    /**
+     * @param name the name of a stimulus
+     * @return the codec and quality (or grade) fields of the stimulus, i.e. what follows its
+     * dimensions, or null if {@param name} is not the name of a stimulus
+     */
+    static String qualityGroupOf(String name) {
+        int stemEnd = stemEnd(name);
+        int dimStart = stemEnd < 0 ? -1 : dimensionsStart(name, stemEnd);
+        if (dimStart < 0) {
+            return null;
+        }
+        return name.substring(dimensionsEnd(name, dimStart, stemEnd) + 1, stemEnd);
+    }
+
+    /**
+     * @return the index of the extension's dot in {@param name}, or -1 if it has no valid extension or
+     * contains a character that '.' does not match in a {@link java.util.regex.Pattern} without flags
+     */
+    static int stemEnd(String name) {
+        int length = name.length();
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return -1;
+            }
+        }
+        if (name.endsWith(".png") || name.endsWith(".jpg")) {
+            return length - 4;
+        } else if (name.endsWith(".jpeg")) {
+            return length - 5;
+        }
+        return -1;
+    }
+
+    /**
+     * @param stemEnd see {@link #stemEnd(String)}
+     * @return the index of the underscore starting the last "_WxH_" token before {@param stemEnd} if it
+     * is preceded by two other underscores, -1 otherwise
+     */
+    static int dimensionsStart(String name, int stemEnd) {
+        int dimStart = name.lastIndexOf('_', stemEnd - 1);
+        while (dimStart >= 0 && dimensionsEnd(name, dimStart, stemEnd) < 0) {
+            dimStart = name.lastIndexOf('_', dimStart - 1);
+        }
+        if (dimStart < 0) {
+            return -1;
+        }
+        int titleEnd = name.lastIndexOf('_', dimStart - 1);
+        return titleEnd >= 0 && name.lastIndexOf('_', titleEnd - 1) >= 0 ? dimStart : -1;
+    }
+
+    /**
+     * @param start index of an underscore in {@param name}
+     * @param limit index the closing underscore must be before
+     * @return the index of the underscore closing the "_WxH_" token starting at {@param start}, where W
+     * and H have 1 to 5 digits, or -1 if there is no such token
+     */
+    static int dimensionsEnd(String name, int start, int limit) {
+        int x = digitsEnd(name, start + 1, limit);
+        if (x < 0 || name.charAt(x) != 'x') {
+            return -1;
+        }
+        int end = digitsEnd(name, x + 1, limit);
+        if (end < 0 || name.charAt(end) != '_') {
+            return -1;
+        }
+        return end;
+    }
+
+    /**
+     * @return the index following the 1 to 5 ASCII digits starting at {@param start}, or -1 if there
+     * are none, more than 5, or if they reach {@param limit}
+     */
+    private static int digitsEnd(String name, int start, int limit) {
+        int i = start;
+        while (i < limit && name.charAt(i) >= '0' && name.charAt(i) <= '9') {
+            i++;
+        }
+        return i > start && i - start <= 5 && i < limit ? i : -1;
+    }
+}
@@ -0,0 +1,270 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that the stimuli can be displayed before a participant starts, from their
+ * {@link StimulusHeader}s only : the real size must match the one given in the file name, the aspect
+ * ratio must match the projection (2:1 for {@link VRImageType#EQUIRECTANGULAR}, the grid of the
+ * {@link CubeMapLayout} with square faces for {@link VRImageType#CUBIC}) and the textures must fit
+ * within the limits of the device's GPU, otherwise the image would only fail once fully decoded.
+ * <p>
+ * Headers are read in parallel when a stimuli folder is indexed (see
+ * {@link ImageUtils#readVRImages(java.io.File, SessionIndex)}) and kept in the {@link SessionIndex},
+ * while the checks themselves are cheap and done every time, as the limits depend on the device.
+ */
+
+public final class StimulusValidator {
+    private final static String TAG = "StimulusValidator";
+
+    /**
+     * The file is neither a PNG nor a JPEG, or is truncated
+     */
+    public final static int PROBLEM_UNREADABLE = 1;
+    /**
+     * The real size differs from the one given in the file name
+     */
+    public final static int PROBLEM_SIZE_MISMATCH = 1 << 1;
+    /**
+     * The aspect ratio does not match the projection
+     */
+    public final static int PROBLEM_ASPECT_RATIO = 1 << 2;
+    /**
+     * A texture would be larger than what the GPU supports
+     */
+    public final static int PROBLEM_TOO_LARGE = 1 << 3;
+
+    /**
+     * Reading a header is mostly waiting for the storage, hence more threads than cores
+     */
+    private final static int HEADER_THREAD_COUNT = 4;
+
+    /**
+     * Headers are read by batches, so that small folders are not split into too many tasks
+     */
+    private final static int HEADER_BATCH_SIZE = 16;
+
+    private final static ExecutorService HEADER_POOL = Executors.newFixedThreadPool(HEADER_THREAD_COUNT, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, TAG + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Limits of the GPU, see {@link #queryTextureLimits()}. 0 until queried, and if they could not be
+     * queried, in which case they are not checked.
+     */
+    private static int maxTextureSize = 0;
+    private static int maxCubeMapSize = 0;
+    private static boolean limitsQueried = false;
+
+    private StimulusValidator() {
+        //do nothing, this class only provides static methods
+    }
+
+    /**
+     * Reads the {@link StimulusHeader} of each {@link VRImage}, in parallel, reusing the known headers
+     * of the files that did not change. Called from a worker of {@link ImagesSession.LoadTask#SCAN_POOL}.
+     *
+     * @param images the {@link VRImage}s of a stimuli folder
+     * @param known  the previously indexed headers of the folder by file name, or null
+     * @return true if all headers could be read, false if some files are unreadable (e.g. still
+     * being copied)
+     */
+    static boolean readHeaders(@NonNull List<VRImage> images, @Nullable Map<String, StimulusHeader> known) {
+        final List<VRImage> toRead = new ArrayList<>();
+        for (VRImage image : images) {
+            StimulusHeader header = known == null ? null : known.get(image.getFile().getName());
+            if (header != null && header.isReadable() && header.isUpToDate(image.getFile())) {
+                image.setHeader(header);
+            } else {
+                toRead.add(image);
+            }
+        }
+
+        if (toRead.size() <= HEADER_BATCH_SIZE) {
+            readBatch(toRead, 0, toRead.size());
+        } else {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int start = 0; start < toRead.size(); start += HEADER_BATCH_SIZE) {
+                final int batchStart = start;
+                final int batchEnd = Math.min(toRead.size(), start + HEADER_BATCH_SIZE);
+                futures.add(HEADER_POOL.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        readBatch(toRead, batchStart, batchEnd);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        boolean complete = true;
+        for (VRImage image : images) {
+            complete &= image.getHeader() != null && image.getHeader().isReadable();
+        }
+        return complete;
+    }
+
+    private static void readBatch(@NonNull List<VRImage> images, int start, int end) {
+        for (int i = start; i < end; i++) {
+            VRImage image = images.get(i);
+            image.setHeader(StimulusHeader.read(image.getFile()));
+        }
+    }
+
+    /**
+     * @param image a {@link VRImage} whose header was read, see {@link #readHeaders(List, Map)}
+     * @return the PROBLEM_ flags of {@param image}, 0 if it can be displayed
+     */
+    public static int check(@NonNull VRImage image) {
+        StimulusHeader header = image.getHeader();
+        if (header == null || !header.isReadable()) {
+            return PROBLEM_UNREADABLE;
+        }
+        int problems = 0;
+        int width = header.getWidth();
+        int height = header.getHeight();
+        if (width != image.getWidth() || height != image.getHeight()) {
+            problems |= PROBLEM_SIZE_MISMATCH;
+        }
+
+        queryTextureLimits();
+        switch (image.getVrImageType()) {
+            case CUBIC:
+                CubeMapLayout layout = image.getCubeMapLayout();
+                if (width % layout.getColumns() != 0 || height % layout.getRows() != 0
+                        || width / layout.getColumns() != height / layout.getRows()) {
+                    problems |= PROBLEM_ASPECT_RATIO;
+                }
+                if (exceeds(width / layout.getColumns(), maxCubeMapSize)) {
+                    problems |= PROBLEM_TOO_LARGE;
+                }
+                break;
+            case EQUIRECTANGULAR:
+                if (width != 2 * height) {
+                    problems |= PROBLEM_ASPECT_RATIO;
+                }
+                if (ImageUtils.isEquirectAsCubicMap()
+                        ? exceeds(EquirectToCubemap.faceSizeFor(width), maxCubeMapSize)
+                        : exceeds(Math.max(width, height), maxTextureSize)) {
+                    problems |= PROBLEM_TOO_LARGE;
+                }
+                break;
+        }
+        return problems;
+    }
+
+    private static boolean exceeds(int size, int limit) {
+        return limit > 0 && size > limit;
+    }
+
+    /**
+     * Queries GL_MAX_TEXTURE_SIZE and GL_MAX_CUBE_MAP_TEXTURE_SIZE once, from a temporary offscreen
+     * context since the list of sessions is built before any GL surface exists.
+     */
+    private static synchronized void queryTextureLimits() {
+        if (limitsQueried) {
+            return;
+        }
+        limitsQueried = true;
+
+        EGLDisplay display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (display == EGL14.EGL_NO_DISPLAY || !EGL14.eglInitialize(display, new int[2], 0, new int[2], 1)) {
+            Log.e(TAG, "Could not initialize EGL, texture sizes will not be checked");
+            return;
+        }
+        EGLContext context = EGL14.EGL_NO_CONTEXT;
+        EGLSurface surface = EGL14.EGL_NO_SURFACE;
+        try {
+            EGLConfig[] configs = new EGLConfig[1];
+            int[] configCount = new int[1];
+            int[] configAttributes = {
+                    EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                    EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+                    EGL14.EGL_NONE
+            };
+            if (!EGL14.eglChooseConfig(display, configAttributes, 0, configs, 0, 1, configCount, 0)
+                    || configCount[0] == 0) {
+                Log.e(TAG, "No EGL config, texture sizes will not be checked");
+                return;
+            }
+            context = EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT,
+                    new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+            surface = EGL14.eglCreatePbufferSurface(display, configs[0],
+                    new int[]{EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE}, 0);
+            if (context == EGL14.EGL_NO_CONTEXT || surface == EGL14.EGL_NO_SURFACE
+                    || !EGL14.eglMakeCurrent(display, surface, surface, context)) {
+                Log.e(TAG, "Could not create an EGL context (error " + EGL14.eglGetError()
+                        + "), texture sizes will not be checked");
+                return;
+            }
+            int[] value = new int[1];
+            GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, value, 0);
+            maxTextureSize = value[0];
+            GLES20.glGetIntegerv(GLES20.GL_MAX_CUBE_MAP_TEXTURE_SIZE, value, 0);
+            maxCubeMapSize = value[0];
+            Log.i(TAG, "Max texture size " + maxTextureSize + ", max cube map size " + maxCubeMapSize);
+        } finally {
+            EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            if (surface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(display, surface);
+            }
+            if (context != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(display, context);
+            }
+            //the display is not terminated, it is shared with the renderer's one
+        }
+    }
+}
@@ -0,0 +1,438 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A lossless container of already decoded pixels, cut into square tiles so that any region can be
+ * read without touching the rest of the image. It is used as a sidecar of a stimulus (see
+ * {@link TiledSidecar}), so that displaying it is little more than a memory copy instead of a PNG/JPEG
+ * decoding.
+ * <p>
+ * This class only depends on the JDK, so that it can be used and tested on a desktop JVM.
+ * <p>
+ * Layout of a file, all numbers being big endian :
+ * <pre>
+ * header : magic (4 bytes, "T360"), version (short), bytes per pixel (byte), flags (byte),
+ *          width (int), height (int), tile size (int),
+ *          source length (long), source last modification time (long)
+ * index  : for each tile, row by row : offset (long), length (int), flags (int)
+ * tiles  : the pixels of each tile, row by row, either raw or deflated (see {@link #TILE_DEFLATED})
+ * </pre>
+ * Pixels are stored as the raw bytes of their in-memory format, which is up to the writer.
+ * Tiles on the right and bottom edges are cropped to the image size.
+ */
+
+public final class TiledImageFile {
+    private final static int MAGIC = ('T' << 24) | ('3' << 16) | ('6' << 8) | '0';
+    private final static short VERSION = 1;
+
+    private final static int HEADER_SIZE = 4 + 2 + 1 + 1 + 4 + 4 + 4 + 8 + 8;
+    private final static int INDEX_ENTRY_SIZE = 8 + 4 + 4;
+
+    /**
+     * Flag of a tile whose pixels are deflated (see {@link Deflater}), otherwise they are raw
+     */
+    final static int TILE_DEFLATED = 1;
+
+    private TiledImageFile() {
+        //do nothing, this class only holds the Writer and Reader
+    }
+
+    private static int tileCount(int size, int tileSize) {
+        return (size + tileSize - 1) / tileSize;
+    }
+
+    /**
+     * Writes a {@link TiledImageFile} from rows of pixels given from top to bottom, keeping in memory
+     * only one strip of tiles at a time. The file is written next to the target and renamed once
+     * complete, so that a {@link Reader} never sees a partially written file.
+     */
+    public static final class Writer implements Closeable {
+        private final File target;
+        private final File temporary;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+
+        private final int width;
+        private final int height;
+        private final int bytesPerPixel;
+        private final int tileSize;
+        private final long sourceLength;
+        private final long sourceModified;
+
+        private final int tilesX;
+        private final long[] offsets;
+        private final int[] lengths;
+        private final int[] flags;
+
+        private final byte[] strip;
+        private final byte[] tile;
+        private final byte[] compressed;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        private int stripRows = 0;
+        private int rowsWritten = 0;
+        private int tilesWritten = 0;
+        private boolean closed = false;
+
+        /**
+         * @param target         the file to write
+         * @param width          width of the image, in pixels
+         * @param height         height of the image, in pixels
+         * @param bytesPerPixel  size of a pixel, in bytes
+         * @param tileSize       width and height of a tile, in pixels
+         * @param sourceLength   length of the file the pixels come from, see {@link Reader#isValidFor(File)}
+         * @param sourceModified last modification time of the file the pixels come from
+         * @throws IOException if the file can not be created
+         */
+        public Writer(File target, int width, int height, int bytesPerPixel, int tileSize,
+                      long sourceLength, long sourceModified) throws IOException {
+            if (width <= 0 || height <= 0 || bytesPerPixel <= 0 || tileSize <= 0) {
+                throw new IllegalArgumentException("Invalid dimensions : " + width + "x" + height
+                        + ", " + bytesPerPixel + " bytes per pixel, tiles of " + tileSize);
+            }
+            this.target = target;
+            this.temporary = new File(target.getPath() + ".tmp");
+            this.width = width;
+            this.height = height;
+            this.bytesPerPixel = bytesPerPixel;
+            this.tileSize = tileSize;
+            this.sourceLength = sourceLength;
+            this.sourceModified = sourceModified;
+
+            tilesX = tileCount(width, tileSize);
+            int tiles = tilesX * tileCount(height, tileSize);
+            offsets = new long[tiles];
+            lengths = new int[tiles];
+            flags = new int[tiles];
+
+            strip = new byte[tileSize * width * bytesPerPixel];
+            tile = new byte[tileSize * tileSize * bytesPerPixel];
+            //deflating may grow incompressible data a bit, but then we store it raw anyway
+            compressed = new byte[tile.length];
+
+            file = new RandomAccessFile(temporary, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            channel.position(HEADER_SIZE + (long) tiles * INDEX_ENTRY_SIZE);
+        }
+
+        /**
+         * Appends rows of pixels to the image.
+         *
+         * @param pixels   the rows, each of width * bytes per pixel bytes
+         * @param offset   where the first row starts in {@param pixels}
+         * @param rowCount the amount of rows to append
+         * @throws IOException if the tiles could not be written
+         */
+        public void writeRows(byte[] pixels, int offset, int rowCount) throws IOException {
+            if (rowsWritten + rowCount > height) {
+                throw new IllegalArgumentException("Too many rows : " + (rowsWritten + rowCount) + " > " + height);
+            }
+            int rowBytes = width * bytesPerPixel;
+            for (int i = 0; i < rowCount; i++) {
+                System.arraycopy(pixels, offset + i * rowBytes, strip, stripRows * rowBytes, rowBytes);
+                stripRows++;
+                rowsWritten++;
+                if (stripRows == tileSize || rowsWritten == height) {
+                    flushStrip();
+                }
+            }
+        }
+
+        /**
+         * Cuts the current strip into tiles and writes them
+         */
+        private void flushStrip() throws IOException {
+            int rowBytes = width * bytesPerPixel;
+            for (int tx = 0; tx < tilesX; tx++) {
+                int left = tx * tileSize;
+                int tileRowBytes = Math.min(tileSize, width - left) * bytesPerPixel;
+                int length = tileRowBytes * stripRows;
+                for (int y = 0; y < stripRows; y++) {
+                    System.arraycopy(strip, y * rowBytes + left * bytesPerPixel, tile, y * tileRowBytes, tileRowBytes);
+                }
+
+                deflater.reset();
+                deflater.setInput(tile, 0, length);
+                deflater.finish();
+                int deflatedLength = deflater.deflate(compressed, 0, compressed.length);
+                boolean deflated = deflater.finished() && deflatedLength < length;
+
+                offsets[tilesWritten] = channel.position();
+                lengths[tilesWritten] = deflated ? deflatedLength : length;
+                flags[tilesWritten] = deflated ? TILE_DEFLATED : 0;
+                writeFully(ByteBuffer.wrap(deflated ? compressed : tile, 0, lengths[tilesWritten]));
+                tilesWritten++;
+            }
+            stripRows = 0;
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Writes the header and index, and moves the file to its target. If not all rows were written,
+         * the file is deleted and an {@link IOException} is thrown.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            deflater.end();
+            try {
+                if (rowsWritten != height) {
+                    throw new IOException("Only " + rowsWritten + " rows out of " + height + " were written");
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + offsets.length * INDEX_ENTRY_SIZE);
+                header.putInt(MAGIC)
+                        .putShort(VERSION)
+                        .put((byte) bytesPerPixel)
+                        .put((byte) 0)
+                        .putInt(width)
+                        .putInt(height)
+                        .putInt(tileSize)
+                        .putLong(sourceLength)
+                        .putLong(sourceModified);
+                for (int i = 0; i < offsets.length; i++) {
+                    header.putLong(offsets[i]).putInt(lengths[i]).putInt(flags[i]);
+                }
+                header.flip();
+                channel.position(0);
+                writeFully(header);
+                channel.force(false);
+                file.close();
+                if (!temporary.renameTo(target)) {
+                    throw new IOException("Could not rename " + temporary + " to " + target);
+                }
+            } catch (IOException e) {
+                file.close();
+                temporary.delete();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Reads regions of a {@link TiledImageFile} from a read-only memory mapping of it : only the tiles
+     * intersecting a region are touched, and raw tiles are copied straight from the mapping.
+     * A {@link Reader} is not meant to be shared by threads, hence {@link #readRegion(int, int, int, int, ByteBuffer)}
+     * is synchronized.
+     */
+    public static final class Reader implements Closeable {
+        private MappedByteBuffer map;
+
+        private final int width;
+        private final int height;
+        private final int bytesPerPixel;
+        private final int tileSize;
+        private final long sourceLength;
+        private final long sourceModified;
+        private final int tilesX;
+
+        private final Inflater inflater = new Inflater();
+        private byte[] compressed = new byte[0];
+        private final byte[] tile;
+
+        private Reader(MappedByteBuffer map) throws IOException {
+            this.map = map;
+            if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+                throw new IOException("Not a tiled image");
+            }
+            if (map.getShort(4) != VERSION) {
+                throw new IOException("Unsupported tiled image version " + map.getShort(4));
+            }
+            bytesPerPixel = map.get(6);
+            width = map.getInt(8);
+            height = map.getInt(12);
+            tileSize = map.getInt(16);
+            sourceLength = map.getLong(20);
+            sourceModified = map.getLong(28);
+            if (width <= 0 || height <= 0 || bytesPerPixel <= 0 || tileSize <= 0) {
+                throw new IOException("Corrupted tiled image header");
+            }
+            tilesX = tileCount(width, tileSize);
+            long tiles = (long) tilesX * tileCount(height, tileSize);
+            if (HEADER_SIZE + tiles * INDEX_ENTRY_SIZE > map.capacity()) {
+                throw new IOException("Truncated tiled image index");
+            }
+            tile = new byte[tileSize * tileSize * bytesPerPixel];
+        }
+
+        /**
+         * Maps the given file in memory and reads its header.
+         *
+         * @param file a file written by a {@link Writer}
+         * @return a {@link Reader} of the file
+         * @throws IOException if the file can not be read or is not a valid {@link TiledImageFile}
+         */
+        public static Reader open(File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileChannel channel = raf.getChannel()) {
+                //the mapping stays valid once the channel is closed
+                return new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getBytesPerPixel() {
+            return bytesPerPixel;
+        }
+
+        public int getTileSize() {
+            return tileSize;
+        }
+
+        /**
+         * @param source the file this {@link TiledImageFile} was written from
+         * @return true if {@param source} did not change since, according to its length and last
+         * modification time
+         */
+        public boolean isValidFor(File source) {
+            return source.length() == sourceLength && source.lastModified() == sourceModified;
+        }
+
+        /**
+         * Copies the pixels of a region of the image into {@param destination}, row by row without any
+         * padding, starting at its position. The position is moved after the region.
+         *
+         * @param left        x coordinate of the region
+         * @param top         y coordinate of the region
+         * @param regionWidth width of the region
+         * @param regionHeight height of the region
+         * @param destination where the pixels are copied, must have enough bytes remaining
+         * @throws IOException if a tile is corrupted
+         */
+        public synchronized void readRegion(int left, int top, int regionWidth, int regionHeight,
+                                            ByteBuffer destination) throws IOException {
+            if (map == null) {
+                throw new IOException("Reader is closed");
+            }
+            if (left < 0 || top < 0 || regionWidth <= 0 || regionHeight <= 0
+                    || left + regionWidth > width || top + regionHeight > height) {
+                throw new IllegalArgumentException("Region " + left + "," + top + " " + regionWidth
+                        + "x" + regionHeight + " is out of the " + width + "x" + height + " image");
+            }
+            int start = destination.position();
+            int regionRowBytes = regionWidth * bytesPerPixel;
+            if (destination.remaining() < regionRowBytes * regionHeight) {
+                throw new IllegalArgumentException("Destination is too small for the region");
+            }
+            ByteBuffer source = map.duplicate();
+            ByteBuffer inflated = ByteBuffer.wrap(tile);
+
+            for (int ty = top / tileSize; ty <= (top + regionHeight - 1) / tileSize; ty++) {
+                for (int tx = left / tileSize; tx <= (left + regionWidth - 1) / tileSize; tx++) {
+                    int tileLeft = tx * tileSize;
+                    int tileTop = ty * tileSize;
+                    int tileRowBytes = Math.min(tileSize, width - tileLeft) * bytesPerPixel;
+                    int tileRows = Math.min(tileSize, height - tileTop);
+
+                    int index = HEADER_SIZE + (ty * tilesX + tx) * INDEX_ENTRY_SIZE;
+                    long offset = map.getLong(index);
+                    int length = map.getInt(index + 8);
+                    int tileFlags = map.getInt(index + 12);
+                    if (offset < 0 || offset + length > map.capacity()) {
+                        throw new IOException("Tile " + tx + "," + ty + " is out of the file");
+                    }
+
+                    ByteBuffer pixels;
+                    int base;
+                    if ((tileFlags & TILE_DEFLATED) != 0) {
+                        inflate((int) offset, length, tileRowBytes * tileRows);
+                        pixels = inflated;
+                        base = 0;
+                    } else {
+                        if (length != tileRowBytes * tileRows) {
+                            throw new IOException("Tile " + tx + "," + ty + " has a wrong length");
+                        }
+                        pixels = source;
+                        base = (int) offset;
+                    }
+
+                    //intersection of the tile and the region
+                    int x0 = Math.max(left, tileLeft);
+                    int x1 = Math.min(left + regionWidth, tileLeft + tileRowBytes / bytesPerPixel);
+                    int y0 = Math.max(top, tileTop);
+                    int y1 = Math.min(top + regionHeight, tileTop + tileRows);
+                    int spanBytes = (x1 - x0) * bytesPerPixel;
+                    for (int y = y0; y < y1; y++) {
+                        int from = base + (y - tileTop) * tileRowBytes + (x0 - tileLeft) * bytesPerPixel;
+                        pixels.clear();
+                        pixels.position(from);
+                        pixels.limit(from + spanBytes);
+                        destination.position(start + (y - top) * regionRowBytes + (x0 - left) * bytesPerPixel);
+                        destination.put(pixels);
+                    }
+                }
+            }
+            destination.position(start + regionRowBytes * regionHeight);
+        }
+
+        /**
+         * Inflates the tile stored at {@param offset} into {@link #tile}
+         */
+        private void inflate(int offset, int length, int expected) throws IOException {
+            if (compressed.length < length) {
+                compressed = new byte[length];
+            }
+            ByteBuffer source = map.duplicate();
+            source.position(offset);
+            source.get(compressed, 0, length);
+            inflater.reset();
+            inflater.setInput(compressed, 0, length);
+            try {
+                int inflated = inflater.inflate(tile, 0, expected);
+                if (inflated != expected || !inflater.finished()) {
+                    throw new IOException("Corrupted tile at " + offset);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted tile at " + offset, e);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            inflater.end();
+            map = null;
+        }
+    }
+}
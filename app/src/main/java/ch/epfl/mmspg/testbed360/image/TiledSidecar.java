@@ -0,0 +1,269 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Stores next to each stimulus a {@link TiledImageFile} holding its already decoded pixels, so that
+ * the next time it is displayed its {@link Bitmap}s are filled with a memory copy instead of decoding
+ * the PNG/JPEG again. Pixels are kept in {@link Bitmap.Config#RGB_565}, exactly as they are displayed,
+ * hence the sidecar is lossless with respect to what the user sees.
+ * <p>
+ * Sidecars are named after their stimulus with the {@link #EXTENSION} suffix, which does not match
+ * the {@link VRImage} naming pattern. They are written in background the first time a stimulus is
+ * loaded, and rewritten when the stimulus' length or last modification time changed.
+ * This is disabled by default, see {@link #setEnabled(boolean)}.
+ */
+
+public final class TiledSidecar {
+    private final static String TAG = "TiledSidecar";
+
+    final static String EXTENSION = ".tiles";
+
+    private final static int TILE_SIZE = 256;
+    private final static int BYTES_PER_PIXEL = 2; //RGB_565
+
+    private static volatile boolean enabled = false;
+
+    /**
+     * Paths of the stimuli whose sidecar is being written
+     */
+    private final static HashSet<String> WRITING = new HashSet<>();
+
+    private final static ExecutorService WRITER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Buffer the regions are read into before being copied into {@link Bitmap}s, grown as needed
+     */
+    private static ByteBuffer regionBuffer;
+
+    private TiledSidecar() {
+        //do nothing, this class only provides static methods
+    }
+
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param source a stimulus
+     * @return the sidecar of the given stimulus, which may not exist
+     */
+    @NonNull
+    static File sidecarOf(@NonNull File source) {
+        return new File(source.getParentFile(), source.getName() + EXTENSION);
+    }
+
+    /**
+     * Loads the {@link Bitmap}s of the given {@link VRImage} from its sidecar. If there is no valid
+     * sidecar, its writing is scheduled and null is returned, so that the caller decodes the stimulus.
+     *
+     * @param image the {@link VRImage} to load
+     * @return the {@link Bitmap}s of {@param image}, as {@link VRImage#getBitmap(android.content.Context)},
+     * or null if it has no valid sidecar yet
+     */
+    @Nullable
+    static Bitmap[] load(@NonNull VRImage image) {
+        File source = image.getFile();
+        if (source == null) {
+            return null;
+        }
+        File sidecar = sidecarOf(source);
+        if (!sidecar.exists()) {
+            scheduleWrite(source);
+            return null;
+        }
+
+        TiledImageFile.Reader reader = null;
+        try {
+            long start = System.currentTimeMillis();
+            reader = TiledImageFile.Reader.open(sidecar);
+            if (!reader.isValidFor(source) || reader.getBytesPerPixel() != BYTES_PER_PIXEL) {
+                Log.d(TAG, "Outdated sidecar for " + source.getName());
+                reader.close();
+                reader = null;
+                sidecar.delete();
+                scheduleWrite(source);
+                return null;
+            }
+            Bitmap[] bitmaps;
+            switch (image.getVrImageType()) {
+                case CUBIC:
+                    bitmaps = loadCube(reader, image.getCubeMapLayout());
+                    break;
+                case EQUIRECTANGULAR:
+                    bitmaps = new Bitmap[]{loadRegion(reader, 0, 0, reader.getWidth(), reader.getHeight())};
+                    break;
+                default:
+                    return null;
+            }
+            Log.d(TAG, "Loaded " + source.getName() + " from sidecar in " + (System.currentTimeMillis() - start) + "ms");
+            return bitmaps;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read sidecar " + sidecar, e);
+            sidecar.delete();
+            return null;
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Reads each face of the cube map directly from its cell of the {@param layout}
+     */
+    @NonNull
+    private static Bitmap[] loadCube(@NonNull TiledImageFile.Reader reader, @NonNull CubeMapLayout layout) throws IOException {
+        int faceWidth = reader.getWidth() / layout.getColumns();
+        int faceHeight = reader.getHeight() / layout.getRows();
+        Bitmap[] faces = new Bitmap[CubeMapLayout.FACE_COUNT];
+        try {
+            for (int i = 0; i < faces.length; i++) {
+                faces[i] = ImageUtils.rotateInPlace(
+                        loadRegion(reader, layout.getColumn(i) * faceWidth, layout.getRow(i) * faceHeight,
+                                faceWidth, faceHeight),
+                        layout.getRotation(i));
+            }
+        } catch (IOException e) {
+            ImageUtils.releaseBitmaps(faces);
+            throw e;
+        }
+        return faces;
+    }
+
+    @NonNull
+    private static Bitmap loadRegion(@NonNull TiledImageFile.Reader reader,
+                                     int left, int top, int width, int height) throws IOException {
+        Bitmap bitmap = ImageUtils.getBitmapPool().getOrCreate(width, height, Bitmap.Config.RGB_565);
+        synchronized (TiledSidecar.class) {
+            int size = width * height * BYTES_PER_PIXEL;
+            if (regionBuffer == null || regionBuffer.capacity() < size) {
+                regionBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            }
+            regionBuffer.clear();
+            try {
+                reader.readRegion(left, top, width, height, regionBuffer);
+            } catch (IOException | RuntimeException e) {
+                ImageUtils.getBitmapPool().put(bitmap);
+                throw e;
+            }
+            regionBuffer.flip();
+            bitmap.copyPixelsFromBuffer(regionBuffer);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Writes in background the sidecar of the given stimulus, unless it is already being written
+     */
+    private static void scheduleWrite(@NonNull final File source) {
+        synchronized (WRITING) {
+            if (!WRITING.add(source.getAbsolutePath())) {
+                return;
+            }
+        }
+        WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(source);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not write sidecar of " + source, e);
+                } finally {
+                    synchronized (WRITING) {
+                        WRITING.remove(source.getAbsolutePath());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes the stimulus on its own (it never shares a {@link Bitmap} with a displayed scene) and
+     * writes it strip by strip, converting the pixels back to {@link Bitmap.Config#RGB_565}.
+     */
+    private static void write(@NonNull File source) throws IOException {
+        long start = System.currentTimeMillis();
+        long length = source.length();
+        long modified = source.lastModified();
+
+        BitmapFactory.Options opt = new BitmapFactory.Options();
+        opt.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = BitmapFactory.decodeFile(source.getAbsolutePath(), opt);
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + source);
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] argb = new int[width * TILE_SIZE];
+        byte[] rows = new byte[width * TILE_SIZE * BYTES_PER_PIXEL];
+        boolean littleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+        try (TiledImageFile.Writer writer = new TiledImageFile.Writer(
+                sidecarOf(source), width, height, BYTES_PER_PIXEL, TILE_SIZE, length, modified)) {
+            for (int y = 0; y < height; y += TILE_SIZE) {
+                int count = Math.min(TILE_SIZE, height - y);
+                bitmap.getPixels(argb, 0, width, 0, y, width, count);
+                for (int i = 0; i < width * count; i++) {
+                    //getPixels expands each 565 component by bit replication, keeping the high bits is exact
+                    int pixel = argb[i];
+                    int rgb565 = ((pixel >> 8) & 0xF800) | ((pixel >> 5) & 0x07E0) | ((pixel >> 3) & 0x001F);
+                    rows[2 * i] = (byte) (littleEndian ? rgb565 : rgb565 >> 8);
+                    rows[2 * i + 1] = (byte) (littleEndian ? rgb565 >> 8 : rgb565);
+                }
+                writer.writeRows(rows, 0, count);
+            }
+        } finally {
+            bitmap.recycle();
+        }
+        Log.d(TAG, "Wrote sidecar of " + source.getName() + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+}
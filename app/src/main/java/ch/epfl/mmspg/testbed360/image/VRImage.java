@@ -28,7 +28,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import ch.epfl.mmspg.testbed360.R;
@@ -45,10 +44,14 @@ public class VRImage {
     private final static String TAG = "VRImage";
 
     private final static int UNKNOWN_QUALITY = -1;
-    private final static int MIN_PATTERN_GROUP_COUNT = 6;
     private final static String GRADE_PREFIX = "grade";
     private final static String QUALITY_PREFIX = "q";
-    private final static Pattern NAME_PATTERN = Pattern.compile("(.*)_(.*)_(.*)_(\\d{1,5})x(\\d{1,5})_(?:(.*)_)?(.*)\\.(?:png|jpg|jpeg)");
+
+    /**
+     * Format of the names of the stimuli. Names are parsed by {@link #tokenizeName(String)}, which
+     * unit tests check against this pattern.
+     */
+    final static Pattern NAME_PATTERN = Pattern.compile("(.*)_(.*)_(.*)_(\\d{1,5})x(\\d{1,5})_(?:(.*)_)?(.*)\\.(?:png|jpg|jpeg)");
 
     /**
      * {@link File} containing this {@link VRImage}
@@ -74,6 +77,12 @@ public class VRImage {
      */
     private VRImageType vrImageType;
 
+    /**
+     * The projection token of the file name (e.g. "cubemap32"), which also tells the
+     * {@link CubeMapLayout} of a {@link VRImageType#CUBIC} image
+     */
+    private String projection;
+
     /**
      * A {@link String} representing the name of the author
      */
@@ -94,6 +103,10 @@ public class VRImage {
      * Quality of this picture
      */
     private int quality = UNKNOWN_QUALITY;
+    /**
+     * Real size of the file, or null until read, see {@link StimulusValidator}
+     */
+    private StimulusHeader header;
 
     /**
      * Creates a new {@link VRImage} based on the given {@link File}
@@ -113,71 +126,202 @@ public class VRImage {
         Log.i(TAG, "Loaded img: " + this);
     }
 
+    /**
+     * Creates a {@link VRImage} from already parsed properties, see {@link SessionIndex}. Unlike
+     * {@link #VRImage(File)}, the file is neither checked nor parsed.
+     */
+    VRImage(@NonNull File file, @NonNull String author, @NonNull String title, @NonNull String projection,
+            int width, int height, @Nullable String codec, @NonNull ImageGrade grade, int quality) {
+        this.file = file;
+        this.author = author;
+        this.title = title;
+        this.projection = projection;
+        this.vrImageType = VRImageType.fromName(projection);
+        this.width = width;
+        this.height = height;
+        this.codec = codec;
+        this.grade = grade;
+        this.quality = quality;
+    }
+
     private VRImage(int drawableId) {
         this.drawableId = drawableId;
         initFromName("unknown_lemanlake_equirec_2250x1500_raw_q00.png");
     }
 
     /**
-     * Attempts to match the given name against the {@link #NAME_PATTERN} to extract some properties
-     * like the author name, the image resolution, a predefined {@link ImageGrade} or simply
-     * the {@link VRImageType}
+     * @param name a file name
+     * @return true if {@param name} is the name of a stimulus, i.e. a {@link VRImage} can be built from it
+     */
+    static boolean isStimulusName(@NonNull String name) {
+        return StimulusNames.matches(name);
+    }
+
+    /**
+     * Parses the given name to extract some properties like the author name, the image resolution,
+     * a predefined {@link ImageGrade} or simply the {@link VRImageType}. The name is tokenized in a
+     * single pass by {@link #tokenizeName(String)}, which gives the same result as {@link #NAME_PATTERN}.
      *
      * @param name the file name of the image
      */
     private void initFromName(@NonNull String name) {
-        Matcher matcher = NAME_PATTERN.matcher(name);
-
-
-        if (!matcher.matches() || matcher.groupCount() < MIN_PATTERN_GROUP_COUNT) {
+        int suffixStart = tokenizeName(name);
+        if (suffixStart < 0) {
             throw new IllegalArgumentException("Given name does not match pattern, name=" + name);
         }
 
-        author = matcher.group(1);
-        title = matcher.group(2);
-        vrImageType = VRImageType.fromName(matcher.group(3));
-        width = Integer.parseInt(matcher.group(4));
-        height = Integer.parseInt(matcher.group(5));
-
-        int gradeOrQualIndex = 6;
-        if (matcher.groupCount() == MIN_PATTERN_GROUP_COUNT + 1) {
-            //in this case we have a matching codec, thus the grade/quality group index must
-            //be incremented
-            codec = matcher.group(6);
-            gradeOrQualIndex++;
-        }
-        String gradeOrQuality = matcher.group(gradeOrQualIndex);
-        if (gradeOrQuality.startsWith(GRADE_PREFIX)) {
+        vrImageType = VRImageType.fromName(projection);
+
+        //the extension does not contain any dot
+        int suffixEnd = name.lastIndexOf('.');
+        if (name.startsWith(GRADE_PREFIX, suffixStart)) {
             try {
-                grade = ImageGrade.fromGrade(Integer.parseInt(gradeOrQuality.substring(GRADE_PREFIX.length())));
+                grade = ImageGrade.fromGrade(parseInt(name, suffixStart + GRADE_PREFIX.length(), suffixEnd));
             } catch (NoSuchElementException e) {
                 e.printStackTrace();
             }
-        } else if (gradeOrQuality.startsWith(QUALITY_PREFIX)) {
-            quality = Integer.parseInt(gradeOrQuality.substring(QUALITY_PREFIX.length()));
+        } else if (name.startsWith(QUALITY_PREFIX, suffixStart)) {
+            quality = parseInt(name, suffixStart + QUALITY_PREFIX.length(), suffixEnd);
+        }
+    }
+
+    /**
+     * Single pass equivalent of matching {@link #NAME_PATTERN} against the given name, which only
+     * allocates the {@link String}s it stores. Sets {@link #author}, {@link #title}, {@link #projection},
+     * {@link #width}, {@link #height} and {@link #codec} as the groups of the pattern would be.
+     * <p>
+     * As the groups of the pattern are greedy, the dimensions are the last "_WxH_" token of the name
+     * (before its extension), the projection, title and author are the fields preceding it, and the
+     * codec is everything between the dimensions and the last underscore.
+     *
+     * @param name the file name of the image
+     * @return the index of the grade or quality field in {@param name}, or -1 if it does not match
+     */
+    int tokenizeName(@NonNull String name) {
+        int stemEnd = StimulusNames.stemEnd(name);
+        int dimStart = stemEnd < 0 ? -1 : StimulusNames.dimensionsStart(name, stemEnd);
+        if (dimStart < 0) {
+            return -1;
+        }
+        int titleEnd = name.lastIndexOf('_', dimStart - 1);
+        int authorEnd = name.lastIndexOf('_', titleEnd - 1);
+        int dimEnd = StimulusNames.dimensionsEnd(name, dimStart, stemEnd);
+        int x = name.indexOf('x', dimStart);
+
+        author = name.substring(0, authorEnd);
+        title = name.substring(authorEnd + 1, titleEnd);
+        projection = name.substring(titleEnd + 1, dimStart);
+        width = parseDigits(name, dimStart + 1, x);
+        height = parseDigits(name, x + 1, dimEnd);
+
+        int codecEnd = name.lastIndexOf('_', stemEnd - 1);
+        if (codecEnd > dimEnd) {
+            codec = name.substring(dimEnd + 1, codecEnd);
+            return codecEnd + 1;
+        }
+        codec = null;
+        return dimEnd + 1;
+    }
+
+    private static int parseDigits(@NonNull String name, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + name.charAt(i) - '0';
+        }
+        return value;
+    }
+
+    /**
+     * Same as {@link Integer#parseInt(String)} applied to {@code s.substring(start, end)}, without
+     * allocating the substring
+     *
+     * @throws NumberFormatException if the characters do not represent an int
+     */
+    private static int parseInt(@NonNull String s, int start, int end) throws NumberFormatException {
+        if (start >= end) {
+            throw new NumberFormatException("For input string: \"\"");
+        }
+        boolean negative = false;
+        int limit = -Integer.MAX_VALUE;
+        int i = start;
+        char first = s.charAt(i);
+        if (first < '0') {
+            if ((first != '-' && first != '+') || end - start == 1) {
+                throw new NumberFormatException("For input string: \"" + s.substring(start, end) + "\"");
+            }
+            if (first == '-') {
+                negative = true;
+                limit = Integer.MIN_VALUE;
+            }
+            i++;
         }
+        int multmin = limit / 10;
+        int result = 0;
+        while (i < end) {
+            //accumulating negatively avoids an overflow on Integer.MIN_VALUE
+            int digit = Character.digit(s.charAt(i++), 10);
+            if (digit < 0 || result < multmin || result * 10 < limit + digit) {
+                throw new NumberFormatException("For input string: \"" + s.substring(start, end) + "\"");
+            }
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
     }
 
     /**
      * Loads and returns the {@link Bitmap}s associated to this {@link VRImage} instance.
      * Always returns a {@link Bitmap[]}, but if we have a {@link VRImageType#CUBIC} image it will be
      * of length 6, and of length 1 for {@link VRImageType#EQUIRECTANGULAR}.
+     * The {@link Bitmap}s are taken from the {@link BitmapPool} (see {@link ImageUtils#getBitmapPool()})
+     * and belong to the caller, which can give them back with {@link ImageUtils#releaseBitmaps(Bitmap[])}
+     * once they are not displayed anymore. Hence it is safe to call from a background thread,
+     * see {@link ImagePrefetcher}. If enabled, they are read from the {@link TiledSidecar} of the image.
+     * If {@link ImageUtils#isEquirectAsCubicMap()}, a {@link VRImageType#EQUIRECTANGULAR} image is
+     * also returned as the 6 faces of a cube map.
      *
      * @param context {@link Context} used to load the {@link Bitmap}s from
      * @return a {@link Bitmap[]} containing what to display; or null if this image has no {@link VRImageType}.
-     * Has length 6 if is {@link VRImageType#CUBIC} or of length 1 for {@link VRImageType#EQUIRECTANGULAR}.
+     * Has length 6 if is {@link VRImageType#CUBIC} (or converted) or of length 1 for {@link VRImageType#EQUIRECTANGULAR}.
      * @throws IOException if an error occured while attempting to get {@link Bitmap} from {@link #file}
      */
     @Nullable
     public Bitmap[] getBitmap(@NonNull Context context) throws IOException {
-        switch (vrImageType) {
-            case CUBIC:
-                return ImageUtils.loadCubicMap(this);
-            case EQUIRECTANGULAR:
-                return ImageUtils.loadSphereBitmap(this);
-            default:
-                return null;
+        Bitmap[] bitmaps = null;
+        if (TiledSidecar.isEnabled()) {
+            bitmaps = TiledSidecar.load(this);
+        }
+        if (bitmaps == null) {
+            switch (vrImageType) {
+                case CUBIC:
+                    bitmaps = ImageUtils.loadCubicMap(this);
+                    break;
+                case EQUIRECTANGULAR:
+                    bitmaps = ImageUtils.loadSphereBitmap(this);
+                    break;
+                default:
+                    return null;
+            }
+        }
+        if (vrImageType == VRImageType.EQUIRECTANGULAR && ImageUtils.isEquirectAsCubicMap()
+                && bitmaps.length == 1 && bitmaps[0] != null) {
+            bitmaps = ImageUtils.equirectToCubicMap(bitmaps[0]);
         }
+        return bitmaps;
+    }
+
+    /**
+     * @return the projection token of this image's file name
+     */
+    public String getProjection() {
+        return projection;
+    }
+
+    /**
+     * @return how the faces are arranged in this image, or null if it is not {@link VRImageType#CUBIC}
+     */
+    @Nullable
+    public CubeMapLayout getCubeMapLayout() {
+        return vrImageType == VRImageType.CUBIC ? CubeMapLayout.fromToken(projection) : null;
     }
 
     @Override
@@ -201,6 +345,20 @@ public class VRImage {
         return author;
     }
 
+    /**
+     * @return the width of this picture, as given in its file name
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of this picture, as given in its file name
+     */
+    public int getHeight() {
+        return height;
+    }
+
     /**
      * Builds and returns a slug. A slug is useful to know if two {@link VRImage}s represents
      * the same thing (i.e. image taken at the same spot, same time) even if they might differ of
@@ -215,6 +373,21 @@ public class VRImage {
         return author + ":" + title;
     }
 
+    /**
+     * @return the codec given in the file name of this picture, or null if there is none
+     */
+    @Nullable
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return the quality given in the file name of this picture, or -1 if unknown
+     */
+    public int getQuality() {
+        return quality;
+    }
+
     @NonNull
     public VRImageType getVrImageType() {
         return vrImageType;
@@ -234,6 +407,18 @@ public class VRImage {
         this.grade = grade;
     }
 
+    /**
+     * @return the real size of the file as read from its header, or null if it was not read
+     */
+    @Nullable
+    public StimulusHeader getHeader() {
+        return header;
+    }
+
+    void setHeader(@Nullable StimulusHeader header) {
+        this.header = header;
+    }
+
 
     public static class Default extends VRImage {
         public static final Default INSTANCE = new Default();
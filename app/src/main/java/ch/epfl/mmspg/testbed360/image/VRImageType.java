@@ -27,7 +27,10 @@ import java.util.NoSuchElementException;
  */
 
 public enum VRImageType {
-    CUBIC("cubemap32"),
+    /**
+     * A cube map, whose faces are arranged as described by one of the {@link CubeMapLayout}s
+     */
+    CUBIC(CubeMapLayout.tokens()),
     EQUIRECTANGULAR("equirec");
 
     private String[] names;
@@ -0,0 +1,494 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only CSV file of the grades, which survives crashes : each record is a CSV line ending with
+ * the CRC32 of the rest of the line, and is only acknowledged once forced to the storage. A crash or a
+ * battery death can therefore only leave a partial or corrupted record at the end of the file, which
+ * {@link #recover(File)} removes on the next launch, and the file stays readable as a plain CSV file.
+ * <p>
+ * {@link #append(long, String...)} only queues the record, so that it can be called from any thread.
+ * A single committer thread writes the queued records then forces them with one fsync : the records
+ * appended during an fsync are committed together by the next one (group commit), so that a record
+ * is durable after at most two fsyncs, however many are appended. The latency from the given start
+ * time (e.g. the grade press) to durability is measured, see {@link #getMaxLatencyNs()}.
+ * <p>
+ * This class only depends on the JDK, so that the GradeJournalBenchmark of the tools module can
+ * measure its commit latency.
+ */
+
+public final class GradeJournal implements Closeable {
+    /**
+     * Name of the last column of the header, holding the checksum of each record
+     */
+    public final static String CHECKSUM_COLUMN = "Checksum";
+
+    /**
+     * A record ends with ,"XXXXXXXX" then a new line, XXXXXXXX being the hexadecimal CRC32 of the
+     * bytes before the comma
+     */
+    private final static int CHECKSUM_SUFFIX_SIZE = 2 + 8 + 1;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Files opened by a journal of this process, which {@link #recover(File)} must not touch
+     */
+    private final static Set<String> OPEN_FILES = new HashSet<>();
+
+    private final File file;
+    private final FileChannel channel;
+    private final Thread committer;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private final ArrayDeque<Long> queueStarts = new ArrayDeque<>();
+    private long appendedCount = 0;
+    private long durableCount = 0;
+    private boolean closed = false;
+    private IOException error;
+
+    private long commitCount = 0;
+    private long maxLatencyNs = 0;
+    private long totalLatencyNs = 0;
+
+    private GradeJournal(File file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+        committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "GradeJournal-" + file.getName());
+        committer.setDaemon(true);
+    }
+
+    /**
+     * Opens a journal to append records to, after recovering it (see {@link #recover(File)}). The
+     * header is written if the file is new or empty.
+     *
+     * @param file    the journal file
+     * @param columns the names of the columns of the records, without {@link #CHECKSUM_COLUMN}
+     * @return the opened {@link GradeJournal}, to be closed once the session is over
+     * @throws IOException if the file could not be recovered or opened, or is already opened by
+     *                     another journal of this process
+     */
+    public static GradeJournal open(File file, String... columns) throws IOException {
+        String path = file.getAbsolutePath();
+        synchronized (OPEN_FILES) {
+            if (!OPEN_FILES.add(path)) {
+                throw new IOException(file + " is already opened");
+            }
+        }
+        RandomAccessFile raf = null;
+        try {
+            recoverFile(file);
+            raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            if (channel.size() == 0) {
+                String[] header = Arrays.copyOf(columns, columns.length + 1);
+                header[columns.length] = CHECKSUM_COLUMN;
+                writeFully(channel, ByteBuffer.wrap(formatFields(header).append('\n').toString().getBytes(UTF_8)));
+                channel.force(true);
+            }
+            channel.position(channel.size());
+            GradeJournal journal = new GradeJournal(file, channel);
+            journal.committer.start();
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            if (raf != null) {
+                raf.close();
+            }
+            synchronized (OPEN_FILES) {
+                OPEN_FILES.remove(path);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Queues a record, without waiting for it to be written : it may be called from any thread.
+     *
+     * @param startNs the {@link System#nanoTime()} from which the latency to durability is measured
+     * @param fields  the fields of the record, new lines being replaced by spaces
+     * @return the sequence number of the record, to give to {@link #awaitDurable(long, long)}, or -1
+     * if the journal is closed or failed, in which case the record is lost
+     */
+    public long append(long startNs, String... fields) {
+        StringBuilder line = formatFields(fields);
+        byte[] body = line.toString().getBytes(UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        line.append(String.format(Locale.US, ",\"%08x\"\n", crc.getValue()));
+        byte[] record = line.toString().getBytes(UTF_8);
+        synchronized (lock) {
+            if (closed || error != null) {
+                return -1;
+            }
+            queue.add(record);
+            queueStarts.add(startNs);
+            lock.notifyAll();
+            return ++appendedCount;
+        }
+    }
+
+    /**
+     * Quotes all fields like opencsv does, doubling the quotes within
+     */
+    private static StringBuilder formatFields(String[] fields) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            String field = fields[i] == null ? "" : fields[i];
+            line.append('"').append(field.replace("\"", "\"\"").replace('\n', ' ').replace('\r', ' ')).append('"');
+        }
+        return line;
+    }
+
+    /**
+     * Writes the queued records then forces them to the storage, until closed
+     */
+    private void commitLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        long[] starts = new long[16];
+        while (true) {
+            synchronized (lock) {
+                while (queue.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ignored) {
+                        //the journal is only stopped by close()
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                if (starts.length < queue.size()) {
+                    starts = new long[Math.max(queue.size(), 2 * starts.length)];
+                }
+                int count = 0;
+                while (!queue.isEmpty()) {
+                    batch.add(queue.poll());
+                    starts[count++] = queueStarts.poll();
+                }
+            }
+
+            IOException commitError = null;
+            try {
+                int size = 0;
+                for (byte[] record : batch) {
+                    size += record.length;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(size);
+                for (byte[] record : batch) {
+                    buffer.put(record);
+                }
+                buffer.flip();
+                writeFully(channel, buffer);
+                channel.force(false);
+            } catch (IOException e) {
+                commitError = e;
+            }
+            long now = System.nanoTime();
+
+            synchronized (lock) {
+                if (commitError != null) {
+                    //the records of the batch, and the ones still queued, are lost
+                    error = commitError;
+                    queue.clear();
+                    queueStarts.clear();
+                } else {
+                    commitCount++;
+                    durableCount += batch.size();
+                    for (int i = 0; i < batch.size(); i++) {
+                        long latency = now - starts[i];
+                        maxLatencyNs = Math.max(maxLatencyNs, latency);
+                        totalLatencyNs += latency;
+                    }
+                }
+                lock.notifyAll();
+                if (commitError != null) {
+                    return;
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Waits until a record is forced to the storage.
+     *
+     * @param sequence  the sequence number returned by {@link #append(long, String...)}
+     * @param timeoutMs the maximum time to wait, in milliseconds
+     * @return true if the record is durable, false if the time elapsed or the journal failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitDurable(long sequence, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        synchronized (lock) {
+            while (durableCount < sequence && error == null) {
+                long remainingMs = (deadline - System.nanoTime()) / 1000000L;
+                if (remainingMs <= 0) {
+                    return false;
+                }
+                lock.wait(remainingMs);
+            }
+            return durableCount >= sequence;
+        }
+    }
+
+    /**
+     * Commits the queued records then closes the file. Waits for the last fsync, i.e. a few
+     * milliseconds. Records appended after are lost.
+     *
+     * @throws IOException if some records could not be committed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (committer.isAlive()) {
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } finally {
+            synchronized (OPEN_FILES) {
+                OPEN_FILES.remove(file.getAbsolutePath());
+            }
+        }
+        synchronized (lock) {
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * @return the first {@link IOException} that occurred while committing, after which records are
+     * lost, or null
+     */
+    public IOException getError() {
+        synchronized (lock) {
+            return error;
+        }
+    }
+
+    /**
+     * @return the amount of records forced to the storage
+     */
+    public long getDurableCount() {
+        synchronized (lock) {
+            return durableCount;
+        }
+    }
+
+    /**
+     * @return the amount of fsyncs, at most the amount of durable records
+     */
+    public long getCommitCount() {
+        synchronized (lock) {
+            return commitCount;
+        }
+    }
+
+    /**
+     * @return the longest time between the start time of a record and its durability
+     */
+    public long getMaxLatencyNs() {
+        synchronized (lock) {
+            return maxLatencyNs;
+        }
+    }
+
+    /**
+     * @return the mean time between the start time of a record and its durability
+     */
+    public long getMeanLatencyNs() {
+        synchronized (lock) {
+            return durableCount == 0 ? 0 : totalLatencyNs / durableCount;
+        }
+    }
+
+    /**
+     * Repairs a journal left by a crash : a partial or corrupted record at the end of the file is
+     * truncated, corrupted records in the middle (which only a failing storage would cause) are
+     * removed by rewriting the file. Files without the {@link #CHECKSUM_COLUMN}, e.g. written by a
+     * previous version, and journals opened by this process are left untouched.
+     *
+     * @param file the journal file
+     * @return the amount of corrupted or partial records removed
+     * @throws IOException if the file could not be read or repaired
+     */
+    public static int recover(File file) throws IOException {
+        synchronized (OPEN_FILES) {
+            if (OPEN_FILES.contains(file.getAbsolutePath())) {
+                return 0;
+            }
+        }
+        return recoverFile(file);
+    }
+
+    private static int recoverFile(File file) throws IOException {
+        if (!file.isFile() || file.length() == 0) {
+            return 0;
+        }
+        byte[] content = readFully(file);
+        int headerEnd = indexOf(content, (byte) '\n', 0);
+        if (headerEnd < 0) {
+            //crashed while writing the header, open() writes it again
+            truncate(file, 0);
+            return 0;
+        }
+        String header = new String(content, 0, headerEnd, UTF_8);
+        if (!header.endsWith(",\"" + CHECKSUM_COLUMN + "\"")) {
+            return 0;
+        }
+
+        ByteArrayOutputStream valid = new ByteArrayOutputStream(content.length);
+        valid.write(content, 0, headerEnd + 1);
+        int validEnd = headerEnd + 1;
+        int removed = 0;
+        boolean corruptedBeforeEnd = false;
+        int start = headerEnd + 1;
+        while (start < content.length) {
+            int end = indexOf(content, (byte) '\n', start);
+            int lineEnd = end < 0 ? content.length : end;
+            if (end >= 0 && isValidRecord(content, start, lineEnd)) {
+                if (removed > 0) {
+                    corruptedBeforeEnd = true;
+                }
+                valid.write(content, start, end + 1 - start);
+                validEnd = end + 1;
+            } else {
+                removed++;
+            }
+            start = lineEnd + 1;
+        }
+        if (removed == 0) {
+            return 0;
+        }
+        if (!corruptedBeforeEnd) {
+            //only the end is damaged, as expected after a crash
+            truncate(file, validEnd);
+        } else {
+            File repaired = new File(file.getParentFile(), file.getName() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(repaired)) {
+                valid.writeTo(out);
+                out.getFD().sync();
+            }
+            if (!repaired.renameTo(file)) {
+                repaired.delete();
+                throw new IOException("Could not replace " + file);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return true if the line from {@param start} to {@param end} (excluded) ends with the checksum
+     * of its beginning
+     */
+    private static boolean isValidRecord(byte[] content, int start, int end) {
+        int bodyEnd = end - CHECKSUM_SUFFIX_SIZE;
+        if (bodyEnd <= start || content[bodyEnd] != ',' || content[bodyEnd + 1] != '"' || content[end - 1] != '"') {
+            return false;
+        }
+        long expected = 0;
+        for (int i = bodyEnd + 2; i < end - 1; i++) {
+            int digit = Character.digit(content[i], 16);
+            if (digit < 0) {
+                return false;
+            }
+            expected = (expected << 4) | digit;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content, start, bodyEnd - start);
+        return crc.getValue() == expected;
+    }
+
+    private static int indexOf(byte[] content, byte value, int from) {
+        for (int i = from; i < content.length; i++) {
+            if (content[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static void truncate(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.getChannel().truncate(size);
+            raf.getChannel().force(true);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,823 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Lossy compression of head tracks, with a guaranteed error bound, as an alternative to the 40 bytes
+ * per pose of a {@link TrackFile}. Each pose is coded against the previous one :
+ * <ul>
+ * <li>the orientation is coded as its 3 smallest quaternion components (the largest one is implied
+ * by the unit norm), each quantized on as few bits as the {@link Settings#getMaxAngleDeg()} bound
+ * allows, then stored as the difference with the previous quantized values when the largest
+ * component did not change</li>
+ * <li>the translation is quantized by {@link Settings#getTranslationStep()} then stored as the
+ * difference with the previous quantized values</li>
+ * <li>the time is stored in microseconds as the difference between two consecutive frame intervals,
+ * which is close to 0 at a steady frame rate, and the frame index as the amount of frames skipped</li>
+ * </ul>
+ * All differences are variable length integers, so a head moving slowly at 60 frames per second
+ * takes about 6 to 8 bytes per pose. As the quantized values are only ever differentiated, decoding
+ * gives back exactly the quantized pose and errors do not accumulate along the track.
+ * <p>
+ * Optionally, poses within a dead-band of the last stored one (see
+ * {@link Settings#getDeadBandAngleDeg()}) are not stored, except once every
+ * {@link Settings#getKeyframeIntervalMs()} and for the last pose of the track. Holding the previous
+ * decoded pose over the skipped frames is then within the bound plus the dead-band.
+ * <p>
+ * Poses which are not a rotation (e.g. NaN, or a quaternion whose norm is off by more than
+ * {@link #MAX_NORM_ERROR}) or out of range are stored as raw floats, and decoded unchanged.
+ * <p>
+ * Layout of a file, all numbers being little endian :
+ * <pre>
+ * header  : magic (4 bytes, "T36Z"), version (short), header size (short), quaternion bits (byte),
+ *           translation step in m (double), max angle in degrees (double), dead-band angle in
+ *           degrees (double), dead-band translation in m (double), keyframe interval in ms (long),
+ *           track id (long), epoch offset of the timestamps in ns (long), stimulus name (short
+ *           length then UTF-8)
+ * records : tag (byte : index of the largest quaternion component on bits 0-1, difference coding
+ *           of the quaternion on bit 2, raw record on bit 3), frames skipped (zigzag varint),
+ *           time difference of the frame intervals in us (zigzag varint), then either the 3
+ *           quaternion components (varints, zigzag for differences) and the 3 translation
+ *           differences (zigzag varints), or for a raw record the quaternion x, y, z, w and the
+ *           translation x, y, z (floats)
+ * </pre>
+ * Like a {@link TrackFile}, an interrupted run leaves at most a partial last record, which is
+ * ignored by the {@link Decoder}.
+ * <p>
+ * This class only depends on the JDK, so that the PoseCodecBenchmark of the tools module measures
+ * the compression ratio and throughput on recorded tracks.
+ */
+
+public final class PoseCodec {
+    /**
+     * Suffix of the compressed track files, after the track id
+     */
+    public final static String SUFFIX = "t.pz";
+
+    private final static int MAGIC = ('T' << 24) | ('3' << 16) | ('6' << 8) | 'Z';
+    private final static short VERSION = 1;
+
+    private final static int TAG_LARGEST = 0x3;
+    private final static int TAG_DELTA = 1 << 2;
+    private final static int TAG_RAW = 1 << 3;
+
+    /**
+     * Times are rounded to the microsecond, i.e. an error of at most 500ns
+     */
+    final static long TIME_UNIT_NS = 1000;
+
+    /**
+     * Quaternions whose norm is further from 1 are stored raw, as they may not be rotations at all
+     */
+    final static double MAX_NORM_ERROR = 1e-3;
+
+    /**
+     * Translations further than this amount of steps from the origin are stored raw
+     */
+    private final static double MAX_TRANSLATION_STEPS = 1L << 40;
+
+    /**
+     * Beyond 24 bits, the float precision of the decoded poses dominates the error
+     */
+    private final static int MIN_BITS = 4;
+    private final static int MAX_BITS = 24;
+
+    /**
+     * The 3 smallest components of a unit quaternion are within [-1/sqrt(2), 1/sqrt(2)]
+     */
+    private final static double HALF_SQRT2 = Math.sqrt(0.5);
+
+    /**
+     * Tag, frame and time varints, then either 3 quaternion varints of 4 bytes and 3 translation
+     * varints of 10 bytes, or 7 floats
+     */
+    private final static int MAX_RECORD_SIZE = 1 + 10 + 10 + Math.max(3 * 4 + 3 * 10, 7 * 4);
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private PoseCodec() {
+        //do nothing, this class only holds the Encoder and Decoder
+    }
+
+    /**
+     * Bounds of the error of a compressed track
+     */
+    public static final class Settings {
+        /**
+         * 0.1 degree and 1 millimeter, well below what a head mounted display can measure, with a
+         * dead-band of the same size
+         */
+        public final static Settings DEFAULT = new Settings(0.1, 0.001, 0.1, 0.001, 1000);
+
+        private final double maxAngleDeg;
+        private final double translationStep;
+        private final double deadBandAngleDeg;
+        private final double deadBandTranslation;
+        private final long keyframeIntervalMs;
+
+        /**
+         * @param maxAngleDeg         maximum angle between a pose and its decoded rotation, in degrees
+         *                            (at least 0.001)
+         * @param translationStep     quantization step of the translation, in meters, i.e. an error
+         *                            of at most half of it on each axis
+         * @param deadBandAngleDeg    poses rotated by less than this angle, in degrees, from the last
+         *                            stored one are skipped, if their translation is also within
+         *                            {@param deadBandTranslation}. 0 to store all poses
+         * @param deadBandTranslation translation under which poses may be skipped, in meters on each
+         *                            axis. 0 to store all poses
+         * @param keyframeIntervalMs  maximum time between two stored poses, in milliseconds
+         */
+        public Settings(double maxAngleDeg, double translationStep, double deadBandAngleDeg,
+                        double deadBandTranslation, long keyframeIntervalMs) {
+            if (!(maxAngleDeg >= 0.001) || !(translationStep > 0) || !(deadBandAngleDeg >= 0)
+                    || !(deadBandTranslation >= 0) || keyframeIntervalMs <= 0) {
+                throw new IllegalArgumentException("Invalid settings : " + maxAngleDeg + "deg, "
+                        + translationStep + "m, dead-band " + deadBandAngleDeg + "deg, "
+                        + deadBandTranslation + "m, keyframe " + keyframeIntervalMs + "ms");
+            }
+            this.maxAngleDeg = maxAngleDeg;
+            this.translationStep = translationStep;
+            this.deadBandAngleDeg = deadBandAngleDeg;
+            this.deadBandTranslation = deadBandTranslation;
+            this.keyframeIntervalMs = keyframeIntervalMs;
+        }
+
+        /**
+         * @return a copy of these settings without dead-band, storing every pose
+         */
+        public Settings withoutDeadBand() {
+            return new Settings(maxAngleDeg, translationStep, 0, 0, keyframeIntervalMs);
+        }
+
+        public double getMaxAngleDeg() {
+            return maxAngleDeg;
+        }
+
+        public double getTranslationStep() {
+            return translationStep;
+        }
+
+        public double getDeadBandAngleDeg() {
+            return deadBandAngleDeg;
+        }
+
+        public double getDeadBandTranslation() {
+            return deadBandTranslation;
+        }
+
+        public long getKeyframeIntervalMs() {
+            return keyframeIntervalMs;
+        }
+
+        /**
+         * Quantizing the 3 smallest components with a step s gives an error of s/2 on each, and of
+         * at most 3s/2 on the largest one derived from them (it is at least 1/2), i.e. a distance of
+         * at most sqrt(3)s between the quaternions, hence a rotation of at most 2sqrt(3)s once
+         * normalized. The step over [-1/sqrt(2), 1/sqrt(2)] is sqrt(2) / (2^bits - 2), an even amount
+         * of steps so that 0 is exact.
+         *
+         * @return the amount of bits needed per quaternion component
+         */
+        int getQuaternionBits() {
+            double steps = 2 * Math.sqrt(6) / Math.toRadians(maxAngleDeg);
+            int bits = 64 - Long.numberOfLeadingZeros((long) Math.ceil(steps) + 1);
+            return Math.max(MIN_BITS, Math.min(MAX_BITS, bits));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%sdeg %sm, dead-band %sdeg %sm, keyframe %dms",
+                    maxAngleDeg, translationStep, deadBandAngleDeg, deadBandTranslation, keyframeIntervalMs);
+        }
+    }
+
+    /**
+     * Compresses poses to a new file, through a preallocated buffer : coding a pose does not allocate.
+     * It can be given directly to {@link PoseRingBuffer#drain(PoseRingBuffer.Reader, int)}. Not thread
+     * safe, it must be used by the consumer thread only.
+     */
+    public static final class Encoder implements TrackWriter {
+        private final static int BUFFER_SIZE = 16 * 1024;
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private IOException error;
+        private long recordCount = 0;
+        private long storedCount = 0;
+
+        private final double scale;
+        private final int maxLevel;
+        private final double translationStep;
+        private final double minDeadBandCos;
+        private final double deadBandTranslation;
+        private final long keyframeIntervalNs;
+
+        /**
+         * Quantized state of the last stored pose, shared with the {@link Decoder}
+         */
+        private long prevFrame = -1;
+        private long prevTime = 0;
+        private long prevInterval = 0;
+        private int prevLargest = -1;
+        private final int[] prevComponents = new int[3];
+        private final long[] prevTranslation = new long[3];
+
+        /**
+         * Last stored pose, as given, against which the dead-band is measured
+         */
+        private boolean hasReference = false;
+        private long referenceTimeNs;
+        private final double[] reference = new double[7];
+
+        /**
+         * Last skipped pose, stored on {@link #close()} so that the track ends with its real last pose
+         */
+        private boolean hasPending = false;
+        private long pendingTimeNs;
+        private long pendingFrame;
+        private final double[] pending = new double[7];
+
+        private final double[] pose = new double[7];
+
+        /**
+         * Creates a compressed track file, replacing any existing one.
+         *
+         * @param file          the file to write
+         * @param trackId       the id of the track, see {@link TrackingTask}
+         * @param epochOffsetNs what to add to the timestamps to get nanoseconds since epoch
+         * @param stimulusName  the file name of the tracked stimulus
+         * @param settings      the error bounds
+         * @throws IOException if the file could not be created
+         */
+        public Encoder(File file, long trackId, long epochOffsetNs, String stimulusName, Settings settings) throws IOException {
+            int bits = settings.getQuaternionBits();
+            maxLevel = maxLevel(bits);
+            scale = maxLevel / (2 * HALF_SQRT2);
+            translationStep = settings.getTranslationStep();
+            double deadBandAngle = Math.toRadians(settings.getDeadBandAngleDeg());
+            //a rotation of angle a between two unit quaternions q and r means |q.r| = cos(a/2)
+            minDeadBandCos = deadBandAngle > 0 ? Math.cos(deadBandAngle / 2) : Double.POSITIVE_INFINITY;
+            deadBandTranslation = settings.getDeadBandTranslation();
+            keyframeIntervalNs = settings.getKeyframeIntervalMs() * 1000000L;
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            try {
+                channel.truncate(0);
+                ByteBuffer header = encodeHeader(bits, settings, trackId, epochOffsetNs, stimulusName);
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Codes a pose, or skips it if within the dead-band. An {@link IOException} cannot be thrown
+         * from here, it is kept and returned by {@link #getError()}, after which poses are ignored.
+         */
+        @Override
+        public void onPose(long timeNs, long frame, double qx, double qy, double qz, double qw,
+                           double tx, double ty, double tz) {
+            if (error != null) {
+                return;
+            }
+            recordCount++;
+            pose[0] = qx;
+            pose[1] = qy;
+            pose[2] = qz;
+            pose[3] = qw;
+            pose[4] = tx;
+            pose[5] = ty;
+            pose[6] = tz;
+            boolean valid = normalize(pose, translationStep);
+            if (valid && hasReference && timeNs - referenceTimeNs < keyframeIntervalNs && isWithinDeadBand()) {
+                hasPending = true;
+                pendingTimeNs = timeNs;
+                pendingFrame = frame;
+                System.arraycopy(pose, 0, pending, 0, pose.length);
+                return;
+            }
+            hasPending = false;
+            store(timeNs, frame, pose, valid);
+        }
+
+        private boolean isWithinDeadBand() {
+            double dot = Math.abs(pose[0] * reference[0] + pose[1] * reference[1]
+                    + pose[2] * reference[2] + pose[3] * reference[3]);
+            return dot >= minDeadBandCos
+                    && Math.abs(pose[4] - reference[4]) < deadBandTranslation
+                    && Math.abs(pose[5] - reference[5]) < deadBandTranslation
+                    && Math.abs(pose[6] - reference[6]) < deadBandTranslation;
+        }
+
+        private void store(long timeNs, long frame, double[] values, boolean valid) {
+            if (buffer.remaining() < MAX_RECORD_SIZE) {
+                writeBuffer();
+                if (error != null) {
+                    return;
+                }
+            }
+            int tagPosition = buffer.position();
+            buffer.put((byte) 0);
+            putZigzag(buffer, frame - prevFrame - 1);
+            long time = roundTime(timeNs);
+            long interval = time - prevTime;
+            putZigzag(buffer, interval - prevInterval);
+            prevFrame = frame;
+            prevTime = time;
+            prevInterval = interval;
+
+            int tag;
+            if (!valid) {
+                tag = TAG_RAW;
+                for (double value : values) {
+                    buffer.putFloat((float) value);
+                }
+                hasReference = false;
+            } else {
+                int largest = 0;
+                for (int i = 1; i < 4; i++) {
+                    if (Math.abs(values[i]) > Math.abs(values[largest])) {
+                        largest = i;
+                    }
+                }
+                //q and -q are the same rotation, the largest component is kept positive
+                double sign = values[largest] < 0 ? -1 : 1;
+                boolean delta = largest == prevLargest;
+                tag = largest | (delta ? TAG_DELTA : 0);
+                for (int i = 0, c = 0; i < 4; i++) {
+                    if (i == largest) {
+                        continue;
+                    }
+                    long quantized = Math.round((sign * values[i] + HALF_SQRT2) * scale);
+                    int component = (int) Math.max(0, Math.min(maxLevel, quantized));
+                    if (delta) {
+                        putZigzag(buffer, component - prevComponents[c]);
+                    } else {
+                        putVarint(buffer, component);
+                    }
+                    prevComponents[c++] = component;
+                }
+                prevLargest = largest;
+                for (int i = 0; i < 3; i++) {
+                    long quantized = Math.round(values[4 + i] / translationStep);
+                    putZigzag(buffer, quantized - prevTranslation[i]);
+                    prevTranslation[i] = quantized;
+                }
+                hasReference = true;
+                referenceTimeNs = timeNs;
+                System.arraycopy(values, 0, reference, 0, reference.length);
+            }
+            buffer.put(tagPosition, (byte) tag);
+            storedCount++;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeBuffer();
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private void writeBuffer() {
+            if (error != null) {
+                return;
+            }
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public IOException getError() {
+            return error;
+        }
+
+        /**
+         * @return the amount of poses given to this encoder, stored or skipped
+         */
+        @Override
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * @return the amount of poses stored, i.e. not skipped by the dead-band
+         */
+        public long getStoredCount() {
+            return storedCount;
+        }
+
+        /**
+         * Stores the last pose if it was skipped, then writes the buffered poses and closes the file
+         */
+        @Override
+        public void close() throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                if (hasPending && error == null) {
+                    hasPending = false;
+                    store(pendingTimeNs, pendingFrame, pending, true);
+                }
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * @return the largest quantized value of a quaternion component coded on {@param bits}
+     */
+    private static int maxLevel(int bits) {
+        return (1 << bits) - 2;
+    }
+
+    /**
+     * Normalizes the quaternion of a pose in place
+     *
+     * @param pose            quaternion x, y, z, w then translation x, y, z
+     * @param translationStep the quantization step of the translation
+     * @return false if the pose cannot be quantized and must be stored raw
+     */
+    static boolean normalize(double[] pose, double translationStep) {
+        double norm = Math.sqrt(pose[0] * pose[0] + pose[1] * pose[1] + pose[2] * pose[2] + pose[3] * pose[3]);
+        //written so that NaN is not valid
+        if (!(Math.abs(norm - 1) <= MAX_NORM_ERROR)) {
+            return false;
+        }
+        for (int i = 4; i < 7; i++) {
+            if (!(Math.abs(pose[i] / translationStep) <= MAX_TRANSLATION_STEPS)) {
+                return false;
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            pose[i] /= norm;
+        }
+        return true;
+    }
+
+    /**
+     * @return the time rounded to the closest {@link #TIME_UNIT_NS}, also for negative times
+     */
+    private static long roundTime(long timeNs) {
+        long shifted = timeNs + TIME_UNIT_NS / 2;
+        long time = shifted / TIME_UNIT_NS;
+        return shifted % TIME_UNIT_NS < 0 ? time - 1 : time;
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static void putZigzag(ByteBuffer buffer, long value) {
+        putVarint(buffer, (value << 1) ^ (value >> 63));
+    }
+
+    private static long getVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long getZigzag(ByteBuffer buffer) throws IOException {
+        long value = getVarint(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static ByteBuffer encodeHeader(int bits, Settings settings, long trackId, long epochOffsetNs,
+                                           String stimulusName) {
+        byte[] name = stimulusName.getBytes(UTF_8);
+        int size = 4 + 2 + 2 + 1 + 4 * 8 + 8 + 8 + 8 + 2 + name.length;
+        ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC)
+                .putShort(VERSION)
+                .putShort((short) size)
+                .put((byte) bits)
+                .putDouble(settings.getTranslationStep())
+                .putDouble(settings.getMaxAngleDeg())
+                .putDouble(settings.getDeadBandAngleDeg())
+                .putDouble(settings.getDeadBandTranslation())
+                .putLong(settings.getKeyframeIntervalMs())
+                .putLong(trackId)
+                .putLong(epochOffsetNs)
+                .putShort((short) name.length)
+                .put(name);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Streams the poses of a compressed track, decoding a buffer of records at a time. A partial last
+     * record is ignored. Call {@link #next()} before reading each pose.
+     */
+    public static final class Decoder implements TrackReader {
+        private final static int BUFFER_SIZE = 16 * 1024;
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+        private long end;
+        private boolean endOfFile = false;
+
+        private final Settings settings;
+        private final double step;
+        private final double translationStep;
+        private final long trackId;
+        private final long epochOffsetNs;
+        private final String stimulusName;
+
+        private long prevFrame = -1;
+        private long prevTime = 0;
+        private long prevInterval = 0;
+        private int prevLargest = -1;
+        private final int[] prevComponents = new int[3];
+        private final long[] prevTranslation = new long[3];
+
+        private long timeNs;
+        private float qx, qy, qz, qw;
+        private float tx, ty, tz;
+        private int frame;
+        private final double[] quaternion = new double[4];
+        private final int[] components = new int[3];
+        private final long[] translation = new long[3];
+
+        /**
+         * @param file the compressed track file to read
+         * @throws IOException if it could not be opened or is not a compressed track file
+         */
+        public Decoder(File file) throws IOException {
+            this(file, 0, -1);
+        }
+
+        /**
+         * @param file   the file holding the compressed track
+         * @param offset the position of the track in the file, see {@link TrackContainer}
+         * @param length the length of the track, or -1 up to the end of the file
+         * @throws IOException if it could not be opened or is not a compressed track file
+         */
+        Decoder(File file, long offset, long length) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            int headerSize;
+            try {
+                position = offset;
+                end = length < 0 ? channel.size() : offset + length;
+                buffer.limit(8);
+                fill();
+                if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+                    throw new IOException("Not a compressed track file");
+                }
+                if (buffer.getShort() > VERSION) {
+                    throw new IOException("Compressed track file written by a newer version");
+                }
+                headerSize = buffer.getShort() & 0xFFFF;
+                buffer.clear();
+                buffer.limit(headerSize);
+                position = offset;
+                endOfFile = false;
+                fill();
+                if (buffer.remaining() < headerSize) {
+                    throw new IOException("Truncated compressed track file header");
+                }
+                buffer.position(8);
+                int bits = buffer.get();
+                if (bits < MIN_BITS || bits > MAX_BITS) {
+                    throw new IOException("Invalid quaternion bits " + bits);
+                }
+                step = 2 * HALF_SQRT2 / maxLevel(bits);
+                translationStep = buffer.getDouble();
+                double maxAngleDeg = buffer.getDouble();
+                double deadBandAngleDeg = buffer.getDouble();
+                double deadBandTranslation = buffer.getDouble();
+                long keyframeIntervalMs = buffer.getLong();
+                settings = new Settings(maxAngleDeg, translationStep, deadBandAngleDeg,
+                        deadBandTranslation, keyframeIntervalMs);
+                trackId = buffer.getLong();
+                epochOffsetNs = buffer.getLong();
+                byte[] name = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(name);
+                stimulusName = new String(name, UTF_8);
+            } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+                raf.close();
+                throw e instanceof IOException ? (IOException) e : new IOException("Invalid compressed track file header", e);
+            }
+            position = offset + headerSize;
+            endOfFile = position >= end;
+            buffer.clear();
+            buffer.limit(0);
+        }
+
+        /**
+         * Reads from the file until the buffer is full or the track ends
+         */
+        private void fill() throws IOException {
+            if (end - position < buffer.remaining()) {
+                buffer.limit(buffer.position() + (int) (end - position));
+            }
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+            }
+            endOfFile = position >= end || buffer.hasRemaining();
+            buffer.flip();
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (buffer.remaining() < MAX_RECORD_SIZE && !endOfFile) {
+                buffer.compact();
+                fill();
+            }
+            if (!buffer.hasRemaining()) {
+                return false;
+            }
+            try {
+                decode();
+            } catch (BufferUnderflowException e) {
+                //as the buffer is refilled before each record, only a partial last record underflows
+                buffer.position(buffer.limit());
+                return false;
+            }
+            return true;
+        }
+
+        private void decode() throws IOException {
+            int tag = buffer.get();
+            long frameIndex = prevFrame + 1 + getZigzag(buffer);
+            long interval = prevInterval + getZigzag(buffer);
+            long time = prevTime + interval;
+
+            if ((tag & TAG_RAW) != 0) {
+                qx = buffer.getFloat();
+                qy = buffer.getFloat();
+                qz = buffer.getFloat();
+                qw = buffer.getFloat();
+                tx = buffer.getFloat();
+                ty = buffer.getFloat();
+                tz = buffer.getFloat();
+            } else {
+                int largest = tag & TAG_LARGEST;
+                boolean delta = (tag & TAG_DELTA) != 0;
+                if (delta && largest != prevLargest) {
+                    throw new IOException("Difference coded quaternion without reference");
+                }
+                for (int c = 0; c < 3; c++) {
+                    components[c] = (int) (delta ? prevComponents[c] + getZigzag(buffer) : getVarint(buffer));
+                }
+                for (int i = 0; i < 3; i++) {
+                    translation[i] = prevTranslation[i] + getZigzag(buffer);
+                }
+                //the state is only updated once the whole record is read
+                System.arraycopy(components, 0, prevComponents, 0, 3);
+                System.arraycopy(translation, 0, prevTranslation, 0, 3);
+                prevLargest = largest;
+
+                double sum = 0;
+                for (int i = 0, c = 0; i < 4; i++) {
+                    if (i != largest) {
+                        double value = components[c++] * step - HALF_SQRT2;
+                        quaternion[i] = value;
+                        sum += value * value;
+                    }
+                }
+                quaternion[largest] = Math.sqrt(Math.max(0, 1 - sum));
+                double norm = Math.sqrt(sum + quaternion[largest] * quaternion[largest]);
+                qx = (float) (quaternion[0] / norm);
+                qy = (float) (quaternion[1] / norm);
+                qz = (float) (quaternion[2] / norm);
+                qw = (float) (quaternion[3] / norm);
+                tx = (float) (translation[0] * translationStep);
+                ty = (float) (translation[1] * translationStep);
+                tz = (float) (translation[2] * translationStep);
+            }
+            prevFrame = frameIndex;
+            prevInterval = interval;
+            prevTime = time;
+            frame = (int) frameIndex;
+            timeNs = time * TIME_UNIT_NS;
+        }
+
+        /**
+         * @return the error bounds the track was compressed with
+         */
+        public Settings getSettings() {
+            return settings;
+        }
+
+        @Override
+        public long getTrackId() {
+            return trackId;
+        }
+
+        @Override
+        public long getEpochOffsetNs() {
+            return epochOffsetNs;
+        }
+
+        @Override
+        public String getStimulusName() {
+            return stimulusName;
+        }
+
+        @Override
+        public long getTimeNs() {
+            return timeNs;
+        }
+
+        @Override
+        public float getQx() {
+            return qx;
+        }
+
+        @Override
+        public float getQy() {
+            return qy;
+        }
+
+        @Override
+        public float getQz() {
+            return qz;
+        }
+
+        @Override
+        public float getQw() {
+            return qw;
+        }
+
+        @Override
+        public float getTx() {
+            return tx;
+        }
+
+        @Override
+        public float getTy() {
+            return ty;
+        }
+
+        @Override
+        public float getTz() {
+            return tz;
+        }
+
+        @Override
+        public int getFrame() {
+            return frame;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
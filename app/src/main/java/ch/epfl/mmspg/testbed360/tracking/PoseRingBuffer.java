@@ -0,0 +1,162 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring buffer of head poses, with a single producer (the GL thread, once per rendered frame,
+ * see {@link ch.epfl.mmspg.testbed360.VRViewRenderer#onNewFrame(com.google.vrtoolkit.cardboard.HeadTransform)})
+ * and a single consumer (the writer thread of a {@link TrackingTask}). Poses are stored in
+ * preallocated primitive arrays, so that neither side allocates. When the buffer is full, the new pose
+ * is dropped and counted (see {@link #getDroppedCount()}) rather than blocking the GL thread.
+ * <p>
+ * The producer writes a slot then publishes it by an ordered write of {@link #head}, the consumer
+ * reads the slots up to {@link #head} then frees them by an ordered write of {@link #tail} : each
+ * index is only written by one thread, hence no compare-and-set is needed.
+ */
+
+public final class PoseRingBuffer {
+    /**
+     * Values of a pose : quaternion (x, y, z, w) then translation (x, y, z)
+     */
+    private final static int POSE_STRIDE = 7;
+
+    /**
+     * Receives the poses drained by {@link #drain(Reader, int)}, on the consumer thread
+     */
+    public interface Reader {
+        /**
+         * @param timeNs  {@link System#nanoTime()} of the frame
+         * @param frame   index of the frame, counted by the producer
+         * @param qx      x of the orientation quaternion
+         * @param qy      y of the orientation quaternion
+         * @param qz      z of the orientation quaternion
+         * @param qw      w of the orientation quaternion
+         * @param tx      x of the head translation
+         * @param ty      y of the head translation
+         * @param tz      z of the head translation
+         */
+        void onPose(long timeNs, long frame, double qx, double qy, double qz, double qw,
+                    double tx, double ty, double tz);
+    }
+
+    private final int mask;
+    private final long[] times;
+    private final long[] frames;
+    private final double[] poses;
+
+    /**
+     * Index of the next slot to write, only written by the producer
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Index of the next slot to read, only written by the consumer
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Last value of {@link #tail} seen by the producer, so that it only reads {@link #tail} when the
+     * buffer looks full
+     */
+    private long cachedTail = 0;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity the amount of poses the buffer can hold, rounded up to a power of 2
+     */
+    public PoseRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive : " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        times = new long[size];
+        frames = new long[size];
+        poses = new double[size * POSE_STRIDE];
+    }
+
+    /**
+     * Publishes a pose. Must only be called by the producer thread.
+     *
+     * @return false if the buffer was full, in which case the pose is dropped and counted
+     */
+    public boolean offer(long timeNs, long frame, double qx, double qy, double qz, double qw,
+                         double tx, double ty, double tz) {
+        long index = head.get();
+        if (index - cachedTail > mask) {
+            cachedTail = tail.get();
+            if (index - cachedTail > mask) {
+                dropped.lazySet(dropped.get() + 1);
+                return false;
+            }
+        }
+        int slot = (int) (index & mask);
+        times[slot] = timeNs;
+        frames[slot] = frame;
+        int offset = slot * POSE_STRIDE;
+        poses[offset] = qx;
+        poses[offset + 1] = qy;
+        poses[offset + 2] = qz;
+        poses[offset + 3] = qw;
+        poses[offset + 4] = tx;
+        poses[offset + 5] = ty;
+        poses[offset + 6] = tz;
+        head.lazySet(index + 1);
+        return true;
+    }
+
+    /**
+     * Hands the available poses, oldest first, to the given {@link Reader}, then frees their slots.
+     * Must only be called by the consumer thread.
+     *
+     * @param reader   the {@link Reader} to give the poses to
+     * @param maxCount the maximum amount of poses to drain
+     * @return the amount of poses drained
+     */
+    public int drain(Reader reader, int maxCount) {
+        long start = tail.get();
+        long end = Math.min(head.get(), start + maxCount);
+        for (long index = start; index < end; index++) {
+            int slot = (int) (index & mask);
+            int offset = slot * POSE_STRIDE;
+            reader.onPose(times[slot], frames[slot],
+                    poses[offset], poses[offset + 1], poses[offset + 2], poses[offset + 3],
+                    poses[offset + 4], poses[offset + 5], poses[offset + 6]);
+        }
+        tail.lazySet(end);
+        return (int) (end - start);
+    }
+
+    /**
+     * @return the amount of poses that could not be published because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the amount of poses the buffer can hold
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,138 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latest head pose (orientation quaternion, head translation, time and frame), published once per
+ * frame by a single writer (the GL thread, see
+ * {@link ch.epfl.mmspg.testbed360.VRViewRenderer#onNewFrame(com.google.vrtoolkit.cardboard.HeadTransform)})
+ * and read by any thread, so that no thread reads the camera of Rajawali while the GL thread moves it
+ * for each eye. Unlike the {@link PoseRingBuffer}, readers only get the last pose, and any amount of
+ * readers can read it.
+ * <p>
+ * The pose is protected by a sequence lock : the writer makes the sequence odd, writes the values,
+ * then makes it even again. A reader copies the values between two reads of the sequence, and
+ * retries if it changed or was odd, hence it never sees a pose mixing two frames. Neither side locks
+ * nor allocates, and the writer never waits for the readers.
+ */
+
+public final class PoseSnapshot {
+    private final static int SEQUENCE = 0;
+    private final static int TIME = 1;
+    private final static int FRAME = 2;
+    /**
+     * Index of the first value of the pose : quaternion (x, y, z, w) then translation (x, y, z), as
+     * raw bits of doubles
+     */
+    private final static int POSE = 3;
+    private final static int SIZE = POSE + 7;
+
+    /**
+     * Values are written by ordered writes, which cannot be reordered with the previous writes, and
+     * read with volatile semantics, so that the reads of the values cannot be reordered with the reads
+     * of the sequence
+     */
+    private final AtomicLongArray values = new AtomicLongArray(SIZE);
+
+    /**
+     * Sequence written by the writer only, which avoids reading it back
+     */
+    private long sequence = 0;
+
+    /**
+     * Publishes a pose. Must only be called by the writer thread.
+     *
+     * @param timeNs {@link System#nanoTime()} of the frame
+     * @param frame  index of the frame, counted by the writer
+     * @param qx     x of the orientation quaternion
+     * @param qy     y of the orientation quaternion
+     * @param qz     z of the orientation quaternion
+     * @param qw     w of the orientation quaternion
+     * @param tx     x of the head translation
+     * @param ty     y of the head translation
+     * @param tz     z of the head translation
+     */
+    public void publish(long timeNs, long frame, double qx, double qy, double qz, double qw,
+                        double tx, double ty, double tz) {
+        values.lazySet(SEQUENCE, ++sequence);
+        values.lazySet(TIME, timeNs);
+        values.lazySet(FRAME, frame);
+        values.lazySet(POSE, Double.doubleToRawLongBits(qx));
+        values.lazySet(POSE + 1, Double.doubleToRawLongBits(qy));
+        values.lazySet(POSE + 2, Double.doubleToRawLongBits(qz));
+        values.lazySet(POSE + 3, Double.doubleToRawLongBits(qw));
+        values.lazySet(POSE + 4, Double.doubleToRawLongBits(tx));
+        values.lazySet(POSE + 5, Double.doubleToRawLongBits(ty));
+        values.lazySet(POSE + 6, Double.doubleToRawLongBits(tz));
+        values.lazySet(SEQUENCE, ++sequence);
+    }
+
+    /**
+     * Hands a consistent copy of the last pose to the given {@link PoseRingBuffer.Reader}. Can be
+     * called from any thread, retries while the pose is being published.
+     *
+     * @param reader the {@link PoseRingBuffer.Reader} to give the pose to
+     * @return false if no pose was published yet, in which case the reader is not called
+     */
+    public boolean read(PoseRingBuffer.Reader reader) {
+        while (true) {
+            long start = values.get(SEQUENCE);
+            if (start == 0) {
+                return false;
+            }
+            if ((start & 1) != 0) {
+                //being published, only takes a few nanoseconds
+                Thread.yield();
+                continue;
+            }
+            long timeNs = values.get(TIME);
+            long frame = values.get(FRAME);
+            long qx = values.get(POSE);
+            long qy = values.get(POSE + 1);
+            long qz = values.get(POSE + 2);
+            long qw = values.get(POSE + 3);
+            long tx = values.get(POSE + 4);
+            long ty = values.get(POSE + 5);
+            long tz = values.get(POSE + 6);
+            if (values.get(SEQUENCE) == start) {
+                reader.onPose(timeNs, frame,
+                        Double.longBitsToDouble(qx), Double.longBitsToDouble(qy),
+                        Double.longBitsToDouble(qz), Double.longBitsToDouble(qw),
+                        Double.longBitsToDouble(tx), Double.longBitsToDouble(ty),
+                        Double.longBitsToDouble(tz));
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the index of the frame of the last pose, or -1 if none was published yet
+     */
+    public long getFrame() {
+        return values.get(SEQUENCE) == 0 ? -1 : values.get(FRAME);
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} of the last pose, or -1 if none was published yet
+     */
+    public long getTimeNs() {
+        return values.get(SEQUENCE) == 0 ? -1 : values.get(TIME);
+    }
+}
@@ -0,0 +1,671 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Single file holding all the tracks of a session, instead of one file per graded stimulus : after a
+ * study, a tracking folder would otherwise hold tens of thousands of small files, which are very slow
+ * to copy through MTP. Each track is written to its own file while it is recorded (see
+ * {@link TrackingTask}), then appended to the container as a segment once complete and its file
+ * deleted.
+ * <p>
+ * The container is append-only. Layout of a file, all numbers being little endian :
+ * <pre>
+ * header  : {@link #HEADER_SIZE} bytes at the beginning, rewritten after each segment : magic
+ *           (4 bytes, "T36C"), version (short), run count (int), segment count (int), length of
+ *           the segments (long), offset of the last index segment (long, -1 if none), CRC32 of
+ *           the previous fields (int)
+ * segment : magic (4 bytes, "T36S"), type (byte, {@link #TYPE_RUN}, {@link #TYPE_TRACK} or
+ *           {@link #TYPE_INDEX}), run id (long), track id (long), stimulus name and suffix of the
+ *           track file (short length then UTF-8 each), payload length (long), payload CRC32 (int),
+ *           CRC32 of the previous fields (int), then the payload
+ * </pre>
+ * A track payload is the unmodified content of its {@link TrackFile} or {@link PoseCodec} file, so
+ * that {@link #exportLegacy(File)} gives back the files of the previous layout. A run segment is
+ * appended when a run starts, so that the run count is read from the header only, see
+ * {@link #readRunCount(File)}. An index segment, listing the stimulus name, track id, offset and
+ * length of every track, is appended when the container is closed, so that opening it does not need
+ * to read every segment. After a crash, the segments following the last index are checked against
+ * their CRC32, and a partial last segment is truncated.
+ * <p>
+ * This class only depends on the JDK, so that the TrackContainerTool of the tools module exports a
+ * container to the per-file layout on a computer.
+ */
+
+public final class TrackContainer implements Closeable {
+    /**
+     * Name of the container in the tracking folder of a session
+     */
+    public final static String FILE_NAME = "tracks.t36";
+
+    private final static int MAGIC = ('T' << 24) | ('3' << 16) | ('6' << 8) | 'C';
+    private final static int SEGMENT_MAGIC = ('T' << 24) | ('3' << 16) | ('6' << 8) | 'S';
+    private final static short VERSION = 1;
+
+    final static int HEADER_SIZE = 64;
+    private final static int HEADER_FIELDS_SIZE = 4 + 2 + 4 + 4 + 8 + 8;
+
+    /**
+     * Start of a run, i.e. of a grade journal, see {@link TrackingTask}
+     */
+    final static byte TYPE_RUN = 1;
+    /**
+     * A track, whose payload is a {@link TrackFile} or a {@link PoseCodec} file
+     */
+    final static byte TYPE_TRACK = 2;
+    /**
+     * The list of the tracks and the run count up to this segment
+     */
+    final static byte TYPE_INDEX = 3;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A track of the container
+     */
+    public static final class Entry {
+        private final long runId;
+        private final long trackId;
+        private final String stimulusName;
+        private final String suffix;
+        private final long offset;
+        private final long length;
+
+        Entry(long runId, long trackId, String stimulusName, String suffix, long offset, long length) {
+            this.runId = runId;
+            this.trackId = trackId;
+            this.stimulusName = stimulusName;
+            this.suffix = suffix;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return the id of the run, i.e. the name of its grade journal
+         */
+        public long getRunId() {
+            return runId;
+        }
+
+        public long getTrackId() {
+            return trackId;
+        }
+
+        public String getStimulusName() {
+            return stimulusName;
+        }
+
+        /**
+         * @return the suffix of the track file, {@link TrackFile#SUFFIX} or {@link PoseCodec#SUFFIX}
+         */
+        public String getSuffix() {
+            return suffix;
+        }
+
+        /**
+         * @return the position of the track in the container
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return trackId + suffix + " (" + stimulusName + ", run " + runId + ", " + length + " bytes)";
+        }
+    }
+
+    /**
+     * Decoded segment header
+     */
+    private static final class Segment {
+        byte type;
+        long runId;
+        long trackId;
+        String stimulusName;
+        String suffix;
+        long payloadLength;
+        int payloadCrc;
+        long payloadOffset;
+
+        long end() {
+            return payloadOffset + payloadLength;
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final boolean writable;
+    private final List<Entry> entries = new ArrayList<>();
+    private int runCount = 0;
+    private int segmentCount = 0;
+    private long length = HEADER_SIZE;
+    private long indexOffset = -1;
+    /**
+     * Whether segments were appended since the last index segment
+     */
+    private boolean dirty = false;
+
+    private TrackContainer(File file, FileChannel channel, boolean writable) {
+        this.file = file;
+        this.channel = channel;
+        this.writable = writable;
+    }
+
+    /**
+     * Opens a container, creating it if needed and writable. After a crash, the segments following
+     * the last index are read again, and a partial last segment is truncated if writable.
+     *
+     * @param file            the container file
+     * @param writable        true to append tracks
+     * @param initialRunCount the amount of runs recorded before the container was created, in the
+     *                        per-file layout
+     * @return the opened {@link TrackContainer}
+     * @throws IOException if it could not be opened or is not a container
+     */
+    public static TrackContainer open(File file, boolean writable, int initialRunCount) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        TrackContainer container = new TrackContainer(file, raf.getChannel(), writable);
+        try {
+            if (writable && container.channel.size() == 0) {
+                container.runCount = initialRunCount;
+                container.writeHeader();
+                //keeps the initial run count if the header is corrupted
+                container.appendSegment(TYPE_INDEX, 0, 0, "", "", container.encodeIndex(), null, 0);
+            } else {
+                container.load();
+            }
+            return container;
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a container to read it
+     *
+     * @param file the container file
+     * @return the opened {@link TrackContainer}
+     * @throws IOException if it could not be opened or is not a container
+     */
+    public static TrackContainer open(File file) throws IOException {
+        return open(file, false, 0);
+    }
+
+    /**
+     * Reads the amount of runs of a container from its header only.
+     *
+     * @param file the container file
+     * @return the amount of runs, or -1 if the file does not exist or its header is invalid
+     */
+    public static int readRunCount(File file) {
+        if (!file.isFile()) {
+            return -1;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer header = readHeader(raf.getChannel());
+            return header == null ? -1 : header.getInt(6);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the header, positioned at its beginning, or null if it is missing or corrupted
+     */
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_FIELDS_SIZE + 4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != MAGIC || header.getShort(4) > VERSION) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, HEADER_FIELDS_SIZE);
+        return (int) crc.getValue() == header.getInt(HEADER_FIELDS_SIZE) ? header : null;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC)
+                .putShort(VERSION)
+                .putInt(runCount)
+                .putInt(segmentCount)
+                .putLong(length)
+                .putLong(indexOffset);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, HEADER_FIELDS_SIZE);
+        header.putInt((int) crc.getValue());
+        header.position(0);
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * Reads the last index segment, then the segments appended after it. A segment is committed
+     * once the header has been rewritten with the new length, the bytes after it being truncated.
+     * If the header is corrupted, every segment is read again and checked against its CRC32.
+     */
+    private void load() throws IOException {
+        ByteBuffer header = readHeader(channel);
+        long position = HEADER_SIZE;
+        long committed = channel.size();
+        if (header != null) {
+            committed = Math.min(header.getLong(14), committed);
+            long headerIndex = header.getLong(22);
+            if (headerIndex >= HEADER_SIZE) {
+                Segment index = readSegment(headerIndex, false);
+                if (index != null && index.type == TYPE_INDEX) {
+                    readIndex(index);
+                    indexOffset = headerIndex;
+                    position = index.end();
+                }
+            }
+        } else if (channel.size() < 4 || readInt(0) != MAGIC) {
+            throw new IOException(file + " is not a track container");
+        }
+        while (position < committed) {
+            Segment segment = readSegment(position, header == null);
+            if (segment == null || segment.end() > committed) {
+                break;
+            }
+            if (segment.type == TYPE_RUN) {
+                runCount++;
+            } else if (segment.type == TYPE_TRACK) {
+                entries.add(new Entry(segment.runId, segment.trackId, segment.stimulusName, segment.suffix,
+                        segment.payloadOffset, segment.payloadLength));
+            } else if (segment.type == TYPE_INDEX) {
+                entries.clear();
+                readIndex(segment);
+                indexOffset = position;
+            }
+            if (segment.type != TYPE_INDEX) {
+                //the index segment is counted by readIndex()
+                segmentCount++;
+            }
+            position = segment.end();
+            dirty = segment.type != TYPE_INDEX;
+        }
+        length = position;
+        if (header != null && length == header.getLong(14)) {
+            //also holds the runs recorded before the container was created
+            runCount = header.getInt(6);
+            segmentCount = header.getInt(10);
+        }
+        if (writable && (header == null || length < channel.size())) {
+            channel.truncate(length);
+            writeHeader();
+            channel.force(true);
+        }
+    }
+
+    private int readInt(long position) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, in, position);
+        return in.getInt(0);
+    }
+
+    private void readIndex(Segment index) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate((int) index.payloadLength).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, in, index.payloadOffset);
+        runCount = in.getInt();
+        segmentCount = in.getInt();
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            long runId = in.getLong();
+            long trackId = in.getLong();
+            String stimulusName = getString(in);
+            String suffix = getString(in);
+            long offset = in.getLong();
+            long length = in.getLong();
+            entries.add(new Entry(runId, trackId, stimulusName, suffix, offset, length));
+        }
+        //the index segment itself
+        segmentCount++;
+    }
+
+    /**
+     * @param position     the position of the segment
+     * @param checkPayload true to check the CRC32 of the payload, i.e. to read it entirely
+     * @return the segment, or null if it is partial or corrupted
+     */
+    private Segment readSegment(long position, boolean checkPayload) throws IOException {
+        long available = channel.size() - position;
+        int fixedSize = 4 + 1 + 8 + 8 + 2;
+        if (available < fixedSize) {
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.allocate((int) Math.min(available, fixedSize + 2 * 0xFFFF + 2 + 8 + 4 + 4))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, in, position);
+        try {
+            if (in.getInt() != SEGMENT_MAGIC) {
+                return null;
+            }
+            Segment segment = new Segment();
+            segment.type = in.get();
+            segment.runId = in.getLong();
+            segment.trackId = in.getLong();
+            segment.stimulusName = getString(in);
+            segment.suffix = getString(in);
+            segment.payloadLength = in.getLong();
+            segment.payloadCrc = in.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(in.array(), 0, in.position());
+            if ((int) crc.getValue() != in.getInt()) {
+                return null;
+            }
+            segment.payloadOffset = position + in.position();
+            if (segment.payloadLength < 0 || segment.end() > channel.size()) {
+                return null;
+            }
+            if (checkPayload && payloadCrc(segment.payloadOffset, segment.payloadLength) != segment.payloadCrc) {
+                return null;
+            }
+            return segment;
+        } catch (java.nio.BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private int payloadCrc(long offset, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long end = offset + length;
+        while (offset < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("Truncated segment");
+            }
+            crc.update(buffer.array(), 0, read);
+            offset += read;
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Appends a segment then rewrites the header, each being forced to the storage
+     *
+     * @return the position of the payload
+     */
+    private long appendSegment(byte type, long runId, long trackId, String stimulusName, String suffix,
+                               ByteBuffer payload, FileChannel payloadChannel, long payloadLength) throws IOException {
+        if (!writable) {
+            throw new IOException(file + " is opened read only");
+        }
+        CRC32 payloadCrc = new CRC32();
+        if (payload != null) {
+            payloadLength = payload.remaining();
+            payloadCrc.update(payload.array(), payload.position(), payload.remaining());
+        } else {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            for (long position = 0; position < payloadLength; ) {
+                buffer.clear();
+                int read = payloadChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Track shorter than expected");
+                }
+                payloadCrc.update(buffer.array(), 0, read);
+                position += read;
+            }
+        }
+        byte[] name = stimulusName.getBytes(UTF_8);
+        byte[] suffixBytes = suffix.getBytes(UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 1 + 8 + 8 + 2 + name.length + 2 + suffixBytes.length + 8 + 4 + 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(SEGMENT_MAGIC)
+                .put(type)
+                .putLong(runId)
+                .putLong(trackId)
+                .putShort((short) name.length).put(name)
+                .putShort((short) suffixBytes.length).put(suffixBytes)
+                .putLong(payloadLength)
+                .putInt((int) payloadCrc.getValue());
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, header.position());
+        header.putInt((int) crc.getValue());
+        header.flip();
+
+        long segmentStart = length;
+        long position = segmentStart;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+        long payloadOffset = position;
+        if (payload != null) {
+            while (payload.hasRemaining()) {
+                position += channel.write(payload, position);
+            }
+        } else {
+            for (long copied = 0; copied < payloadLength; ) {
+                long transferred = payloadChannel.transferTo(copied, payloadLength - copied, channel.position(position));
+                if (transferred <= 0) {
+                    throw new IOException("Could not copy the track");
+                }
+                copied += transferred;
+                position += transferred;
+            }
+        }
+        channel.force(false);
+
+        length = position;
+        segmentCount++;
+        if (type == TYPE_RUN) {
+            runCount++;
+        } else if (type == TYPE_INDEX) {
+            indexOffset = segmentStart;
+        }
+        writeHeader();
+        channel.force(false);
+        dirty = type != TYPE_INDEX;
+        return payloadOffset;
+    }
+
+    /**
+     * Records the start of a run, see {@link #getRunCount()}
+     *
+     * @param runId the id of the run, i.e. the name of its grade journal
+     * @throws IOException if it could not be written
+     */
+    public synchronized void beginRun(long runId) throws IOException {
+        appendSegment(TYPE_RUN, runId, 0, "", "", ByteBuffer.allocate(0), null, 0);
+    }
+
+    /**
+     * Appends a complete track file, which can be deleted afterwards.
+     *
+     * @param runId        the id of the run the track belongs to
+     * @param trackId      the id of the track
+     * @param stimulusName the file name of the tracked stimulus
+     * @param suffix       the suffix of the track file, {@link TrackFile#SUFFIX} or {@link PoseCodec#SUFFIX}
+     * @param track        the track file
+     * @return the {@link Entry} of the track
+     * @throws IOException if the track could not be read or appended
+     */
+    public synchronized Entry appendTrack(long runId, long trackId, String stimulusName, String suffix, File track) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(track, "r")) {
+            FileChannel trackChannel = raf.getChannel();
+            long trackLength = trackChannel.size();
+            long offset = appendSegment(TYPE_TRACK, runId, trackId, stimulusName, suffix, null, trackChannel, trackLength);
+            Entry entry = new Entry(runId, trackId, stimulusName, suffix, offset, trackLength);
+            entries.add(entry);
+            return entry;
+        }
+    }
+
+    /**
+     * @return the amount of runs recorded in the session, including the ones before the container
+     * was created
+     */
+    public synchronized int getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * @return all the tracks, in the order they were appended
+     */
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    /**
+     * @param trackId the id of a track
+     * @return its {@link Entry}, or null if it is not in the container
+     */
+    public synchronized Entry getEntry(long trackId) {
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            if (entries.get(i).trackId == trackId) {
+                return entries.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param stimulusName the file name of a stimulus
+     * @return the {@link Entry}s of its tracks, in all runs
+     */
+    public synchronized List<Entry> findTracks(String stimulusName) {
+        List<Entry> found = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.stimulusName.equals(stimulusName)) {
+                found.add(entry);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads a single track, without reading the others
+     *
+     * @param entry an {@link Entry} of this container
+     * @return a {@link TrackReader} of its poses, to be closed
+     * @throws IOException if it could not be opened
+     */
+    public TrackReader openTrack(Entry entry) throws IOException {
+        if (entry.suffix.equals(PoseCodec.SUFFIX)) {
+            return new PoseCodec.Decoder(file, entry.offset, entry.length);
+        }
+        return new TrackFile.Reader(file, entry.offset, entry.length);
+    }
+
+    /**
+     * Writes every track to its own file, named as in the per-file layout : track id then suffix
+     *
+     * @param dir the folder to write the tracks to
+     * @return the amount of tracks written
+     * @throws IOException if a track could not be written
+     */
+    public synchronized int exportLegacy(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        for (Entry entry : entries) {
+            File track = new File(dir, entry.trackId + entry.suffix);
+            try (FileOutputStream out = new FileOutputStream(track)) {
+                FileChannel outChannel = out.getChannel();
+                for (long copied = 0; copied < entry.length; ) {
+                    long transferred = channel.transferTo(entry.offset + copied, entry.length - copied, outChannel);
+                    if (transferred <= 0) {
+                        throw new IOException("Could not copy " + entry);
+                    }
+                    copied += transferred;
+                }
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * Appends an index segment if tracks were appended since the last one, then closes the file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            if (writable && dirty) {
+                appendSegment(TYPE_INDEX, 0, 0, "", "", encodeIndex(), null, 0);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private ByteBuffer encodeIndex() {
+        int size = 4 + 4 + 4;
+        for (Entry entry : entries) {
+            size += 8 + 8 + 2 + entry.stimulusName.getBytes(UTF_8).length + 2 + entry.suffix.getBytes(UTF_8).length + 8 + 8;
+        }
+        ByteBuffer index = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        index.putInt(runCount).putInt(segmentCount).putInt(entries.size());
+        for (Entry entry : entries) {
+            index.putLong(entry.runId).putLong(entry.trackId);
+            putString(index, entry.stimulusName);
+            putString(index, entry.suffix);
+            index.putLong(entry.offset).putLong(entry.length);
+        }
+        index.flip();
+        return index;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated track container");
+            }
+        }
+        buffer.flip();
+    }
+}
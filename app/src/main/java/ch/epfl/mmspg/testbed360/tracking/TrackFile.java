@@ -0,0 +1,491 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Binary file of the head poses tracked while a stimulus is displayed, see {@link TrackingTask}. Each
+ * pose is a fixed width record, so a track is 40 bytes per frame instead of about 60 bytes of text for
+ * the Euler angles only, and orientations are stored as quaternions, which do not suffer from gimbal
+ * lock. Files are append-only : an interrupted run leaves at most a partial last record, which is
+ * ignored by the {@link Reader}.
+ * <p>
+ * Layout of a file, all numbers being little endian :
+ * <pre>
+ * header  : magic (4 bytes, "T36T"), version (short), header size (short), record size (short),
+ *           field count (short), then for each field : type (byte, 'J' long, 'I' int, 'F' float)
+ *           and name (byte length then ASCII), then track id (long), epoch offset of the
+ *           timestamps in ns (long), stimulus name (short length then UTF-8)
+ * records : time in ns (long), orientation quaternion x, y, z, w (floats),
+ *           head translation x, y, z (floats), frame index (int)
+ * </pre>
+ * The fields are described in the header so that a {@link Reader} can tell what a file holds, and
+ * records written by a later version with more fields at their end can still be read.
+ * <p>
+ * This class only depends on the JDK, so that tracks are exported to CSV for analysis on a desktop
+ * by the TrackFileTool of the tools module, including the ones compressed by {@link PoseCodec}.
+ */
+
+public final class TrackFile {
+    /**
+     * Suffix of the track files, after the track id
+     */
+    public final static String SUFFIX = "t.bin";
+
+    private final static int MAGIC = ('T' << 24) | ('3' << 16) | ('6' << 8) | 'T';
+    private final static short VERSION = 1;
+
+    private final static String[] FIELD_NAMES = {"time_ns", "qx", "qy", "qz", "qw", "tx", "ty", "tz", "frame"};
+    private final static byte[] FIELD_TYPES = {'J', 'F', 'F', 'F', 'F', 'F', 'F', 'F', 'I'};
+    final static int RECORD_SIZE = 8 + 7 * 4 + 4;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private TrackFile() {
+        //do nothing, this class only holds the Writer and Reader
+    }
+
+    /**
+     * Appends poses to a {@link TrackFile}, through a preallocated buffer : writing a pose does not
+     * allocate. It can be given directly to {@link PoseRingBuffer#drain(PoseRingBuffer.Reader, int)}.
+     * Not thread safe, it must be used by the consumer thread only.
+     */
+    public static final class Writer implements TrackWriter {
+        private final static int BUFFER_RECORDS = 128;
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        private IOException error;
+        private long recordCount = 0;
+
+        /**
+         * Opens a track file to append poses to, writing its header if it is new or empty.
+         *
+         * @param file          the file to write
+         * @param trackId       the id of the track, see {@link TrackingTask}
+         * @param epochOffsetNs what to add to the timestamps to get nanoseconds since epoch
+         * @param stimulusName  the file name of the tracked stimulus
+         * @throws IOException if the file could not be opened, or has another format
+         */
+        public Writer(File file, long trackId, long epochOffsetNs, String stimulusName) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            try {
+                if (channel.size() == 0) {
+                    ByteBuffer header = encodeHeader(trackId, epochOffsetNs, stimulusName);
+                    while (header.hasRemaining()) {
+                        channel.write(header);
+                    }
+                } else {
+                    Header header = Header.read(channel, 0);
+                    if (header.recordSize != RECORD_SIZE) {
+                        throw new IOException("Cannot append to " + file + " with records of " + header.recordSize + " bytes");
+                    }
+                    //drop a partial last record, if any
+                    long records = (channel.size() - header.size) / RECORD_SIZE;
+                    channel.truncate(header.size + records * RECORD_SIZE);
+                }
+                channel.position(channel.size());
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Appends a pose. An {@link IOException} cannot be thrown from here, it is kept and returned
+         * by {@link #getError()}, after which poses are ignored.
+         */
+        @Override
+        public void onPose(long timeNs, long frame, double qx, double qy, double qz, double qw,
+                           double tx, double ty, double tz) {
+            if (error != null) {
+                return;
+            }
+            buffer.putLong(timeNs)
+                    .putFloat((float) qx).putFloat((float) qy).putFloat((float) qz).putFloat((float) qw)
+                    .putFloat((float) tx).putFloat((float) ty).putFloat((float) tz)
+                    .putInt((int) frame);
+            recordCount++;
+            if (!buffer.hasRemaining()) {
+                writeBuffer();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeBuffer();
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private void writeBuffer() {
+            if (error != null) {
+                return;
+            }
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public IOException getError() {
+            return error;
+        }
+
+        @Override
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static ByteBuffer encodeHeader(long trackId, long epochOffsetNs, String stimulusName) {
+        byte[] name = stimulusName.getBytes(UTF_8);
+        int size = 4 + 2 + 2 + 2 + 2;
+        for (String field : FIELD_NAMES) {
+            size += 1 + 1 + field.length();
+        }
+        size += 8 + 8 + 2 + name.length;
+
+        ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC)
+                .putShort(VERSION)
+                .putShort((short) size)
+                .putShort((short) RECORD_SIZE)
+                .putShort((short) FIELD_NAMES.length);
+        for (int i = 0; i < FIELD_NAMES.length; i++) {
+            header.put(FIELD_TYPES[i]);
+            header.put((byte) FIELD_NAMES[i].length());
+            header.put(FIELD_NAMES[i].getBytes(UTF_8));
+        }
+        header.putLong(trackId)
+                .putLong(epochOffsetNs)
+                .putShort((short) name.length)
+                .put(name);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Decoded header of a {@link TrackFile}
+     */
+    private static final class Header {
+        private int size;
+        private int recordSize;
+        private String[] fieldNames;
+        private long trackId;
+        private long epochOffsetNs;
+        private String stimulusName;
+
+        /**
+         * @param channel the channel of the file
+         * @param offset  the position of the track in the file, see {@link TrackContainer}
+         */
+        static Header read(FileChannel channel, long offset) throws IOException {
+            ByteBuffer start = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, start, offset);
+            if (start.getInt() != MAGIC) {
+                throw new IOException("Not a track file");
+            }
+            if (start.getShort() > VERSION) {
+                throw new IOException("Track file written by a newer version");
+            }
+            Header header = new Header();
+            header.size = start.getShort() & 0xFFFF;
+            if (header.size < 8) {
+                throw new IOException("Invalid header size " + header.size);
+            }
+
+            ByteBuffer in = ByteBuffer.allocate(header.size).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, in, offset);
+            in.position(8);
+            header.recordSize = in.getShort() & 0xFFFF;
+            header.fieldNames = new String[in.getShort() & 0xFFFF];
+            for (int i = 0; i < header.fieldNames.length; i++) {
+                in.get(); //type
+                byte[] name = new byte[in.get() & 0xFF];
+                in.get(name);
+                header.fieldNames[i] = new String(name, UTF_8);
+            }
+            if (header.recordSize < RECORD_SIZE || header.fieldNames.length < FIELD_NAMES.length
+                    || !Arrays.equals(Arrays.copyOf(header.fieldNames, FIELD_NAMES.length), FIELD_NAMES)) {
+                throw new IOException("Unknown record fields " + Arrays.toString(header.fieldNames));
+            }
+            header.trackId = in.getLong();
+            header.epochOffsetNs = in.getLong();
+            byte[] name = new byte[in.getShort() & 0xFFFF];
+            in.get(name);
+            header.stimulusName = new String(name, UTF_8);
+            return header;
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    throw new IOException("Truncated track file header");
+                }
+            }
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Streams the poses of a {@link TrackFile}, a buffer of records at a time. A partial last record
+     * is ignored. Call {@link #next()} before reading each pose.
+     */
+    public static final class Reader implements TrackReader {
+        private final static int BUFFER_RECORDS = 1024;
+
+        private final FileChannel channel;
+        private final Header header;
+        private final ByteBuffer buffer;
+        private final long offset;
+        private long position;
+        private final long end;
+
+        private long timeNs;
+        private float qx, qy, qz, qw;
+        private float tx, ty, tz;
+        private int frame;
+
+        /**
+         * @param file the track file to read
+         * @throws IOException if it could not be opened or is not a track file
+         */
+        public Reader(File file) throws IOException {
+            this(file, 0, -1);
+        }
+
+        /**
+         * @param file   the file holding the track
+         * @param offset the position of the track in the file
+         * @param length the length of the track, or -1 up to the end of the file
+         * @throws IOException if it could not be opened or is not a track file
+         */
+        Reader(File file, long offset, long length) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            try {
+                header = Header.read(channel, offset);
+                if (length < 0) {
+                    length = channel.size() - offset;
+                }
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+            this.offset = offset;
+            position = offset + header.size;
+            end = position + (length - header.size) / header.recordSize * header.recordSize;
+            buffer = ByteBuffer.allocate(BUFFER_RECORDS * header.recordSize).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.limit(0);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (!buffer.hasRemaining()) {
+                if (position >= end) {
+                    return false;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, position + buffer.position());
+                    if (read < 0) {
+                        throw new IOException("Track file truncated while reading");
+                    }
+                }
+                position += buffer.limit();
+                buffer.flip();
+            }
+            int recordStart = buffer.position();
+            timeNs = buffer.getLong();
+            qx = buffer.getFloat();
+            qy = buffer.getFloat();
+            qz = buffer.getFloat();
+            qw = buffer.getFloat();
+            tx = buffer.getFloat();
+            ty = buffer.getFloat();
+            tz = buffer.getFloat();
+            frame = buffer.getInt();
+            //skips the fields added by later versions
+            buffer.position(recordStart + header.recordSize);
+            return true;
+        }
+
+        @Override
+        public long getTrackId() {
+            return header.trackId;
+        }
+
+        @Override
+        public long getEpochOffsetNs() {
+            return header.epochOffsetNs;
+        }
+
+        @Override
+        public String getStimulusName() {
+            return header.stimulusName;
+        }
+
+        /**
+         * @return the names of the fields of the records, as described by the header
+         */
+        public String[] getFieldNames() {
+            return header.fieldNames.clone();
+        }
+
+        /**
+         * @return the amount of complete poses in the file
+         */
+        public long getRecordCount() {
+            return (end - offset - header.size) / header.recordSize;
+        }
+
+        @Override
+        public long getTimeNs() {
+            return timeNs;
+        }
+
+        @Override
+        public float getQx() {
+            return qx;
+        }
+
+        @Override
+        public float getQy() {
+            return qy;
+        }
+
+        @Override
+        public float getQz() {
+            return qz;
+        }
+
+        @Override
+        public float getQw() {
+            return qw;
+        }
+
+        @Override
+        public float getTx() {
+            return tx;
+        }
+
+        @Override
+        public float getTy() {
+            return ty;
+        }
+
+        @Override
+        public float getTz() {
+            return tz;
+        }
+
+        @Override
+        public int getFrame() {
+            return frame;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * @param track a track file, either a {@link TrackFile} or compressed by {@link PoseCodec}
+     * @return a {@link TrackReader} of its poses
+     * @throws IOException if it could not be opened or has an unknown format
+     */
+    public static TrackReader open(File track) throws IOException {
+        if (track.getName().endsWith(PoseCodec.SUFFIX)) {
+            return new PoseCodec.Decoder(track);
+        }
+        return new Reader(track);
+    }
+
+    /**
+     * @param name a file name
+     * @return true if it is the name of a {@link TrackFile} or of a file compressed by {@link PoseCodec}
+     */
+    public static boolean isTrackName(String name) {
+        return name.endsWith(SUFFIX) || name.endsWith(PoseCodec.SUFFIX);
+    }
+
+    /**
+     * Exports a track file to CSV, one line per pose with its time since epoch in milliseconds.
+     *
+     * @param track  the track file to read, see {@link #open(File)}
+     * @param output where the CSV is written
+     * @return the amount of poses exported
+     * @throws IOException if the track could not be read or the CSV written
+     */
+    public static long exportCsv(File track, Appendable output) throws IOException {
+        try (TrackReader reader = open(track)) {
+            return exportCsv(reader, output);
+        }
+    }
+
+    /**
+     * Same as {@link #exportCsv(File, Appendable)}, from an opened {@link TrackReader}
+     */
+    static long exportCsv(TrackReader reader, Appendable output) throws IOException {
+        output.append("EpochMs,TimeNs,Frame,Qx,Qy,Qz,Qw,Tx,Ty,Tz\n");
+        long count = 0;
+        while (reader.next()) {
+            output.append(String.format(Locale.US, "%.3f,%d,%d,%s,%s,%s,%s,%s,%s,%s\n",
+                    (reader.getTimeNs() + reader.getEpochOffsetNs()) / 1e6,
+                    reader.getTimeNs(), reader.getFrame(),
+                    reader.getQx(), reader.getQy(), reader.getQz(), reader.getQw(),
+                    reader.getTx(), reader.getTy(), reader.getTz()));
+            count++;
+        }
+        return count;
+    }
+}
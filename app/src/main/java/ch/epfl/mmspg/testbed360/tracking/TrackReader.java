@@ -0,0 +1,66 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Streams the head poses of a track, see {@link TrackFile.Reader} and {@link PoseCodec.Decoder}.
+ * Call {@link #next()} before reading each pose.
+ */
+
+public interface TrackReader extends Closeable {
+    /**
+     * Moves to the next pose
+     *
+     * @return false if there is no pose left
+     * @throws IOException if the file could not be read
+     */
+    boolean next() throws IOException;
+
+    long getTrackId();
+
+    /**
+     * @return what to add to {@link #getTimeNs()} to get nanoseconds since epoch
+     */
+    long getEpochOffsetNs();
+
+    /**
+     * @return the file name of the tracked stimulus
+     */
+    String getStimulusName();
+
+    long getTimeNs();
+
+    float getQx();
+
+    float getQy();
+
+    float getQz();
+
+    float getQw();
+
+    float getTx();
+
+    float getTy();
+
+    float getTz();
+
+    int getFrame();
+}
@@ -0,0 +1,47 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes the head poses of a track, see {@link TrackFile.Writer} and {@link PoseCodec.Encoder}. It is
+ * given the poses by {@link PoseRingBuffer#drain(PoseRingBuffer.Reader, int)}, on the consumer thread
+ * only.
+ */
+
+public interface TrackWriter extends PoseRingBuffer.Reader, Closeable {
+    /**
+     * Writes the buffered poses to the file, without forcing them to the storage.
+     *
+     * @throws IOException if they could not be written, see {@link #getError()}
+     */
+    void flush() throws IOException;
+
+    /**
+     * @return the first {@link IOException} that occurred while writing, after which poses are
+     * ignored, or null
+     */
+    IOException getError();
+
+    /**
+     * @return the amount of poses given to this writer
+     */
+    long getRecordCount();
+}
@@ -23,25 +23,37 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import com.opencsv.CSVWriter;
-
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Locale;
 
 import ch.epfl.mmspg.testbed360.VRScene;
 import ch.epfl.mmspg.testbed360.VRViewActivity;
+import ch.epfl.mmspg.testbed360.VRViewRenderer;
 import ch.epfl.mmspg.testbed360.image.ImageGrade;
+import ch.epfl.mmspg.testbed360.image.ImagesSession;
 import ch.epfl.mmspg.testbed360.image.VRImage;
 
 /**
  * Represents an {@link AsyncTask} responsible for logging all movements/rotation of the head to a
  * log file for the {@link #vrScene} associated. Its lifecycle starts with its creation, which needs
  * a given {@link #vrScene} that should be in {@link VRScene#MODE_EVALUATION}.
- * Then the {@link VRScene} can {@link #startTracking()} when it is ready. When the user gives the
+ * Then the {@link VRScene} can {@link #startTracking()} once it is shown. When the user gives the
  * {@link VRScene#vrImage} a grade (see {@link VRScene#setGrade(ImageGrade)}, the task is stopped by
- * calling {@link #stopTracking()}, which will cause the task to call {@link #onPostExecute(VRImage)}
- * so that the grade is logged too.
+ * calling {@link #stopTracking()}, which wakes up the task so that it writes the last poses and logs
+ * the grade right away.
+ * <p>
+ * Grades are logged in a {@link GradeJournal}, where each record is checksummed and forced to the
+ * storage by a committer thread, so that a crash loses at most the grades not yet committed and
+ * cannot corrupt the file. Journals left by a crash are repaired on the next launch, see
+ * {@link #recoverJournals(File)}.
+ * <p>
+ * The head pose is not polled : the {@link VRViewRenderer} publishes it once per rendered frame into
+ * the {@link #poses} ring buffer, which this task drains by batches in background. Poses dropped
+ * because the buffer was full are counted and logged with the grade. Tracks are written as
+ * {@link TrackFile}s, or compressed by a {@link PoseCodec} if enabled, see {@link #setCompression(PoseCodec.Settings)}.
+ * Once complete, a track is moved into the {@link TrackContainer} of the session, so that the
+ * tracking folder does not end up with thousands of small files.
  *
  * @author Louis-Maxence Garret <louis-maxence.garret@epfl.ch>
  * @date 17/11/2017
@@ -61,93 +73,202 @@ public class TrackingTask extends AsyncTask<VRScene, String[], VRImage> {
     private final static long SESSION_TRACK_ID = System.currentTimeMillis();
 
     /**
-     * The delay between logs of rotation of the {@link VRScene#getCamera()}
+     * The delay between two drains of the {@link #poses}, which hold {@link #POSE_CAPACITY} frames
+     */
+    private final static long DRAIN_DELAY = 100;
+
+    /**
+     * About 8 seconds at 60 frames per second, so that a slow storage does not drop poses
      */
-    private final static long LOOP_DELAY = 33;
+    private final static int POSE_CAPACITY = 512;
+
+    private final static int DRAIN_BATCH = 64;
 
     /**
-     * The {@link CSVWriter} used to log every grades of images. The same used through the app, as
-     * the implementation of {@link CSVWriter} does not allow to write, close and reopen to append new
-     * lines (will erase previous content instead).
+     * Drops the poses when the {@link TrackFile} could not be opened
+     */
+    private final static PoseRingBuffer.Reader DISCARD = new PoseRingBuffer.Reader() {
+        @Override
+        public void onPose(long timeNs, long frame, double qx, double qy, double qz, double qw,
+                           double tx, double ty, double tz) {
+        }
+    };
+
+    /**
+     * The error bounds of the {@link PoseCodec} compressing the tracks, or null to write them as
+     * {@link TrackFile}s
+     */
+    @Nullable
+    private static volatile PoseCodec.Settings compression = null;
+
+    /**
+     * The columns of the grade records, see {@link #logGrade(String, ImageGrade, long, long, long, long)}
+     */
+    private final static String[] GRADE_COLUMNS = {"ImageName", "Grade", "TrackID", "ShuffleSeed", "Participant", "DroppedPoses", "GradeFrame"};
+
+    /**
+     * The {@link GradeJournal} used to log every grades of images, opened by the first task of the
+     * session. Written from the tasks' background threads.
      * Is closed whenever the {@link ch.epfl.mmspg.testbed360.VRViewActivity} is being destroyed
      * see {@link VRViewActivity#onDestroy()}
      */
-    private static CSVWriter SESSION_TRACK_CSV_WRITER;
+    private static volatile GradeJournal SESSION_JOURNAL;
 
     /**
-     * The track id associated to the displayed {@link VRScene}. Used to name the file containing logs
-     * of the camera's rotation (see {@link #getTrackFile(long, Context)}, and thus uniquely identify
-     * the file containing data we want for a given {@link VRScene}.
+     * The {@link TrackContainer} holding the tracks of the session, opened and closed along with the
+     * {@link #SESSION_JOURNAL}. Appended to from the tasks' background threads.
      */
-    private long trackId;
+    private static volatile TrackContainer SESSION_CONTAINER;
 
     /**
-     * Used to log the {@link VRScene#getCamera()} rotation angles. Is initialized for every new task,
-     * and closed whenever the task has finished or is cancelled
+     * The track id associated to the displayed {@link VRScene}, i.e. the time it was shown, assigned by
+     * {@link #startTracking()}. Used to name the file containing logs of the head poses (see
+     * {@link #getTrackFile(long, String, Context)}, and thus uniquely identify the file containing data
+     * we want for a given {@link VRScene}.
+     */
+    private volatile long trackId;
+
+    /**
+     * Used to log the head poses in a {@link TrackFile}, or a file compressed by a {@link PoseCodec}.
+     * Is opened once the scene is shown, see {@link #openTrackWriter()}, and closed
+     * once the last poses are written or the task is cancelled
+     * see {@link #doInBackground(VRScene...)}
      * see {@link #onCancelled()}
-     * see {@link #onPostExecute(VRImage)}
      */
-    private CSVWriter trackCSVWriter;
+    private TrackWriter trackWriter;
+
+    /**
+     * The file written by the {@link #trackWriter}, moved into the {@link #SESSION_CONTAINER} once
+     * complete
+     */
+    private File trackFile;
+
+    /**
+     * The suffix of the {@link #trackFile}, depending on its format
+     */
+    private String trackSuffix;
+
+    /**
+     * The file name of the tracked {@link VRImage}
+     */
+    private String stimulusName;
 
     /**
      * The {@link VRScene} we are tracking.
      */
     private VRScene vrScene;
 
+    /**
+     * The {@link VRViewRenderer} publishing the head poses to {@link #poses}
+     */
+    private final VRViewRenderer renderer;
+
+    /**
+     * Head poses published by the {@link #renderer} on the GL thread and drained by
+     * {@link #doInBackground(VRScene...)}
+     */
+    private final PoseRingBuffer poses = new PoseRingBuffer(POSE_CAPACITY);
+
+    /**
+     * Converts the {@link System#nanoTime()} of the poses to nanoseconds since epoch, stored in the
+     * header of the {@link TrackFile}
+     */
+    private final long epochOffsetNs = System.currentTimeMillis() * 1000000L - System.nanoTime();
+
     /**
      * Boolean used to keep tracking or stop tracking the camera's rotation.
      */
     private volatile boolean track = true;
 
     /**
-     * Creates a new {@link TrackingTask} associated to the given {@link VRScene}.
+     * Wakes up {@link #drainPoses(TrackWriter)} when the tracking is stopped
+     */
+    private final Object wakeUp = new Object();
+
+    /**
+     * {@link System#nanoTime()} of the grade, from which the latency of its logging is measured
+     */
+    private volatile long gradeTimeNs;
+
+    /**
+     * Index of the last frame rendered when the grade was given, read from the
+     * {@link VRViewRenderer#getHeadPose()}, so that the grade can be placed in the track
+     */
+    private volatile long gradeFrame = -1;
+
+    /**
+     * Creates a new {@link TrackingTask} associated to the given {@link VRScene}. Nothing is written
+     * until the scene is shown, as it may be prepared in background and never displayed.
      *
-     * @param vrScene the {@link VRScene} in which we want the {@link VRScene#getCamera()}'s rotation
-     *                angles to be logged.
-     * @param context the app context, used to initialize our logging files
-     *                see {@link #getSessionTrackFile(Context)}
-     *                see {@link #getTrackFile(long, Context)}
+     * @param vrScene  the {@link VRScene} in which we want the {@link VRScene#getCamera()}'s rotation
+     *                 angles to be logged.
+     * @param renderer the {@link VRViewRenderer} displaying the scene, which publishes the head poses.
+     *                 Its context is used to initialize our logging files
+     *                 see {@link #getSessionTrackFile(Context)}
+     *                 see {@link #getTrackFile(long, String, Context)}
      */
-    public TrackingTask(@NonNull VRScene vrScene,@NonNull Context context) {
+    public TrackingTask(@NonNull VRScene vrScene, @NonNull VRViewRenderer renderer) {
         if (vrScene.getMode() != VRScene.MODE_EVALUATION) {
             throw new IllegalStateException("The VRScene must be in MODE_EVALUATION to be tracked");
         }
         this.vrScene = vrScene;
-
-        initSessionTrackCSVWriter(context);
-
-        trackId = System.currentTimeMillis();
-        File trackFile = getTrackFile(trackId, context);
-        try {
-            trackCSVWriter = new CSVWriter(new FileWriter(trackFile));
-            trackCSVWriter.writeNext(new String[]{"Time", "Roll", "Pitch", "Yaw"}, false);
-        } catch (IOException e) {
-            Log.e(TAG, "Cannot write to file " + trackFile);
-            e.printStackTrace();
-        }
+        this.renderer = renderer;
+        VRImage image = vrScene.getVrImage();
+        stimulusName = image != null ? image.getFile().getName() : "";
     }
 
     /**
-     * Starts tracking the {@link #vrScene}.
+     * Starts tracking the {@link #vrScene}, once it is shown : the {@link #trackId} is the current time
+     * and the poses are published from the next frame on. The files are opened by the task, so that the
+     * GL thread does not wait for the storage, the {@link #poses} holding the first frames meanwhile.
      * see {@link #doInBackground(VRScene...)}
      */
     public void startTracking() {
+        trackId = System.currentTimeMillis();
+        renderer.setPoseSink(poses);
         execute(vrScene);
     }
 
     /**
-     * Stops tracking the {@link #vrScene}
+     * Opens the {@link #SESSION_JOURNAL} if needed, and the {@link #trackWriter} of the {@link #trackId},
+     * which is left null if the file cannot be created
+     */
+    private void openTrackWriter() {
+        Context context = renderer.getContext();
+        initSessionJournal(context);
+
+        PoseCodec.Settings settings = compression;
+        trackSuffix = settings != null ? PoseCodec.SUFFIX : TrackFile.SUFFIX;
+        trackFile = getTrackFile(trackId, trackSuffix, context);
+        try {
+            trackWriter = settings != null
+                    ? new PoseCodec.Encoder(trackFile, trackId, epochOffsetNs, stimulusName, settings)
+                    : new TrackFile.Writer(trackFile, trackId, epochOffsetNs, stimulusName);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write to file " + trackFile);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops tracking the {@link #vrScene}. The poses already published are still written, then the
+     * grade is logged.
      * see {@link #doInBackground(VRScene...)}
-     * see {@link #onPostExecute(VRImage)}
      */
     public void stopTracking() {
-        track = false;
+        gradeTimeNs = System.nanoTime();
+        gradeFrame = renderer.getHeadPose().getFrame();
+        renderer.clearPoseSink(poses);
+        synchronized (wakeUp) {
+            track = false;
+            wakeUp.notifyAll();
+        }
     }
 
     /**
-     * Executes the logging on the {@link VRScene#getCamera()} in background. Its execution is stopped
-     * by changing {@link #track} to false.
-     * Rotation angles of the camera are logged at it iteration, which happens every {@link #LOOP_DELAY}
+     * Writes in background the poses published by the {@link #renderer}, by batches every
+     * {@link #DRAIN_DELAY}. Its execution is stopped by changing {@link #track} to false, after which
+     * the remaining poses are written and the grade is logged, before the track file is closed.
      *
      * @param vrScenes the {@link VRScene} to be logged. Shouldn't be null, and only the first element
      *                 is used.
@@ -159,104 +280,170 @@ public class TrackingTask extends AsyncTask<VRScene, String[], VRImage> {
         if (vrScenes[0] == null) {
             throw new IllegalArgumentException("Given VRScene was null !");
         }
-        while (track) {
-            long start = System.currentTimeMillis();
-            String[] values = new String[]{
-                    Long.toString(start),
-                    Double.toString(vrScenes[0].getCamera().getRotX()),
-                    Double.toString(vrScenes[0].getCamera().getRotY()),
-                    Double.toString(vrScenes[0].getCamera().getRotZ())
-            };
-            //we do not call publishProgress as it would overload the main thread message queue, hence
-            //onPostExecute would not be called/would be called way too late !
-            if (trackCSVWriter != null) {
-                trackCSVWriter.writeNext(values,false);
-            }
-            long end = System.currentTimeMillis();
-
-            try {
-                //ensures that we run every LOOP_DELAY ms, independent from the time to save data !
-                long sleep = LOOP_DELAY - (end - start);
-                if(sleep < 0){
-                    sleep = 0;
-                }
-                Log.d(TAG,"Delay : "+sleep);
-                Thread.sleep(sleep);
-            } catch (InterruptedException ignored) {
+        openTrackWriter();
+        if (trackWriter == null) {
+            //nowhere to write, still wait for the grade
+            while (track) {
+                drainPoses(null);
             }
+            logGrade(vrScenes[0].getVrImage());
+            return vrScenes[0].getVrImage();
+        }
+        //we do not call publishProgress as it would overload the main thread message queue, hence
+        //onPostExecute would not be called/would be called way too late !
+        while (track) {
+            drainPoses(trackWriter);
+        }
+        //the renderer does not publish anymore, write what is left
+        poses.drain(trackWriter, Integer.MAX_VALUE);
+        logGrade(vrScenes[0].getVrImage());
+        try {
+            trackWriter.close();
+            archiveTrack();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write track " + trackId);
+            e.printStackTrace();
+        }
+        if (poses.getDroppedCount() > 0) {
+            Log.w(TAG, poses.getDroppedCount() + " poses dropped for track " + trackId);
+        }
+        if (trackWriter instanceof PoseCodec.Encoder) {
+            Log.d(TAG, trackWriter.getRecordCount() + " poses compressed for track " + trackId + ", "
+                    + ((PoseCodec.Encoder) trackWriter).getStoredCount() + " stored");
+        } else {
+            Log.d(TAG, trackWriter.getRecordCount() + " poses written for track " + trackId);
         }
         return vrScenes[0].getVrImage();
     }
 
     /**
-     * Logs the {@link VRImage#getGrade()} associated to the task's {@link #trackId};
-     * then closes the {@link #trackCSVWriter}
+     * Moves the complete {@link #trackFile} into the {@link #SESSION_CONTAINER}, then deletes it.
+     * The file is kept as is if the container is not available.
      *
-     * @param result the graded {@link VRImage} of the {@link #vrScene}
+     * @throws IOException if the track could not be appended
      */
-    @Override
-    protected void onPostExecute(@Nullable VRImage result) {
-        if (result != null) {
+    private void archiveTrack() throws IOException {
+        TrackContainer container = SESSION_CONTAINER;
+        if (container == null || trackWriter.getError() != null) {
+            return;
+        }
+        long start = System.nanoTime();
+        TrackContainer.Entry entry = container.appendTrack(SESSION_TRACK_ID, trackId, stimulusName, trackSuffix, trackFile);
+        if (!trackFile.delete()) {
+            Log.w(TAG, "Cannot delete " + trackFile + ", already in " + TrackContainer.FILE_NAME);
+        }
+        Log.d(TAG, String.format(Locale.US, "Track %d moved into %s in %.1fms, %d bytes",
+                trackId, TrackContainer.FILE_NAME, (System.nanoTime() - start) / 1e6, entry.getLength()));
+    }
+
+    /**
+     * Writes the poses waiting in {@link #poses}, then sleeps {@link #DRAIN_DELAY} unless more poses
+     * may be waiting or the tracking is stopped
+     *
+     * @param writer where to write the poses, or null to discard them
+     */
+    private void drainPoses(@Nullable TrackWriter writer) {
+        int drained = poses.drain(writer != null ? writer : DISCARD, DRAIN_BATCH);
+        if (drained == DRAIN_BATCH) {
+            return;
+        }
+        if (writer != null && drained > 0) {
             try {
-                logGrade(
-                        result.getFile().getName(),
-                        result.getGrade(),
-                        trackId
-                );
-                trackCSVWriter.flush();
-                trackCSVWriter.close();
+                writer.flush();
             } catch (IOException e) {
-                e.printStackTrace();
+                //kept by the writer, which ignores the next poses
+                Log.e(TAG, "Cannot write track " + trackId, e);
             }
         }
+        synchronized (wakeUp) {
+            if (track) {
+                try {
+                    wakeUp.wait(DRAIN_DELAY);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs the {@link VRImage#getGrade()} associated to the task's {@link #trackId}. The record is
+     * only queued, it is committed by the {@link #SESSION_JOURNAL}'s own thread.
+     *
+     * @param image the graded {@link VRImage} of the {@link #vrScene}
+     */
+    private void logGrade(@Nullable VRImage image) {
+        if (image == null || image.getGrade() == null) {
+            return;
+        }
+        logGrade(
+                image.getFile().getName(),
+                image.getGrade(),
+                trackId,
+                poses.getDroppedCount(),
+                gradeFrame,
+                gradeTimeNs
+        );
     }
 
     /**
-     * Directly closes the {@link #trackCSVWriter}
+     * Directly closes the {@link #trackWriter}
      */
     @Override
     protected void onCancelled() {
+        renderer.clearPoseSink(poses);
+        if (trackWriter == null) {
+            return;
+        }
         try {
-            trackCSVWriter.flush();
-            trackCSVWriter.close();
+            trackWriter.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Chooses whether the tracks of the next {@link TrackingTask}s are compressed. The compressed
+     * tracks are smaller and their error is bounded by {@param settings}, see {@link PoseCodec}.
+     *
+     * @param settings the error bounds of the compression (e.g. {@link PoseCodec.Settings#DEFAULT}),
+     *                 or null to write lossless {@link TrackFile}s
+     */
+    public static void setCompression(@Nullable PoseCodec.Settings settings) {
+        compression = settings;
+    }
+
+    @Nullable
+    public static PoseCodec.Settings getCompression() {
+        return compression;
+    }
+
     /**
      * Initializes and creates all the necessary folder structure to hold the {@link File} used to
      * track, with id trackId to name and identify it.
      *
      * @param trackId the id used to name the file. see {@link #trackId}
+     * @param suffix  the suffix of the file, depending on its format
      * @param context {@link Context} used to init and create files and folders
      * @return a writable {@link File}, in which data can be logged data !
      */
     @NonNull
-    private static File getTrackFile(long trackId, @NonNull Context context) {
+    private static File getTrackFile(long trackId, @NonNull String suffix, @NonNull Context context) {
         File trackDir = new File(VRViewActivity.getCurrentSession().getSessionDir(), TRACKING_DIR);
         trackDir.mkdirs();
 
-        File trackFile = new File(trackDir, Long.toString(trackId) + "t"); //Getting a file within the dir.
+        File trackFile = new File(trackDir, Long.toString(trackId) + suffix); //Getting a file within the dir.
         Log.d(TAG, "Writing to " + trackFile);
-        if (!trackFile.exists()) {
-            try {
-                trackFile.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
         return trackFile;
     }
 
     /**
-     * Works pretty much like {@link #getTrackFile(long, Context)}, but with the difference that this
-     * file will hold information written by {@link #logGrade(String, ImageGrade, long)}, so that a
+     * Works pretty much like {@link #getTrackFile(long, String, Context)}, but with the difference that this
+     * file will hold information written by {@link #logGrade(String, ImageGrade, long, long, long, long)}, so that a
      * human reading this file can identify the {@link VRImage} viewed, the grade it was given, and
      * the name of the file that contains the logging of camera angles (see {@link #trackId}.
      *
      * @param context {@link Context} used to init and create files and folders
-     * @return a writable {@link File}, in which {@link ImageGrade} and {@link #trackId}s can be logged!
+     * @return the {@link File} of the {@link GradeJournal}, in which {@link ImageGrade} and {@link #trackId}s can be logged!
      */
     @NonNull
     private static File getSessionTrackFile(@NonNull Context context) {
@@ -265,69 +452,161 @@ public class TrackingTask extends AsyncTask<VRScene, String[], VRImage> {
 
         File trackFile = new File(trackDir, Long.toString(SESSION_TRACK_ID) + "g"); //Getting a file within the dir.
         Log.d(TAG, "Writing to " + trackFile);
-        if (!trackFile.exists()) {
-            try {
-                trackFile.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
         return trackFile;
     }
 
     /**
-     * Creates if necessary (=is null) the {@link CSVWriter} used to log {@link ImageGrade}s and
-     * associated {@link #trackId}s.
-     * see {@link #SESSION_TRACK_CSV_WRITER}
+     * Opens if necessary (=is null) the {@link GradeJournal} used to log {@link ImageGrade}s and
+     * associated {@link #trackId}s, along with the {@link TrackContainer} of the session, in which
+     * the run is recorded.
+     * see {@link #SESSION_JOURNAL}
+     * see {@link #SESSION_CONTAINER}
      *
      * @param context see {@link #getSessionTrackFile(Context)}
      */
-    private static void initSessionTrackCSVWriter(@NonNull Context context) {
+    private static synchronized void initSessionJournal(@NonNull Context context) {
+        if (SESSION_JOURNAL != null) {
+            return;
+        }
+        File trackDir = new File(VRViewActivity.getCurrentSession().getSessionDir(), TRACKING_DIR);
+        trackDir.mkdirs();
+        File containerFile = new File(trackDir, TrackContainer.FILE_NAME);
+        //the runs recorded before the container existed are the grade files
+        int legacyRuns = containerFile.exists() ? 0 : countJournals(trackDir);
+
         File sessionTrackFile = getSessionTrackFile(context);
+        //the grade file is reopened if the activity is recreated
+        boolean newRun = !sessionTrackFile.exists();
         try {
-            if (SESSION_TRACK_CSV_WRITER == null) {
-                SESSION_TRACK_CSV_WRITER = new CSVWriter(new FileWriter(sessionTrackFile));
-                SESSION_TRACK_CSV_WRITER.writeNext(new String[]{"ImageName","Grade","TrackID"});
-            }
+            SESSION_JOURNAL = GradeJournal.open(sessionTrackFile, GRADE_COLUMNS);
         } catch (IOException e) {
             Log.e(TAG, "Cannot write to file " + sessionTrackFile);
             e.printStackTrace();
+            return;
+        }
+
+        try {
+            SESSION_CONTAINER = TrackContainer.open(containerFile, true, legacyRuns);
+            if (newRun) {
+                SESSION_CONTAINER.beginRun(SESSION_TRACK_ID);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write to file " + containerFile + ", tracks are kept in their own files");
+            e.printStackTrace();
+            closeContainer();
+        }
+    }
+
+    /**
+     * Commits the last grades and closes the {@link #SESSION_JOURNAL} and the {@link #SESSION_CONTAINER}.
+     * Should be only called when the evaluation of all images is done or the app is destroyed. Waits
+     * for the last fsync.
+     * see {@link #SESSION_JOURNAL}
+     */
+    public static synchronized void closeSessionJournal() {
+        GradeJournal journal = SESSION_JOURNAL;
+        if (journal == null) {
+            return;
+        }
+        SESSION_JOURNAL = null;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Some grades could not be committed");
+            e.printStackTrace();
         }
+        closeContainer();
+        Log.i(TAG, String.format(Locale.US, "%d grades committed with %d fsyncs, grade to durability %.1fms mean, %.1fms max",
+                journal.getDurableCount(), journal.getCommitCount(),
+                journal.getMeanLatencyNs() / 1e6, journal.getMaxLatencyNs() / 1e6));
     }
 
     /**
-     * Flushes and closes the {@link #SESSION_TRACK_CSV_WRITER}. Should be only called when the evaluation
-     * of all images is done or the app is destroyed.
-     * see {@link #SESSION_TRACK_CSV_WRITER}
+     * Closes the {@link #SESSION_CONTAINER}, which writes its index
      */
-    public static void closeSessionTrackCSVWriter() {
+    private static synchronized void closeContainer() {
+        TrackContainer container = SESSION_CONTAINER;
+        if (container == null) {
+            return;
+        }
+        SESSION_CONTAINER = null;
         try {
-            SESSION_TRACK_CSV_WRITER.flush();
-            SESSION_TRACK_CSV_WRITER.close();
+            container.close();
         } catch (IOException e) {
+            Log.e(TAG, "Cannot write the index of " + TrackContainer.FILE_NAME);
             e.printStackTrace();
         }
     }
 
+    /**
+     * @param trackDir the tracking folder of a session
+     * @return the amount of grade files in it, i.e. of runs
+     */
+    private static int countJournals(@NonNull File trackDir) {
+        String[] names = trackDir.list();
+        int count = 0;
+        if (names != null) {
+            for (String name : names) {
+                if (ImagesSession.isTrackName(name)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Repairs the grade journals of a session left by a crash, see {@link GradeJournal#recover(File)}.
+     * Called once per launch, when the sessions are listed.
+     *
+     * @param sessionDir the folder of a session
+     */
+    public static void recoverJournals(@NonNull File sessionDir) {
+        File[] files = new File(sessionDir, TRACKING_DIR).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!ImagesSession.isTrackName(file.getName())) {
+                continue;
+            }
+            try {
+                int removed = GradeJournal.recover(file);
+                if (removed > 0) {
+                    Log.w(TAG, "Removed " + removed + " partial or corrupted grades from " + file);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot recover " + file);
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Logs to the same file the name of a {@link VRImage}'s file, its associated {@link ImageGrade}
      * and the {@link #trackId} that will allow us to get info about the {@link #vrScene}'s camera
-     * angles during its evaluation.
+     * angles during its evaluation, along with the seed of the evaluation order of the session (or the
+     * participant number of its precomputed order, see {@link ch.epfl.mmspg.testbed360.image.PlaylistGenerator}).
      *
-     * @param imgName  the {@link VRImage}'s {@link File}'s name
-     * @param imgGrade the {@link ImageGrade} given to the {@link VRImage}
-     * @param trackId  see {@link #trackId}
+     * @param imgName      the {@link VRImage}'s {@link File}'s name
+     * @param imgGrade     the {@link ImageGrade} given to the {@link VRImage}
+     * @param trackId      see {@link #trackId}
+     * @param droppedPoses the amount of poses missing from the track, see {@link PoseRingBuffer#getDroppedCount()}
+     * @param gradeFrame   the index of the frame at which the grade was given, see {@link PoseSnapshot#getFrame()}
+     * @param gradeTimeNs  the {@link System#nanoTime()} of the grade, see {@link GradeJournal#getMaxLatencyNs()}
      */
-    private static void logGrade(@NonNull String imgName, @NonNull ImageGrade imgGrade, long trackId) {
-        SESSION_TRACK_CSV_WRITER.writeNext(new String[]{
+    private static void logGrade(@NonNull String imgName, @NonNull ImageGrade imgGrade, long trackId,
+                                 long droppedPoses, long gradeFrame, long gradeTimeNs) {
+        GradeJournal journal = SESSION_JOURNAL;
+        if (journal == null || journal.append(gradeTimeNs,
                 imgName,
                 Integer.toString(imgGrade.toInt()),
-                Long.toString(trackId)
-        });
-        try {
-            SESSION_TRACK_CSV_WRITER.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+                Long.toString(trackId),
+                Long.toString(VRViewActivity.getCurrentSession().getShuffleSeed()),
+                Integer.toString(VRViewActivity.getCurrentSession().getPlaylistParticipant()),
+                Long.toString(droppedPoses),
+                Long.toString(gradeFrame)) < 0) {
+            Log.e(TAG, "Cannot log grade " + imgGrade + " of " + imgName + " for track " + trackId);
         }
     }
 }
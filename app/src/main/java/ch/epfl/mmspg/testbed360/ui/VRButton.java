@@ -116,8 +116,19 @@ public class VRButton extends RectangularPrism implements VRUI {
     private volatile boolean isEnabled = true;
     private boolean isRecycled = false;
 
+    /**
+     * Last color given to {@link #setBackground(int)}, so that {@link #reset(boolean)} only redraws
+     * when needed
+     */
+    private int backgroundColor = BUTTON_BG_COLOR;
+
     private VRMenu parentMenu;
 
+    /**
+     * Returned by {@link #getPosition()}, kept as a field so that hovering does not allocate
+     */
+    private final Vector3 absolutePosition = new Vector3();
+
     private Vibrator vibrator;
 
     private boolean isSquare;
@@ -277,6 +288,7 @@ public class VRButton extends RectangularPrism implements VRUI {
      */
     private void setBackground(int color) {
         if (layoutView != null) {
+            backgroundColor = color;
             layoutView.setBackgroundColor(color);
             redraw();
         }
@@ -324,6 +336,24 @@ public class VRButton extends RectangularPrism implements VRUI {
         }
     }
 
+    /**
+     * Puts the button back in a resting state, neither hovered nor clicked, so that a pooled
+     * {@link VRMenu} can be shown again in another scene (see
+     * {@link VRMenuFactory#obtainEvaluationGradeMenu(org.rajawali3d.renderer.Renderer, ch.epfl.mmspg.testbed360.VRScene)}).
+     * The {@link #texture} is only redrawn if the background changes.
+     *
+     * @param selected if the button should be selected, only applies if it is selectable
+     */
+    void reset(boolean selected) {
+        isHovered = false;
+        isClicked = false;
+        isSelected = selected && isSelectable;
+        int color = !isEnabled ? BUTTON_DISABLED_BG_COLOR : isSelected ? BUTTON_CLICKED_BG_COLOR : BUTTON_BG_COLOR;
+        if (color != backgroundColor) {
+            setBackground(color);
+        }
+    }
+
     public void setEnabled(boolean enabled) {
         if (isEnabled != enabled) {
             isEnabled = enabled;
@@ -344,13 +374,13 @@ public class VRButton extends RectangularPrism implements VRUI {
      * both positions. This allows us to have {@link VRViewRenderer#isLookingAtObject(Object3D, float)}
      * working as expected.
      *
-     * @return the absolute position of the {@link VRButton} in its world
+     * @return the absolute position of the {@link VRButton} in its world, overwritten by the next call
      */
     @Override
     @NonNull
     public Vector3 getPosition() {
         if (parentMenu != null) {
-            return parentMenu.getPosition().clone().add(super.getPosition());
+            return absolutePosition.addAndSet(parentMenu.getPosition(), super.getPosition());
         }
         return super.getPosition();
     }
@@ -419,7 +449,7 @@ public class VRButton extends RectangularPrism implements VRUI {
      * {@inheritDoc}
      */
     @Override
-    public void onDrawing(@NonNull VRViewRenderer vrViewRenderer) {
+    public void onNewFrame(@NonNull VRViewRenderer vrViewRenderer) {
         //nothing to do !
     }
 
@@ -429,7 +459,10 @@ public class VRButton extends RectangularPrism implements VRUI {
     @Override
     public void recycle() {
         isRecycled = true;
-        reusableBitmaps.add(bitmapTexture);
+        //the next scene may be looking for a bitmap on the scene preparation thread
+        synchronized (reusableBitmaps) {
+            reusableBitmaps.add(bitmapTexture);
+        }
         TextureManager.getInstance().removeTexture(texture.get());
         texture.clear();
         layoutView = null;
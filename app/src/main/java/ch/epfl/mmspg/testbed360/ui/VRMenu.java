@@ -101,6 +101,13 @@ public class VRMenu extends RectangularPrism implements VRUI {
         return buttons.get(index);
     }
 
+    /**
+     * @return the number of {@link VRButton}s of this menu
+     */
+    public int getButtonCount() {
+        return buttons.size();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -118,7 +125,7 @@ public class VRMenu extends RectangularPrism implements VRUI {
      * {@inheritDoc}
      */
     @Override
-    public void onDrawing(VRViewRenderer renderer) {
+    public void onNewFrame(VRViewRenderer renderer) {
         setRotY(180 + renderer.getCurrentCamera().getRotY() * 180.0 / Math.PI);
 
         if (following) {
@@ -127,7 +134,9 @@ public class VRMenu extends RectangularPrism implements VRUI {
         }
 
         boolean consumed = false;
-        for (VRButton button : buttons) {
+        //indexed so that no Iterator is allocated at each frame
+        for (int i = 0; i < buttons.size(); i++) {
+            VRButton button = buttons.get(i);
             if (consumed) {
                 button.setHovered(false);
             } else {
@@ -19,11 +19,14 @@ package ch.epfl.mmspg.testbed360.ui;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
 import org.rajawali3d.materials.textures.ATexture;
 import org.rajawali3d.renderer.Renderer;
+import org.rajawali3d.scene.Scene;
 import org.rajawali3d.util.OnFPSUpdateListener;
 
+import java.util.ArrayList;
 import java.util.EmptyStackException;
 import java.util.concurrent.Callable;
 
@@ -32,6 +35,7 @@ import ch.epfl.mmspg.testbed360.R;
 import ch.epfl.mmspg.testbed360.TrainingDoneScene;
 import ch.epfl.mmspg.testbed360.VRScene;
 import ch.epfl.mmspg.testbed360.VRViewActivity;
+import ch.epfl.mmspg.testbed360.VRViewRenderer;
 import ch.epfl.mmspg.testbed360.image.ImageGrade;
 import ch.epfl.mmspg.testbed360.image.VRImage;
 
@@ -44,8 +48,18 @@ import ch.epfl.mmspg.testbed360.image.VRImage;
  */
 
 public final class VRMenuFactory {
+    private final static String TAG = "VRMenuFactory";
     private final static boolean RENDER_FPS = false;
 
+    /**
+     * Grade menus kept per mode : the one of the displayed scene is only released once the next scene,
+     * prepared in background with its own menu, is displayed (see
+     * {@link VRViewRenderer#switchSceneAsync(Callable)}), hence two of them are enough.
+     */
+    private final static int MAX_POOLED_GRADE_MENUS = 2;
+    private final static ArrayList<GradeMenu> trainingGradeMenus = new ArrayList<>(MAX_POOLED_GRADE_MENUS);
+    private final static ArrayList<GradeMenu> evaluationGradeMenus = new ArrayList<>(MAX_POOLED_GRADE_MENUS);
+
     private VRMenuFactory() {
         //do nothing, this constructor is private to follow the Factory Pattern
     }
@@ -79,10 +93,13 @@ public final class VRMenuFactory {
             startButton.setOnTriggerAction(new Callable() {
                 @Override
                 public Object call() throws Exception {
+                    //the session is opened in background while the welcome text is read
+                    if (isSwitchingScene(renderer) || VRViewActivity.getCurrentSession() == null) {
+                        return null;
+                    }
                     try {
                         VRImage next = VRViewActivity.nextTraining();
-                        ((VRScene) renderer.getCurrentScene()).recycle();
-                        renderer.switchScene(new VRScene(renderer, next, VRScene.MODE_TRAINING));
+                        switchScene(renderer, imageScene(renderer, next, VRScene.MODE_TRAINING));
                     } catch (EmptyStackException e) {
                         startButton.setText(renderer.getContext().getString(R.string.no_new_image));
                     }
@@ -213,10 +230,12 @@ public final class VRMenuFactory {
             startButton.setOnTriggerAction(new Callable() {
                 @Override
                 public Object call() throws Exception {
+                    if (isSwitchingScene(renderer)) {
+                        return null;
+                    }
                     try {
                         VRImage next = VRViewActivity.nextEvaluation();
-                        ((VRScene) renderer.getCurrentScene()).recycle();
-                        renderer.switchScene(new VRScene(renderer, next, VRScene.MODE_EVALUATION));
+                        switchScene(renderer, imageScene(renderer, next, VRScene.MODE_EVALUATION));
                     } catch (EmptyStackException e2) {
                         startButton.setText("No new image");
                     }
@@ -261,48 +280,79 @@ public final class VRMenuFactory {
     }
 
     /**
-     * Builds a {@link VRMenu} corresponding to a {@link VRImage} from the training session. It directly
+     * Gives a {@link VRMenu} corresponding to a {@link VRImage} from the training session. It directly
      * displays the grade of the given {@link VRImage} in a {@link VRButton}, which when clicked on
-     * will chain call the next {@link VRScene}
+     * will chain call the next {@link VRScene}.
+     * <p>
+     * The menu is taken from a pool and only rebound to the {@link VRScene} if one was released by a
+     * previous {@link VRScene}, see {@link #releaseGradeMenu(VRScene, VRMenu)}. Otherwise, it is built.
      *
      * @param renderer the {@link Renderer} used to switch between {@link org.rajawali3d.scene.Scene}
+     * @param scene    the {@link VRScene} whose {@link VRImage} grade is displayed
      * @return the initialized and ready to use {@link VRMenu}
      */
     @NonNull
-    public static VRMenu buildTrainingGradeMenu(@NonNull final Renderer renderer, @Nullable VRImage img) {
-        VRMenu menu = new VRMenu();
+    public static VRMenu obtainTrainingGradeMenu(@NonNull final Renderer renderer, @NonNull VRScene scene) {
+        GradeMenu menu = pollGradeMenu(trainingGradeMenus, scene);
+        if (menu == null) {
+            menu = buildTrainingGradeMenu(renderer);
+            menu.scene = scene;
+        }
+        VRImage img = scene.getVrImage();
+        ImageGrade shown = img == null ? null : img.getGrade();
+        for (int i = 0; i < menu.getButtonCount(); i++) {
+            VRButton button = menu.getButton(i);
+            boolean isShown = menu.grades[i].equals(shown);
+            button.setClickable(isShown);
+            button.setSelectable(isShown);
+            button.reset(isShown);
+        }
+        return menu;
+    }
+
+    /**
+     * Builds the {@link GradeMenu} of the training session, without any grade shown. Every button
+     * triggers the next {@link VRScene}, but only the one of the shown grade is clickable, and only
+     * while the menu is bound to the displayed scene.
+     *
+     * @param renderer the {@link Renderer} used to switch between {@link org.rajawali3d.scene.Scene}
+     * @return the built {@link GradeMenu}
+     */
+    @NonNull
+    private static GradeMenu buildTrainingGradeMenu(@NonNull final Renderer renderer) {
+        final GradeMenu menu = new GradeMenu(VRScene.MODE_TRAINING);
         menu.setY(4);
 
-        try {
-            for (ImageGrade grade : ImageGrade.values()) {
-                if (!grade.equals(ImageGrade.NONE)) {
-                    final VRButton button = new VRButton(
-                            renderer.getContext(),
-                            grade.toString(renderer.getContext()),
-                            false
-                    );
-                    button.setClickable(false);
-                    if (img != null && img.getGrade().equals(grade)) {
-                        button.setClickable(true);
-                        button.setSelectable(true);
-                        button.setSelected(true);
-                        button.setOnTriggerAction(new Callable() {
-                            @Override
-                            public Object call() throws Exception {
-                                try {
-                                    VRImage next = VRViewActivity.nextTraining();
-                                    ((VRScene) renderer.getCurrentScene()).recycle();
-                                    renderer.switchScene(new VRScene(renderer, next, VRScene.MODE_TRAINING));
-                                } catch (EmptyStackException e) {
-                                    ((VRScene) renderer.getCurrentScene()).recycle();
-                                    renderer.switchScene(new TrainingDoneScene(renderer));
-                                }
-                                return null;
-                            }
-                        });
-                    }
-                    menu.addButton(button);
+        Callable nextTraining = new Callable() {
+            @Override
+            public Object call() throws Exception {
+                if (pressedScene(renderer, menu) == null) {
+                    return null;
+                }
+                try {
+                    VRImage next = VRViewActivity.nextTraining();
+                    switchScene(renderer, imageScene(renderer, next, VRScene.MODE_TRAINING));
+                } catch (EmptyStackException e) {
+                    switchScene(renderer, new Callable<Scene>() {
+                        @Override
+                        public Scene call() throws Exception {
+                            return new TrainingDoneScene(renderer);
+                        }
+                    });
                 }
+                return null;
+            }
+        };
+        try {
+            for (ImageGrade grade : menu.grades) {
+                final VRButton button = new VRButton(
+                        renderer.getContext(),
+                        grade.toString(renderer.getContext()),
+                        false
+                );
+                button.setClickable(false);
+                button.setOnTriggerAction(nextTraining);
+                menu.addButton(button);
             }
         } catch (ATexture.TextureException e) {
             e.printStackTrace();
@@ -311,46 +361,233 @@ public final class VRMenuFactory {
     }
 
     /**
-     * Builds a {@link VRMenu} corresponding to a {@link VRImage} from the evaluation session.
-     * Setting a grade triggers the next {@link VRScene}
+     * Gives a {@link VRMenu} corresponding to a {@link VRImage} from the evaluation session.
+     * Setting a grade triggers the next {@link VRScene}.
+     * <p>
+     * As for {@link #obtainTrainingGradeMenu(Renderer, VRScene)}, the menu is rebound to the given
+     * {@link VRScene} if one is pooled.
      *
      * @param renderer the {@link Renderer} used to switch between {@link org.rajawali3d.scene.Scene}
+     * @param scene    the {@link VRScene} to grade
      * @return the initialized and ready to use {@link VRMenu}
      */
     @NonNull
-    public static VRMenu buildEvaluationGradeMenu(@NonNull final Renderer renderer, @NonNull final VRScene scene) {
-        VRMenu menu = new VRMenu();
+    public static VRMenu obtainEvaluationGradeMenu(@NonNull final Renderer renderer, @NonNull final VRScene scene) {
+        GradeMenu menu = pollGradeMenu(evaluationGradeMenus, scene);
+        if (menu == null) {
+            menu = buildEvaluationGradeMenu(renderer);
+            menu.scene = scene;
+        }
+        for (int i = 0; i < menu.getButtonCount(); i++) {
+            menu.getButton(i).reset(false);
+        }
+        return menu;
+    }
+
+    /**
+     * Builds the {@link GradeMenu} of the evaluation session. Its buttons grade the {@link GradeMenu#scene}
+     * it is bound to, so that they do not need to be recreated for the next {@link VRScene}.
+     *
+     * @param renderer the {@link Renderer} used to switch between {@link org.rajawali3d.scene.Scene}
+     * @return the built {@link GradeMenu}
+     */
+    @NonNull
+    private static GradeMenu buildEvaluationGradeMenu(@NonNull final Renderer renderer) {
+        final GradeMenu menu = new GradeMenu(VRScene.MODE_EVALUATION);
         menu.setY(4);
 
         try {
-            for (final ImageGrade grade : ImageGrade.values()) {
-                if (!grade.equals(ImageGrade.NONE)) {
-                    final VRButton button = new VRButton(
-                            renderer.getContext(),
-                            grade.toString(renderer.getContext()),
-                            false
-                    );
-                    button.setOnTriggerAction(new Callable() {
-                        @Override
-                        public Object call() throws Exception {
-                            try {
-                                scene.setGrade(grade);
-                                VRImage next = VRViewActivity.nextEvaluation();
-                                ((VRScene) renderer.getCurrentScene()).recycle();
-                                renderer.switchScene(new VRScene(renderer, next, VRScene.MODE_EVALUATION));
-                            } catch (EmptyStackException e) {
-                                ((VRScene) renderer.getCurrentScene()).recycle();
-                                renderer.switchScene(new EndScene(renderer));
-                            }
+            for (final ImageGrade grade : menu.grades) {
+                final VRButton button = new VRButton(
+                        renderer.getContext(),
+                        grade.toString(renderer.getContext()),
+                        false
+                );
+                button.setOnTriggerAction(new Callable() {
+                    @Override
+                    public Object call() throws Exception {
+                        //a second press while the next image is being prepared would grade it twice
+                        VRScene scene = pressedScene(renderer, menu);
+                        if (scene == null) {
                             return null;
                         }
-                    });
-                    menu.addButton(button);
-                }
+                        try {
+                            scene.setGrade(grade);
+                            VRImage next = VRViewActivity.nextEvaluation();
+                            switchScene(renderer, imageScene(renderer, next, VRScene.MODE_EVALUATION));
+                        } catch (EmptyStackException e) {
+                            switchScene(renderer, new Callable<Scene>() {
+                                @Override
+                                public Scene call() throws Exception {
+                                    return new EndScene(renderer);
+                                }
+                            });
+                        }
+                        return null;
+                    }
+                });
+                menu.addButton(button);
             }
         } catch (ATexture.TextureException e) {
             e.printStackTrace();
         }
         return menu;
     }
+
+    /**
+     * Gives back the {@link VRMenu} of a recycled {@link VRScene}, so that the next scenes reuse it
+     * with its buttons and their textures, instead of building a new one. The menu is unbound from
+     * the scene first, so that its buttons ignore the presses until it is obtained again.
+     *
+     * @param scene the recycled {@link VRScene}
+     * @param menu  the {@link VRMenu} of {@code scene}
+     * @return false if the menu was not given by {@link #obtainTrainingGradeMenu(Renderer, VRScene)} or
+     * {@link #obtainEvaluationGradeMenu(Renderer, VRScene)}, in which case it should be recycled by the caller
+     */
+    public static boolean releaseGradeMenu(@NonNull VRScene scene, @Nullable VRMenu menu) {
+        if (!(menu instanceof GradeMenu)) {
+            return false;
+        }
+        GradeMenu gradeMenu = (GradeMenu) menu;
+        ArrayList<GradeMenu> pool = gradeMenu.mode == VRScene.MODE_TRAINING ? trainingGradeMenus : evaluationGradeMenus;
+        boolean pooled;
+        synchronized (VRMenuFactory.class) {
+            if (gradeMenu.scene != scene) {
+                //already released, or bound to another scene which still displays it
+                Log.e(TAG, "Grade menu released by " + scene + " while bound to " + gradeMenu.scene);
+                return true;
+            }
+            gradeMenu.scene = null;
+            pooled = pool.size() < MAX_POOLED_GRADE_MENUS;
+            if (pooled) {
+                pool.add(gradeMenu);
+            }
+        }
+        gradeMenu.setVisible(false);
+        if (!pooled) {
+            gradeMenu.recycle();
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the pooled grade {@link VRMenu}s, to be called when the activity is destroyed as their
+     * textures belong to its GL context.
+     */
+    public static synchronized void clearGradeMenus() {
+        trainingGradeMenus.clear();
+        evaluationGradeMenus.clear();
+    }
+
+    /**
+     * @param pool  {@link #trainingGradeMenus} or {@link #evaluationGradeMenus}
+     * @param scene the {@link VRScene} to bind the menu to
+     * @return the last released {@link GradeMenu} of the pool, bound to {@code scene}, or null if the
+     * pool is empty
+     * @throws IllegalStateException if the pooled menu is still bound to a scene
+     */
+    @Nullable
+    private static synchronized GradeMenu pollGradeMenu(@NonNull ArrayList<GradeMenu> pool, @NonNull VRScene scene) {
+        if (pool.isEmpty()) {
+            return null;
+        }
+        GradeMenu menu = pool.remove(pool.size() - 1);
+        if (menu.scene != null) {
+            throw new IllegalStateException("Pooled grade menu still bound to " + menu.scene);
+        }
+        menu.scene = scene;
+        return menu;
+    }
+
+    /**
+     * A grade {@link VRMenu} with one {@link VRButton} per {@link ImageGrade}, which can be bound to
+     * another {@link VRScene} when the one displaying it is recycled.
+     */
+    private static final class GradeMenu extends VRMenu {
+        /**
+         * {@link VRScene#MODE_TRAINING} or {@link VRScene#MODE_EVALUATION}
+         */
+        final int mode;
+
+        /**
+         * Grade of each button, in the order of the buttons
+         */
+        final ImageGrade[] grades;
+
+        /**
+         * The {@link VRScene} displaying the menu, and graded by the buttons in
+         * {@link VRScene#MODE_EVALUATION}. Bound on the thread preparing the scene, unbound when the
+         * scene is recycled, read when a button is pressed. Null while the menu is pooled.
+         */
+        volatile VRScene scene;
+
+        GradeMenu(int mode) {
+            this.mode = mode;
+            ImageGrade[] values = ImageGrade.values();
+            ArrayList<ImageGrade> grades = new ArrayList<>(values.length);
+            for (ImageGrade grade : values) {
+                if (!grade.equals(ImageGrade.NONE)) {
+                    grades.add(grade);
+                }
+            }
+            this.grades = grades.toArray(new ImageGrade[grades.size()]);
+        }
+    }
+
+    /**
+     * @param renderer the {@link Renderer} displaying the scenes
+     * @param image    the {@link VRImage} to display
+     * @param mode     {@link VRScene#MODE_TRAINING} or {@link VRScene#MODE_EVALUATION}
+     * @return a {@link Callable} creating the {@link VRScene} of the {@link VRImage}
+     */
+    @NonNull
+    private static Callable<Scene> imageScene(@NonNull final Renderer renderer, @NonNull final VRImage image, final int mode) {
+        return new Callable<Scene>() {
+            @Override
+            public Scene call() throws Exception {
+                return new VRScene(renderer, image, mode);
+            }
+        };
+    }
+
+    /**
+     * Switches to the next {@link Scene}, created in background if the renderer is a
+     * {@link VRViewRenderer} (see {@link VRViewRenderer#switchSceneAsync(Callable)}), otherwise
+     * right away after recycling the current one.
+     *
+     * @param renderer  the {@link Renderer} used to switch between {@link Scene}s
+     * @param nextScene creates the next {@link Scene}
+     * @throws Exception if the next {@link Scene} could not be created
+     */
+    private static void switchScene(@NonNull Renderer renderer, @NonNull Callable<Scene> nextScene) throws Exception {
+        if (renderer instanceof VRViewRenderer) {
+            ((VRViewRenderer) renderer).switchSceneAsync(nextScene);
+        } else {
+            ((VRScene) renderer.getCurrentScene()).recycle();
+            renderer.switchScene(nextScene.call());
+        }
+    }
+
+    /**
+     * @param renderer the {@link Renderer} used to switch between {@link Scene}s
+     * @return true if the next {@link Scene} is being prepared, in which case buttons should be ignored
+     */
+    private static boolean isSwitchingScene(@NonNull Renderer renderer) {
+        return renderer instanceof VRViewRenderer && ((VRViewRenderer) renderer).isSwitchingScene();
+    }
+
+    /**
+     * @param renderer the {@link Renderer} displaying the {@link Scene}s
+     * @param menu     the {@link GradeMenu} whose button was pressed
+     * @return the {@link VRScene} the menu is bound to, or null if the press must be ignored : the menu
+     * is unbound, its scene is not the displayed one, or the next {@link Scene} is being prepared
+     */
+    @Nullable
+    private static VRScene pressedScene(@NonNull Renderer renderer, @NonNull GradeMenu menu) {
+        VRScene scene = menu.scene;
+        if (scene == null || scene != renderer.getCurrentScene() || isSwitchingScene(renderer)) {
+            return null;
+        }
+        return scene;
+    }
 }
@@ -19,7 +19,7 @@ package ch.epfl.mmspg.testbed360.ui;
 
 import android.support.annotation.NonNull;
 
-import com.google.vrtoolkit.cardboard.Eye;
+import com.google.vrtoolkit.cardboard.HeadTransform;
 
 import ch.epfl.mmspg.testbed360.VRViewRenderer;
 
@@ -54,9 +54,11 @@ public interface VRUI {
     public boolean onCardboardTrigger();
 
     /**
-     * Called by the {@link VRViewRenderer} at each draw, see {@link VRViewRenderer#onDrawEye(Eye)}.
+     * Called by the {@link VRViewRenderer} once per frame, before both eyes are drawn, see
+     * {@link VRViewRenderer#onNewFrame(HeadTransform)}. The camera has the orientation of the head,
+     * without the translation of either eye, so that the state of the UI is the same for both eyes.
      * @param vrViewRenderer the {@link VRViewRenderer} drawing.
      */
-    public void onDrawing(@NonNull VRViewRenderer vrViewRenderer);
+    public void onNewFrame(@NonNull VRViewRenderer vrViewRenderer);
 
 }
@@ -0,0 +1,179 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link EquirectToCubemap} against a direct projection of every face pixel, and that
+ * splitting the faces into bands does not change them.
+ */
+public class EquirectToCubemapTest {
+    /**
+     * Direction of the center of each face, then of its u and v axes, as documented by
+     * {@link EquirectToCubemap}
+     */
+    private final static double[][] BASES = {
+            {1, 0, 0, 0, 0, -1, 0, -1, 0},
+            {-1, 0, 0, 0, 0, 1, 0, -1, 0},
+            {0, 1, 0, 1, 0, 0, 0, 0, 1},
+            {0, -1, 0, 1, 0, 0, 0, 0, -1},
+            {0, 0, 1, 1, 0, 0, 0, -1, 0},
+            {0, 0, -1, -1, 0, 0, 0, -1, 0}
+    };
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Each source pixel holds its own coordinates, so that a face pixel tells where it was sampled
+     * from. Sampled coordinates may only differ from the direct projection where it falls at the
+     * edge of a pixel, and any column of the first and last rows is the pole.
+     */
+    @Test
+    public void nearestPixelsAreTheProjectedOnes() throws InterruptedException {
+        int[][] sizes = {{256, 128}, {64, 32}, {100, 50}, {37, 19}};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            short[] source = new short[width * height];
+            for (int i = 0; i < source.length; i++) {
+                source[i] = (short) i;
+            }
+            int faceSize = EquirectToCubemap.faceSizeFor(width);
+            short[][] faces = EquirectToCubemap.convert(source, width, height, faceSize,
+                    EquirectToCubemap.Filter.NEAREST, null, 1);
+            int mismatches = 0;
+            for (int f = 0; f < EquirectToCubemap.FACE_COUNT; f++) {
+                for (int y = 0; y < faceSize; y++) {
+                    for (int x = 0; x < faceSize; x++) {
+                        int sampled = faces[f][y * faceSize + x] & 0xFFFF;
+                        int expected = project(f, x, y, faceSize, width, height);
+                        boolean pole = sampled / width == expected / width
+                                && (expected / width == 0 || expected / width == height - 1);
+                        if (sampled != expected && !pole) {
+                            mismatches++;
+                            assertTrue(String.format("Face %d pixel %d,%d of %dx%d", f, x, y, width, height),
+                                    Math.abs(sampled % width - expected % width) <= 1
+                                            || Math.abs(sampled % width - expected % width) == width - 1);
+                            assertTrue(Math.abs(sampled / width - expected / width) <= 1);
+                        }
+                    }
+                }
+            }
+            assertTrue(mismatches + " mismatches for " + width + "x" + height,
+                    mismatches <= EquirectToCubemap.FACE_COUNT * faceSize * faceSize / 100);
+        }
+    }
+
+    @Test
+    public void bandsGiveTheSameFaces() throws InterruptedException {
+        int width = 400;
+        int height = 200;
+        short[] source = new short[width * height];
+        for (int i = 0; i < source.length; i++) {
+            source[i] = (short) (i * 2654435761L >>> 16);
+        }
+        int faceSize = EquirectToCubemap.faceSizeFor(width);
+        for (EquirectToCubemap.Filter filter : EquirectToCubemap.Filter.values()) {
+            short[][] sequential = EquirectToCubemap.convert(source, width, height, faceSize, filter, null, 1);
+            for (int parallelism : new int[]{2, 3, 7, faceSize + 1}) {
+                short[][] banded = EquirectToCubemap.convert(source, width, height, faceSize, filter, executor, parallelism);
+                assertEquals(EquirectToCubemap.FACE_COUNT, banded.length);
+                for (int f = 0; f < EquirectToCubemap.FACE_COUNT; f++) {
+                    assertArrayEquals(filter + " face " + f + " in " + parallelism + " bands", sequential[f], banded[f]);
+                }
+            }
+        }
+    }
+
+    /**
+     * A face buffer larger than needed, e.g. left by a bigger image, is reused without being cleared
+     */
+    @Test
+    public void largerBuffersAreReused() throws InterruptedException {
+        int width = 200;
+        int height = 100;
+        short[] source = new short[400 * 200];
+        for (int i = 0; i < width * height; i++) {
+            source[i] = (short) (i * 2654435761L >>> 16);
+        }
+        int faceSize = EquirectToCubemap.faceSizeFor(width);
+        short[][] expected = EquirectToCubemap.convert(Arrays.copyOf(source, width * height), width, height,
+                faceSize, EquirectToCubemap.Filter.BILINEAR, null, 1);
+        short[] face = new short[100 * 100];
+        Arrays.fill(face, (short) -1);
+        for (int f = 0; f < EquirectToCubemap.FACE_COUNT; f++) {
+            EquirectToCubemap.convertFace(source, width, height, face, faceSize, f,
+                    EquirectToCubemap.Filter.BILINEAR, executor, 3);
+            assertArrayEquals("Face " + f, expected[f], Arrays.copyOf(face, faceSize * faceSize));
+        }
+    }
+
+    @Test
+    public void uniformImageStaysUniform() throws InterruptedException {
+        short color = (short) 0xA5F3;
+        short[] source = new short[128 * 64];
+        Arrays.fill(source, color);
+        for (EquirectToCubemap.Filter filter : EquirectToCubemap.Filter.values()) {
+            for (short[] face : EquirectToCubemap.convert(source, 128, 64, 32, filter, null, 1)) {
+                for (short pixel : face) {
+                    assertEquals(color, pixel);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the index of the source pixel closest to the projection of a face pixel
+     */
+    private static int project(int faceIndex, int x, int y, int faceSize, int width, int height) {
+        double[] basis = BASES[faceIndex];
+        double u = (x + 0.5) * 2 / faceSize - 1;
+        double v = (y + 0.5) * 2 / faceSize - 1;
+        double dx = basis[0] + u * basis[3] + v * basis[6];
+        double dy = basis[1] + u * basis[4] + v * basis[7];
+        double dz = basis[2] + u * basis[5] + v * basis[8];
+        double lon = Math.atan2(dx, -dz);
+        double lat = Math.atan2(dy, Math.sqrt(dx * dx + dz * dz));
+        int sx = (int) Math.floor((lon + Math.PI) / (2 * Math.PI) * width);
+        int sy = (int) Math.floor((Math.PI / 2 - lat) / Math.PI * height);
+        sx = ((sx % width) + width) % width;
+        sy = Math.max(0, Math.min(height - 1, sy));
+        return sy * width + sx;
+    }
+}
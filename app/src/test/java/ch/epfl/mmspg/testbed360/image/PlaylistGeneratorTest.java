@@ -0,0 +1,130 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the orders written by {@link PlaylistGenerator} : every participant sees every stimulus,
+ * positions are counterbalanced and slugs never follow each other.
+ */
+public class PlaylistGeneratorTest {
+    private final static int SLUGS = 5;
+    private final static int CODECS = 3;
+    private final static int PARTICIPANTS = 40;
+
+    private String[] names;
+    private File dir;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        names = new String[SLUGS * CODECS];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "author_slug" + (i % SLUGS) + "_equirec_4096x2048_codec" + (i / SLUGS) + "_q1.png";
+        }
+        dir = Files.createTempDirectory("playlists").toFile();
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void everyParticipantSeesEveryStimulusOnce() throws Exception {
+        File file = generate(0, "playlists.bin");
+        String[] sorted = names.clone();
+        Arrays.sort(sorted);
+        for (int p = 0; p < PARTICIPANTS; p++) {
+            String[] order = PlaylistGenerator.readOrder(file, p);
+            Arrays.sort(order);
+            assertArrayEquals("Order of participant " + p, sorted, order);
+        }
+        assertNull(PlaylistGenerator.readOrder(file, PARTICIPANTS));
+    }
+
+    @Test
+    public void positionsAreCounterbalanced() throws Exception {
+        File file = generate(1, "playlists.bin");
+        int n = names.length;
+        //participants 0 to n - 1 share a base, as the rows of a Latin square
+        Map<String, boolean[]> positions = new HashMap<>();
+        for (String name : names) {
+            positions.put(name, new boolean[n]);
+        }
+        for (int p = 0; p < n; p++) {
+            String[] order = PlaylistGenerator.readOrder(file, p);
+            for (int i = 0; i < n; i++) {
+                boolean[] seen = positions.get(order[i]);
+                assertFalse(order[i] + " shown twice at position " + i, seen[i]);
+                seen[i] = true;
+            }
+        }
+    }
+
+    @Test
+    public void slugsNeverFollowEachOther() throws Exception {
+        File file = generate(2, "playlists.bin");
+        for (int p = 0; p < PARTICIPANTS; p++) {
+            String[] order = PlaylistGenerator.readOrder(file, p);
+            for (int i = 1; i < order.length; i++) {
+                assertNotEquals("Participant " + p + " at position " + i,
+                        StimulusNames.slugOf(order[i - 1]), StimulusNames.slugOf(order[i]));
+            }
+        }
+    }
+
+    @Test
+    public void sameSeedGivesSameFile() throws Exception {
+        byte[] first = Files.readAllBytes(generate(3, "first.bin").toPath());
+        byte[] second = Files.readAllBytes(generate(3, "second.bin").toPath());
+        assertArrayEquals(first, second);
+        assertFalse(Arrays.equals(first, Files.readAllBytes(generate(4, "third.bin").toPath())));
+    }
+
+    private File generate(long seed, String fileName) throws Exception {
+        File file = new File(dir, fileName);
+        PlaylistGenerator.generate(names, PARTICIPANTS, seed, file, executor);
+        return file;
+    }
+}
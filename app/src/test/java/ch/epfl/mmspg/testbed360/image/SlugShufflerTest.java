@@ -0,0 +1,136 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks the properties of {@link SlugShuffler#order(int[], int, Random)} on random inputs, some of
+ * them infeasible, i.e. with a group holding more than half of the items.
+ */
+public class SlugShufflerTest {
+    private final static int RUNS = 20000;
+
+    @Test
+    public void orderIsAPermutation() {
+        Random inputs = new Random(0);
+        for (int run = 0; run < RUNS; run++) {
+            int[] groups = randomGroups(inputs);
+            int[] sorted = SlugShuffler.order(groups, groupCount(groups), new Random(inputs.nextLong()));
+            Arrays.sort(sorted);
+            for (int i = 0; i < groups.length; i++) {
+                assertEquals("Not a permutation of " + Arrays.toString(groups), i, sorted[i]);
+            }
+        }
+    }
+
+    @Test
+    public void noAdjacentSlugWhenFeasible() {
+        Random inputs = new Random(1);
+        int feasible = 0;
+        for (int run = 0; run < RUNS; run++) {
+            int[] groups = randomGroups(inputs);
+            if (minimumRepeats(groups, groupCount(groups)) == 0) {
+                feasible++;
+                int[] order = SlugShuffler.order(groups, groupCount(groups), new Random(inputs.nextLong()));
+                assertEquals("Adjacent slugs for " + Arrays.toString(groups), 0, SlugShuffler.countRepeats(order, groups));
+            }
+        }
+        assertFalse("No feasible input was generated", feasible == 0);
+    }
+
+    @Test
+    public void fewestAdjacentSlugsWhenInfeasible() {
+        Random inputs = new Random(2);
+        int infeasible = 0;
+        for (int run = 0; run < RUNS; run++) {
+            int[] groups = randomGroups(inputs);
+            int minimum = minimumRepeats(groups, groupCount(groups));
+            if (minimum > 0) {
+                infeasible++;
+                int[] order = SlugShuffler.order(groups, groupCount(groups), new Random(inputs.nextLong()));
+                assertEquals("Too many adjacent slugs for " + Arrays.toString(groups),
+                        minimum, SlugShuffler.countRepeats(order, groups));
+            }
+        }
+        assertFalse("No infeasible input was generated", infeasible == 0);
+    }
+
+    @Test
+    public void sameSeedGivesSameOrder() {
+        Random inputs = new Random(3);
+        for (int run = 0; run < RUNS; run++) {
+            int[] groups = randomGroups(inputs);
+            long seed = inputs.nextLong();
+            assertArrayEquals("Not reproducible for seed " + seed,
+                    SlugShuffler.order(groups, groupCount(groups), new Random(seed)),
+                    SlugShuffler.order(groups, groupCount(groups), new Random(seed)));
+        }
+    }
+
+    @Test
+    public void differentSeedsGiveDifferentOrders() {
+        int[] groups = new int[100];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = i % 10;
+        }
+        assertFalse(Arrays.equals(SlugShuffler.order(groups, 10, new Random(0)),
+                SlugShuffler.order(groups, 10, new Random(1))));
+    }
+
+    /**
+     * @return up to 60 items in up to 8 groups, skewed towards the first group so that some inputs
+     * are infeasible
+     */
+    private static int[] randomGroups(Random inputs) {
+        int n = 1 + inputs.nextInt(60);
+        int groupCount = 1 + inputs.nextInt(Math.min(n, 8));
+        int[] groups = new int[n];
+        for (int i = 0; i < n; i++) {
+            groups[i] = inputs.nextInt(3) == 0 ? 0 : inputs.nextInt(groupCount);
+        }
+        return groups;
+    }
+
+    private static int groupCount(int[] groups) {
+        int max = 0;
+        for (int group : groups) {
+            max = Math.max(max, group);
+        }
+        return max + 1;
+    }
+
+    /**
+     * @return the least amount of consecutive items of the same group any order can have
+     */
+    private static int minimumRepeats(int[] groups, int groupCount) {
+        int[] counts = new int[groupCount];
+        int largest = 0;
+        for (int group : groups) {
+            largest = Math.max(largest, ++counts[group]);
+        }
+        return Math.max(0, 2 * largest - groups.length - 1);
+    }
+}
@@ -0,0 +1,109 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the sizes read by {@link StimulusHeader} on files written by {@link ImageIO}.
+ */
+public class StimulusHeaderTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("headers").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void readsPngSize() throws IOException {
+        StimulusHeader header = StimulusHeader.read(write("png", 300, 150));
+        assertEquals(300, header.getWidth());
+        assertEquals(150, header.getHeight());
+    }
+
+    @Test
+    public void readsJpegSize() throws IOException {
+        StimulusHeader header = StimulusHeader.read(write("jpg", 123, 45));
+        assertEquals(123, header.getWidth());
+        assertEquals(45, header.getHeight());
+    }
+
+    @Test
+    public void truncatedFilesAreUnreadable() throws IOException {
+        for (String format : new String[]{"png", "jpg"}) {
+            File file = write(format, 64, 32);
+            byte[] content = Files.readAllBytes(file.toPath());
+            //the size is within the first bytes of a PNG, after the JFIF segment of a JPEG
+            int sizeEnd = format.equals("png") ? 24 : 20;
+            for (int length = 0; length < sizeEnd; length++) {
+                Files.write(file.toPath(), Arrays.copyOf(content, length));
+                assertFalse(format + " truncated at " + length, StimulusHeader.read(file).isReadable());
+            }
+        }
+    }
+
+    @Test
+    public void otherFilesAreUnreadable() throws IOException {
+        File text = new File(dir, "text.png");
+        Files.write(text.toPath(), "not an image".getBytes("UTF-8"));
+        assertFalse(StimulusHeader.read(text).isReadable());
+        assertFalse(StimulusHeader.read(new File(dir, "missing.png")).isReadable());
+    }
+
+    @Test
+    public void changedFileIsNotUpToDate() throws IOException {
+        File file = write("png", 10, 10);
+        StimulusHeader header = StimulusHeader.read(file);
+        assertTrue(header.isUpToDate(file));
+        Files.write(file.toPath(), new byte[1], StandardOpenOption.APPEND);
+        assertFalse(header.isUpToDate(file));
+    }
+
+    private File write(String format, int width, int height) throws IOException {
+        File file = new File(dir, "image." + format);
+        assertTrue(ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), format, file));
+        return file;
+    }
+}
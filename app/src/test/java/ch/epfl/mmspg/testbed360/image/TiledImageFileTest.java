@@ -0,0 +1,219 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the pixels written to a {@link TiledImageFile} are read back exactly, whether the tiles
+ * are stored raw or deflated, for the whole image or any region of it, and that a sidecar is no longer
+ * valid once its source changed.
+ */
+public class TiledImageFileTest {
+    /* not multiples of the tile size, so that the tiles of the right and bottom edges are cropped */
+    private final static int WIDTH = 300;
+    private final static int HEIGHT = 170;
+    private final static int BYTES_PER_PIXEL = 2;
+    private final static int TILE_SIZE = 64;
+
+    private File dir;
+    private File source;
+    private File tiles;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("tiles").toFile();
+        source = new File(dir, "stimulus.png");
+        try (FileOutputStream out = new FileOutputStream(source)) {
+            out.write(new byte[1234]);
+        }
+        tiles = new File(dir, "stimulus.png.tiles");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                child.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void noiseIsStoredRaw() throws IOException {
+        byte[] pixels = noise();
+        write(pixels, 7);
+        //random pixels do not deflate, so that every tile is kept raw
+        assertTrue(tiles.length() > pixels.length);
+        assertArrayEquals(pixels, readAll());
+    }
+
+    @Test
+    public void gradientIsStoredDeflated() throws IOException {
+        byte[] pixels = gradient();
+        write(pixels, HEIGHT);
+        assertTrue("Tiles were not deflated : " + tiles.length() + " bytes", tiles.length() < pixels.length / 4);
+        assertArrayEquals(pixels, readAll());
+    }
+
+    @Test
+    public void regionsAreRead() throws IOException {
+        byte[] pixels = noise();
+        write(pixels, 1);
+        try (TiledImageFile.Reader reader = TiledImageFile.Reader.open(tiles)) {
+            //across 4 tiles, exactly one tile, one pixel, and the cropped bottom right tile
+            checkRegion(reader, pixels, 37, 51, 100, 80);
+            checkRegion(reader, pixels, TILE_SIZE, TILE_SIZE, TILE_SIZE, TILE_SIZE);
+            checkRegion(reader, pixels, 299, 169, 1, 1);
+            checkRegion(reader, pixels, 4 * TILE_SIZE, 2 * TILE_SIZE, WIDTH - 4 * TILE_SIZE, HEIGHT - 2 * TILE_SIZE);
+        }
+    }
+
+    @Test
+    public void regionIsWrittenAtThePositionOfTheDestination() throws IOException {
+        byte[] pixels = gradient();
+        write(pixels, 13);
+        int regionBytes = 10 * 20 * BYTES_PER_PIXEL;
+        ByteBuffer destination = ByteBuffer.allocate(5 + regionBytes + 5);
+        destination.position(5);
+        try (TiledImageFile.Reader reader = TiledImageFile.Reader.open(tiles)) {
+            reader.readRegion(60, 60, 10, 20, destination);
+        }
+        assertEquals(5 + regionBytes, destination.position());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, destination.get(i));
+            assertEquals(0, destination.get(5 + regionBytes + i));
+        }
+    }
+
+    @Test
+    public void sidecarIsStaleOnceTheSourceChanged() throws IOException {
+        write(gradient(), HEIGHT);
+        try (TiledImageFile.Reader reader = TiledImageFile.Reader.open(tiles)) {
+            assertEquals(WIDTH, reader.getWidth());
+            assertEquals(HEIGHT, reader.getHeight());
+            assertEquals(BYTES_PER_PIXEL, reader.getBytesPerPixel());
+            assertEquals(TILE_SIZE, reader.getTileSize());
+            assertTrue(reader.isValidFor(source));
+
+            long modified = source.lastModified();
+            assertTrue(source.setLastModified(modified - 10000));
+            assertFalse(reader.isValidFor(source));
+
+            assertTrue(source.setLastModified(modified));
+            assertTrue(reader.isValidFor(source));
+            try (FileOutputStream out = new FileOutputStream(source, true)) {
+                out.write(1);
+            }
+            assertTrue(source.setLastModified(modified));
+            assertFalse(reader.isValidFor(source));
+        }
+    }
+
+    @Test
+    public void incompleteImageIsNotWritten() throws IOException {
+        TiledImageFile.Writer writer = newWriter();
+        writer.writeRows(gradient(), 0, HEIGHT - 1);
+        try {
+            writer.close();
+            fail("A missing row should fail the writing");
+        } catch (IOException expected) {
+            //the temporary file is removed and the target never created
+        }
+        assertFalse(tiles.exists());
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException {
+        TiledImageFile.Reader.open(source);
+    }
+
+    private TiledImageFile.Writer newWriter() throws IOException {
+        return new TiledImageFile.Writer(tiles, WIDTH, HEIGHT, BYTES_PER_PIXEL, TILE_SIZE,
+                source.length(), source.lastModified());
+    }
+
+    /**
+     * Writes the pixels in chunks of {@code rowsPerWrite} rows
+     */
+    private void write(byte[] pixels, int rowsPerWrite) throws IOException {
+        int rowBytes = WIDTH * BYTES_PER_PIXEL;
+        try (TiledImageFile.Writer writer = newWriter()) {
+            for (int y = 0; y < HEIGHT; y += rowsPerWrite) {
+                writer.writeRows(pixels, y * rowBytes, Math.min(rowsPerWrite, HEIGHT - y));
+            }
+        }
+    }
+
+    private byte[] readAll() throws IOException {
+        ByteBuffer all = ByteBuffer.allocate(WIDTH * HEIGHT * BYTES_PER_PIXEL);
+        try (TiledImageFile.Reader reader = TiledImageFile.Reader.open(tiles)) {
+            reader.readRegion(0, 0, WIDTH, HEIGHT, all);
+        }
+        assertFalse(all.hasRemaining());
+        return all.array();
+    }
+
+    private static void checkRegion(TiledImageFile.Reader reader, byte[] pixels,
+                                    int left, int top, int width, int height) throws IOException {
+        ByteBuffer region = ByteBuffer.allocate(width * height * BYTES_PER_PIXEL);
+        reader.readRegion(left, top, width, height, region);
+        byte[] expected = new byte[region.capacity()];
+        int rowBytes = width * BYTES_PER_PIXEL;
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(pixels, ((top + y) * WIDTH + left) * BYTES_PER_PIXEL, expected, y * rowBytes, rowBytes);
+        }
+        assertArrayEquals("Region " + left + "," + top + " " + width + "x" + height, expected, region.array());
+    }
+
+    private static byte[] noise() {
+        byte[] pixels = new byte[WIDTH * HEIGHT * BYTES_PER_PIXEL];
+        new Random(42).nextBytes(pixels);
+        return pixels;
+    }
+
+    private static byte[] gradient() {
+        byte[] pixels = new byte[WIDTH * HEIGHT * BYTES_PER_PIXEL];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int i = (y * WIDTH + x) * BYTES_PER_PIXEL;
+                pixels[i] = (byte) (x / 8);
+                pixels[i + 1] = (byte) (y / 8);
+            }
+        }
+        return pixels;
+    }
+}
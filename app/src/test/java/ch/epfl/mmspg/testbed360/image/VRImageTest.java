@@ -0,0 +1,185 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link VRImage#tokenizeName(String)} parses names exactly like
+ * {@link VRImage#NAME_PATTERN}, and compares their speed.
+ */
+public class VRImageTest {
+    private final static String[] EDGE_CASES = {
+            "unknown_lemanlake_equirec_2250x1500_raw_q00.png",
+            "author_title_cubemap32_1024x768_grade3.jpg",
+            "author_title_equirec_4096x2048_q5.jpeg",
+            "author_title_equirec_4096x2048_hevc_q5.png",
+            //several codec fields, the codec is everything up to the last underscore
+            "author_title_equirec_4096x2048_hevc_main_10_q5.png",
+            //several dimensions, the last one is used
+            "a_b_c_1x1_d_e_2x2_f.png",
+            "a_b_c_1x1_2x2_f.png",
+            "a_b_c_1x1_2x2_.png",
+            //underscores in the author
+            "first_last_title_equirec_10x20_q1.png",
+            //empty fields
+            "__c_1x1_q.png",
+            "a__c_1x1_.png",
+            "a_b__1x1_q.png",
+            "a_b_c_1x1_.png",
+            //dimensions limits
+            "a_b_c_12345x12345_q.png",
+            "a_b_c_123456x1_q.png",
+            "a_b_c_1x123456_q.png",
+            "a_b_c_x1_q.png",
+            "a_b_c_1x_q.png",
+            "a_b_c_1X1_q.png",
+            //missing fields
+            "b_c_1x1_q.png",
+            "a_b_c_1x1.png",
+            "a_b_c_1x1_q",
+            //extensions
+            "a_b_c_1x1_q.PNG",
+            "a_b_c_1x1_q.gif",
+            "a_b_c_1x1_q.png.bak",
+            "a_b_c_1x1_q.jpg.png",
+            "a_b_c_1x1_q.",
+            ".png",
+            "",
+            //characters that '.' does not match
+            "a_b_c_1x1_q\n.png",
+            "a\r_b_c_1x1_q.png",
+            "a_b _c_1x1_q.png",
+            //other characters
+            "été_lac léman_equirec_1x1_q1.png",
+            "a.b_c.d_e_1x1_f.g.png",
+            "a_b_c_١x1_q.png",
+    };
+
+    private final static String[] TOKENS = {
+            "", "a", "ab", "x", "1", "12", "123x45", "4096x2048", "1x1", "123456x1", "q3", "grade5",
+            "hevc", "equirec", "_", "__", ".", "x1", "1x"
+    };
+
+    private final static String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".PNG", ".gif", "", ".png.bak"};
+
+    @Test
+    public void edgeCasesMatchThePattern() {
+        for (String name : EDGE_CASES) {
+            checkSameAsPattern(name);
+        }
+    }
+
+    @Test
+    public void generatedNamesMatchThePattern() {
+        for (String name : generateNames(new Random(0), 200000)) {
+            checkSameAsPattern(name);
+        }
+    }
+
+    /**
+     * Prints the time taken by both parsers, as the tokenizer was written to be faster than the
+     * pattern but this depends on the JVM
+     */
+    @Test
+    public void compareSpeedWithThePattern() {
+        List<String> names = generateNames(new Random(1), 20000);
+        names.add(EDGE_CASES[0]);
+        VRImage image = newImage();
+        int matches = 0;
+        long tokenizerNs = Long.MAX_VALUE;
+        long patternNs = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            for (String name : names) {
+                if (image.tokenizeName(name) >= 0) {
+                    matches++;
+                }
+            }
+            tokenizerNs = Math.min(tokenizerNs, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (String name : names) {
+                if (VRImage.NAME_PATTERN.matcher(name).matches()) {
+                    matches--;
+                }
+            }
+            patternNs = Math.min(patternNs, System.nanoTime() - start);
+        }
+        assertEquals("Both parsers must match the same names", 0, matches);
+        System.out.println(String.format(Locale.US, "%d names : tokenizer %.1fns per name, pattern %.1fns per name",
+                names.size(), (double) tokenizerNs / names.size(), (double) patternNs / names.size()));
+    }
+
+    private static void checkSameAsPattern(String name) {
+        VRImage image = newImage();
+        int suffixStart = image.tokenizeName(name);
+        Matcher matcher = VRImage.NAME_PATTERN.matcher(name);
+        if (!matcher.matches()) {
+            assertEquals("Should not match : " + name, -1, suffixStart);
+            return;
+        }
+        assertTrue("Should match : " + name, suffixStart >= 0);
+        assertEquals("Author of " + name, matcher.group(1), image.getAuthor());
+        assertEquals("Title of " + name, matcher.group(2), image.getTitle());
+        assertEquals("Projection of " + name, matcher.group(3), image.getProjection());
+        assertEquals("Width of " + name, Integer.parseInt(matcher.group(4)), image.getWidth());
+        assertEquals("Height of " + name, Integer.parseInt(matcher.group(5)), image.getHeight());
+        assertEquals("Codec of " + name, matcher.group(6), image.getCodec());
+        assertEquals("Suffix of " + name, matcher.start(7), suffixStart);
+    }
+
+    /**
+     * @return an image whose fields are overwritten by {@link VRImage#tokenizeName(String)}
+     */
+    private static VRImage newImage() {
+        return new VRImage(new File("unused"), "", "", "equirec", 0, 0, null, ImageGrade.NONE, -1);
+    }
+
+    /**
+     * Builds names from a few tokens joined by underscores, so that most of them are close to a
+     * valid name
+     */
+    private static List<String> generateNames(Random random, int count) {
+        List<String> names = new ArrayList<>(count);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            name.setLength(0);
+            int fields = 3 + random.nextInt(6);
+            for (int f = 0; f < fields; f++) {
+                if (f > 0) {
+                    name.append('_');
+                }
+                name.append(TOKENS[random.nextInt(TOKENS.length)]);
+            }
+            name.append(EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+            names.add(name.toString());
+        }
+        return names;
+    }
+}
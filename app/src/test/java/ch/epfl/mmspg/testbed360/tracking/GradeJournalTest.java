@@ -0,0 +1,170 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that journals left truncated or corrupted by a crash are repaired without losing their
+ * valid records, and that concurrent appends are all committed.
+ */
+public class GradeJournalTest {
+    private final static String[] COLUMNS = {"ImageName", "Grade", "TrackID"};
+    private final static int RECORDS = 100;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("journal", "g");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void completeJournalIsNotModified() throws IOException {
+        byte[] complete = writeComplete();
+        assertEquals(RECORDS + 1, count(complete, (byte) '\n'));
+        assertEquals(0, GradeJournal.recover(file));
+        assertArrayEquals(complete, read());
+    }
+
+    @Test
+    public void everyTruncationOfTheLastRecordIsRepaired() throws IOException {
+        byte[] complete = writeComplete();
+        int lastRecordStart = complete.length - 1;
+        while (complete[lastRecordStart - 1] != '\n') {
+            lastRecordStart--;
+        }
+        for (int size = lastRecordStart; size < complete.length; size++) {
+            write(Arrays.copyOf(complete, size));
+            assertEquals("Truncation at " + size, size == lastRecordStart ? 0 : 1, GradeJournal.recover(file));
+            assertArrayEquals("Truncation at " + size + " lost valid records",
+                    Arrays.copyOf(complete, lastRecordStart), read());
+        }
+    }
+
+    @Test
+    public void corruptedRecordInTheMiddleIsRemoved() throws IOException {
+        byte[] corrupted = writeComplete();
+        corrupted[corrupted.length / 2] ^= 0x20;
+        write(corrupted);
+        assertEquals(1, GradeJournal.recover(file));
+        assertEquals(RECORDS, count(read(), (byte) '\n'));
+        assertEquals(0, GradeJournal.recover(file));
+    }
+
+    @Test
+    public void appendAfterCrashKeepsTheJournalValid() throws Exception {
+        byte[] complete = writeComplete();
+        write(Arrays.copyOf(complete, complete.length - 5));
+        GradeJournal journal = GradeJournal.open(file, COLUMNS);
+        long sequence = journal.append(System.nanoTime(), "after crash", "3", "0");
+        assertTrue("Record not durable", journal.awaitDurable(sequence, 5000));
+        journal.close();
+        assertEquals(0, GradeJournal.recover(file));
+        assertEquals(RECORDS + 1, count(read(), (byte) '\n'));
+    }
+
+    @Test(expected = IOException.class)
+    public void fileCannotBeOpenedTwice() throws IOException {
+        GradeJournal journal = GradeJournal.open(file, COLUMNS);
+        try {
+            GradeJournal.open(file, COLUMNS);
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void concurrentAppendsAreAllCommitted() throws Exception {
+        final GradeJournal journal = GradeJournal.open(file, COLUMNS);
+        final int perThread = 250;
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int id = t;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        journal.append(System.nanoTime(), "thread" + id, Integer.toString(i), Long.toString(i));
+                        Thread.yield();
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        journal.close();
+        assertEquals(writers.length * perThread, journal.getDurableCount());
+        assertEquals(0, GradeJournal.recover(file));
+        assertEquals(writers.length * perThread + 1, count(read(), (byte) '\n'));
+    }
+
+    /**
+     * Writes a journal of {@link #RECORDS} records, with quotes to escape
+     *
+     * @return its content
+     */
+    private byte[] writeComplete() throws IOException {
+        GradeJournal journal = GradeJournal.open(file, COLUMNS);
+        for (int i = 0; i < RECORDS; i++) {
+            journal.append(System.nanoTime(), "image \"" + i + "\".png", Integer.toString(i % 5 + 1), Integer.toString(i));
+        }
+        journal.close();
+        return read();
+    }
+
+    private byte[] read() throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+
+    private void write(byte[] content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+    }
+
+    private static int count(byte[] content, byte value) {
+        int count = 0;
+        for (byte b : content) {
+            if (b == value) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
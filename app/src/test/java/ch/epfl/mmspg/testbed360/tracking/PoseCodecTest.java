@@ -0,0 +1,309 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compresses tracks with {@link PoseCodec.Encoder}, decodes them and checks every pose against the
+ * error bound of the {@link PoseCodec.Settings}, plus the dead-band for the poses which were skipped.
+ */
+public class PoseCodecTest {
+    private final static PoseCodec.Settings[] ALL_SETTINGS = {
+            PoseCodec.Settings.DEFAULT,
+            PoseCodec.Settings.DEFAULT.withoutDeadBand(),
+            new PoseCodec.Settings(0.01, 0.0001, 0, 0, 1000),
+            new PoseCodec.Settings(1, 0.01, 0.5, 0.005, 500)
+    };
+
+    /**
+     * Float rounding of the decoded values
+     */
+    private final static double EPSILON = 1e-6;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("track", PoseCodec.SUFFIX);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void boundsHoldOnSyntheticHead() throws IOException {
+        Track track = Track.synthetic(100000, 42);
+        for (PoseCodec.Settings settings : ALL_SETTINGS) {
+            check(track, settings);
+        }
+    }
+
+    @Test
+    public void boundsHoldOnRandomRotations() throws IOException {
+        Track track = Track.random(50000, 7);
+        for (PoseCodec.Settings settings : ALL_SETTINGS) {
+            check(track, settings);
+        }
+    }
+
+    @Test
+    public void everyPoseIsStoredWithoutDeadBand() throws IOException {
+        Track track = Track.synthetic(20000, 1);
+        assertEquals(track.count, check(track, PoseCodec.Settings.DEFAULT.withoutDeadBand()));
+    }
+
+    @Test
+    public void deadBandSkipsPosesOfAStillHead() throws IOException {
+        Track track = Track.synthetic(20000, 2);
+        int stored = check(track, PoseCodec.Settings.DEFAULT);
+        assertTrue("Only " + (track.count - stored) + " poses skipped", stored < track.count * 0.9);
+    }
+
+    @Test
+    public void partialLastRecordIsIgnored() throws IOException {
+        Track track = Track.synthetic(1000, 3);
+        encode(track, PoseCodec.Settings.DEFAULT.withoutDeadBand());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        int count = 0;
+        try (PoseCodec.Decoder decoder = new PoseCodec.Decoder(file)) {
+            while (decoder.next()) {
+                assertEquals(track.frames[count], decoder.getFrame());
+                count++;
+            }
+        }
+        assertEquals(track.count - 1, count);
+    }
+
+    private void encode(Track track, PoseCodec.Settings settings) throws IOException {
+        PoseCodec.Encoder encoder = new PoseCodec.Encoder(file, 1, 0, track.name, settings);
+        for (int i = 0; i < track.count; i++) {
+            int o = i * 7;
+            encoder.onPose(track.times[i], track.frames[i], track.poses[o], track.poses[o + 1], track.poses[o + 2],
+                    track.poses[o + 3], track.poses[o + 4], track.poses[o + 5], track.poses[o + 6]);
+        }
+        encoder.close();
+    }
+
+    /**
+     * Compresses a track, decodes it and checks every pose against the bounds of {@code settings} :
+     * stored poses must be within the bound, skipped ones within the bound plus the dead-band of the
+     * previous decoded pose. Invalid poses must be stored and decoded unchanged, and the last pose
+     * must always be stored.
+     *
+     * @return the amount of poses stored
+     */
+    private int check(Track track, PoseCodec.Settings settings) throws IOException {
+        encode(track, settings);
+        String name = track.name + ", " + settings;
+
+        long[] times = new long[track.count];
+        long[] frames = new long[track.count];
+        float[] poses = new float[track.count * 7];
+        int decoded = 0;
+        try (PoseCodec.Decoder decoder = new PoseCodec.Decoder(file)) {
+            while (decoder.next()) {
+                if (decoded == track.count) {
+                    fail("Extra pose of frame " + decoder.getFrame() + " in " + name);
+                }
+                times[decoded] = decoder.getTimeNs();
+                frames[decoded] = decoder.getFrame();
+                int o = decoded++ * 7;
+                poses[o] = decoder.getQx();
+                poses[o + 1] = decoder.getQy();
+                poses[o + 2] = decoder.getQz();
+                poses[o + 3] = decoder.getQw();
+                poses[o + 4] = decoder.getTx();
+                poses[o + 5] = decoder.getTy();
+                poses[o + 6] = decoder.getTz();
+            }
+        }
+
+        double maxAngle = Math.toRadians(settings.getMaxAngleDeg());
+        double maxTranslation = settings.getTranslationStep() / 2;
+        //index of the decoded pose holding at the current frame
+        int d = -1;
+        for (int i = 0; i < track.count; i++) {
+            boolean stored = d + 1 < decoded && frames[d + 1] == track.frames[i];
+            if (stored) {
+                d++;
+            } else if (d < 0 || d + 1 < decoded && frames[d + 1] < track.frames[i]) {
+                fail("Missing pose of frame " + track.frames[i] + " in " + name);
+            }
+            int o = i * 7;
+            int h = d * 7;
+            if (!PoseCodec.normalize(Arrays.copyOfRange(track.poses, o, o + 7), settings.getTranslationStep())) {
+                assertTrue("Raw pose of frame " + track.frames[i] + " skipped in " + name, stored);
+                for (int c = 0; c < 7; c++) {
+                    assertEquals("Raw pose of frame " + track.frames[i] + " altered in " + name,
+                            Float.floatToIntBits((float) track.poses[o + c]), Float.floatToIntBits(poses[h + c]));
+                }
+                continue;
+            }
+            double angle = angleBetween(track.poses, o, poses, h);
+            double translation = Math.max(Math.abs(poses[h + 4] - track.poses[o + 4]),
+                    Math.max(Math.abs(poses[h + 5] - track.poses[o + 5]), Math.abs(poses[h + 6] - track.poses[o + 6])));
+            double angleBound = maxAngle + (stored ? 0 : Math.toRadians(settings.getDeadBandAngleDeg()));
+            double translationBound = maxTranslation + (stored ? 0 : settings.getDeadBandTranslation());
+            if (angle > angleBound + EPSILON || translation > translationBound * (1 + EPSILON) + EPSILON) {
+                fail(String.format(Locale.US, "Pose of frame %d off by %.5fdeg %.6fm in %s",
+                        track.frames[i], Math.toDegrees(angle), translation, name));
+            }
+            if (stored && Math.abs(times[d] - track.times[i]) > PoseCodec.TIME_UNIT_NS / 2) {
+                fail("Time of frame " + track.frames[i] + " off by " + (times[d] - track.times[i]) + "ns in " + name);
+            }
+        }
+        assertEquals("Extra poses in " + name, decoded - 1, d);
+        assertEquals("Last pose missing in " + name, track.frames[track.count - 1], frames[d]);
+        return decoded;
+    }
+
+    /**
+     * Measured from the vector part of the rotation between the two quaternions rather than from
+     * their dot product, whose arc cosine is too imprecise near 1 for small angles.
+     *
+     * @return the angle of the rotation between the quaternion of {@code a} at {@code aOffset} and
+     * the one of {@code b} at {@code bOffset}, in radians
+     */
+    private static double angleBetween(double[] a, int aOffset, float[] b, int bOffset) {
+        double ax = a[aOffset], ay = a[aOffset + 1], az = a[aOffset + 2], aw = a[aOffset + 3];
+        double bx = b[bOffset], by = b[bOffset + 1], bz = b[bOffset + 2], bw = b[bOffset + 3];
+        double w = aw * bw + ax * bx + ay * by + az * bz;
+        double x = aw * bx - ax * bw - ay * bz + az * by;
+        double y = aw * by + ax * bz - ay * bw - az * bx;
+        double z = aw * bz - ax * by + ay * bx - az * bw;
+        return 2 * Math.atan2(Math.sqrt(x * x + y * y + z * z), Math.abs(w));
+    }
+
+    /**
+     * Poses of a track held in memory, to check a decoded track against
+     */
+    private static final class Track {
+        final String name;
+        final int count;
+        final long[] times;
+        final long[] frames;
+        final double[] poses;
+
+        Track(String name, int count, long[] times, long[] frames, double[] poses) {
+            this.name = name;
+            this.count = count;
+            this.times = times;
+            this.frames = frames;
+            this.poses = poses;
+        }
+
+        /**
+         * A head at 60 frames per second turning by a random walk of its angular velocity, with pauses
+         * where it only shakes slightly, and some invalid poses
+         */
+        static Track synthetic(int count, long seed) {
+            Random random = new Random(seed);
+            long[] times = new long[count];
+            long[] frames = new long[count];
+            double[] poses = new double[count * 7];
+            double[] q = {0, 0, 0, 1};
+            double[] velocity = new double[3];
+            double[] t = new double[3];
+            long time = -5000000000L;
+            for (int i = 0; i < count; i++) {
+                //60fps with a few microseconds of jitter and some dropped frames
+                time += 16666667 + (long) (random.nextGaussian() * 50000) + (random.nextInt(200) == 0 ? 16666667 : 0);
+                times[i] = time;
+                frames[i] = i == 0 ? 0 : frames[i - 1] + 1 + (random.nextInt(500) == 0 ? 1 : 0);
+                boolean still = (i / 300) % 3 == 2;
+                for (int a = 0; a < 3; a++) {
+                    velocity[a] = still ? random.nextGaussian() * 0.0002
+                            : velocity[a] * 0.98 + random.nextGaussian() * 0.002;
+                    t[a] = still ? t[a] + random.nextGaussian() * 0.00002 : t[a] * 0.999 + velocity[a] * 0.01;
+                }
+                rotate(q, velocity);
+                System.arraycopy(q, 0, poses, i * 7, 4);
+                System.arraycopy(t, 0, poses, i * 7 + 4, 3);
+                if (random.nextInt(10000) == 0) {
+                    poses[i * 7 + random.nextInt(7)] = Double.NaN;
+                }
+            }
+            return new Track("synthetic head", count, times, frames, poses);
+        }
+
+        /**
+         * Uniformly random rotations and translations, without any coherence between frames
+         */
+        static Track random(int count, long seed) {
+            Random random = new Random(seed);
+            long[] times = new long[count];
+            long[] frames = new long[count];
+            double[] poses = new double[count * 7];
+            for (int i = 0; i < count; i++) {
+                times[i] = random.nextLong() / 4;
+                frames[i] = i * 3;
+                double norm = 0;
+                for (int c = 0; c < 4; c++) {
+                    poses[i * 7 + c] = random.nextGaussian();
+                    norm += poses[i * 7 + c] * poses[i * 7 + c];
+                }
+                for (int c = 0; c < 4; c++) {
+                    poses[i * 7 + c] /= Math.sqrt(norm);
+                }
+                for (int c = 4; c < 7; c++) {
+                    poses[i * 7 + c] = (random.nextDouble() - 0.5) * 10;
+                }
+            }
+            return new Track("random rotations", count, times, frames, poses);
+        }
+
+        /**
+         * Applies a small rotation of axis-angle {@code rotation} to the unit quaternion {@code q}
+         */
+        private static void rotate(double[] q, double[] rotation) {
+            double angle = Math.sqrt(rotation[0] * rotation[0] + rotation[1] * rotation[1] + rotation[2] * rotation[2]);
+            if (angle == 0) {
+                return;
+            }
+            double s = Math.sin(angle / 2) / angle;
+            double rx = rotation[0] * s, ry = rotation[1] * s, rz = rotation[2] * s, rw = Math.cos(angle / 2);
+            double x = rw * q[0] + rx * q[3] + ry * q[2] - rz * q[1];
+            double y = rw * q[1] - rx * q[2] + ry * q[3] + rz * q[0];
+            double z = rw * q[2] + rx * q[1] - ry * q[0] + rz * q[3];
+            double w = rw * q[3] - rx * q[0] - ry * q[1] - rz * q[2];
+            double norm = Math.sqrt(x * x + y * y + z * z + w * w);
+            q[0] = x / norm;
+            q[1] = y / norm;
+            q[2] = z / norm;
+            q[3] = w / norm;
+        }
+    }
+}
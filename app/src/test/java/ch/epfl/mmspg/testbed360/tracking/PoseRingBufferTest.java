@@ -0,0 +1,122 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the poses of a {@link PoseRingBuffer} are received once, in order and untorn, including
+ * with a concurrent producer and consumer.
+ */
+public class PoseRingBufferTest {
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(1, new PoseRingBuffer(1).getCapacity());
+        assertEquals(8, new PoseRingBuffer(5).getCapacity());
+        assertEquals(256, new PoseRingBuffer(256).getCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        new PoseRingBuffer(0);
+    }
+
+    @Test
+    public void fullBufferDropsNewPoses() {
+        PoseRingBuffer buffer = new PoseRingBuffer(4);
+        for (long i = 0; i < 4; i++) {
+            assertTrue(offer(buffer, i));
+        }
+        assertFalse(offer(buffer, 4));
+        assertFalse(offer(buffer, 5));
+        assertEquals(2, buffer.getDroppedCount());
+
+        CheckingReader reader = new CheckingReader();
+        assertEquals(3, buffer.drain(reader, 3));
+        assertTrue(offer(buffer, 6));
+        assertEquals(2, buffer.drain(reader, Integer.MAX_VALUE));
+        assertEquals(0, buffer.drain(reader, Integer.MAX_VALUE));
+        assertEquals(5, reader.received);
+        assertEquals(6, reader.lastFrame);
+    }
+
+    @Test
+    public void concurrentPosesArriveOnceInOrderUntorn() throws InterruptedException {
+        final int count = 1000000;
+        final PoseRingBuffer buffer = new PoseRingBuffer(256);
+        final long[] accepted = new long[1];
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = 0; i < count; i++) {
+                    //the first half is offered until accepted, the second half may be dropped
+                    boolean offered;
+                    while (!(offered = offer(buffer, i)) && i < count / 2) {
+                        Thread.yield();
+                    }
+                    if (offered) {
+                        accepted[0]++;
+                    }
+                }
+            }
+        });
+        CheckingReader reader = new CheckingReader();
+        producer.start();
+        while (producer.isAlive()) {
+            if (buffer.drain(reader, 64) == 0) {
+                Thread.yield();
+            }
+        }
+        producer.join();
+        buffer.drain(reader, Integer.MAX_VALUE);
+
+        assertEquals(accepted[0], reader.received);
+        //retries of the first half are counted as well
+        assertTrue(buffer.getDroppedCount() >= count - accepted[0]);
+        assertTrue(reader.received >= count / 2);
+    }
+
+    /**
+     * Every value derives from the frame, so that a torn pose is detected
+     */
+    private static boolean offer(PoseRingBuffer buffer, long i) {
+        return buffer.offer(i, i, i, i + 1, i + 2, i + 3, -i, -i - 1, -i - 2);
+    }
+
+    private static class CheckingReader implements PoseRingBuffer.Reader {
+        long received = 0;
+        long lastFrame = -1;
+
+        @Override
+        public void onPose(long timeNs, long frame, double qx, double qy, double qz, double qw,
+                           double tx, double ty, double tz) {
+            if (frame <= lastFrame || timeNs != frame || qx != frame || qy != frame + 1
+                    || qz != frame + 2 || qw != frame + 3 || tx != -frame || ty != -frame - 1
+                    || tz != -frame - 2) {
+                fail("Torn or unordered pose at frame " + frame + " after " + lastFrame);
+            }
+            received++;
+            lastFrame = frame;
+        }
+    }
+}
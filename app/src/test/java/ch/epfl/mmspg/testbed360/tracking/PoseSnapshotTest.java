@@ -0,0 +1,127 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that readers of a {@link PoseSnapshot} never see a pose mixing two frames, with a writer
+ * publishing as fast as possible.
+ */
+public class PoseSnapshotTest {
+    @Test
+    public void nothingIsReadBeforeTheFirstPose() {
+        PoseSnapshot snapshot = new PoseSnapshot();
+        assertEquals(-1, snapshot.getFrame());
+        assertEquals(-1, snapshot.getTimeNs());
+        assertFalse(snapshot.read(new PoseRingBuffer.Reader() {
+            @Override
+            public void onPose(long timeNs, long frame, double qx, double qy, double qz, double qw,
+                               double tx, double ty, double tz) {
+                throw new AssertionError("No pose was published");
+            }
+        }));
+    }
+
+    @Test
+    public void lastPoseIsRead() {
+        PoseSnapshot snapshot = new PoseSnapshot();
+        for (long i = 0; i < 10; i++) {
+            publish(snapshot, i);
+        }
+        assertEquals(9, snapshot.getFrame());
+        assertEquals(9 * 16, snapshot.getTimeNs());
+        CheckingReader reader = new CheckingReader();
+        assertTrue(snapshot.read(reader));
+        assertNull(reader.failure);
+        assertEquals(9, reader.last);
+    }
+
+    /**
+     * Every value of a pose derives from its frame, so that a reader detects a torn pose, and frames
+     * must never go backwards for a reader
+     */
+    @Test(timeout = 60000)
+    public void concurrentReadersNeverSeeATornPose() throws InterruptedException {
+        final long count = 1000000;
+        final PoseSnapshot snapshot = new PoseSnapshot();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final CheckingReader[] checks = new CheckingReader[Math.max(2, Runtime.getRuntime().availableProcessors())];
+        Thread[] readers = new Thread[checks.length];
+        for (int r = 0; r < readers.length; r++) {
+            final CheckingReader check = checks[r] = new CheckingReader();
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!done.get() && check.failure == null) {
+                        snapshot.read(check);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (long i = 0; i < count; i++) {
+            publish(snapshot, i);
+            if ((i & 0x3FF) == 0) {
+                //lets the readers run between frames even on a single core
+                Thread.yield();
+            }
+        }
+        done.set(true);
+        long reads = 0;
+        for (int r = 0; r < readers.length; r++) {
+            readers[r].join();
+            assertNull(checks[r].failure, checks[r].failure);
+            reads += checks[r].reads;
+        }
+        assertTrue("No pose was read", reads > 0);
+        assertEquals(count - 1, snapshot.getFrame());
+    }
+
+    private static void publish(PoseSnapshot snapshot, long i) {
+        snapshot.publish(i * 16, i, i, i + 1, i + 2, i + 3, -i, -i - 1, -i - 2);
+    }
+
+    /**
+     * Checks the poses published by {@link #publish(PoseSnapshot, long)}, keeping the first failure
+     * so that the thread which read it stops
+     */
+    private static final class CheckingReader implements PoseRingBuffer.Reader {
+        long last = -1;
+        long reads = 0;
+        String failure;
+
+        @Override
+        public void onPose(long timeNs, long frame, double qx, double qy, double qz, double qw,
+                           double tx, double ty, double tz) {
+            reads++;
+            if (frame < last || timeNs != frame * 16 || qx != frame || qy != frame + 1 || qz != frame + 2
+                    || qw != frame + 3 || tx != -frame || ty != -frame - 1 || tz != -frame - 2) {
+                failure = "Torn or unordered pose at frame " + frame + " after " + last;
+            }
+            last = frame;
+        }
+    }
+}
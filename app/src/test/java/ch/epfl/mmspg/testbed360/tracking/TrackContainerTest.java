@@ -0,0 +1,241 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that the tracks appended to a {@link TrackContainer} are indexed and read back one by one,
+ * including after a crash left the container truncated or its header corrupted.
+ */
+public class TrackContainerTest {
+    private final static long RUN_ID = 1508234000000L;
+    private final static int INITIAL_RUN_COUNT = 2;
+    private final static String[] STIMULI = {
+            "author_lac léman_equirec_4096x2048_q1.png",
+            "author_city_cubemap32_1024x768_q3.png",
+            "author_lac léman_equirec_4096x2048_q1.png"
+    };
+
+    private File dir;
+    private File file;
+    /**
+     * Content of the track files appended to the container, in order
+     */
+    private final List<byte[]> tracks = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("container").toFile();
+        file = new File(dir, TrackContainer.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                child.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void tracksAreIndexed() throws IOException {
+        writeContainer();
+        try (TrackContainer container = TrackContainer.open(file)) {
+            assertEquals(INITIAL_RUN_COUNT + 1, container.getRunCount());
+            List<TrackContainer.Entry> entries = container.getEntries();
+            assertEquals(STIMULI.length, entries.size());
+            for (int i = 0; i < STIMULI.length; i++) {
+                assertEquals(trackId(i), entries.get(i).getTrackId());
+                assertEquals(RUN_ID, entries.get(i).getRunId());
+                assertEquals(STIMULI[i], entries.get(i).getStimulusName());
+                assertEquals(tracks.get(i).length, entries.get(i).getLength());
+            }
+            assertEquals(2, container.findTracks(STIMULI[0]).size());
+            assertEquals(trackId(1), container.getEntry(trackId(1)).getTrackId());
+            assertNull(container.getEntry(42));
+        }
+        assertEquals(INITIAL_RUN_COUNT + 1, TrackContainer.readRunCount(file));
+    }
+
+    @Test
+    public void tracksAreReadOneByOne() throws IOException {
+        writeContainer();
+        try (TrackContainer container = TrackContainer.open(file)) {
+            //in reverse order, so that no track is read sequentially after the previous one
+            for (int i = STIMULI.length - 1; i >= 0; i--) {
+                try (TrackReader reader = container.openTrack(container.getEntry(trackId(i)))) {
+                    assertEquals(trackId(i), reader.getTrackId());
+                    assertEquals(STIMULI[i], reader.getStimulusName());
+                    int count = 0;
+                    while (reader.next()) {
+                        assertEquals(i * 1000 + count, reader.getFrame());
+                        count++;
+                    }
+                    assertEquals(poseCount(i), count);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void legacyExportIsByteExact() throws IOException {
+        writeContainer();
+        File exported = new File(dir, "exported");
+        try (TrackContainer container = TrackContainer.open(file)) {
+            assertEquals(STIMULI.length, container.exportLegacy(exported));
+        }
+        try {
+            for (int i = 0; i < STIMULI.length; i++) {
+                File track = new File(exported, trackId(i) + suffix(i));
+                assertArrayEquals(tracks.get(i), Files.readAllBytes(track.toPath()));
+            }
+        } finally {
+            for (int i = 0; i < STIMULI.length; i++) {
+                new File(exported, trackId(i) + suffix(i)).delete();
+            }
+            exported.delete();
+        }
+    }
+
+    /**
+     * A crash may stop the writes anywhere : the tracks whose segment is complete must be kept, a
+     * partial last segment must be ignored when reading and truncated when appending.
+     */
+    @Test
+    public void everyTruncationKeepsTheCompleteTracks() throws IOException {
+        writeContainer();
+        byte[] complete = Files.readAllBytes(file.toPath());
+        List<TrackContainer.Entry> entries;
+        try (TrackContainer container = TrackContainer.open(file)) {
+            entries = container.getEntries();
+        }
+        File truncated = new File(dir, "truncated.t36");
+        for (int size = TrackContainer.HEADER_SIZE; size <= complete.length; size++) {
+            Files.write(truncated.toPath(), Arrays.copyOf(complete, size));
+            int expected = 0;
+            for (TrackContainer.Entry entry : entries) {
+                if (entry.getOffset() + entry.getLength() <= size) {
+                    expected++;
+                }
+            }
+            try (TrackContainer container = TrackContainer.open(truncated)) {
+                assertEquals("Truncation at " + size, expected, container.getEntries().size());
+            }
+            if (size % 50 != 0 && size != complete.length - 1) {
+                //appending forces the file to the storage, which is too slow to do at every size
+                continue;
+            }
+            try (TrackContainer container = TrackContainer.open(truncated, true, 0)) {
+                assertEquals("Truncation at " + size, expected, container.getEntries().size());
+                container.appendTrack(RUN_ID, 42, STIMULI[0], TrackFile.SUFFIX, writeTrack(0));
+            }
+            try (TrackContainer container = TrackContainer.open(truncated)) {
+                assertEquals("Append after truncation at " + size, expected + 1, container.getEntries().size());
+                assertEquals(42, container.getEntries().get(expected).getTrackId());
+            }
+        }
+        truncated.delete();
+    }
+
+    @Test
+    public void corruptedHeaderTriggersAFullScan() throws IOException {
+        writeContainer();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(10);
+            raf.write(raf.read() ^ 0xFF);
+        }
+        assertEquals(-1, TrackContainer.readRunCount(file));
+        try (TrackContainer container = TrackContainer.open(file)) {
+            assertEquals(INITIAL_RUN_COUNT + 1, container.getRunCount());
+            assertEquals(STIMULI.length, container.getEntries().size());
+        }
+        //the header is rewritten when opened writable
+        TrackContainer.open(file, true, 0).close();
+        assertEquals(INITIAL_RUN_COUNT + 1, TrackContainer.readRunCount(file));
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreNotContainers() throws IOException {
+        Files.write(file.toPath(), new byte[TrackContainer.HEADER_SIZE * 2]);
+        TrackContainer.open(file).close();
+    }
+
+    /**
+     * Writes a container of one run holding {@link #STIMULI}, the last track being compressed
+     */
+    private void writeContainer() throws IOException {
+        try (TrackContainer container = TrackContainer.open(file, true, INITIAL_RUN_COUNT)) {
+            container.beginRun(RUN_ID);
+            for (int i = 0; i < STIMULI.length; i++) {
+                File track = writeTrack(i);
+                tracks.add(Files.readAllBytes(track.toPath()));
+                container.appendTrack(RUN_ID, trackId(i), STIMULI[i], suffix(i), track);
+                track.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the track file of the {@code i}th stimulus, with frames starting from {@code i * 1000}
+     */
+    private File writeTrack(int i) throws IOException {
+        File track = new File(dir, trackId(i) + suffix(i));
+        TrackWriter writer = suffix(i).equals(PoseCodec.SUFFIX)
+                ? new PoseCodec.Encoder(track, trackId(i), 0, STIMULI[i], PoseCodec.Settings.DEFAULT.withoutDeadBand())
+                : new TrackFile.Writer(track, trackId(i), 0, STIMULI[i]);
+        try {
+            for (int p = 0; p < poseCount(i); p++) {
+                double angle = p * 0.01;
+                writer.onPose(p * 16666667L, i * 1000 + p, 0, Math.sin(angle), 0, Math.cos(angle), 0, 0, p * 0.001);
+            }
+        } finally {
+            writer.close();
+        }
+        return track;
+    }
+
+    private static long trackId(int i) {
+        return RUN_ID + 1 + i;
+    }
+
+    private static String suffix(int i) {
+        return i == STIMULI.length - 1 ? PoseCodec.SUFFIX : TrackFile.SUFFIX;
+    }
+
+    private static int poseCount(int i) {
+        return 20 + 7 * i;
+    }
+}
@@ -0,0 +1,157 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that poses written to a {@link TrackFile} are read back, including after an interrupted run.
+ */
+public class TrackFileTest {
+    private final static long TRACK_ID = 1508234567890L;
+    private final static long EPOCH_OFFSET_NS = 1508234567890000000L;
+    private final static String STIMULUS = "author_lac léman_equirec_4096x2048_q1.png";
+    /**
+     * Size of a record, see {@link TrackFile}
+     */
+    private final static int RECORD_SIZE = 40;
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("tracks").toFile();
+        file = new File(dir, TRACK_ID + TrackFile.SUFFIX);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void posesAreReadBack() throws IOException {
+        write(0, 1000);
+        try (TrackReader reader = TrackFile.open(file)) {
+            assertEquals(TRACK_ID, reader.getTrackId());
+            assertEquals(EPOCH_OFFSET_NS, reader.getEpochOffsetNs());
+            assertEquals(STIMULUS, reader.getStimulusName());
+            assertEquals(1000, readAll(reader, 0));
+        }
+    }
+
+    @Test
+    public void partialLastRecordIsIgnored() throws IOException {
+        write(0, 10);
+        long complete = file.length();
+        for (int cut = 1; cut < RECORD_SIZE; cut++) {
+            truncate(complete - cut);
+            try (TrackReader reader = TrackFile.open(file)) {
+                assertEquals("Cut of " + cut + " bytes", 9, readAll(reader, 0));
+            }
+        }
+    }
+
+    @Test
+    public void appendingAfterAnInterruptedRunDropsThePartialRecord() throws IOException {
+        write(0, 10);
+        truncate(file.length() - 3);
+        write(9, 5);
+        assertEquals(14, (file.length() - headerSize()) / RECORD_SIZE);
+        try (TrackReader reader = TrackFile.open(file)) {
+            assertEquals(14, readAll(reader, 0));
+        }
+    }
+
+    @Test
+    public void exportsOneCsvLinePerPose() throws IOException {
+        write(0, 25);
+        StringBuilder csv = new StringBuilder();
+        assertEquals(25, TrackFile.exportCsv(file, csv));
+        String[] lines = csv.toString().split("\n");
+        assertEquals(26, lines.length);
+        assertEquals("EpochMs,TimeNs,Frame,Qx,Qy,Qz,Qw,Tx,Ty,Tz", lines[0]);
+        assertTrue(lines[1].startsWith("1508234567890.000,0,0,"));
+    }
+
+    @Test
+    public void trackNames() {
+        assertTrue(TrackFile.isTrackName(TRACK_ID + TrackFile.SUFFIX));
+        assertTrue(TrackFile.isTrackName(TRACK_ID + PoseCodec.SUFFIX));
+        assertFalse(TrackFile.isTrackName(TRACK_ID + "g"));
+    }
+
+    /**
+     * Appends poses whose values derive from their frame, see {@link #readAll(TrackReader, int)}
+     */
+    private void write(int firstFrame, int count) throws IOException {
+        try (TrackFile.Writer writer = new TrackFile.Writer(file, TRACK_ID, EPOCH_OFFSET_NS, STIMULUS)) {
+            for (int frame = firstFrame; frame < firstFrame + count; frame++) {
+                writer.onPose(frame * 16000000L, frame, frame / 1000f, 0.5f, -0.25f, 0.75f, frame, -frame, 0.125f);
+            }
+            assertEquals(count, writer.getRecordCount());
+        }
+    }
+
+    /**
+     * @return the amount of poses read, checking that they are those written by {@link #write(int, int)}
+     */
+    private static int readAll(TrackReader reader, int firstFrame) throws IOException {
+        int frame = firstFrame;
+        while (reader.next()) {
+            assertEquals(frame, reader.getFrame());
+            assertEquals(frame * 16000000L, reader.getTimeNs());
+            assertEquals(frame / 1000f, reader.getQx(), 0);
+            assertEquals(0.5f, reader.getQy(), 0);
+            assertEquals(-0.25f, reader.getQz(), 0);
+            assertEquals(0.75f, reader.getQw(), 0);
+            assertEquals(frame, reader.getTx(), 0);
+            assertEquals(-frame, reader.getTy(), 0);
+            assertEquals(0.125f, reader.getTz(), 0);
+            frame++;
+        }
+        return frame - firstFrame;
+    }
+
+    private long headerSize() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(6);
+            //little endian short
+            return raf.readUnsignedByte() | raf.readUnsignedByte() << 8;
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+}
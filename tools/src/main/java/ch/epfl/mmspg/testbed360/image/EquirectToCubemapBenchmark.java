@@ -0,0 +1,86 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures the throughput of {@link EquirectToCubemap} on a synthetic equirectangular image, for
+ * each {@link EquirectToCubemap.Filter}, on one thread and with one band per core, in output
+ * megapixels per second.
+ * <pre>
+ * EquirectToCubemapBenchmark [width] [height] [runs]
+ * </pre>
+ */
+public final class EquirectToCubemapBenchmark {
+    private EquirectToCubemapBenchmark() {
+        //do nothing, only runs from main
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : width / 2;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        short[] source = new short[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                source[y * width + x] = (short) (((x * 31 / width) << 11) | ((y * 63 / height) << 5) | ((x ^ y) & 0x1F));
+            }
+        }
+        int faceSize = EquirectToCubemap.faceSizeFor(width);
+        short[] face = new short[faceSize * faceSize];
+        double megapixels = EquirectToCubemap.FACE_COUNT * (double) faceSize * faceSize / 1e6;
+
+        ExecutorService executor = Executors.newFixedThreadPool(cores);
+        try {
+            System.out.println(String.format(Locale.US, "%dx%d -> 6x%dx%d (Mpx/s)\tsequential\t%d bands",
+                    width, height, faceSize, faceSize, cores));
+            for (EquirectToCubemap.Filter filter : EquirectToCubemap.Filter.values()) {
+                StringBuilder line = new StringBuilder(filter.toString());
+                for (int parallelism : new int[]{1, cores}) {
+                    //a first conversion to warm the JIT up
+                    convert(source, width, height, face, faceSize, filter, executor, parallelism);
+                    long start = System.nanoTime();
+                    for (int run = 0; run < runs; run++) {
+                        convert(source, width, height, face, faceSize, filter, executor, parallelism);
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    line.append('\t').append(String.format(Locale.US, "%.1f", megapixels * runs / seconds));
+                }
+                System.out.println(line);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Converts the six faces into a single face buffer, as the app does
+     */
+    private static void convert(short[] source, int width, int height, short[] face, int faceSize,
+                                EquirectToCubemap.Filter filter, ExecutorService executor,
+                                int parallelism) throws InterruptedException {
+        for (int f = 0; f < EquirectToCubemap.FACE_COUNT; f++) {
+            EquirectToCubemap.convertFace(source, width, height, face, faceSize, f, filter, executor, parallelism);
+        }
+    }
+}
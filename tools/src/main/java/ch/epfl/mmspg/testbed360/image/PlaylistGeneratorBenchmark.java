@@ -0,0 +1,61 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Times {@link PlaylistGenerator#generate(String[], int, long, File, ExecutorService)} on synthetic
+ * stimuli : 100 slugs, 5 codecs and a new quality every 500 stimuli.
+ * <pre>
+ * PlaylistGeneratorBenchmark &lt;stimuli&gt; &lt;participants&gt;
+ * </pre>
+ */
+public final class PlaylistGeneratorBenchmark {
+    private PlaylistGeneratorBenchmark() {
+        //do nothing, only runs from main
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage : PlaylistGeneratorBenchmark <stimuli> <participants>");
+            System.exit(1);
+        }
+        int n = Integer.parseInt(args[0]);
+        int participants = Integer.parseInt(args[1]);
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = "author_slug" + (i % 100) + "_equirec_4096x2048_codec" + (i / 100 % 5)
+                    + "_q" + (i / 500) + ".png";
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        File target = File.createTempFile("playlists", ".bin");
+        try {
+            long start = System.currentTimeMillis();
+            PlaylistGenerator.generate(names, participants, 0, target, executor);
+            System.out.println(String.format("%d stimuli x %d participants on %d threads : %dms, %d bytes",
+                    n, participants, threads, System.currentTimeMillis() - start, target.length()));
+        } finally {
+            target.delete();
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Generates the {@link PlaylistGenerator#FILE_NAME} of a session folder, from the evaluation stimuli
+ * it contains.
+ * <pre>
+ * PlaylistGeneratorTool &lt;sessionDir&gt; &lt;participants&gt; [seed]
+ * </pre>
+ */
+public final class PlaylistGeneratorTool {
+    private PlaylistGeneratorTool() {
+        //do nothing, only runs from main
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage : PlaylistGeneratorTool <sessionDir> <participants> [seed]");
+            System.exit(1);
+        }
+        File sessionDir = new File(args[0]);
+        //same as ImageUtils#getStimuliDir, which cannot be used outside of Android
+        File evaluationDir = new File(sessionDir, "stimuli" + File.separator + "evaluation");
+        String[] files = evaluationDir.list();
+        if (files == null) {
+            throw new IOException("Cannot list " + evaluationDir);
+        }
+        List<String> names = new ArrayList<>();
+        for (String name : files) {
+            if (StimulusNames.matches(name)) {
+                names.add(name);
+            }
+        }
+        //the listing order is not specified, the indices must only depend on the seed
+        String[] sorted = names.toArray(new String[names.size()]);
+        Arrays.sort(sorted);
+        int participants = Integer.parseInt(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : new Random().nextLong();
+        File target = new File(sessionDir, PlaylistGenerator.FILE_NAME);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            long start = System.currentTimeMillis();
+            PlaylistGenerator.generate(sorted, participants, seed, target, executor);
+            System.out.println("Wrote " + participants + " orders of " + sorted.length + " stimuli with seed "
+                    + seed + " to " + target + " in " + (System.currentTimeMillis() - start) + "ms");
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
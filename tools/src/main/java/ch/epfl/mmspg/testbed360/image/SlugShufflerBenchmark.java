@@ -0,0 +1,54 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Times {@link SlugShuffler#order(int[], int, Random)} from 10 to 100k stimuli, with one slug per
+ * 10 stimuli (up to 100 slugs).
+ * <pre>
+ * SlugShufflerBenchmark [runs]
+ * </pre>
+ */
+public final class SlugShufflerBenchmark {
+    private SlugShufflerBenchmark() {
+        //do nothing, only runs from main
+    }
+
+    public static void main(String[] args) {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        Random inputs = new Random(0);
+        for (int n = 10; n <= 100000; n *= 10) {
+            int groupCount = Math.max(1, Math.min(100, n / 10));
+            int[] groups = new int[n];
+            for (int i = 0; i < n; i++) {
+                groups[i] = inputs.nextInt(groupCount);
+            }
+            SlugShuffler.order(groups, groupCount, new Random(-1)); //warm up
+            long start = System.nanoTime();
+            int repeats = 0;
+            for (int r = 0; r < runs; r++) {
+                repeats += SlugShuffler.countRepeats(SlugShuffler.order(groups, groupCount, new Random(r)), groups);
+            }
+            System.out.println(String.format(Locale.US, "%6d stimuli, %3d slugs : %8.3fms, %d repeats",
+                    n, groupCount, (System.nanoTime() - start) / 1e6 / runs, repeats));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.image;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Prints the size read by {@link StimulusHeader} for each given file, and the time it took to read
+ * them all.
+ * <pre>
+ * StimulusHeaderTool &lt;file&gt;...
+ * </pre>
+ */
+public final class StimulusHeaderTool {
+    private StimulusHeaderTool() {
+        //do nothing, only runs from main
+    }
+
+    public static void main(String[] args) {
+        long start = System.nanoTime();
+        for (String arg : args) {
+            System.out.println(arg + " : " + StimulusHeader.read(new File(arg)));
+        }
+        System.out.println(String.format(Locale.US, "%d files in %.3fms", args.length, (System.nanoTime() - start) / 1e6));
+    }
+}
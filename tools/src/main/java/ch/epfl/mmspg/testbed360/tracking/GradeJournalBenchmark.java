@@ -0,0 +1,70 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Measures the latency to durability of records appended to a {@link GradeJournal} by concurrent
+ * threads, and how many fsyncs they share.
+ * <pre>
+ * GradeJournalBenchmark [threads] [records per thread] [folder]
+ * </pre>
+ */
+public final class GradeJournalBenchmark {
+    private GradeJournalBenchmark() {
+        //do nothing, only runs from main
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 250;
+        File dir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+        File file = new File(dir, "journal-benchmark-" + System.nanoTime() + "g");
+        file.deleteOnExit();
+
+        final GradeJournal journal = GradeJournal.open(file, "ImageName", "Grade", "TrackID");
+        Thread[] writers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        journal.append(System.nanoTime(), "thread" + id, Integer.toString(i), Long.toString(i));
+                        Thread.yield();
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        journal.close();
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format(Locale.US,
+                "%d records in %.1fms with %d fsyncs, latency to durability mean %.2fms max %.2fms",
+                journal.getDurableCount(), elapsed / 1e6, journal.getCommitCount(),
+                journal.getMeanLatencyNs() / 1e6, journal.getMaxLatencyNs() / 1e6));
+        file.delete();
+    }
+}
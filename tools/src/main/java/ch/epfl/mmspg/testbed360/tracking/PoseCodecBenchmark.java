@@ -0,0 +1,187 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the compression ratio and the encoding and decoding throughput of {@link PoseCodec}, on a
+ * synthetic head track and on the given {@link TrackFile}s, e.g. recorded during a session. The
+ * error bounds themselves are checked by the unit tests.
+ * <pre>
+ * PoseCodecBenchmark [track file]...
+ * </pre>
+ */
+public final class PoseCodecBenchmark {
+    private final static PoseCodec.Settings[] ALL_SETTINGS = {
+            PoseCodec.Settings.DEFAULT,
+            PoseCodec.Settings.DEFAULT.withoutDeadBand(),
+            new PoseCodec.Settings(0.01, 0.0001, 0, 0, 1000),
+            new PoseCodec.Settings(1, 0.01, 0.5, 0.005, 500)
+    };
+
+    private PoseCodecBenchmark() {
+        //do nothing, only runs from main
+    }
+
+    public static void main(String[] args) throws IOException {
+        File file = File.createTempFile("track", PoseCodec.SUFFIX);
+        file.deleteOnExit();
+
+        List<Track> tracks = new ArrayList<>();
+        tracks.add(Track.synthetic(500000, 42));
+        for (String arg : args) {
+            tracks.add(Track.read(new File(arg)));
+        }
+        //first run to warm up the JIT
+        run(Track.synthetic(100000, 1), PoseCodec.Settings.DEFAULT, file);
+        for (Track track : tracks) {
+            for (PoseCodec.Settings settings : ALL_SETTINGS) {
+                run(track, settings, file);
+            }
+        }
+        file.delete();
+    }
+
+    private static void run(Track track, PoseCodec.Settings settings, File file) throws IOException {
+        long encodeStart = System.nanoTime();
+        PoseCodec.Encoder encoder = new PoseCodec.Encoder(file, 1, 0, track.name, settings);
+        for (int i = 0; i < track.count; i++) {
+            int o = i * 7;
+            encoder.onPose(track.times[i], track.frames[i], track.poses[o], track.poses[o + 1], track.poses[o + 2],
+                    track.poses[o + 3], track.poses[o + 4], track.poses[o + 5], track.poses[o + 6]);
+        }
+        encoder.close();
+        long encodeTime = System.nanoTime() - encodeStart;
+
+        int decoded = 0;
+        long decodeStart = System.nanoTime();
+        try (PoseCodec.Decoder decoder = new PoseCodec.Decoder(file)) {
+            while (decoder.next()) {
+                decoded++;
+            }
+        }
+        long decodeTime = System.nanoTime() - decodeStart;
+
+        long rawSize = track.sizeBytes > 0 ? track.sizeBytes : track.count * (long) TrackFile.RECORD_SIZE;
+        System.out.println(String.format(Locale.US,
+                "%s, %d poses, %s : %d poses stored, %.2f bytes/pose, ratio %.1f, "
+                        + "encode %.1f M poses/s, decode %.1f M poses/s",
+                track.name, track.count, settings, decoded, (double) file.length() / track.count,
+                (double) rawSize / file.length(), track.count * 1e3 / encodeTime, decoded * 1e3 / decodeTime));
+    }
+
+    /**
+     * Poses of a track held in memory, so that reading it is not measured
+     */
+    private static final class Track {
+        final String name;
+        final long sizeBytes;
+        final int count;
+        final long[] times;
+        final long[] frames;
+        final double[] poses;
+
+        Track(String name, long sizeBytes, int count, long[] times, long[] frames, double[] poses) {
+            this.name = name;
+            this.sizeBytes = sizeBytes;
+            this.count = count;
+            this.times = times;
+            this.frames = frames;
+            this.poses = poses;
+        }
+
+        static Track read(File file) throws IOException {
+            List<double[]> poses = new ArrayList<>();
+            List<long[]> stamps = new ArrayList<>();
+            try (TrackFile.Reader reader = new TrackFile.Reader(file)) {
+                while (reader.next()) {
+                    stamps.add(new long[]{reader.getTimeNs(), reader.getFrame()});
+                    poses.add(new double[]{reader.getQx(), reader.getQy(), reader.getQz(), reader.getQw(),
+                            reader.getTx(), reader.getTy(), reader.getTz()});
+                }
+            }
+            int count = poses.size();
+            long[] times = new long[count];
+            long[] frames = new long[count];
+            double[] values = new double[count * 7];
+            for (int i = 0; i < count; i++) {
+                times[i] = stamps.get(i)[0];
+                frames[i] = stamps.get(i)[1];
+                System.arraycopy(poses.get(i), 0, values, i * 7, 7);
+            }
+            return new Track(file.getName(), file.length(), count, times, frames, values);
+        }
+
+        /**
+         * A head at 60 frames per second turning by a random walk of its angular velocity, with
+         * pauses where it only shakes slightly
+         */
+        static Track synthetic(int count, long seed) {
+            Random random = new Random(seed);
+            long[] times = new long[count];
+            long[] frames = new long[count];
+            double[] poses = new double[count * 7];
+            double[] q = {0, 0, 0, 1};
+            double[] velocity = new double[3];
+            double[] t = new double[3];
+            long time = 0;
+            for (int i = 0; i < count; i++) {
+                time += 16666667 + (long) (random.nextGaussian() * 50000);
+                times[i] = time;
+                frames[i] = i;
+                boolean still = (i / 300) % 3 == 2;
+                for (int a = 0; a < 3; a++) {
+                    velocity[a] = still ? random.nextGaussian() * 0.0002
+                            : velocity[a] * 0.98 + random.nextGaussian() * 0.002;
+                    t[a] = still ? t[a] + random.nextGaussian() * 0.00002 : t[a] * 0.999 + velocity[a] * 0.01;
+                }
+                rotate(q, velocity);
+                System.arraycopy(q, 0, poses, i * 7, 4);
+                System.arraycopy(t, 0, poses, i * 7 + 4, 3);
+            }
+            return new Track("synthetic head", 0, count, times, frames, poses);
+        }
+
+        /**
+         * Applies a small rotation of axis-angle {@code rotation} to the unit quaternion {@code q}
+         */
+        private static void rotate(double[] q, double[] rotation) {
+            double angle = Math.sqrt(rotation[0] * rotation[0] + rotation[1] * rotation[1] + rotation[2] * rotation[2]);
+            if (angle == 0) {
+                return;
+            }
+            double s = Math.sin(angle / 2) / angle;
+            double rx = rotation[0] * s, ry = rotation[1] * s, rz = rotation[2] * s, rw = Math.cos(angle / 2);
+            double x = rw * q[0] + rx * q[3] + ry * q[2] - rz * q[1];
+            double y = rw * q[1] - rx * q[2] + ry * q[3] + rz * q[0];
+            double z = rw * q[2] + rx * q[1] - ry * q[0] + rz * q[3];
+            double w = rw * q[3] - rx * q[0] - ry * q[1] - rz * q[2];
+            double norm = Math.sqrt(x * x + y * y + z * z + w * w);
+            q[0] = x / norm;
+            q[1] = y / norm;
+            q[2] = z / norm;
+            q[3] = w / norm;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.util.Locale;
+
+/**
+ * Measures the throughput of a {@link PoseRingBuffer} with a producer offering poses as fast as
+ * possible to a concurrent consumer, and how many of them are dropped.
+ * <pre>
+ * PoseRingBufferBenchmark [poses] [capacity]
+ * </pre>
+ */
+public final class PoseRingBufferBenchmark {
+    private PoseRingBufferBenchmark() {
+        //do nothing, only runs from main
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final long count = args.length > 0 ? Long.parseLong(args[0]) : 10000000;
+        final PoseRingBuffer buffer = new PoseRingBuffer(args.length > 1 ? Integer.parseInt(args[1]) : 256);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = 0; i < count; i++) {
+                    buffer.offer(i, i, i, i + 1, i + 2, i + 3, -i, -i - 1, -i - 2);
+                }
+            }
+        });
+        final long[] received = new long[1];
+        PoseRingBuffer.Reader reader = new PoseRingBuffer.Reader() {
+            @Override
+            public void onPose(long timeNs, long frame, double qx, double qy, double qz, double qw,
+                               double tx, double ty, double tz) {
+                received[0]++;
+            }
+        };
+
+        long start = System.nanoTime();
+        producer.start();
+        while (producer.isAlive()) {
+            if (buffer.drain(reader, 64) == 0) {
+                Thread.yield();
+            }
+        }
+        producer.join();
+        buffer.drain(reader, Integer.MAX_VALUE);
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format(Locale.US, "%d poses offered in %.1fms (%.1f M/s), %d received, %d dropped",
+                count, elapsed / 1e6, count * 1e3 / elapsed, received[0], buffer.getDroppedCount()));
+    }
+}
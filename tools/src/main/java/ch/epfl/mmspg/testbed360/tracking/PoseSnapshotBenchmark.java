@@ -0,0 +1,63 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.util.Locale;
+
+/**
+ * Measures the cost of publishing a pose to a {@link PoseSnapshot} and of reading it back, without
+ * concurrent threads.
+ * <pre>
+ * PoseSnapshotBenchmark [poses]
+ * </pre>
+ */
+public final class PoseSnapshotBenchmark {
+    private PoseSnapshotBenchmark() {
+        //do nothing, only runs from main
+    }
+
+    public static void main(String[] args) {
+        long count = args.length > 0 ? Long.parseLong(args[0]) : 5000000;
+        PoseSnapshot snapshot = new PoseSnapshot();
+        final long[] sum = new long[1];
+        PoseRingBuffer.Reader sink = new PoseRingBuffer.Reader() {
+            @Override
+            public void onPose(long timeNs, long frame, double qx, double qy, double qz, double qw,
+                               double tx, double ty, double tz) {
+                sum[0] += frame;
+            }
+        };
+        //first run to warm up the JIT
+        for (int run = 0; run < 2; run++) {
+            long start = System.nanoTime();
+            for (long i = 0; i < count; i++) {
+                snapshot.publish(i * 16, i, i, i + 1, i + 2, i + 3, -i, -i - 1, -i - 2);
+            }
+            long publishNs = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (long i = 0; i < count; i++) {
+                snapshot.read(sink);
+            }
+            long readNs = System.nanoTime() - start;
+            if (run > 0) {
+                System.out.println(String.format(Locale.US, "%d poses : publish %.1fns, read %.1fns",
+                        count, (double) publishNs / count, (double) readNs / count));
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Exports the tracks of a {@link TrackContainer} to the per-file layout, in the given folder or next
+ * to the container, see {@link TrackContainer#exportLegacy(File)}. They can then be converted to CSV
+ * by {@link TrackFileTool}.
+ * <pre>
+ * TrackContainerTool &lt;container&gt; [output folder]
+ * </pre>
+ */
+public final class TrackContainerTool {
+    private TrackContainerTool() {
+        //do nothing, only runs from main
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage : TrackContainerTool <container> [output folder]");
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        File dir = args.length > 1 ? new File(args[1]) : file.getAbsoluteFile().getParentFile();
+        long start = System.nanoTime();
+        try (TrackContainer container = TrackContainer.open(file)) {
+            int count = container.exportLegacy(dir);
+            System.out.println(String.format(Locale.US, "%d runs, %d tracks exported to %s in %.1fms",
+                    container.getRunCount(), count, dir, (System.nanoTime() - start) / 1e6));
+        }
+    }
+}
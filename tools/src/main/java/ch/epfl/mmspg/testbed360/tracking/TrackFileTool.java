@@ -0,0 +1,86 @@
+// Copyright (C) 2017 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland
+// Multimedia Signal Processing Group
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.epfl.mmspg.testbed360.tracking;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Exports track files to CSV files next to them, with a .csv extension, see
+ * {@link TrackFile#exportCsv(File, Appendable)}. Folders are exported recursively, and each track of
+ * a {@link TrackContainer} is exported as if it was its own file.
+ * <pre>
+ * TrackFileTool &lt;track file, container or folder&gt;...
+ * </pre>
+ */
+public final class TrackFileTool {
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private TrackFileTool() {
+        //do nothing, only runs from main
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage : TrackFileTool <track file, container or folder>...");
+            System.exit(1);
+        }
+        for (String arg : args) {
+            export(new File(arg));
+        }
+    }
+
+    private static void export(File file) throws IOException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File child : files) {
+                    if (child.isDirectory() || TrackFile.isTrackName(child.getName())
+                            || child.getName().equals(TrackContainer.FILE_NAME)) {
+                        export(child);
+                    }
+                }
+            }
+            return;
+        }
+        if (file.getName().endsWith(TrackContainer.FILE_NAME)) {
+            try (TrackContainer container = TrackContainer.open(file)) {
+                for (TrackContainer.Entry entry : container.getEntries()) {
+                    File csv = new File(file.getParentFile(), entry.getTrackId() + entry.getSuffix() + ".csv");
+                    try (TrackReader reader = container.openTrack(entry);
+                         BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), UTF_8))) {
+                        long count = TrackFile.exportCsv(reader, out);
+                        System.out.println(file + " : " + count + " poses of " + entry.getStimulusName() + " to " + csv);
+                    }
+                }
+            }
+            return;
+        }
+        File csv = new File(file.getParentFile(), file.getName() + ".csv");
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), UTF_8))) {
+            long count = TrackFile.exportCsv(file, out);
+            System.out.println(file + " : " + count + " poses to " + csv);
+        }
+    }
+}